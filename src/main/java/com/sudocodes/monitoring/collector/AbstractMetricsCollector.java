@@ -1,11 +1,15 @@
 package com.sudocodes.monitoring.collector;
 
+import com.sudocodes.monitoring.diagnostics.CollectorRunEvent;
+import com.sudocodes.monitoring.redis.MetricsBatch;
+import com.sudocodes.monitoring.redis.MetricsWriter;
+import com.sudocodes.monitoring.redis.SelfMetrics;
 import lombok.extern.slf4j.Slf4j;
-import org.springframework.data.redis.RedisConnectionFailureException;
 import org.springframework.data.redis.core.RedisTemplate;
 
 import javax.annotation.PostConstruct;
 import javax.annotation.PreDestroy;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
 
@@ -16,12 +20,19 @@ import java.util.concurrent.atomic.AtomicInteger;
 public abstract class AbstractMetricsCollector implements MetricsCollector {
 
     protected final RedisTemplate<String, Object> redisTemplate;
+    protected final MetricsWriter metricsWriter;
     protected final AtomicBoolean shuttingDown = new AtomicBoolean(false);
     private final AtomicInteger consecutiveFailures = new AtomicInteger(0);
     private final int maxConsecutiveFailuresToLog = 3;
+    private final String collectorName;
+    private final String cycleSeries;
+    private final ThreadLocal<CollectorRunEvent> runEvent = new ThreadLocal<>();
     
-    protected AbstractMetricsCollector(RedisTemplate<String, Object> redisTemplate) {
+    protected AbstractMetricsCollector(RedisTemplate<String, Object> redisTemplate, MetricsWriter metricsWriter) {
         this.redisTemplate = redisTemplate;
+        this.metricsWriter = metricsWriter;
+        this.collectorName = getClass().getSimpleName().replace("MetricsCollector", "").toLowerCase();
+        this.cycleSeries = collectorName + ":cycle";
     }
     
     @PostConstruct
@@ -43,6 +54,67 @@ public abstract class AbstractMetricsCollector implements MetricsCollector {
         return shuttingDown.get();
     }
     
+    /**
+     * Create an empty batch of writes for this server, and begin this cycle's flight recorder event
+     */
+    protected MetricsBatch newBatch() {
+        CollectorRunEvent event = new CollectorRunEvent();
+        if (event.isEnabled()) {
+            event.begin();
+            runEvent.set(event);
+        } else {
+            runEvent.remove();
+        }
+        return metricsWriter.newBatch();
+    }
+    
+    /**
+     * Hand a batch of metrics to the writer without waiting for Redis. If Redis is
+     * unreachable the batch is kept in the local spool and replayed once the connection
+     * is restored; failures are accounted for when the write completes. The time since the
+     * batch was created is recorded as this collector's cycle time, {@code collector:<name>:cycle},
+     * and together with the batch size in {@link SelfMetrics}.
+     * @param batch The writes collected during this cycle
+     * @param errorMessage The error message to log if the write fails
+     */
+    protected void writeBatch(MetricsBatch batch, String errorMessage) {
+        if (isShuttingDown()) {
+            log.debug("Skipping Redis operation - application is shutting down");
+            return;
+        }
+        
+        long now = System.currentTimeMillis();
+        batch.addHistory("collector", cycleSeries, now - batch.getCreatedAt(), now);
+        
+        CompletableFuture<MetricsWriter.WriteOutcome> written = metricsWriter.write(batch);
+        // The writer has added rollups and fleet values by now, so this is everything the cycle writes
+        SelfMetrics selfMetrics = metricsWriter.getSelfMetrics();
+        if (selfMetrics.isEnabled()) {
+            selfMetrics.recordCycle(collectorName, (now - batch.getCreatedAt()) * 1_000_000, batch.estimatedBytes());
+        }
+        CollectorRunEvent event = runEvent.get();
+        if (event != null) {
+            runEvent.remove();
+            event.end();
+            if (event.shouldCommit()) {
+                event.collector = collectorName;
+                event.serverId = batch.getKeyPrefix();
+                event.entries = batch.getEntries().size();
+                event.bytes = batch.estimatedBytes();
+                event.commit();
+            }
+        }
+        
+        written.whenComplete((outcome, error) -> {
+            if (error != null) {
+                recordFailure(errorMessage, error);
+            } else if (outcome == MetricsWriter.WriteOutcome.WRITTEN) {
+                // A batch queued behind a spool backlog says nothing about the connection yet
+                recordSuccess();
+            }
+        });
+    }
+    
     /**
      * Safely perform a Redis operation, handling connection failures during shutdown
      * @param operation The Redis operation to perform
@@ -56,26 +128,34 @@ public abstract class AbstractMetricsCollector implements MetricsCollector {
         
         try {
             operation.run();
-            // Reset consecutive failures on success
-            if (consecutiveFailures.get() > 0) {
-                log.info("Redis connection restored after {} consecutive failures", consecutiveFailures.get());
-                consecutiveFailures.set(0);
-            }
-        } catch (RedisConnectionFailureException e) {
-            if (isShuttingDown()) {
-                log.debug("Redis connection failed during shutdown (expected)");
-            } else {
-                int failures = consecutiveFailures.incrementAndGet();
-                // Only log every few failures to avoid filling logs
-                if (failures <= maxConsecutiveFailuresToLog || failures % 10 == 0) {
-                    log.error("{}: {}", errorMessage, e.getMessage());
-                    if (failures == maxConsecutiveFailuresToLog) {
-                        log.warn("Suppressing excessive Redis connection errors. Will log every 10th error.");
-                    }
-                }
-            }
+            recordSuccess();
         } catch (Exception e) {
+            recordFailure(errorMessage, e);
+        }
+    }
+    
+    private void recordSuccess() {
+        // Reset consecutive failures on success; writes complete concurrently, so reset atomically
+        int failures = consecutiveFailures.getAndSet(0);
+        if (failures > 0) {
+            log.info("Redis connection restored after {} consecutive failures", failures);
+        }
+    }
+    
+    private void recordFailure(String errorMessage, Throwable e) {
+        if (!MetricsWriter.isRedisUnavailable(e)) {
             log.error("{}", errorMessage, e);
+        } else if (isShuttingDown()) {
+            log.debug("Redis connection failed during shutdown (expected)");
+        } else {
+            int failures = consecutiveFailures.incrementAndGet();
+            // Only log every few failures to avoid filling logs
+            if (failures <= maxConsecutiveFailuresToLog || failures % 10 == 0) {
+                log.error("{}: {}", errorMessage, e.getMessage());
+                if (failures == maxConsecutiveFailuresToLog) {
+                    log.warn("Suppressing excessive Redis connection errors. Will log every 10th error.");
+                }
+            }
         }
     }
-} 
\ No newline at end of file
+}
@@ -1,11 +1,13 @@
 package com.sudocodes.monitoring.collector;
 
+import com.sudocodes.monitoring.diagnostics.DockerCallEvent;
 import com.sudocodes.monitoring.model.DockerMetrics;
 import com.sudocodes.monitoring.model.ServerIdentity;
+import com.sudocodes.monitoring.redis.MetricsBatch;
+import com.sudocodes.monitoring.redis.MetricsWriter;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
-import org.springframework.data.redis.RedisConnectionFailureException;
 import org.springframework.data.redis.core.RedisTemplate;
 import org.springframework.scheduling.annotation.Scheduled;
 import org.springframework.stereotype.Service;
@@ -27,15 +29,13 @@ public class DockerMetricsCollector extends AbstractMetricsCollector {
 
     private final ServerIdentity serverIdentity;
     
-    @Value("${metrics.retention.max_records:3}")
-    private int maxRecords;
-    
     @Value("${metrics.docker.enabled:true}")
     private boolean dockerEnabled;
     
     @Autowired
-    public DockerMetricsCollector(RedisTemplate<String, Object> redisTemplate, ServerIdentity serverIdentity) {
-        super(redisTemplate);
+    public DockerMetricsCollector(RedisTemplate<String, Object> redisTemplate, ServerIdentity serverIdentity,
+                                  MetricsWriter metricsWriter) {
+        super(redisTemplate, metricsWriter);
         this.serverIdentity = serverIdentity;
     }
     
@@ -53,6 +53,9 @@ public class DockerMetricsCollector extends AbstractMetricsCollector {
         }
         
         try {
+            // Created first so the batch age at write time is the full cycle time
+            MetricsBatch batch = newBatch();
+            
             // Get list of running containers
             List<Map<String, String>> containers = getContainerList();
             
@@ -71,7 +74,7 @@ public class DockerMetricsCollector extends AbstractMetricsCollector {
                 String simpleStatus = container.get("simple_status");
                 
                 // Store container info in Redis
-                saveContainerInfo(containerId, container);
+                saveContainerInfo(batch, containerId, container);
                 
                 // Skip stats collection if container not running
                 if (!"running".equalsIgnoreCase(simpleStatus)) {
@@ -83,9 +86,11 @@ public class DockerMetricsCollector extends AbstractMetricsCollector {
                 Map<String, String> stats = getContainerStats(containerId);
                 if (!stats.isEmpty()) {
                     // Store container stats in Redis
-                    saveContainerStats(containerId, stats);
+                    saveContainerStats(batch, containerId, stats);
                 }
             }
+            
+            writeBatch(batch, "Error saving Docker metrics to Redis");
         } catch (Exception e) {
             if (isShuttingDown()) {
                 log.debug("Error during shutdown (expected): {}", e.getMessage());
@@ -101,13 +106,18 @@ public class DockerMetricsCollector extends AbstractMetricsCollector {
     private List<Map<String, String>> getContainerList() throws Exception {
         List<Map<String, String>> containers = new ArrayList<>();
         
+        DockerCallEvent event = new DockerCallEvent();
+        event.begin();
+        
         // Run docker ps -a command
         ProcessBuilder processBuilder = new ProcessBuilder("docker", "ps", "-a", "--format", "{{.ID}}|{{.Names}}|{{.Image}}|{{.Status}}");
         Process process = processBuilder.start();
+        int lines = 0;
         
         try (BufferedReader reader = new BufferedReader(new InputStreamReader(process.getInputStream()))) {
             String line;
             while ((line = reader.readLine()) != null) {
+                lines++;
                 String[] parts = line.split("\\|");
                 if (parts.length >= 4) {
                     Map<String, String> container = new HashMap<>();
@@ -136,6 +146,7 @@ public class DockerMetricsCollector extends AbstractMetricsCollector {
         if (exitCode != 0) {
             log.warn("Docker ps command returned non-zero exit code: {}", exitCode);
         }
+        commitDockerCall(event, "ps", null, exitCode, lines);
         
         return containers;
     }
@@ -148,6 +159,8 @@ public class DockerMetricsCollector extends AbstractMetricsCollector {
         
         // Run docker stats --no-stream command for a specific container
         log.debug("Fetching stats for container: {}", containerId);
+        DockerCallEvent event = new DockerCallEvent();
+        event.begin();
         ProcessBuilder processBuilder = new ProcessBuilder("docker", "stats", containerId, "--no-stream", "--format", 
                 "{{.CPUPerc}}|{{.MemUsage}}|{{.MemPerc}}|{{.NetIO}}|{{.BlockIO}}|{{.PIDs}}");
         Process process = processBuilder.start();
@@ -212,87 +225,61 @@ public class DockerMetricsCollector extends AbstractMetricsCollector {
         if (exitCode != 0) {
             log.warn("Docker stats command returned non-zero exit code: {} for container {}", exitCode, containerId);
         }
+        commitDockerCall(event, "stats", containerId, exitCode, stats.isEmpty() ? 0 : 1);
         
         return stats;
     }
     
+    private static void commitDockerCall(DockerCallEvent event, String command, String containerId, int exitCode,
+                                         int lines) {
+        event.end();
+        if (event.shouldCommit()) {
+            event.command = command;
+            event.container = containerId;
+            event.exitCode = exitCode;
+            event.lines = lines;
+            event.commit();
+        }
+    }
+    
     /**
      * Save container info to Redis
      */
-    private void saveContainerInfo(String containerId, Map<String, String> info) {
-        final String key = serverIdentity.formatKey("docker", "container:" + containerId);
-        final Map<String, String> infoMap = new HashMap<>(info);
-        
-        safeRedisOperation(() -> {
-            redisTemplate.opsForHash().putAll(key, infoMap);
-            log.debug("Stored container info for {}: {}", containerId, info);
-        }, "Error saving container info to Redis");
+    private void saveContainerInfo(MetricsBatch batch, String containerId, Map<String, String> info) {
+        batch.putHash("docker", "container:" + containerId, info);
+        batch.addIndex("docker", containerId);
+        log.debug("Stored container info for {}: {}", containerId, info);
     }
     
     /**
      * Save container stats to Redis
      */
-    private void saveContainerStats(String containerId, Map<String, String> stats) {
-        if (isShuttingDown()) {
-            return;
-        }
-        
-        final String statsKey = serverIdentity.formatKey("docker", "stats:" + containerId);
-        final Map<String, String> statsMap = new HashMap<>(stats);
+    private void saveContainerStats(MetricsBatch batch, String containerId, Map<String, String> stats) {
         final long timestamp = System.currentTimeMillis();
         
-        safeRedisOperation(() -> {
-            // Store current stats in Redis hash
-            redisTemplate.opsForHash().putAll(statsKey, statsMap);
-            
-            // Store time-series data for CPU and memory
-            if (stats.containsKey("cpu_percent")) {
-                try {
-                    double cpuPercent = Double.parseDouble(stats.get("cpu_percent"));
-                    redisTemplate.opsForZSet().add(
-                            serverIdentity.formatKey("docker", "history:" + containerId + ":cpu"), 
-                            cpuPercent, (double) timestamp);
-                    
-                    // Trim history to keep only recent records
-                    trimTimeSeriesData(serverIdentity.formatKey("docker", "history:" + containerId + ":cpu"));
-                } catch (NumberFormatException e) {
-                    log.warn("Invalid CPU percentage value: {}", stats.get("cpu_percent"));
-                }
-            }
-            
-            if (stats.containsKey("memory_percent")) {
-                try {
-                    double memPercent = Double.parseDouble(stats.get("memory_percent"));
-                    redisTemplate.opsForZSet().add(
-                            serverIdentity.formatKey("docker", "history:" + containerId + ":memory"), 
-                            memPercent, (double) timestamp);
-                    
-                    // Trim history to keep only recent records
-                    trimTimeSeriesData(serverIdentity.formatKey("docker", "history:" + containerId + ":memory"));
-                } catch (NumberFormatException e) {
-                    log.warn("Invalid memory percentage value: {}", stats.get("memory_percent"));
-                }
+        // Store current stats in Redis hash
+        batch.putHash("docker", "stats:" + containerId, stats);
+        
+        // Store time-series data for CPU and memory
+        if (stats.containsKey("cpu_percent")) {
+            try {
+                double cpuPercent = Double.parseDouble(stats.get("cpu_percent"));
+                batch.addHistory("docker", containerId + ":cpu", cpuPercent, timestamp);
+            } catch (NumberFormatException e) {
+                log.warn("Invalid CPU percentage value: {}", stats.get("cpu_percent"));
             }
-            
-            log.debug("Stored stats for container {}: CPU: {}%, Memory: {}", 
-                     containerId, stats.get("cpu_percent"), stats.get("memory_percent"));
-        }, "Error saving container stats to Redis");
-    }
-    
-    /**
-     * Trims a time-series data set to keep only the most recent records based on configured max records
-     */
-    private void trimTimeSeriesData(String key) {
-        if (isShuttingDown()) {
-            return;
         }
         
-        safeRedisOperation(() -> {
-            Long size = redisTemplate.opsForZSet().size(key);
-            if (size != null && size > maxRecords) {
-                // Remove oldest entries, keeping only the most recent maxRecords
-                redisTemplate.opsForZSet().removeRange(key, 0, size - maxRecords - 1);
+        if (stats.containsKey("memory_percent")) {
+            try {
+                double memPercent = Double.parseDouble(stats.get("memory_percent"));
+                batch.addHistory("docker", containerId + ":memory", memPercent, timestamp);
+            } catch (NumberFormatException e) {
+                log.warn("Invalid memory percentage value: {}", stats.get("memory_percent"));
             }
-        }, "Error trimming time series data for key " + key);
+        }
+        
+        log.debug("Stored stats for container {}: CPU: {}%, Memory: {}", 
+                 containerId, stats.get("cpu_percent"), stats.get("memory_percent"));
     }
-} 
\ No newline at end of file
+}
@@ -2,9 +2,10 @@ package com.sudocodes.monitoring.collector;
 
 import com.sudocodes.monitoring.model.NetworkMetrics;
 import com.sudocodes.monitoring.model.ServerIdentity;
+import com.sudocodes.monitoring.redis.MetricsBatch;
+import com.sudocodes.monitoring.redis.MetricsWriter;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.beans.factory.annotation.Autowired;
-import org.springframework.beans.factory.annotation.Value;
 import org.springframework.data.redis.core.RedisTemplate;
 import org.springframework.scheduling.annotation.Scheduled;
 import org.springframework.stereotype.Service;
@@ -15,13 +16,11 @@ import oshi.hardware.NetworkIF;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.Set;
 
 @Service
 @Slf4j
-public class NetworkMetricsCollector implements MetricsCollector {
+public class NetworkMetricsCollector extends AbstractMetricsCollector {
     
-    private final RedisTemplate<String, Object> redisTemplate;
     private final SystemInfo systemInfo;
     private final ServerIdentity serverIdentity;
     
@@ -30,12 +29,10 @@ public class NetworkMetricsCollector implements MetricsCollector {
     private Map<String, Long> previousSentBytes = new HashMap<>();
     private long previousTimestamp = System.currentTimeMillis();
     
-    @Value("${metrics.retention.max_records:3}")
-    private int maxRecords;
-    
     @Autowired
-    public NetworkMetricsCollector(RedisTemplate<String, Object> redisTemplate, ServerIdentity serverIdentity) {
-        this.redisTemplate = redisTemplate;
+    public NetworkMetricsCollector(RedisTemplate<String, Object> redisTemplate, ServerIdentity serverIdentity,
+                                   MetricsWriter metricsWriter) {
+        super(redisTemplate, metricsWriter);
         this.serverIdentity = serverIdentity;
         this.systemInfo = new SystemInfo();
     }
@@ -43,6 +40,11 @@ public class NetworkMetricsCollector implements MetricsCollector {
     @Override
     @Scheduled(fixedRateString = "${metrics.schedule.system}")
     public void collectMetrics() {
+        if (isShuttingDown()) {
+            log.debug("Skipping metrics collection - application is shutting down");
+            return;
+        }
+        
         try {
             HardwareAbstractionLayer hardware = systemInfo.getHardware();
             List<NetworkIF> networkInterfaces = hardware.getNetworkIFs();
@@ -51,6 +53,7 @@ public class NetworkMetricsCollector implements MetricsCollector {
             
             long totalReceived = 0;
             long totalSent = 0;
+            MetricsBatch batch = newBatch();
             
             // Calculate and store metrics for each network interface
             for (NetworkIF networkIF : networkInterfaces) {
@@ -114,19 +117,12 @@ public class NetworkMetricsCollector implements MetricsCollector {
                 interfaceMetrics.put("received_rate_kbps", String.format("%.2f", receivedRate / 1024));
                 interfaceMetrics.put("sent_rate_kbps", String.format("%.2f", sentRate / 1024));
                 
-                String interfaceKey = serverIdentity.formatKey("network", "interface:" + interfaceName);
-                redisTemplate.opsForHash().putAll(interfaceKey, interfaceMetrics);
+                batch.putHash("network", "interface:" + interfaceName, interfaceMetrics);
+                batch.addIndex("network", interfaceName);
                 
                 // Store time-series data for interface network rates
-                String recvHistoryKey = serverIdentity.formatKey("network", "history:" + interfaceName + ":received");
-                String sentHistoryKey = serverIdentity.formatKey("network", "history:" + interfaceName + ":sent");
-                
-                redisTemplate.opsForZSet().add(recvHistoryKey, receivedRate / 1024, (double) currentTimestamp);
-                redisTemplate.opsForZSet().add(sentHistoryKey, sentRate / 1024, (double) currentTimestamp);
-                
-                // Trim data to keep only recent records
-                trimTimeSeriesData(recvHistoryKey);
-                trimTimeSeriesData(sentHistoryKey);
+                batch.addHistory("network", interfaceName + ":received", receivedRate / 1024, currentTimestamp);
+                batch.addHistory("network", interfaceName + ":sent", sentRate / 1024, currentTimestamp);
             }
             
             // Store overall network metrics
@@ -135,8 +131,8 @@ public class NetworkMetricsCollector implements MetricsCollector {
             overallMetrics.put("total_sent_mb", String.valueOf(totalSent / (1024 * 1024)));
             overallMetrics.put("interface_count", String.valueOf(networkInterfaces.size()));
             
-            String overallKey = serverIdentity.formatKey("network", "overall");
-            redisTemplate.opsForHash().putAll(overallKey, overallMetrics);
+            batch.putHash("network", "overall", overallMetrics);
+            writeBatch(batch, "Error saving network metrics to Redis");
             
             // Update timestamp for next calculation
             previousTimestamp = currentTimestamp;
@@ -146,23 +142,4 @@ public class NetworkMetricsCollector implements MetricsCollector {
             log.error("Error collecting network metrics", e);
         }
     }
-    
-    /**
-     * Trims a time-series data set to keep only the most recent records based on configured max records
-     */
-    private void trimTimeSeriesData(String key) {
-        try {
-            Long size = redisTemplate.opsForZSet().size(key);
-            if (size != null && size > maxRecords) {
-                // Get all members sorted by score (timestamp)
-                Set<Object> oldestMembers = redisTemplate.opsForZSet().range(key, 0, size - maxRecords - 1);
-                if (oldestMembers != null && !oldestMembers.isEmpty()) {
-                    // Remove the oldest members, keeping only the most recent maxRecords
-                    redisTemplate.opsForZSet().remove(key, oldestMembers.toArray());
-                }
-            }
-        } catch (Exception e) {
-            log.error("Error trimming time series data for key {}: {}", key, e.getMessage());
-        }
-    }
 } 
\ No newline at end of file
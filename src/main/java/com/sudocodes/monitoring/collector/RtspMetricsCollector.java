@@ -1,7 +1,10 @@
 package com.sudocodes.monitoring.collector;
 
+import com.sudocodes.monitoring.diagnostics.FfmpegProbeEvent;
 import com.sudocodes.monitoring.model.RtspMetrics;
 import com.sudocodes.monitoring.model.ServerIdentity;
+import com.sudocodes.monitoring.redis.MetricsBatch;
+import com.sudocodes.monitoring.redis.MetricsWriter;
 import lombok.extern.slf4j.Slf4j;
 import org.bytedeco.ffmpeg.avformat.AVFormatContext;
 import org.bytedeco.ffmpeg.avformat.AVInputFormat;
@@ -24,19 +27,18 @@ import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.TimeUnit;
 import javax.annotation.PostConstruct;
 
 @Service
 @Slf4j
-public class RtspMetricsCollector implements MetricsCollector {
+public class RtspMetricsCollector extends AbstractMetricsCollector {
 
-    private final RedisTemplate<String, Object> redisTemplate;
     private final ServerIdentity serverIdentity;
     
-    @Value("${metrics.retention.max_records:3}")
-    private int maxRecords;
+    // Consecutive failures per stream, seeded from Redis the first time a stream is checked
+    private final Map<String, Integer> consecutiveFailuresByStream = new ConcurrentHashMap<>();
     
     @Value("${rtsp.connect.timeout:5000}")
     private int connectTimeout;
@@ -51,13 +53,17 @@ public class RtspMetricsCollector implements MetricsCollector {
     );
     
     @Autowired
-    public RtspMetricsCollector(RedisTemplate<String, Object> redisTemplate, ServerIdentity serverIdentity) {
-        this.redisTemplate = redisTemplate;
+    public RtspMetricsCollector(RedisTemplate<String, Object> redisTemplate, ServerIdentity serverIdentity,
+                                MetricsWriter metricsWriter) {
+        super(redisTemplate, metricsWriter);
         this.serverIdentity = serverIdentity;
     }
     
+    @Override
     @PostConstruct
     public void init() {
+        super.init();
+        
         // Initialize FFmpeg network components
         // Note: av_register_all() is deprecated in newer FFmpeg versions and no longer needed
         avformat.avformat_network_init();
@@ -68,9 +74,16 @@ public class RtspMetricsCollector implements MetricsCollector {
     @Override
     @Scheduled(fixedRateString = "${metrics.schedule.rtsp:60000}")
     public void collectMetrics() {
+        if (isShuttingDown()) {
+            log.debug("Skipping metrics collection - application is shutting down");
+            return;
+        }
+        
         try {
             log.debug("Collecting RTSP stream metrics for {} streams", streams.size());
             
+            MetricsBatch batch = newBatch();
+            
             // For each stream, check status
             for (Map<String, String> stream : streams) {
                 String streamName = stream.get("name");
@@ -80,8 +93,10 @@ public class RtspMetricsCollector implements MetricsCollector {
                 Map<String, Object> status = checkStreamStatus(streamName, streamUrl);
                 
                 // Store stream info in Redis
-                saveStreamInfo(streamName, streamUrl, status);
+                saveStreamInfo(batch, streamName, status);
             }
+            
+            writeBatch(batch, "Error saving RTSP stream info to Redis");
         } catch (Exception e) {
             log.error("Error collecting RTSP metrics", e);
         }
@@ -96,10 +111,8 @@ public class RtspMetricsCollector implements MetricsCollector {
         result.put("stream_url", streamUrl);
         result.put("last_checked", System.currentTimeMillis());
         
-        // Get previous consecutive failures from Redis
-        String redisKey = serverIdentity.formatKey("rtsp", "stream:" + streamName);
-        Object prevFailures = redisTemplate.opsForHash().get(redisKey, "consecutive_failures");
-        int consecutiveFailures = prevFailures != null ? Integer.parseInt(prevFailures.toString()) : 0;
+        // Get previous consecutive failures
+        int consecutiveFailures = consecutiveFailuresByStream.computeIfAbsent(streamName, this::loadConsecutiveFailures);
         
         // Create AVFormatContext
         AVFormatContext formatContext = avformat.avformat_alloc_context();
@@ -113,8 +126,12 @@ public class RtspMetricsCollector implements MetricsCollector {
             avutil.av_dict_set(options, "timeout", String.valueOf(connectTimeout * 1000), 0); // microseconds
             avutil.av_dict_set(options, "stimeout", String.valueOf(connectTimeout * 1000), 0); // microseconds
             
-            // Open the RTSP stream
+            // Open the RTSP stream; the time until stream info is available is the probe latency
+            long probeStart = System.nanoTime();
+            FfmpegProbeEvent openEvent = new FfmpegProbeEvent();
+            openEvent.begin();
             int ret = avformat.avformat_open_input(formatContext, streamUrl, null, options);
+            commitProbe(openEvent, streamName, FfmpegProbeEvent.OPEN, ret);
             if (ret < 0) {
                 BytePointer errorMsg = new BytePointer(256);
                 avutil.av_strerror(ret, errorMsg, 256);
@@ -123,7 +140,10 @@ public class RtspMetricsCollector implements MetricsCollector {
             }
             
             // Get stream information
+            FfmpegProbeEvent infoEvent = new FfmpegProbeEvent();
+            infoEvent.begin();
             ret = avformat.avformat_find_stream_info(formatContext, (PointerPointer) null);
+            commitProbe(infoEvent, streamName, FfmpegProbeEvent.STREAM_INFO, ret);
             if (ret < 0) {
                 throw new IOException("Could not find stream info");
             }
@@ -146,10 +166,12 @@ public class RtspMetricsCollector implements MetricsCollector {
             }
             
             // We found at least one stream, so the RTSP connection is valid
+            result.put("latency_ms", (System.nanoTime() - probeStart) / 1_000_000.0);
             result.put("active", true);
             result.put("error_message", "");
             result.put("codec_type", codecTypes.toString().trim());
             result.put("consecutive_failures", 0);
+            consecutiveFailuresByStream.put(streamName, 0);
             result.put("has_video", hasVideoStream);
             result.put("has_audio", hasAudioStream);
             
@@ -160,6 +182,7 @@ public class RtspMetricsCollector implements MetricsCollector {
             result.put("error_message", e.getMessage());
             result.put("codec_type", "");
             result.put("consecutive_failures", ++consecutiveFailures);
+            consecutiveFailuresByStream.put(streamName, consecutiveFailures);
             result.put("has_video", false);
             result.put("has_audio", false);
             
@@ -175,43 +198,46 @@ public class RtspMetricsCollector implements MetricsCollector {
         return result;
     }
     
+    private static void commitProbe(FfmpegProbeEvent event, String streamName, String phase, int result) {
+        event.end();
+        if (event.shouldCommit()) {
+            event.stream = streamName;
+            event.phase = phase;
+            event.result = result;
+            event.commit();
+        }
+    }
+    
     /**
-     * Save stream info to Redis
+     * Read the consecutive failure count left in Redis by a previous run
      */
-    private void saveStreamInfo(String streamName, String streamUrl, Map<String, Object> status) {
+    private int loadConsecutiveFailures(String streamName) {
         try {
-            // Store stream info in Redis hash with server-prefixed key
             String redisKey = serverIdentity.formatKey("rtsp", "stream:" + streamName);
-            redisTemplate.opsForHash().putAll(redisKey, status);
-            
-            // Store time-series data for stream status with server-prefixed key
-            long timestamp = System.currentTimeMillis();
-            boolean isActive = (boolean) status.get("active");
-            
-            String historyKey = serverIdentity.formatKey("rtsp", "history:" + streamName);
-            redisTemplate.opsForZSet().add(historyKey, isActive ? 1.0 : 0.0, (double) timestamp);
-            
-            // Trim history to keep only recent records
-            trimTimeSeriesData(historyKey);
-            
-            log.debug("Stored RTSP stream info for {}: {}", streamName, status);
+            Object prevFailures = redisTemplate.opsForHash().get(redisKey, "consecutive_failures");
+            return prevFailures != null ? Integer.parseInt(prevFailures.toString()) : 0;
         } catch (Exception e) {
-            log.error("Error saving RTSP stream info to Redis: {}", e.getMessage(), e);
+            log.debug("Could not read previous failures for stream {}: {}", streamName, e.getMessage());
+            return 0;
         }
     }
     
     /**
-     * Trims a time-series data set to keep only the most recent records based on configured max records
+     * Save stream info to Redis
      */
-    private void trimTimeSeriesData(String key) {
-        try {
-            Long size = redisTemplate.opsForZSet().size(key);
-            if (size != null && size > maxRecords) {
-                // Get all members sorted by score (timestamp)
-                redisTemplate.opsForZSet().removeRange(key, 0, size - maxRecords - 1);
-            }
-        } catch (Exception e) {
-            log.error("Error trimming time series data for key {}: {}", key, e.getMessage());
+    private void saveStreamInfo(MetricsBatch batch, String streamName, Map<String, Object> status) {
+        // Store stream info in Redis hash with server-prefixed key
+        batch.putHash("rtsp", "stream:" + streamName, status);
+        batch.addIndex("rtsp", streamName);
+        
+        // Store time-series data for stream status with server-prefixed key
+        long timestamp = System.currentTimeMillis();
+        boolean isActive = (boolean) status.get("active");
+        batch.addHistory("rtsp", streamName, isActive ? 1.0 : 0.0, timestamp);
+        if (status.get("latency_ms") != null) {
+            batch.addHistory("rtsp", streamName + ":latency", (double) status.get("latency_ms"), timestamp);
         }
+        
+        log.debug("Stored RTSP stream info for {}: {}", streamName, status);
     }
 } 
\ No newline at end of file
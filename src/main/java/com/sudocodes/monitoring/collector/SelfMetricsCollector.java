@@ -0,0 +1,127 @@
+package com.sudocodes.monitoring.collector;
+
+import com.sudocodes.monitoring.model.LatencyHistogram;
+import com.sudocodes.monitoring.redis.MetricsBatch;
+import com.sudocodes.monitoring.redis.MetricsWriter;
+import com.sudocodes.monitoring.redis.SelfMetrics;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.data.redis.core.RedisTemplate;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.scheduling.concurrent.ThreadPoolTaskScheduler;
+import org.springframework.stereotype.Service;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Writes the monitor's own overhead under the {@code monitor} section of this server:
+ * hashes {@code monitor:jvm}, {@code monitor:scheduler}, {@code monitor:collector:<name>} and
+ * {@code monitor:redis:<command>}, plus {@code cpu}, {@code heap} and {@code alloc_rate} history.
+ * Also probes how long the scheduler takes to start a task.
+ */
+@Service
+@Slf4j
+public class SelfMetricsCollector extends AbstractMetricsCollector {
+
+    private final SelfMetrics selfMetrics;
+    private final ThreadPoolTaskScheduler taskScheduler;
+
+    @Autowired
+    public SelfMetricsCollector(RedisTemplate<String, Object> redisTemplate, MetricsWriter metricsWriter,
+                                SelfMetrics selfMetrics,
+                                @Qualifier("taskScheduler") ThreadPoolTaskScheduler taskScheduler) {
+        super(redisTemplate, metricsWriter);
+        this.selfMetrics = selfMetrics;
+        this.taskScheduler = taskScheduler;
+        // First sample sets the baseline for the rates
+        selfMetrics.sampleJvm();
+    }
+
+    /**
+     * Hand the scheduler an empty task and record how long it waits for a thread
+     */
+    @Scheduled(fixedRateString = "${metrics.self.probe-interval:1000}")
+    public void probeScheduler() {
+        if (!selfMetrics.isEnabled() || isShuttingDown()) {
+            return;
+        }
+        long submitted = System.nanoTime();
+        try {
+            taskScheduler.execute(() -> selfMetrics.recordSchedulerLag(System.nanoTime() - submitted,
+                    taskScheduler.getActiveCount(), taskScheduler.getPoolSize()));
+        } catch (Exception e) {
+            log.debug("Scheduler lag probe rejected: {}", e.getMessage());
+        }
+    }
+
+    @Override
+    @Scheduled(fixedRateString = "${metrics.schedule.self:15000}")
+    public void collectMetrics() {
+        if (!selfMetrics.isEnabled() || isShuttingDown()) {
+            return;
+        }
+
+        try {
+            MetricsBatch batch = newBatch();
+
+            Map<String, Object> jvm = selfMetrics.sampleJvm();
+            Map<String, String> jvmMetrics = new HashMap<>();
+            jvm.forEach((name, value) -> jvmMetrics.put(name, format(value)));
+            batch.putHash("monitor", "jvm", jvmMetrics);
+
+            LatencyHistogram lag = selfMetrics.getSchedulerLag();
+            Map<String, String> schedulerMetrics = new HashMap<>();
+            schedulerMetrics.put("lag_p99_ms", format(lag.getPercentileMillis(0.99)));
+            schedulerMetrics.put("lag_max_ms", format(lag.getMaxMillis()));
+            schedulerMetrics.put("active_threads", String.valueOf(taskScheduler.getActiveCount()));
+            schedulerMetrics.put("pool_size", String.valueOf(taskScheduler.getPoolSize()));
+            batch.putHash("monitor", "scheduler", schedulerMetrics);
+
+            selfMetrics.getCycleTimes().forEach((collector, cycle) -> {
+                Map<String, String> metrics = histogram(cycle);
+                metrics.put("bytes_last_cycle", String.valueOf(selfMetrics.getLastCycleBytes(collector)));
+                batch.putHash("monitor", "collector:" + collector, metrics);
+            });
+
+            selfMetrics.getCommandLatencies().forEach((command, latency) -> {
+                Map<String, String> metrics = histogram(latency);
+                metrics.put("errors", String.valueOf(selfMetrics.getCommandErrors(command)));
+                batch.putHash("monitor", "redis:" + command.toLowerCase(), metrics);
+            });
+
+            long timestamp = System.currentTimeMillis();
+            addHistory(batch, "cpu", jvm.get("process_cpu_percent"), timestamp);
+            addHistory(batch, "heap", jvm.get("heap_used_mb"), timestamp);
+            addHistory(batch, "alloc_rate", jvm.get("alloc_rate_mb_s"), timestamp);
+
+            writeBatch(batch, "Error saving monitor metrics to Redis");
+        } catch (Exception e) {
+            log.error("Error collecting monitor metrics", e);
+        }
+    }
+
+    private static Map<String, String> histogram(LatencyHistogram histogram) {
+        Map<String, String> metrics = new HashMap<>();
+        metrics.put("count", String.valueOf(histogram.getCount()));
+        metrics.put("mean_ms", format(histogram.getMeanMillis()));
+        metrics.put("p95_ms", format(histogram.getPercentileMillis(0.95)));
+        metrics.put("p99_ms", format(histogram.getPercentileMillis(0.99)));
+        metrics.put("max_ms", format(histogram.getMaxMillis()));
+        return metrics;
+    }
+
+    private static void addHistory(MetricsBatch batch, String series, Object value, long timestamp) {
+        if (value instanceof Number) {
+            batch.addHistory("monitor", series, ((Number) value).doubleValue(), timestamp);
+        }
+    }
+
+    private static String format(Object value) {
+        if (value instanceof Double || value instanceof Float) {
+            return String.format("%.2f", ((Number) value).doubleValue());
+        }
+        return String.valueOf(value);
+    }
+}
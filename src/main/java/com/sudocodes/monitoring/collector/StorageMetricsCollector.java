@@ -2,9 +2,10 @@ package com.sudocodes.monitoring.collector;
 
 import com.sudocodes.monitoring.model.StorageMetrics;
 import com.sudocodes.monitoring.model.ServerIdentity;
+import com.sudocodes.monitoring.redis.MetricsBatch;
+import com.sudocodes.monitoring.redis.MetricsWriter;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.beans.factory.annotation.Autowired;
-import org.springframework.beans.factory.annotation.Value;
 import org.springframework.data.redis.core.RedisTemplate;
 import org.springframework.scheduling.annotation.Scheduled;
 import org.springframework.stereotype.Service;
@@ -16,22 +17,18 @@ import java.io.File;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.Set;
 
 @Service
 @Slf4j
-public class StorageMetricsCollector implements MetricsCollector {
+public class StorageMetricsCollector extends AbstractMetricsCollector {
 
-    private final RedisTemplate<String, Object> redisTemplate;
     private final SystemInfo systemInfo;
     private final ServerIdentity serverIdentity;
     
-    @Value("${metrics.retention.max_records:3}")
-    private int maxRecords;
-    
     @Autowired
-    public StorageMetricsCollector(RedisTemplate<String, Object> redisTemplate, ServerIdentity serverIdentity) {
-        this.redisTemplate = redisTemplate;
+    public StorageMetricsCollector(RedisTemplate<String, Object> redisTemplate, ServerIdentity serverIdentity,
+                                   MetricsWriter metricsWriter) {
+        super(redisTemplate, metricsWriter);
         this.serverIdentity = serverIdentity;
         this.systemInfo = new SystemInfo();
     }
@@ -39,9 +36,15 @@ public class StorageMetricsCollector implements MetricsCollector {
     @Override
     @Scheduled(fixedRateString = "${metrics.schedule.storage}")
     public void collectMetrics() {
+        if (isShuttingDown()) {
+            log.debug("Skipping metrics collection - application is shutting down");
+            return;
+        }
+        
         try {
             FileSystem fileSystem = systemInfo.getOperatingSystem().getFileSystem();
             List<OSFileStore> fileStores = fileSystem.getFileStores();
+            MetricsBatch batch = newBatch();
             
             for (OSFileStore store : fileStores) {
                 String mountPoint = store.getMount();
@@ -75,7 +78,7 @@ public class StorageMetricsCollector implements MetricsCollector {
                 metrics.setUsagePercent(usagePercent);
                 
                 // Store in Redis with server-prefixed keys
-                String diskKey = serverIdentity.formatKey("storage", "disk:" + mountPoint.replace("/", "_"));
+                String diskId = mountPoint.replace("/", "_");
                 
                 Map<String, String> diskMetrics = new HashMap<>();
                 diskMetrics.put("mount_point", mountPoint);
@@ -86,38 +89,18 @@ public class StorageMetricsCollector implements MetricsCollector {
                 diskMetrics.put("free_gb", String.format("%.2f", freeSpace / (1024.0 * 1024 * 1024)));
                 diskMetrics.put("usage_percent", String.format("%.2f", usagePercent));
                 
-                redisTemplate.opsForHash().putAll(diskKey, diskMetrics);
+                batch.putHash("storage", "disk:" + diskId, diskMetrics);
+                batch.addIndex("storage", diskId);
                 
                 // Store time-series data with server-prefixed keys
-                String historyKey = serverIdentity.formatKey("storage", "history:" + mountPoint.replace("/", "_"));
-                redisTemplate.opsForZSet().add(historyKey, usagePercent, (double) System.currentTimeMillis());
-                
-                // Trim history data
-                trimTimeSeriesData(historyKey);
+                batch.addHistory("storage", diskId, usagePercent, System.currentTimeMillis());
             }
             
+            writeBatch(batch, "Error saving storage metrics to Redis");
+            
             log.debug("Collected storage metrics for {} filesystems", fileStores.size());
         } catch (Exception e) {
             log.error("Error collecting storage metrics", e);
         }
     }
-    
-    /**
-     * Trims a time-series data set to keep only the most recent records based on configured max records
-     */
-    private void trimTimeSeriesData(String key) {
-        try {
-            Long size = redisTemplate.opsForZSet().size(key);
-            if (size != null && size > maxRecords) {
-                // Get all members sorted by score (timestamp)
-                Set<Object> oldestMembers = redisTemplate.opsForZSet().range(key, 0, size - maxRecords - 1);
-                if (oldestMembers != null && !oldestMembers.isEmpty()) {
-                    // Remove the oldest members, keeping only the most recent maxRecords
-                    redisTemplate.opsForZSet().remove(key, oldestMembers.toArray());
-                }
-            }
-        } catch (Exception e) {
-            log.error("Error trimming time series data for key {}: {}", key, e.getMessage());
-        }
-    }
 } 
\ No newline at end of file
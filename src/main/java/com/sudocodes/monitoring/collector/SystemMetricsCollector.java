@@ -2,9 +2,10 @@ package com.sudocodes.monitoring.collector;
 
 import com.sudocodes.monitoring.model.ServerIdentity;
 import com.sudocodes.monitoring.model.SystemMetrics;
+import com.sudocodes.monitoring.redis.MetricsBatch;
+import com.sudocodes.monitoring.redis.MetricsWriter;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.beans.factory.annotation.Autowired;
-import org.springframework.beans.factory.annotation.Value;
 import org.springframework.data.redis.core.RedisTemplate;
 import org.springframework.scheduling.annotation.Scheduled;
 import org.springframework.stereotype.Service;
@@ -16,25 +17,21 @@ import oshi.software.os.OperatingSystem;
 
 import java.util.HashMap;
 import java.util.Map;
-import java.util.Set;
 
 @Service
 @Slf4j
-public class SystemMetricsCollector implements MetricsCollector {
+public class SystemMetricsCollector extends AbstractMetricsCollector {
 
-    private final RedisTemplate<String, Object> redisTemplate;
     private final SystemInfo systemInfo;
     private final ServerIdentity serverIdentity;
     
     private long[] prevTicks;
     private long prevTickTime;
     
-    @Value("${metrics.retention.max_records:3}")
-    private int maxRecords;
-    
     @Autowired
-    public SystemMetricsCollector(RedisTemplate<String, Object> redisTemplate, ServerIdentity serverIdentity) {
-        this.redisTemplate = redisTemplate;
+    public SystemMetricsCollector(RedisTemplate<String, Object> redisTemplate, ServerIdentity serverIdentity,
+                                  MetricsWriter metricsWriter) {
+        super(redisTemplate, metricsWriter);
         this.serverIdentity = serverIdentity;
         this.systemInfo = new SystemInfo();
         
@@ -48,7 +45,15 @@ public class SystemMetricsCollector implements MetricsCollector {
     @Override
     @Scheduled(fixedRateString = "${metrics.schedule.system}")
     public void collectMetrics() {
+        if (isShuttingDown()) {
+            log.debug("Skipping metrics collection - application is shutting down");
+            return;
+        }
+        
         try {
+            // Created first so the batch age at write time is the full cycle time
+            MetricsBatch batch = newBatch();
+            
             HardwareAbstractionLayer hardware = systemInfo.getHardware();
             OperatingSystem os = systemInfo.getOperatingSystem();
             
@@ -62,9 +67,9 @@ public class SystemMetricsCollector implements MetricsCollector {
             Map<String, String> processMetrics = collectProcessMetrics(os);
             
             // Store in Redis using prefixed keys
-            redisTemplate.opsForHash().putAll(serverIdentity.formatKey("system", "cpu"), cpuMetrics);
-            redisTemplate.opsForHash().putAll(serverIdentity.formatKey("system", "memory"), memoryMetrics);
-            redisTemplate.opsForHash().putAll(serverIdentity.formatKey("system", "processes"), processMetrics);
+            batch.putHash("system", "cpu", cpuMetrics);
+            batch.putHash("system", "memory", memoryMetrics);
+            batch.putHash("system", "processes", processMetrics);
             
             // Store system identity information
             Map<String, String> serverInfo = new HashMap<>();
@@ -74,21 +79,17 @@ public class SystemMetricsCollector implements MetricsCollector {
             serverInfo.put("os_name", os.getFamily() + " " + os.getVersionInfo());
             serverInfo.put("hostname", os.getNetworkParams().getHostName());
             
-            redisTemplate.opsForHash().putAll(serverIdentity.formatKey("server", "info"), serverInfo);
+            batch.putHash("server", "info", serverInfo);
             
             // Store time-series data for CPU and memory
             long timestamp = System.currentTimeMillis();
             double cpuUsage = Double.parseDouble(cpuMetrics.get("usage_percent"));
             double memoryUsage = Double.parseDouble(memoryMetrics.get("usage_percent"));
             
-            redisTemplate.opsForZSet().add(serverIdentity.formatKey("system", "history:cpu"), 
-                    cpuUsage, Double.valueOf(timestamp));
-            redisTemplate.opsForZSet().add(serverIdentity.formatKey("system", "history:memory"), 
-                    memoryUsage, Double.valueOf(timestamp));
+            batch.addHistory("system", "cpu", cpuUsage, timestamp);
+            batch.addHistory("system", "memory", memoryUsage, timestamp);
             
-            // Trim data to keep only recent records
-            trimTimeSeriesData(serverIdentity.formatKey("system", "history:cpu"));
-            trimTimeSeriesData(serverIdentity.formatKey("system", "history:memory"));
+            writeBatch(batch, "Error saving system metrics to Redis");
             
             log.debug("Collected system metrics - CPU: {}%, Memory: {}%", 
                     cpuMetrics.get("usage_percent"), memoryMetrics.get("usage_percent"));
@@ -184,23 +185,4 @@ public class SystemMetricsCollector implements MetricsCollector {
         
         return metrics;
     }
-    
-    /**
-     * Trims a time-series data set to keep only the most recent records based on configured max records
-     */
-    private void trimTimeSeriesData(String key) {
-        try {
-            Long size = redisTemplate.opsForZSet().size(key);
-            if (size != null && size > maxRecords) {
-                // Get all members sorted by score (timestamp)
-                Set<Object> oldestMembers = redisTemplate.opsForZSet().range(key, 0, size - maxRecords - 1);
-                if (oldestMembers != null && !oldestMembers.isEmpty()) {
-                    // Remove the oldest members, keeping only the most recent maxRecords
-                    redisTemplate.opsForZSet().remove(key, oldestMembers.toArray());
-                }
-            }
-        } catch (Exception e) {
-            log.error("Error trimming time series data for key {}: {}", key, e.getMessage());
-        }
-    }
 } 
\ No newline at end of file
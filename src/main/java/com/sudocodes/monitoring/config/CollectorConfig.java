@@ -6,6 +6,7 @@ import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
 import org.springframework.context.annotation.Primary;
 import com.sudocodes.monitoring.collector.DockerMetricsCollector;
 import com.sudocodes.monitoring.model.ServerIdentity;
+import com.sudocodes.monitoring.redis.MetricsWriter;
 import org.springframework.data.redis.core.RedisTemplate;
 import lombok.extern.slf4j.Slf4j;
 
@@ -20,9 +21,10 @@ public class CollectorConfig {
     @Bean
     @Primary
     @ConditionalOnProperty(name = "metrics.docker.enabled", havingValue = "false", matchIfMissing = false)
-    public DockerMetricsCollector disabledDockerMetricsCollector(RedisTemplate<String, Object> redisTemplate, ServerIdentity serverIdentity) {
+    public DockerMetricsCollector disabledDockerMetricsCollector(RedisTemplate<String, Object> redisTemplate, ServerIdentity serverIdentity,
+                                                                 MetricsWriter metricsWriter) {
         log.info("Docker metrics collection disabled by configuration");
-        return new DockerMetricsCollector(redisTemplate, serverIdentity) {
+        return new DockerMetricsCollector(redisTemplate, serverIdentity, metricsWriter) {
             @Override
             public void collectMetrics() {
                 // Do nothing
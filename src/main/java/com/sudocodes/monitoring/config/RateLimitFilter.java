@@ -0,0 +1,223 @@
+package com.sudocodes.monitoring.config;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+import org.springframework.util.AntPathMatcher;
+import org.springframework.web.filter.OncePerRequestFilter;
+
+import javax.annotation.PostConstruct;
+import javax.servlet.FilterChain;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+/**
+ * Limits API requests per client to {@code api.ratelimit.limit} per {@code api.ratelimit.duration} seconds.
+ *
+ * Each client has a token bucket kept as a single theoretical arrival time (GCRA): a request
+ * of cost c moves it forward by c emission intervals and is allowed if that stays within one
+ * period of now. The state is one {@link AtomicLong} updated with compare-and-set, so buckets
+ * need no locks, and the buckets live in a {@link ConcurrentHashMap}. Buckets that have
+ * refilled completely are evicted periodically. Rejected requests get 429 with Retry-After.
+ */
+@Component
+@Slf4j
+public class RateLimitFilter extends OncePerRequestFilter {
+
+    private final AntPathMatcher pathMatcher = new AntPathMatcher();
+
+    @Value("${api.ratelimit.enabled:false}")
+    private boolean enabled;
+
+    @Value("${api.ratelimit.limit:100}")
+    private long limit;
+
+    @Value("${api.ratelimit.duration:60}")
+    private long durationSeconds;
+
+    @Value("${api.ratelimit.paths:/api/**}")
+    private List<String> limitedPaths;
+
+    @Value("${api.ratelimit.costs:}")
+    private List<String> costSpecs;
+
+    @Value("${api.ratelimit.trust-forwarded-for:false}")
+    private boolean trustForwardedFor;
+
+    private long periodNanos;
+    private long intervalNanos;
+    private List<PathCost> costs = Collections.emptyList();
+
+    /** Source of {@link System#nanoTime()}, replaced by tests */
+    private LongSupplier nanoClock = System::nanoTime;
+
+    private final Map<String, AtomicLong> buckets = new ConcurrentHashMap<>();
+    private final LongAdder allowedRequests = new LongAdder();
+    private final LongAdder rejectedRequests = new LongAdder();
+    /** Keyed by the cost or limited path pattern a request matched, so it cannot grow with the URIs requested */
+    private final Map<String, LongAdder> rejectedByPath = new ConcurrentHashMap<>();
+
+    @PostConstruct
+    public void init() {
+        periodNanos = TimeUnit.SECONDS.toNanos(Math.max(1, durationSeconds));
+        intervalNanos = Math.max(1, periodNanos / Math.max(1, limit));
+
+        List<PathCost> parsed = new ArrayList<>();
+        for (String spec : costSpecs) {
+            int separator = spec.lastIndexOf('=');
+            if (separator <= 0) {
+                continue;
+            }
+            try {
+                parsed.add(new PathCost(spec.substring(0, separator).trim(),
+                        Integer.parseInt(spec.substring(separator + 1).trim())));
+            } catch (NumberFormatException e) {
+                log.warn("Ignoring invalid rate limit cost '{}'", spec);
+            }
+        }
+        costs = parsed;
+
+        if (enabled) {
+            log.info("API rate limit: {} requests per {}s per client, {} endpoint costs", limit, durationSeconds,
+                    costs.size());
+        }
+    }
+
+    @Override
+    protected boolean shouldNotFilter(HttpServletRequest request) {
+        if (!enabled) {
+            return true;
+        }
+        String path = request.getRequestURI().substring(request.getContextPath().length());
+        for (String pattern : limitedPaths) {
+            if (pathMatcher.match(pattern, path)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    protected void doFilterInternal(HttpServletRequest request, HttpServletResponse response, FilterChain chain)
+            throws ServletException, IOException {
+        String path = request.getRequestURI().substring(request.getContextPath().length());
+        PathCost matched = costOf(path);
+        int cost = matched != null ? matched.cost : 1;
+        long now = nanoClock.getAsLong();
+        AtomicLong bucket = buckets.computeIfAbsent(clientOf(request), client -> new AtomicLong(now - periodNanos));
+
+        while (true) {
+            long arrival = bucket.get();
+            long next = Math.max(arrival, now) + cost * intervalNanos;
+            long ahead = next - now;
+            if (ahead > periodNanos) {
+                reject(response, matched != null ? matched.pattern : limitedPatternOf(path), ahead - periodNanos);
+                return;
+            }
+            if (bucket.compareAndSet(arrival, next)) {
+                allowedRequests.increment();
+                response.setHeader("X-RateLimit-Limit", String.valueOf(limit));
+                response.setHeader("X-RateLimit-Remaining", String.valueOf((periodNanos - ahead) / intervalNanos));
+                break;
+            }
+        }
+
+        chain.doFilter(request, response);
+    }
+
+    private void reject(HttpServletResponse response, String pattern, long waitNanos) throws IOException {
+        rejectedRequests.increment();
+        rejectedByPath.computeIfAbsent(pattern, p -> new LongAdder()).increment();
+
+        long retryAfter = Math.max(1, (waitNanos + TimeUnit.SECONDS.toNanos(1) - 1) / TimeUnit.SECONDS.toNanos(1));
+        response.setStatus(HttpStatus.TOO_MANY_REQUESTS.value());
+        response.setHeader(HttpHeaders.RETRY_AFTER, String.valueOf(retryAfter));
+        response.setHeader("X-RateLimit-Limit", String.valueOf(limit));
+        response.setHeader("X-RateLimit-Remaining", "0");
+        response.setContentType(MediaType.APPLICATION_JSON_VALUE);
+        response.getOutputStream().write(("{\"error\":\"Rate limit exceeded, retry after " + retryAfter + "s\"}")
+                .getBytes(StandardCharsets.UTF_8));
+    }
+
+    private PathCost costOf(String path) {
+        for (PathCost cost : costs) {
+            if (pathMatcher.match(cost.pattern, path)) {
+                return cost;
+            }
+        }
+        return null;
+    }
+
+    private String limitedPatternOf(String path) {
+        for (String pattern : limitedPaths) {
+            if (pathMatcher.match(pattern, path)) {
+                return pattern;
+            }
+        }
+        return "other";
+    }
+
+    private String clientOf(HttpServletRequest request) {
+        if (trustForwardedFor) {
+            String forwarded = request.getHeader("X-Forwarded-For");
+            if (forwarded != null && !forwarded.isEmpty()) {
+                int comma = forwarded.indexOf(',');
+                return (comma < 0 ? forwarded : forwarded.substring(0, comma)).trim();
+            }
+        }
+        return request.getRemoteAddr();
+    }
+
+    /**
+     * Drop buckets that have refilled completely; they behave exactly like a new bucket
+     */
+    @Scheduled(fixedDelayString = "${api.ratelimit.eviction-interval:60000}")
+    public void evictIdle() {
+        if (!enabled) {
+            return;
+        }
+        long now = nanoClock.getAsLong();
+        buckets.entrySet().removeIf(bucket -> bucket.getValue().get() <= now);
+    }
+
+    public Map<String, Object> getStats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("enabled", enabled);
+        stats.put("limit", limit);
+        stats.put("duration_seconds", durationSeconds);
+        stats.put("tracked_clients", buckets.size());
+        stats.put("allowed_requests", allowedRequests.sum());
+        stats.put("rejected_requests", rejectedRequests.sum());
+        Map<String, Long> byPath = new LinkedHashMap<>();
+        rejectedByPath.forEach((path, count) -> byPath.put(path, count.sum()));
+        stats.put("rejected_by_path", byPath);
+        return stats;
+    }
+
+    private static class PathCost {
+        private final String pattern;
+        private final int cost;
+
+        private PathCost(String pattern, int cost) {
+            this.pattern = pattern;
+            this.cost = cost;
+        }
+    }
+}
@@ -1,25 +1,30 @@
 package com.sudocodes.monitoring.config;
 
+import com.sudocodes.monitoring.redis.RedisEndpoint;
+import com.sudocodes.monitoring.redis.RoutingRedisConnectionFactory;
 import io.lettuce.core.ClientOptions;
 import io.lettuce.core.ReadFrom;
+import io.lettuce.core.resource.ClientResources;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.boot.ApplicationArguments;
 import org.springframework.boot.ApplicationRunner;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
-import org.springframework.data.redis.connection.RedisConnectionFactory;
 import org.springframework.data.redis.connection.RedisStandaloneConfiguration;
 import org.springframework.data.redis.connection.lettuce.LettuceClientConfiguration;
 import org.springframework.data.redis.connection.lettuce.LettuceConnectionFactory;
+import org.springframework.data.redis.core.ReactiveRedisTemplate;
 import org.springframework.data.redis.core.RedisTemplate;
+import org.springframework.data.redis.core.StringRedisTemplate;
 import org.springframework.data.redis.listener.RedisMessageListenerContainer;
 import org.springframework.data.redis.serializer.Jackson2JsonRedisSerializer;
+import org.springframework.data.redis.serializer.RedisSerializationContext;
 import org.springframework.data.redis.serializer.StringRedisSerializer;
 
-import java.net.InetSocketAddress;
-import java.net.Socket;
 import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
 
 @Configuration
 @Slf4j
@@ -46,27 +51,44 @@ public class RedisConfig implements ApplicationRunner {
     @Value("${spring.redis.fallback.port:6379}")
     private int fallbackPort;
 
+    @Value("${spring.redis.health.interval:250}")
+    private long healthCheckInterval;
+    
+    @Value("${spring.redis.health.timeout:200}")
+    private long healthCheckTimeout;
+    
+    @Value("${spring.redis.health.failure-threshold:2}")
+    private int failureThreshold;
+    
+    @Value("${spring.redis.health.recovery-threshold:3}")
+    private int recoveryThreshold;
+
+    /**
+     * Routing factory over the primary and optional fallback Redis servers.
+     * Endpoint health is tracked continuously, so the choice between them is made
+     * per connection rather than once at startup.
+     */
     @Bean
-    public RedisConnectionFactory redisConnectionFactory() {
-        // First try the configured Redis host
-        if (isRedisAvailable(redisHost, redisPort)) {
-            log.info("Connecting to Redis at {}:{}", redisHost, redisPort);
-            return createConnectionFactory(redisHost, redisPort);
-        }
+    public RoutingRedisConnectionFactory redisConnectionFactory() {
+        ClientResources probeResources = RoutingRedisConnectionFactory.createProbeResources();
+        List<RedisEndpoint> endpoints = new ArrayList<>();
+        endpoints.add(createEndpoint("primary", redisHost, redisPort, probeResources));
         
-        // If fallback is enabled and primary is unavailable
-        if (fallbackEnabled && !redisHost.equals(fallbackHost) && !isRedisAvailable(fallbackHost, fallbackPort)) {
-            log.warn("Redis server at {}:{} is unavailable, falling back to {}:{}", 
-                    redisHost, redisPort, fallbackHost, fallbackPort);
-            return createConnectionFactory(fallbackHost, fallbackPort);
+        boolean sameAsPrimary = redisHost.equals(fallbackHost) && redisPort == fallbackPort;
+        if (fallbackEnabled && !sameAsPrimary) {
+            endpoints.add(createEndpoint("fallback", fallbackHost, fallbackPort, probeResources));
         }
         
-        // Default to the configured host even if unavailable (will retry on operations)
-        log.warn("Redis server at {}:{} is unavailable, operations will attempt to reconnect", redisHost, redisPort);
-        return createConnectionFactory(redisHost, redisPort);
+        return new RoutingRedisConnectionFactory(endpoints, probeResources,
+                healthCheckInterval, failureThreshold, recoveryThreshold);
     }
     
-    private RedisConnectionFactory createConnectionFactory(String host, int port) {
+    private RedisEndpoint createEndpoint(String name, String host, int port, ClientResources probeResources) {
+        return new RedisEndpoint(name, host, port, redisPassword, createConnectionFactory(host, port),
+                probeResources, healthCheckTimeout);
+    }
+    
+    private LettuceConnectionFactory createConnectionFactory(String host, int port) {
         RedisStandaloneConfiguration redisConfig = new RedisStandaloneConfiguration(host, port);
         
         if (redisPassword != null && !redisPassword.isEmpty()) {
@@ -85,16 +107,6 @@ public class RedisConfig implements ApplicationRunner {
         
         return new LettuceConnectionFactory(redisConfig, clientConfig);
     }
-    
-    private boolean isRedisAvailable(String host, int port) {
-        try (Socket socket = new Socket()) {
-            socket.connect(new InetSocketAddress(host, port), 1000);
-            return true;
-        } catch (Exception e) {
-            log.warn("Redis server at {}:{} is not available: {}", host, port, e.getMessage());
-            return false;
-        }
-    }
 
     @Bean
     public RedisTemplate<String, Object> redisTemplate() {
@@ -108,26 +120,52 @@ public class RedisConfig implements ApplicationRunner {
         return template;
     }
 
+    /**
+     * Template for plain string values, used for the resource index sets
+     */
+    @Bean
+    public StringRedisTemplate stringRedisTemplate() {
+        return new StringRedisTemplate(redisConnectionFactory());
+    }
+
+    /**
+     * Non-blocking template used by the metrics write path, with the same serializers as {@link #redisTemplate()}
+     */
+    @Bean
+    public ReactiveRedisTemplate<String, Object> reactiveRedisTemplate() {
+        Jackson2JsonRedisSerializer<Object> valueSerializer = new Jackson2JsonRedisSerializer<>(Object.class);
+        RedisSerializationContext<String, Object> context = RedisSerializationContext
+                .<String, Object>newSerializationContext(new StringRedisSerializer())
+                .value(valueSerializer)
+                .hashKey(new StringRedisSerializer())
+                .hashValue(valueSerializer)
+                .build();
+        return new ReactiveRedisTemplate<>(redisConnectionFactory(), context);
+    }
+
+    /**
+     * Listener container whose subscriptions are moved along when the routing factory switches endpoints
+     */
     @Bean
     public RedisMessageListenerContainer redisMessageListenerContainer() {
         RedisMessageListenerContainer container = new RedisMessageListenerContainer();
         container.setConnectionFactory(redisConnectionFactory());
+        redisConnectionFactory().addSwitchListener(endpoint -> {
+            if (container.isRunning()) {
+                container.stop();
+                container.start();
+                log.info("Restarted Redis listener container on {} ({})", endpoint.getName(), endpoint);
+            }
+        });
         return container;
     }
     
     @Override
     public void run(ApplicationArguments args) {
         // Log Redis connection details on startup
-        try {
-            String status = isRedisAvailable(redisHost, redisPort) ? "CONNECTED" : "UNAVAILABLE";
-            log.info("Redis connection status: {} ({}:{})", status, redisHost, redisPort);
-            
-            if (fallbackEnabled && !isRedisAvailable(redisHost, redisPort)) {
-                String fallbackStatus = isRedisAvailable(fallbackHost, fallbackPort) ? "CONNECTED" : "UNAVAILABLE";
-                log.info("Redis fallback status: {} ({}:{})", fallbackStatus, fallbackHost, fallbackPort);
-            }
-        } catch (Exception e) {
-            log.error("Error verifying Redis connection", e);
-        }
+        RoutingRedisConnectionFactory factory = redisConnectionFactory();
+        RedisEndpoint active = factory.getActiveEndpoint();
+        log.info("Redis connection status: {} ({} {})", active.isHealthy() ? "CONNECTED" : "UNAVAILABLE",
+                active.getName(), active);
     }
-} 
\ No newline at end of file
+}
@@ -19,7 +19,10 @@ public class SchedulingConfig {
     @Value("${metrics.schedule.storage}")
     private long storageMetricsInterval;
 
-    @Bean
+    /**
+     * Named taskScheduler so @Scheduled picks it up even though the WebSocket broker registers its own scheduler
+     */
+    @Bean(name = "taskScheduler")
     public ThreadPoolTaskScheduler threadPoolTaskScheduler() {
         ThreadPoolTaskScheduler threadPoolTaskScheduler = new ThreadPoolTaskScheduler();
         threadPoolTaskScheduler.setPoolSize(5);
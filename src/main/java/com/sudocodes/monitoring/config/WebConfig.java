@@ -1,7 +1,9 @@
 package com.sudocodes.monitoring.config;
 
+import com.sudocodes.monitoring.diagnostics.HttpRequestEventInterceptor;
 import org.springframework.context.annotation.Configuration;
 import org.springframework.web.servlet.config.annotation.CorsRegistry;
+import org.springframework.web.servlet.config.annotation.InterceptorRegistry;
 import org.springframework.web.servlet.config.annotation.WebMvcConfigurer;
 
 @Configuration
@@ -14,4 +16,13 @@ public class WebConfig implements WebMvcConfigurer {
                 .allowedMethods("GET", "POST", "PUT", "DELETE", "OPTIONS")
                 .allowedHeaders("*");
     }
+
+    /**
+     * Flight recorder events for metrics API requests
+     */
+    @Override
+    public void addInterceptors(InterceptorRegistry registry) {
+        registry.addInterceptor(new HttpRequestEventInterceptor())
+                .addPathPatterns("/api/metrics/**");
+    }
 } 
\ No newline at end of file
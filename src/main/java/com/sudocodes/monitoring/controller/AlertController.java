@@ -0,0 +1,61 @@
+package com.sudocodes.monitoring.controller;
+
+import com.sudocodes.monitoring.service.AlertHistoryService;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestParam;
+import org.springframework.web.bind.annotation.RestController;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Alerts that fired, from the alert history
+ */
+@RestController
+@RequestMapping("/api/alerts")
+@Slf4j
+public class AlertController {
+
+    private final AlertHistoryService alertHistoryService;
+
+    @Autowired
+    public AlertController(AlertHistoryService alertHistoryService) {
+        this.alertHistoryService = alertHistoryService;
+    }
+
+    /**
+     * One page of the alerts that fired in a time window, newest first, optionally only those of
+     * one server, level and type. Pass {@code next_cursor} as {@code cursor} for the next page; it is
+     * null on the last. A page may hold fewer alerts than {@code limit} when few entries match.
+     * @param from window start (epoch ms), defaults to the start of the history retention
+     * @param to window end (epoch ms), defaults to now
+     */
+    @GetMapping
+    public ResponseEntity<Map<String, Object>> getAlerts(@RequestParam(required = false) String server,
+                                                         @RequestParam(required = false) String level,
+                                                         @RequestParam(required = false) String type,
+                                                         @RequestParam(required = false) Long from,
+                                                         @RequestParam(required = false) Long to,
+                                                         @RequestParam(required = false) String cursor,
+                                                         @RequestParam(defaultValue = "0") int offset,
+                                                         @RequestParam(defaultValue = "" + AlertHistoryService.DEFAULT_LIMIT) int limit) {
+        try {
+            return ResponseEntity.ok(alertHistoryService.query(server, level, type, from, to, cursor, offset, limit));
+        } catch (IllegalArgumentException e) {
+            return ResponseEntity.badRequest().body(error(e.getMessage()));
+        } catch (Exception e) {
+            log.error("Error reading the alert history", e);
+            return ResponseEntity.internalServerError().body(error("Error reading the alert history: " + e.getMessage()));
+        }
+    }
+
+    private static Map<String, Object> error(String message) {
+        Map<String, Object> error = new HashMap<>();
+        error.put("error", message);
+        return error;
+    }
+}
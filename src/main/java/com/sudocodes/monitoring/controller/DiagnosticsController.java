@@ -0,0 +1,74 @@
+package com.sudocodes.monitoring.controller;
+
+import com.sudocodes.monitoring.diagnostics.FlightRecorderService;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.PostMapping;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestParam;
+import org.springframework.web.bind.annotation.RestController;
+
+import java.util.Collections;
+import java.util.Map;
+
+/**
+ * Admin endpoints for the continuous flight recording
+ */
+@RestController
+@RequestMapping("/api/admin/recording")
+@Slf4j
+public class DiagnosticsController {
+
+    private final FlightRecorderService flightRecorderService;
+
+    @Autowired
+    public DiagnosticsController(FlightRecorderService flightRecorderService) {
+        this.flightRecorderService = flightRecorderService;
+    }
+
+    @GetMapping
+    public Map<String, Object> getStatus() {
+        return flightRecorderService.status();
+    }
+
+    /**
+     * Start the bounded continuous recording, if it is not running already
+     */
+    @PostMapping("/start")
+    public ResponseEntity<Map<String, Object>> start() {
+        try {
+            return ResponseEntity.ok(flightRecorderService.start());
+        } catch (IllegalStateException e) {
+            return ResponseEntity.badRequest().body(error(e.getMessage()));
+        } catch (Exception e) {
+            log.error("Error starting flight recording", e);
+            return ResponseEntity.internalServerError().body(error("Could not start recording: " + e.getMessage()));
+        }
+    }
+
+    /**
+     * Write the last {@code minutes} of the recording to a file on this server
+     */
+    @PostMapping("/dump")
+    public ResponseEntity<Map<String, Object>> dump(@RequestParam(defaultValue = "5") int minutes) {
+        try {
+            return ResponseEntity.ok(flightRecorderService.dump(minutes));
+        } catch (IllegalArgumentException | IllegalStateException e) {
+            return ResponseEntity.badRequest().body(error(e.getMessage()));
+        } catch (Exception e) {
+            log.error("Error dumping flight recording", e);
+            return ResponseEntity.internalServerError().body(error("Could not dump recording: " + e.getMessage()));
+        }
+    }
+
+    @PostMapping("/stop")
+    public Map<String, Object> stop() {
+        return flightRecorderService.stop();
+    }
+
+    private static Map<String, Object> error(String message) {
+        return Collections.singletonMap("error", message);
+    }
+}
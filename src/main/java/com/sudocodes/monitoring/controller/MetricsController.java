@@ -4,13 +4,35 @@ import lombok.extern.slf4j.Slf4j;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.data.redis.core.RedisTemplate;
 import org.springframework.data.redis.core.ZSetOperations;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.GetMapping;
 import org.springframework.web.bind.annotation.RequestMapping;
 import org.springframework.web.bind.annotation.RestController;
 import org.springframework.web.bind.annotation.PathVariable;
+import org.springframework.web.bind.annotation.RequestHeader;
+import org.springframework.web.bind.annotation.RequestParam;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
 import com.sudocodes.monitoring.model.ServerIdentity;
+import com.sudocodes.monitoring.redis.FleetAggregator;
+import com.sudocodes.monitoring.redis.MetricsVersions;
+import com.sudocodes.monitoring.redis.ResourceIndex;
+import com.sudocodes.monitoring.service.FleetSnapshotStreamer;
+import com.sudocodes.monitoring.service.HistoryQueryService;
+import com.sudocodes.monitoring.service.QuantileQueryService;
+import com.sudocodes.monitoring.service.ResponseFormat;
+import com.sudocodes.monitoring.service.ServerSnapshotReader;
 
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -23,67 +45,154 @@ public class MetricsController {
 
     private final RedisTemplate<String, Object> redisTemplate;
     private final ServerIdentity serverIdentity;
+    private final ResourceIndex resourceIndex;
+    private final ServerSnapshotReader serverSnapshotReader;
+    private final FleetSnapshotStreamer fleetSnapshotStreamer;
+    private final MetricsVersions metricsVersions;
+    private final HistoryQueryService historyQueryService;
+    private final QuantileQueryService quantileQueryService;
+    private final FleetAggregator fleetAggregator;
+    
+    @Value("${metrics.versions.since-slack:5000}")
+    private long sinceSlackMs;
     
     @Autowired
-    public MetricsController(RedisTemplate<String, Object> redisTemplate, ServerIdentity serverIdentity) {
+    public MetricsController(RedisTemplate<String, Object> redisTemplate, ServerIdentity serverIdentity,
+                             ResourceIndex resourceIndex, ServerSnapshotReader serverSnapshotReader,
+                             FleetSnapshotStreamer fleetSnapshotStreamer, MetricsVersions metricsVersions,
+                             HistoryQueryService historyQueryService, QuantileQueryService quantileQueryService,
+                             FleetAggregator fleetAggregator) {
         this.redisTemplate = redisTemplate;
         this.serverIdentity = serverIdentity;
+        this.resourceIndex = resourceIndex;
+        this.serverSnapshotReader = serverSnapshotReader;
+        this.fleetSnapshotStreamer = fleetSnapshotStreamer;
+        this.metricsVersions = metricsVersions;
+        this.historyQueryService = historyQueryService;
+        this.quantileQueryService = quantileQueryService;
+        this.fleetAggregator = fleetAggregator;
     }
     
     /**
-     * Get list of all servers reporting metrics
+     * Get list of all servers reporting metrics.
+     * The weak ETag is a digest of the servers, when each was last seen and their server info versions.
      */
     @GetMapping("/servers")
-    public List<Map<String, Object>> getAllServers() {
+    public ResponseEntity<List<Map<String, Object>>> getAllServers(
+            @RequestHeader(value = HttpHeaders.IF_NONE_MATCH, required = false) String ifNoneMatch) {
         List<Map<String, Object>> servers = new ArrayList<>();
+        String etag = null;
         
         try {
-            // Find all server info keys (pattern: *:server:info)
-            Set<String> serverKeys = redisTemplate.keys("*:server:info");
+            // Servers register themselves in the servers index, most recently seen first
+            Map<String, Double> index = resourceIndex.getServers();
+            List<String> serverIds = new ArrayList<>(index.keySet());
+            
+            // Answer from the version hashes alone if the server list has not changed
+            etag = serversEtag(index, metricsVersions.current(serverIds, "server_info"));
+            if (etagMatches(ifNoneMatch, etag)) {
+                return ResponseEntity.status(HttpStatus.NOT_MODIFIED).eTag(etag).build();
+            }
             
-            for (String key : serverKeys) {
-                Map<Object, Object> serverInfo = redisTemplate.opsForHash().entries(key);
-                String serverId = key.split(":")[0]; // Extract server ID from key
+            for (Map.Entry<String, Double> server : index.entrySet()) {
+                String serverId = server.getKey();
+                Map<Object, Object> serverInfo = redisTemplate.opsForHash().entries(serverId + ":server:info");
+                if (serverInfo.isEmpty()) {
+                    continue;
+                }
                 
                 Map<String, Object> serverData = new HashMap<>();
                 serverData.put("id", serverId);
                 serverData.putAll(convertToStringMap(serverInfo));
+                serverData.put("last_seen", server.getValue().longValue());
                 
                 servers.add(serverData);
             }
         } catch (Exception e) {
             log.error("Error retrieving server list from Redis", e);
+            etag = null;
         }
         
-        return servers;
+        ResponseEntity.BodyBuilder response = ResponseEntity.ok();
+        if (etag != null) {
+            response.eTag(etag);
+        }
+        return response.body(servers);
+    }
+    
+    private static String serversEtag(Map<String, Double> index, List<Long> versions)
+            throws NoSuchAlgorithmException {
+        MessageDigest digest = MessageDigest.getInstance("SHA-256");
+        int i = 0;
+        for (Map.Entry<String, Double> server : index.entrySet()) {
+            digest.update(server.getKey().getBytes(StandardCharsets.UTF_8));
+            digest.update((byte) 0);
+            digest.update(ByteBuffer.allocate(16).putLong(server.getValue().longValue()).putLong(versions.get(i++)).array());
+        }
+        // 128 bits are plenty to tell two lists apart
+        return "W/\"" + new BigInteger(1, Arrays.copyOf(digest.digest(), 16)).toString(16) + "\"";
     }
     
     /**
-     * Get metrics for a specific server
+     * Get metrics for a specific server, usually read from Redis in a single round trip.
+     * Answers 304 when the server's version matches {@code If-None-Match}, checked without reading
+     * any metrics. With {@code since}, only the sections that changed after that version are returned.
      */
     @GetMapping("/server/{serverId}")
-    public Map<String, Object> getServerMetrics(@PathVariable String serverId) {
-        Map<String, Object> allMetrics = new HashMap<>();
-        
+    public ResponseEntity<Map<String, Object>> getServerMetrics(@PathVariable String serverId,
+            @RequestParam(required = false) Long since,
+            @RequestHeader(value = HttpHeaders.IF_NONE_MATCH, required = false) String ifNoneMatch) {
         try {
-            // Get server info
-            Map<Object, Object> serverInfo = redisTemplate.opsForHash().entries(serverId + ":server:info");
-            allMetrics.put("server_info", convertToStringMap(serverInfo));
+            if (ifNoneMatch != null) {
+                long version = metricsVersions.current(serverId);
+                if (version > 0 && etagMatches(ifNoneMatch, versionEtag(version))) {
+                    return ResponseEntity.status(HttpStatus.NOT_MODIFIED).eTag(versionEtag(version)).build();
+                }
+            }
             
-            // Get all metrics for this server
-            allMetrics.put("system", getSystemMetricsForServer(serverId));
-            allMetrics.put("docker", getDockerMetricsForServer(serverId));
-            allMetrics.put("storage", getStorageMetricsForServer(serverId));
-            allMetrics.put("rtsp", getRtspMetricsForServer(serverId));
-            allMetrics.put("network", getNetworkMetricsForServer(serverId));
-            allMetrics.put("history", getMetricsHistoryForServer(serverId));
+            // Batches can land slightly out of version order, so look back a little
+            Long changedAfter = since != null ? since - sinceSlackMs : null;
+            Map<String, Object> metrics = serverSnapshotReader.read(serverId, changedAfter);
+            if (since != null) {
+                metrics.put("since", since);
+            }
             
+            long version = (Long) metrics.get("version");
+            ResponseEntity.BodyBuilder response = ResponseEntity.ok();
+            if (version > 0) {
+                response.eTag(versionEtag(version));
+            }
+            return response.body(metrics);
         } catch (Exception e) {
             log.error("Error retrieving metrics for server {}", serverId, e);
+            Map<String, Object> allMetrics = new HashMap<>();
             allMetrics.put("error", "Error retrieving metrics: " + e.getMessage());
+            return ResponseEntity.ok(allMetrics);
         }
-        
-        return allMetrics;
+    }
+    
+    private static String versionEtag(long version) {
+        return "\"" + version + "\"";
+    }
+    
+    /**
+     * Weak comparison of an If-None-Match header against an ETag
+     */
+    private static boolean etagMatches(String ifNoneMatch, String etag) {
+        if (ifNoneMatch == null) {
+            return false;
+        }
+        String opaqueTag = etag.startsWith("W/") ? etag.substring(2) : etag;
+        for (String candidate : ifNoneMatch.split(",")) {
+            String tag = candidate.trim();
+            if (tag.startsWith("W/")) {
+                tag = tag.substring(2);
+            }
+            if (tag.equals(opaqueTag) || tag.equals("*")) {
+                return true;
+            }
+        }
+        return false;
     }
     
     @GetMapping("/system")
@@ -126,13 +235,14 @@ public class MetricsController {
         Map<String, Object> metrics = new HashMap<>();
         
         try {
-            // Find all container keys for this server
-            Set<String> containerKeys = redisTemplate.keys(serverId + ":docker:container:*");
+            // Look up the containers of this server in its docker index
             Map<String, Object> containers = new HashMap<>();
             
-            for (String key : containerKeys) {
-                String containerId = key.substring((serverId + ":docker:container:").length());
-                Map<Object, Object> containerInfo = redisTemplate.opsForHash().entries(key);
+            for (String containerId : resourceIndex.getResources(serverId, "docker")) {
+                Map<Object, Object> containerInfo = redisTemplate.opsForHash().entries(serverId + ":docker:container:" + containerId);
+                if (containerInfo.isEmpty()) {
+                    continue;
+                }
                 Map<Object, Object> containerStats = redisTemplate.opsForHash().entries(serverId + ":docker:stats:" + containerId);
                 
                 Map<String, Object> containerData = new HashMap<>();
@@ -162,14 +272,14 @@ public class MetricsController {
         Map<String, Object> metrics = new HashMap<>();
         
         try {
-            // Find all disk keys for this server
-            Set<String> diskKeys = redisTemplate.keys(serverId + ":storage:disk:*");
+            // Look up the disks of this server in its storage index
             Map<String, Object> disks = new HashMap<>();
             
-            for (String key : diskKeys) {
-                String diskId = key.substring((serverId + ":storage:disk:").length());
-                Map<Object, Object> diskInfo = redisTemplate.opsForHash().entries(key);
-                disks.put(diskId, convertToStringMap(diskInfo));
+            for (String diskId : resourceIndex.getResources(serverId, "storage")) {
+                Map<Object, Object> diskInfo = redisTemplate.opsForHash().entries(serverId + ":storage:disk:" + diskId);
+                if (!diskInfo.isEmpty()) {
+                    disks.put(diskId, convertToStringMap(diskInfo));
+                }
             }
             
             metrics.put("disks", disks);
@@ -192,14 +302,14 @@ public class MetricsController {
         Map<String, Object> metrics = new HashMap<>();
         
         try {
-            // Find all rtsp stream keys for this server
-            Set<String> streamKeys = redisTemplate.keys(serverId + ":rtsp:stream:*");
+            // Look up the rtsp streams of this server in its rtsp index
             Map<String, Object> streams = new HashMap<>();
             
-            for (String key : streamKeys) {
-                String streamId = key.substring((serverId + ":rtsp:stream:").length());
-                Map<Object, Object> streamInfo = redisTemplate.opsForHash().entries(key);
-                streams.put(streamId, convertToStringMap(streamInfo));
+            for (String streamId : resourceIndex.getResources(serverId, "rtsp")) {
+                Map<Object, Object> streamInfo = redisTemplate.opsForHash().entries(serverId + ":rtsp:stream:" + streamId);
+                if (!streamInfo.isEmpty()) {
+                    streams.put(streamId, convertToStringMap(streamInfo));
+                }
             }
             
             metrics.put("streams", streams);
@@ -222,14 +332,14 @@ public class MetricsController {
         Map<String, Object> metrics = new HashMap<>();
         
         try {
-            // Find all network interface keys for this server
-            Set<String> interfaceKeys = redisTemplate.keys(serverId + ":network:interface:*");
+            // Look up the network interfaces of this server in its network index
             Map<String, Object> interfaces = new HashMap<>();
             
-            for (String key : interfaceKeys) {
-                String interfaceName = key.substring((serverId + ":network:interface:").length());
-                Map<Object, Object> interfaceInfo = redisTemplate.opsForHash().entries(key);
-                interfaces.put(interfaceName, convertToStringMap(interfaceInfo));
+            for (String interfaceName : resourceIndex.getResources(serverId, "network")) {
+                Map<Object, Object> interfaceInfo = redisTemplate.opsForHash().entries(serverId + ":network:interface:" + interfaceName);
+                if (!interfaceInfo.isEmpty()) {
+                    interfaces.put(interfaceName, convertToStringMap(interfaceInfo));
+                }
             }
             
             metrics.put("interfaces", interfaces);
@@ -246,29 +356,19 @@ public class MetricsController {
         return metrics;
     }
     
+    /**
+     * Metrics of all servers, or of the servers listed in {@code servers}, streamed as each server is read.
+     * The response stops growing at {@code maxBytes} and is then marked {@code "truncated": true}.
+     * Answers in JSON, CBOR or Smile according to the Accept header.
+     */
     @GetMapping("/all")
-    public Map<String, Object> getAllMetrics() {
-        Map<String, Object> allServersMetrics = new HashMap<>();
-        
-        try {
-            // Get list of all servers
-            List<Map<String, Object>> servers = getAllServers();
-            
-            for (Map<String, Object> server : servers) {
-                String serverId = (String) server.get("id");
-                Map<String, Object> serverMetrics = getServerMetrics(serverId);
-                allServersMetrics.put(serverId, serverMetrics);
-            }
-            
-            // Add server list for reference
-            allServersMetrics.put("servers", servers);
-            
-        } catch (Exception e) {
-            log.error("Error retrieving all metrics", e);
-            allServersMetrics.put("error", "Error retrieving all metrics: " + e.getMessage());
-        }
-        
-        return allServersMetrics;
+    public ResponseEntity<StreamingResponseBody> getAllMetrics(@RequestParam(required = false) List<String> servers,
+                                                               @RequestParam(required = false) Long maxBytes,
+                                                               @RequestHeader(value = HttpHeaders.ACCEPT, required = false) String accept) {
+        ResponseFormat format = ResponseFormat.fromAccept(accept);
+        long limit = maxBytes != null && maxBytes > 0 ? maxBytes : fleetSnapshotStreamer.getDefaultMaxBytes();
+        StreamingResponseBody body = out -> fleetSnapshotStreamer.stream(servers, limit, format, out);
+        return ResponseEntity.ok().contentType(format.getMediaType()).body(body);
     }
     
     @GetMapping("/history")
@@ -277,6 +377,111 @@ public class MetricsController {
         return getMetricsHistoryForServer(serverIdentity.getServerId());
     }
     
+    /**
+     * One history series of a server over a time window, downsampled to at most {@code maxPoints}.
+     * Series are named {@code section:name}, e.g. {@code system:cpu} or {@code docker:<containerId>:memory}.
+     * Long windows are served from rollups; {@code resolution} (raw, 1m, 5m, 1h) forces a tier.
+     * Answers in JSON, CBOR or Smile according to the Accept header.
+     * @param from window start (epoch ms), defaults to one window before {@code to}
+     * @param to window end (epoch ms), defaults to now
+     * @param format {@code columnar} for parallel timestamp and value arrays instead of one object per point
+     */
+    @GetMapping("/history/{serverId}/{series:.+}")
+    public ResponseEntity<StreamingResponseBody> getHistorySeries(@PathVariable String serverId,
+                                                                  @PathVariable String series,
+                                                                  @RequestParam(required = false) Long from,
+                                                                  @RequestParam(required = false) Long to,
+                                                                  @RequestParam(required = false) Integer maxPoints,
+                                                                  @RequestParam(required = false) String resolution,
+                                                                  @RequestParam(required = false) String format,
+                                                                  @RequestHeader(value = HttpHeaders.ACCEPT, required = false) String accept) {
+        ResponseFormat responseFormat = ResponseFormat.fromAccept(accept);
+        HistoryQueryService.Query query;
+        try {
+            query = historyQueryService.query(serverId, series, from, to, maxPoints, resolution,
+                    "columnar".equals(format));
+        } catch (IllegalArgumentException e) {
+            StreamingResponseBody error = out -> historyQueryService.writeError(e.getMessage(), responseFormat, out);
+            return ResponseEntity.badRequest().contentType(responseFormat.getMediaType()).body(error);
+        }
+        
+        StreamingResponseBody body = out -> historyQueryService.stream(query, responseFormat, out);
+        return ResponseEntity.ok().contentType(responseFormat.getMediaType()).body(body);
+    }
+    
+    /**
+     * Percentiles of a sketched series (e.g. {@code rtsp:<stream>:latency}, {@code collector:system:cycle},
+     * {@code redis:batch_latency}, {@code docker:<containerId>:cpu}) over a time window.
+     * @param q quantiles between 0 and 1, defaults to 0.5, 0.95 and 0.99
+     */
+    @GetMapping("/quantiles/{serverId}/{series:.+}")
+    public ResponseEntity<Map<String, Object>> getQuantiles(@PathVariable String serverId, @PathVariable String series,
+                                                            @RequestParam(required = false) Long from,
+                                                            @RequestParam(required = false) Long to,
+                                                            @RequestParam(required = false) List<Double> q,
+                                                            @RequestParam(required = false) String resolution) {
+        try {
+            return ResponseEntity.ok(quantileQueryService.quantiles(serverId, series, from, to, q, resolution));
+        } catch (IllegalArgumentException e) {
+            return ResponseEntity.badRequest().body(error(e.getMessage()));
+        }
+    }
+    
+    /**
+     * Fleet-wide CPU, memory and disk usage (count, average, maximum, top servers), the disk usage
+     * distribution, and down containers and streams, from the incrementally maintained fleet rankings
+     * @param top how many of the highest servers to list per metric
+     */
+    @GetMapping("/fleet")
+    public ResponseEntity<Map<String, Object>> getFleetSummary(@RequestParam(defaultValue = "10") int top) {
+        return ResponseEntity.ok(fleetAggregator.summary(Math.max(0, Math.min(top, 1000))));
+    }
+    
+    /**
+     * Servers ranked by their latest value of one fleet metric (cpu, memory, disk, containers_down, streams_down)
+     * @param order {@code desc} for the highest values first, {@code asc} for the lowest
+     */
+    @GetMapping("/fleet/top/{metric}")
+    public ResponseEntity<?> getFleetTop(@PathVariable String metric, @RequestParam(defaultValue = "10") int n,
+                                         @RequestParam(defaultValue = "desc") String order) {
+        if (!FleetAggregator.METRICS.contains(metric)) {
+            return ResponseEntity.badRequest().body(error("Metric must be one of " + FleetAggregator.METRICS));
+        }
+        
+        List<Map<String, Object>> ranking = new ArrayList<>();
+        for (Map.Entry<String, Double> server : fleetAggregator.top(metric, Math.max(1, Math.min(n, 1000)),
+                "asc".equalsIgnoreCase(order)).entrySet()) {
+            Map<String, Object> entry = new HashMap<>();
+            entry.put("server", server.getKey());
+            entry.put("value", server.getValue());
+            ranking.add(entry);
+        }
+        return ResponseEntity.ok(ranking);
+    }
+    
+    /**
+     * Percentiles of a sketched series merged across all servers, or the servers listed in {@code servers}
+     */
+    @GetMapping("/fleet/quantiles/{series:.+}")
+    public ResponseEntity<Map<String, Object>> getFleetQuantiles(@PathVariable String series,
+                                                                 @RequestParam(required = false) List<String> servers,
+                                                                 @RequestParam(required = false) Long from,
+                                                                 @RequestParam(required = false) Long to,
+                                                                 @RequestParam(required = false) List<Double> q,
+                                                                 @RequestParam(required = false) String resolution) {
+        try {
+            return ResponseEntity.ok(quantileQueryService.fleetQuantiles(servers, series, from, to, q, resolution));
+        } catch (IllegalArgumentException e) {
+            return ResponseEntity.badRequest().body(error(e.getMessage()));
+        }
+    }
+    
+    private static Map<String, Object> error(String message) {
+        Map<String, Object> error = new HashMap<>();
+        error.put("error", message);
+        return error;
+    }
+    
     private Map<String, List<Map<String, Object>>> getMetricsHistoryForServer(String serverId) {
         Map<String, List<Map<String, Object>>> historyData = new HashMap<>();
         
@@ -0,0 +1,127 @@
+package com.sudocodes.monitoring.controller;
+
+import com.sudocodes.monitoring.config.RateLimitFilter;
+import com.sudocodes.monitoring.redis.LeaderElection;
+import com.sudocodes.monitoring.redis.MetricsSpool;
+import com.sudocodes.monitoring.redis.MetricsWriter;
+import com.sudocodes.monitoring.redis.RoutingRedisConnectionFactory;
+import com.sudocodes.monitoring.redis.StaleDataSweeper;
+import com.sudocodes.monitoring.service.AlertService;
+import com.sudocodes.monitoring.service.AnomalyDetector;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RestController;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Status of the monitoring service itself, as opposed to the servers it monitors
+ */
+@RestController
+@RequestMapping("/api/metrics")
+public class MonitorController {
+
+    private final RoutingRedisConnectionFactory redisConnectionFactory;
+    private final MetricsSpool metricsSpool;
+    private final MetricsWriter metricsWriter;
+    private final RateLimitFilter rateLimitFilter;
+    private final StaleDataSweeper staleDataSweeper;
+    private final AlertService alertService;
+    private final AnomalyDetector anomalyDetector;
+    private final LeaderElection leaderElection;
+
+    @Autowired
+    public MonitorController(RoutingRedisConnectionFactory redisConnectionFactory, MetricsSpool metricsSpool,
+                             MetricsWriter metricsWriter, RateLimitFilter rateLimitFilter,
+                             StaleDataSweeper staleDataSweeper, AlertService alertService,
+                             AnomalyDetector anomalyDetector, LeaderElection leaderElection) {
+        this.redisConnectionFactory = redisConnectionFactory;
+        this.metricsSpool = metricsSpool;
+        this.metricsWriter = metricsWriter;
+        this.rateLimitFilter = rateLimitFilter;
+        this.staleDataSweeper = staleDataSweeper;
+        this.alertService = alertService;
+        this.anomalyDetector = anomalyDetector;
+        this.leaderElection = leaderElection;
+    }
+
+    /**
+     * Redis endpoint health, latency and failover counts, plus the write queue, local spool backlog,
+     * what the stale data sweeper removed and whether this instance is the leader
+     */
+    @GetMapping("/redis")
+    public Map<String, Object> getRedisStatus() {
+        Map<String, Object> status = new LinkedHashMap<>(redisConnectionFactory.getStatus());
+
+        Map<String, Object> writer = new LinkedHashMap<>();
+        writer.put("queued_batches", metricsWriter.getQueuedBatches());
+        writer.put("in_flight_commands", metricsWriter.getInFlightCommands());
+        writer.put("written_batches", metricsWriter.getWrittenBatches());
+        writer.put("failed_batches", metricsWriter.getFailedBatches());
+        writer.put("overflowed_batches", metricsWriter.getOverflowedBatches());
+        status.put("writer", writer);
+
+        Map<String, Object> spool = new LinkedHashMap<>();
+        spool.put("enabled", metricsSpool.isEnabled());
+        spool.put("pending_batches", metricsSpool.getPendingBatches());
+        spool.put("pending_bytes", metricsSpool.getPendingBytes());
+        spool.put("spooled_batches", metricsSpool.getSpooledBatches());
+        spool.put("dropped_batches", metricsSpool.getDroppedBatches());
+        status.put("spool", spool);
+
+        Map<String, Object> sweeper = new LinkedHashMap<>();
+        sweeper.put("removed_servers", staleDataSweeper.getRemovedServers());
+        sweeper.put("pruned_resources", staleDataSweeper.getPrunedResources());
+        status.put("sweeper", sweeper);
+
+        status.put("leader", leaderElection.getStatus());
+
+        return status;
+    }
+
+    /**
+     * Overhead of the monitor itself: collector cycle times, Redis command latencies, scheduler lag and JVM figures
+     */
+    @GetMapping("/self")
+    public Map<String, Object> getSelfMetrics() {
+        return metricsWriter.getSelfMetrics().snapshot();
+    }
+
+    /**
+     * API rate limit settings, tracked clients and allowed/rejected request counts
+     */
+    @GetMapping("/ratelimit")
+    public Map<String, Object> getRateLimitStatus() {
+        return rateLimitFilter.getStats();
+    }
+
+    /**
+     * Alerts pending and firing, and the notification queue: transitions queued, written, dropped
+     * on overflow and coalesced into fewer notifications, and the series watched for anomalies
+     */
+    @GetMapping("/alerting")
+    public Map<String, Object> getAlertingStatus() {
+        Map<String, Object> status = new LinkedHashMap<>();
+        status.put("alerts", alertService.getAlertCounts());
+
+        Map<String, Object> queue = new LinkedHashMap<>();
+        queue.put("queued", alertService.getQueuedAlerts());
+        queue.put("capacity", alertService.getQueueCapacity());
+        queue.put("queued_transitions", alertService.getQueuedTransitions());
+        queue.put("written_transitions", alertService.getWrittenTransitions());
+        queue.put("dropped_transitions", alertService.getDroppedTransitions());
+        queue.put("coalesced_transitions", alertService.getCoalescedTransitions());
+        queue.put("sent_notifications", alertService.getSentNotifications());
+        queue.put("resyncs", alertService.getResyncs());
+        queue.put("last_flush_ms", alertService.getLastFlushMillis());
+        status.put("queue", queue);
+
+        Map<String, Object> anomalies = new LinkedHashMap<>();
+        anomalies.put("series", anomalyDetector.getSeriesCount());
+        anomalies.put("detected", anomalyDetector.getAnomalies());
+        status.put("anomalies", anomalies);
+        return status;
+    }
+}
@@ -0,0 +1,50 @@
+package com.sudocodes.monitoring.controller;
+
+import com.sudocodes.monitoring.service.OpenMetricsWriter;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.RequestHeader;
+import org.springframework.web.bind.annotation.RestController;
+
+/**
+ * Scrape endpoint for Prometheus-compatible collectors
+ */
+@RestController
+public class OpenMetricsController {
+
+    private static final MediaType OPENMETRICS =
+            MediaType.parseMediaType("application/openmetrics-text; version=1.0.0; charset=utf-8");
+    private static final MediaType PROMETHEUS_TEXT =
+            MediaType.parseMediaType("text/plain; version=0.0.4; charset=utf-8");
+
+    private final OpenMetricsWriter openMetricsWriter;
+
+    @Value("${metrics.openmetrics.enabled:true}")
+    private boolean enabled;
+
+    @Autowired
+    public OpenMetricsController(OpenMetricsWriter openMetricsWriter) {
+        this.openMetricsWriter = openMetricsWriter;
+    }
+
+    /**
+     * Latest values collected by this server.
+     * Answered as OpenMetrics when the scraper asks for it, else as the Prometheus text format.
+     */
+    @GetMapping("/metrics")
+    public ResponseEntity<byte[]> scrape(@RequestHeader(value = HttpHeaders.ACCEPT, required = false) String accept) {
+        if (!enabled) {
+            return ResponseEntity.notFound().build();
+        }
+        
+        byte[] body = openMetricsWriter.render();
+        boolean openMetrics = accept != null && accept.contains("application/openmetrics-text");
+        return ResponseEntity.ok()
+                .contentType(openMetrics ? OPENMETRICS : PROMETHEUS_TEXT)
+                .body(body);
+    }
+}
@@ -0,0 +1,31 @@
+package com.sudocodes.monitoring.diagnostics;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * One collector cycle, from creating its batch to handing it to the writer
+ */
+@Name("com.sudocodes.monitoring.CollectorRun")
+@Label("Collector Run")
+@Category({"Monitoring", "Collectors"})
+@Description("A collector cycle, from creating its batch to handing it to the writer")
+public class CollectorRunEvent extends jdk.jfr.Event {
+
+    @Label("Collector")
+    public String collector;
+
+    @Label("Server Id")
+    public String serverId;
+
+    @Label("Entries")
+    @Description("Keys written by the batch, including rollups and fleet values")
+    public int entries;
+
+    @Label("Estimated Size")
+    @DataAmount
+    public long bytes;
+}
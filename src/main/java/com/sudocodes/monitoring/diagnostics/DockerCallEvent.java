@@ -0,0 +1,28 @@
+package com.sudocodes.monitoring.diagnostics;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * One invocation of the Docker CLI
+ */
+@Name("com.sudocodes.monitoring.DockerCall")
+@Label("Docker Call")
+@Category({"Monitoring", "Collectors"})
+@Description("An invocation of the Docker CLI, from process start to exit")
+public class DockerCallEvent extends jdk.jfr.Event {
+
+    @Label("Command")
+    public String command;
+
+    @Label("Container")
+    public String container;
+
+    @Label("Exit Code")
+    public int exitCode;
+
+    @Label("Lines Read")
+    public int lines;
+}
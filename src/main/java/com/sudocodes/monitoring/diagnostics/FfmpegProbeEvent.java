@@ -0,0 +1,29 @@
+package com.sudocodes.monitoring.diagnostics;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * One phase of probing an RTSP stream with FFmpeg
+ */
+@Name("com.sudocodes.monitoring.FfmpegProbe")
+@Label("FFmpeg Probe")
+@Category({"Monitoring", "Collectors"})
+@Description("A phase of probing an RTSP stream: opening the input or reading stream info")
+public class FfmpegProbeEvent extends jdk.jfr.Event {
+
+    public static final String OPEN = "open_input";
+    public static final String STREAM_INFO = "find_stream_info";
+
+    @Label("Stream")
+    public String stream;
+
+    @Label("Phase")
+    public String phase;
+
+    @Label("Result")
+    @Description("FFmpeg return code, negative on error")
+    public int result;
+}
@@ -0,0 +1,180 @@
+package com.sudocodes.monitoring.diagnostics;
+
+import jdk.jfr.Configuration;
+import jdk.jfr.FlightRecorder;
+import jdk.jfr.Recording;
+import jdk.jfr.RecordingState;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.management.ObjectName;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.text.ParseException;
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Bounded continuous flight recording that can be dumped on demand.
+ *
+ * The recording uses the JDK's {@code default} settings, which are meant for continuous
+ * use in production at around 1% overhead, plus the monitor's own events. Data older than
+ * the maximum age or beyond the maximum size is discarded, so the recording can stay on
+ * indefinitely. A dump of the last N minutes goes through the {@code JFR.dump} diagnostic
+ * command, which can cut a time range out of the recording; the JMX connector is not
+ * needed for that, the platform MBean server is used directly.
+ */
+@Service
+@Slf4j
+public class FlightRecorderService {
+
+    public static final String RECORDING_NAME = "monitoring";
+
+    private static final DateTimeFormatter FILE_TIMESTAMP = DateTimeFormatter.ofPattern("yyyyMMdd-HHmmss");
+
+    @Value("${diagnostics.jfr.enabled:true}")
+    private boolean enabled;
+
+    @Value("${diagnostics.jfr.start-on-boot:false}")
+    private boolean startOnBoot;
+
+    @Value("${diagnostics.jfr.settings:default}")
+    private String settings;
+
+    @Value("${diagnostics.jfr.max-age:30}")
+    private long maxAgeMinutes;
+
+    @Value("${diagnostics.jfr.max-size:104857600}")
+    private long maxSizeBytes;
+
+    @Value("${diagnostics.jfr.dump-dir:${java.io.tmpdir}/monitoring-jfr}")
+    private String dumpDir;
+
+    private Recording recording;
+
+    @PostConstruct
+    public void init() {
+        if (enabled && startOnBoot) {
+            try {
+                start();
+            } catch (Exception e) {
+                log.error("Could not start flight recording", e);
+            }
+        }
+    }
+
+    @PreDestroy
+    public synchronized void shutdown() {
+        if (recording != null) {
+            recording.close();
+            recording = null;
+        }
+    }
+
+    public boolean isEnabled() {
+        return enabled && FlightRecorder.isAvailable();
+    }
+
+    /**
+     * Start the continuous recording if it is not running yet
+     * @throws IllegalStateException if flight recording is disabled or unavailable
+     */
+    public synchronized Map<String, Object> start() throws IOException, ParseException {
+        if (!isEnabled()) {
+            throw new IllegalStateException("Flight recording is not available");
+        }
+        if (recording == null || recording.getState() == RecordingState.CLOSED
+                || recording.getState() == RecordingState.STOPPED) {
+            Recording started = new Recording(Configuration.getConfiguration(settings));
+            started.setName(RECORDING_NAME);
+            started.setToDisk(true);
+            started.setMaxAge(Duration.ofMinutes(maxAgeMinutes));
+            started.setMaxSize(maxSizeBytes);
+            for (Class<? extends jdk.jfr.Event> event : List.<Class<? extends jdk.jfr.Event>>of(CollectorRunEvent.class,
+                    DockerCallEvent.class, FfmpegProbeEvent.class, RedisBatchEvent.class, HttpRequestEvent.class)) {
+                started.enable(event);
+            }
+            started.start();
+            recording = started;
+            log.info("Started flight recording '{}' keeping up to {} minutes / {} bytes", RECORDING_NAME,
+                    maxAgeMinutes, maxSizeBytes);
+        }
+        return status();
+    }
+
+    /**
+     * Write the last {@code minutes} of the recording to a new file in the dump directory
+     * @return the file and its size
+     * @throws IllegalArgumentException if minutes is out of range
+     * @throws IllegalStateException if the recording is not running
+     */
+    public synchronized Map<String, Object> dump(int minutes) throws IOException {
+        if (minutes < 1 || minutes > maxAgeMinutes) {
+            throw new IllegalArgumentException("minutes must be between 1 and " + maxAgeMinutes);
+        }
+        if (recording == null || recording.getState() != RecordingState.RUNNING) {
+            throw new IllegalStateException("No flight recording is running, start one first");
+        }
+
+        Path directory = Paths.get(dumpDir);
+        Files.createDirectories(directory);
+        Path file = directory.resolve("monitoring-" + LocalDateTime.now().format(FILE_TIMESTAMP) + "-"
+                + minutes + "m.jfr").toAbsolutePath();
+
+        boolean trimmed = true;
+        try {
+            ManagementFactory.getPlatformMBeanServer().invoke(
+                    new ObjectName("com.sun.management:type=DiagnosticCommand"), "jfrDump",
+                    new Object[]{new String[]{"name=" + RECORDING_NAME, "filename=" + file, "maxage=" + minutes + "m"}},
+                    new String[]{String[].class.getName()});
+        } catch (Exception e) {
+            // Without the diagnostic command, dump everything the recording still holds
+            log.warn("JFR.dump failed ({}), dumping the whole recording", e.getMessage());
+            recording.dump(file);
+            trimmed = false;
+        }
+
+        Map<String, Object> result = new LinkedHashMap<>();
+        result.put("file", file.toString());
+        result.put("bytes", Files.size(file));
+        result.put("minutes", trimmed ? minutes : maxAgeMinutes);
+        log.info("Dumped flight recording to {}", file);
+        return result;
+    }
+
+    public synchronized Map<String, Object> stop() {
+        if (recording != null) {
+            recording.close();
+            recording = null;
+            log.info("Stopped flight recording '{}'", RECORDING_NAME);
+        }
+        return status();
+    }
+
+    public synchronized Map<String, Object> status() {
+        Map<String, Object> status = new LinkedHashMap<>();
+        status.put("enabled", isEnabled());
+        status.put("name", RECORDING_NAME);
+        status.put("settings", settings);
+        status.put("max_age_minutes", maxAgeMinutes);
+        status.put("max_size_bytes", maxSizeBytes);
+        status.put("dump_dir", dumpDir);
+        boolean running = recording != null && recording.getState() == RecordingState.RUNNING;
+        status.put("running", running);
+        if (running) {
+            status.put("started", recording.getStartTime());
+            status.put("size_bytes", recording.getSize());
+        }
+        return status;
+    }
+}
@@ -0,0 +1,31 @@
+package com.sudocodes.monitoring.diagnostics;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * One request handled by the metrics API, including streamed responses
+ */
+@Name("com.sudocodes.monitoring.HttpRequest")
+@Label("Metrics API Request")
+@Category({"Monitoring", "HTTP"})
+@Description("A request to the metrics API, until its response is complete")
+public class HttpRequestEvent extends jdk.jfr.Event {
+
+    @Label("Method")
+    public String method;
+
+    @Label("Path")
+    public String path;
+
+    @Label("Handler")
+    public String handler;
+
+    @Label("Server Id")
+    public String serverId;
+
+    @Label("Status")
+    public int status;
+}
@@ -0,0 +1,58 @@
+package com.sudocodes.monitoring.diagnostics;
+
+import org.springframework.web.method.HandlerMethod;
+import org.springframework.web.servlet.AsyncHandlerInterceptor;
+import org.springframework.web.servlet.HandlerMapping;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.util.Map;
+
+/**
+ * Emits an {@link HttpRequestEvent} per API request. Streamed responses complete on an async
+ * dispatch, so the event begun on the first dispatch is kept in a request attribute and
+ * committed when the last one completes.
+ */
+public class HttpRequestEventInterceptor implements AsyncHandlerInterceptor {
+
+    private static final String EVENT_ATTRIBUTE = HttpRequestEventInterceptor.class.getName() + ".event";
+
+    @Override
+    public boolean preHandle(HttpServletRequest request, HttpServletResponse response, Object handler) {
+        if (request.getAttribute(EVENT_ATTRIBUTE) == null) {
+            HttpRequestEvent event = new HttpRequestEvent();
+            if (event.isEnabled()) {
+                event.begin();
+                request.setAttribute(EVENT_ATTRIBUTE, event);
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public void afterCompletion(HttpServletRequest request, HttpServletResponse response, Object handler,
+                                Exception ex) {
+        HttpRequestEvent event = (HttpRequestEvent) request.getAttribute(EVENT_ATTRIBUTE);
+        if (event == null || request.isAsyncStarted()) {
+            return;
+        }
+        request.removeAttribute(EVENT_ATTRIBUTE);
+        event.end();
+        if (event.shouldCommit()) {
+            event.method = request.getMethod();
+            Object pattern = request.getAttribute(HandlerMapping.BEST_MATCHING_PATTERN_ATTRIBUTE);
+            event.path = pattern != null ? pattern.toString() : request.getRequestURI();
+            if (handler instanceof HandlerMethod) {
+                HandlerMethod method = (HandlerMethod) handler;
+                event.handler = method.getBeanType().getSimpleName() + "." + method.getMethod().getName();
+            }
+            Object variables = request.getAttribute(HandlerMapping.URI_TEMPLATE_VARIABLES_ATTRIBUTE);
+            if (variables instanceof Map) {
+                Object serverId = ((Map<?, ?>) variables).get("serverId");
+                event.serverId = serverId != null ? serverId.toString() : null;
+            }
+            event.status = response.getStatus();
+            event.commit();
+        }
+    }
+}
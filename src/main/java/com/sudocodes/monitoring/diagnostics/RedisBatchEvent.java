@@ -0,0 +1,33 @@
+package com.sudocodes.monitoring.diagnostics;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * One batch written to Redis, from dispatch to the last reply
+ */
+@Name("com.sudocodes.monitoring.RedisBatch")
+@Label("Redis Batch")
+@Category({"Monitoring", "Redis"})
+@Description("A metrics batch written to Redis, from dispatch to the last reply")
+public class RedisBatchEvent extends jdk.jfr.Event {
+
+    @Label("Server Id")
+    public String serverId;
+
+    @Label("Keys")
+    public int keys;
+
+    @Label("Commands")
+    public int commands;
+
+    @Label("Estimated Size")
+    @DataAmount
+    public long bytes;
+
+    @Label("Succeeded")
+    public boolean succeeded;
+}
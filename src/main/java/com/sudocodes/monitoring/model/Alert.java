@@ -11,14 +11,25 @@ import java.time.Instant;
 @AllArgsConstructor
 public class Alert {
     private String id;
+    private String key;
+    private String serverId;
+    private String rule;
+    private String resource;
     private String message;
     private AlertLevel level;
     private AlertType type;
     private String source;
     private Instant timestamp;
     private boolean active;
+    private AlertState state;
     private Instant resolvedAt;
     
+    public enum AlertState {
+        PENDING,
+        FIRING,
+        RESOLVED
+    }
+    
     public enum AlertLevel {
         INFO,
         WARNING,
@@ -33,6 +44,10 @@ public class Alert {
         HIGH_CPU_USAGE,
         HIGH_MEMORY_USAGE,
         DISK_SPACE_LOW,
+        RTSP_LATENCY_HIGH,
+        DOCKER_CPU_HIGH,
+        DOCKER_MEMORY_HIGH,
+        ANOMALY,
         NETWORK_BANDWIDTH_HIGH,
         STORAGE_ERROR,
         S3_BUCKET_ERROR,
@@ -0,0 +1,324 @@
+package com.sudocodes.monitoring.model;
+
+import lombok.Getter;
+import org.springframework.boot.convert.DurationStyle;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * One alert rule, parsed from a definition of the form
+ * <pre>
+ * &lt;section&gt; &lt;resource&gt; &lt;field&gt; &lt;op&gt; &lt;threshold&gt; [for &lt;duration&gt;] [clear &lt;threshold&gt;]
+ *     [level &lt;LEVEL&gt;] [type &lt;TYPE&gt;] [message "&lt;text&gt;"]
+ * </pre>
+ * e.g. {@code storage disk:* usage_percent > 90 for 2m clear 85 level WARNING}.
+ *
+ * The resource is either exact ({@code cpu}) or a kind with a wildcard id ({@code disk:*}).
+ * Operators are {@code > >= < <= == !=}; equality also compares text, case-insensitively.
+ * The condition has to hold for the {@code for} duration before the alert fires, and once
+ * firing the alert only resolves when the value no longer passes the {@code clear} threshold,
+ * which defaults to the threshold itself. The message may refer to {@code {server}},
+ * {@code {id}}, {@code {value}}, {@code {threshold}} and any field of the resource.
+ */
+@Getter
+public class AlertRule {
+
+    public enum Operator {
+        GT(">"), GE(">="), LT("<"), LE("<="), EQ("=="), NE("!=");
+
+        private final String symbol;
+
+        Operator(String symbol) {
+            this.symbol = symbol;
+        }
+
+        public String getSymbol() {
+            return symbol;
+        }
+
+        static Operator of(String symbol) {
+            for (Operator operator : values()) {
+                if (operator.symbol.equals(symbol)) {
+                    return operator;
+                }
+            }
+            throw new IllegalArgumentException("unknown operator '" + symbol + "'");
+        }
+
+        boolean test(double value, double threshold) {
+            switch (this) {
+                case GT: return value > threshold;
+                case GE: return value >= threshold;
+                case LT: return value < threshold;
+                case LE: return value <= threshold;
+                case EQ: return value == threshold;
+                default: return value != threshold;
+            }
+        }
+    }
+
+    private final String id;
+    private final String definition;
+    private final String section;
+    private final String resource;
+    /** Resource kind the rule applies to, {@code disk} for {@code disk:*} */
+    private final String kind;
+    private final boolean wildcard;
+    private final String field;
+    private final Operator operator;
+    private final String threshold;
+    private final String clearThreshold;
+    private final long forMillis;
+    private final Alert.AlertLevel level;
+    private final Alert.AlertType type;
+    private final String message;
+
+    private final double numericThreshold;
+    private final double numericClearThreshold;
+
+    private AlertRule(String id, String definition, String section, String resource, String field, Operator operator,
+                      String threshold, String clearThreshold, long forMillis, Alert.AlertLevel level,
+                      Alert.AlertType type, String message) {
+        this.id = id;
+        this.definition = definition;
+        this.section = section;
+        this.resource = resource;
+        this.wildcard = resource.endsWith(":*");
+        this.kind = wildcard ? resource.substring(0, resource.length() - 2) : resource;
+        this.field = field;
+        this.operator = operator;
+        this.threshold = threshold;
+        this.clearThreshold = clearThreshold;
+        this.forMillis = forMillis;
+        this.level = level;
+        this.type = type;
+        this.message = message;
+        this.numericThreshold = parse(threshold);
+        this.numericClearThreshold = parse(clearThreshold);
+    }
+
+    /**
+     * Parse a rule definition
+     * @throws IllegalArgumentException if the definition is malformed
+     */
+    public static AlertRule parse(String id, String definition) {
+        List<String> tokens = tokenize(definition);
+        if (tokens.size() < 5) {
+            throw new IllegalArgumentException("expected '<section> <resource> <field> <op> <threshold>'");
+        }
+        String resource = tokens.get(1);
+        if (resource.indexOf('*') >= 0 && !(resource.endsWith(":*") && resource.indexOf('*') == resource.length() - 1)) {
+            throw new IllegalArgumentException("resource wildcards are only supported as '<kind>:*'");
+        }
+        Operator operator = Operator.of(tokens.get(3));
+        String threshold = tokens.get(4);
+        if (Double.isNaN(parse(threshold)) && operator != Operator.EQ && operator != Operator.NE) {
+            throw new IllegalArgumentException("threshold '" + threshold + "' is not a number");
+        }
+
+        String clearThreshold = threshold;
+        long forMillis = 0;
+        Alert.AlertLevel level = Alert.AlertLevel.WARNING;
+        Alert.AlertType type = null;
+        String message = null;
+        for (int i = 5; i < tokens.size(); i += 2) {
+            if (i + 1 >= tokens.size()) {
+                throw new IllegalArgumentException("missing value after '" + tokens.get(i) + "'");
+            }
+            String value = tokens.get(i + 1);
+            switch (tokens.get(i).toLowerCase(Locale.ROOT)) {
+                case "for":
+                    forMillis = DurationStyle.detectAndParse(value).toMillis();
+                    break;
+                case "clear":
+                    clearThreshold = value;
+                    break;
+                case "level":
+                    level = Alert.AlertLevel.valueOf(value.toUpperCase(Locale.ROOT));
+                    break;
+                case "type":
+                    type = Alert.AlertType.valueOf(value.toUpperCase(Locale.ROOT));
+                    break;
+                case "message":
+                    message = value;
+                    break;
+                default:
+                    throw new IllegalArgumentException("unknown option '" + tokens.get(i) + "'");
+            }
+        }
+
+        if (type == null) {
+            type = defaultType(id);
+        }
+        if (message == null) {
+            message = tokens.get(0) + " " + resource.replace("*", "{id}") + " " + tokens.get(2)
+                    + " is {value} (" + operator.symbol + " {threshold})";
+        }
+        AlertRule rule = new AlertRule(id, definition.trim(), tokens.get(0), resource, tokens.get(2), operator,
+                threshold, clearThreshold, forMillis, level, type, message);
+        if (!rule.clearsBeforeThreshold()) {
+            throw new IllegalArgumentException("clear threshold " + clearThreshold
+                    + " would keep the alert from ever resolving below " + threshold);
+        }
+        return rule;
+    }
+
+    private static Alert.AlertType defaultType(String id) {
+        try {
+            return Alert.AlertType.valueOf(id);
+        } catch (IllegalArgumentException e) {
+            return Alert.AlertType.SYSTEM_ERROR;
+        }
+    }
+
+    /**
+     * Split on whitespace, keeping double-quoted text together
+     */
+    private static List<String> tokenize(String definition) {
+        List<String> tokens = new ArrayList<>();
+        int i = 0;
+        int n = definition.length();
+        while (i < n) {
+            char c = definition.charAt(i);
+            if (Character.isWhitespace(c)) {
+                i++;
+            } else if (c == '"') {
+                int end = definition.indexOf('"', i + 1);
+                if (end < 0) {
+                    throw new IllegalArgumentException("unterminated quote");
+                }
+                tokens.add(definition.substring(i + 1, end));
+                i = end + 1;
+            } else {
+                int start = i;
+                while (i < n && !Character.isWhitespace(definition.charAt(i))) {
+                    i++;
+                }
+                tokens.add(definition.substring(start, i));
+            }
+        }
+        return tokens;
+    }
+
+    /**
+     * Hysteresis only makes sense when the clear threshold lies on the breaching side
+     */
+    private boolean clearsBeforeThreshold() {
+        if (Double.isNaN(numericThreshold) || Double.isNaN(numericClearThreshold)) {
+            return threshold.equals(clearThreshold);
+        }
+        switch (operator) {
+            case GT:
+            case GE:
+                return numericClearThreshold <= numericThreshold;
+            case LT:
+            case LE:
+                return numericClearThreshold >= numericThreshold;
+            default:
+                return numericClearThreshold == numericThreshold;
+        }
+    }
+
+    /**
+     * Whether a resource of the rule's section is one the rule watches
+     */
+    public boolean appliesTo(String resourceName) {
+        return wildcard ? resourceName.length() > kind.length() + 1 && resourceName.startsWith(kind)
+                && resourceName.charAt(kind.length()) == ':' : resourceName.equals(resource);
+    }
+
+    /**
+     * Whether the value meets the alert condition
+     */
+    public boolean isBreached(Object value) {
+        return test(value, numericThreshold, threshold);
+    }
+
+    /**
+     * Whether a firing alert may resolve at this value
+     */
+    public boolean isCleared(Object value) {
+        return !test(value, numericClearThreshold, clearThreshold);
+    }
+
+    private boolean test(Object value, double numeric, String text) {
+        double number = value instanceof Number ? ((Number) value).doubleValue() : parse(value);
+        if (!Double.isNaN(number) && !Double.isNaN(numeric)) {
+            return operator.test(number, numeric);
+        }
+        if (operator == Operator.EQ) {
+            return text.equalsIgnoreCase(value.toString());
+        }
+        if (operator == Operator.NE) {
+            return !text.equalsIgnoreCase(value.toString());
+        }
+        return false;
+    }
+
+    /**
+     * Id of the resource within its kind, e.g. {@code sda1} for {@code disk:sda1}
+     */
+    public String resourceId(String resourceName) {
+        return wildcard ? resourceName.substring(kind.length() + 1) : resourceName;
+    }
+
+    /**
+     * Alert key of the resource on a server: {@code <server>:<rule id>} or, for wildcard rules,
+     * {@code <server>:<rule id>_<resource id>}
+     */
+    public String alertKey(String serverId, String resourceName) {
+        return wildcard ? serverId + ":" + id + "_" + resourceId(resourceName) : serverId + ":" + id;
+    }
+
+    public String formatMessage(String serverId, String resourceName, Object value, Map<String, Object> fields) {
+        StringBuilder text = new StringBuilder(message.length() + 32);
+        int i = 0;
+        while (i < message.length()) {
+            int open = message.indexOf('{', i);
+            int close = open >= 0 ? message.indexOf('}', open) : -1;
+            if (close < 0) {
+                text.append(message, i, message.length());
+                break;
+            }
+            text.append(message, i, open);
+            String name = message.substring(open + 1, close);
+            switch (name) {
+                case "server":
+                    text.append(serverId);
+                    break;
+                case "id":
+                    text.append(resourceId(resourceName));
+                    break;
+                case "value":
+                    text.append(value);
+                    break;
+                case "threshold":
+                    text.append(threshold);
+                    break;
+                default:
+                    Object fieldValue = fields.get(name);
+                    text.append(fieldValue != null ? fieldValue : "{" + name + "}");
+            }
+            i = close + 1;
+        }
+        return text.toString();
+    }
+
+    private static double parse(Object value) {
+        if (value == null) {
+            return Double.NaN;
+        }
+        String text = value.toString();
+        if (text.isEmpty() || !(Character.isDigit(text.charAt(0)) || text.charAt(0) == '-' || text.charAt(0) == '.')) {
+            return Double.NaN;
+        }
+        try {
+            return Double.parseDouble(text);
+        } catch (NumberFormatException e) {
+            return Double.NaN;
+        }
+    }
+}
@@ -0,0 +1,112 @@
+package com.sudocodes.monitoring.model;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Duration histogram over fixed bucket bounds, safe to record into from many threads.
+ *
+ * Each bucket is a {@link LongAdder}, so concurrent recorders update separate cells instead
+ * of contending on one counter; reads sum the cells and are only approximately consistent
+ * with each other while recording goes on, which is fine for monitoring. Percentiles are
+ * reported as the upper bound of the bucket they fall in, capped at the largest value seen.
+ */
+public class LatencyHistogram {
+
+    /** Bucket upper bounds in milliseconds; the last bucket is unbounded */
+    private static final double[] BOUNDS_MS = {0.1, 0.25, 0.5, 1, 2.5, 5, 10, 25, 50, 100, 250, 500, 1000, 2500, 5000, 10000};
+
+    private static final long[] BOUNDS_NANOS = new long[BOUNDS_MS.length];
+
+    static {
+        for (int i = 0; i < BOUNDS_MS.length; i++) {
+            BOUNDS_NANOS[i] = (long) (BOUNDS_MS[i] * 1_000_000);
+        }
+    }
+
+    private final LongAdder[] buckets = new LongAdder[BOUNDS_MS.length + 1];
+    private final LongAdder count = new LongAdder();
+    private final LongAdder totalNanos = new LongAdder();
+    private final LongAccumulator maxNanos = new LongAccumulator(Math::max, 0);
+
+    public LatencyHistogram() {
+        for (int i = 0; i < buckets.length; i++) {
+            buckets[i] = new LongAdder();
+        }
+    }
+
+    public void record(long nanos) {
+        if (nanos < 0) {
+            nanos = 0;
+        }
+        int bucket = 0;
+        while (bucket < BOUNDS_NANOS.length && nanos > BOUNDS_NANOS[bucket]) {
+            bucket++;
+        }
+        buckets[bucket].increment();
+        count.increment();
+        totalNanos.add(nanos);
+        maxNanos.accumulate(nanos);
+    }
+
+    public long getCount() {
+        return count.sum();
+    }
+
+    public double getMeanMillis() {
+        long n = count.sum();
+        return n > 0 ? totalNanos.sum() / (double) n / 1_000_000 : 0;
+    }
+
+    public double getMaxMillis() {
+        return maxNanos.get() / 1_000_000.0;
+    }
+
+    /**
+     * Upper bound in milliseconds of the bucket holding quantile q, or 0 if nothing was recorded
+     */
+    public double getPercentileMillis(double q) {
+        long[] counts = new long[buckets.length];
+        long total = 0;
+        for (int i = 0; i < buckets.length; i++) {
+            counts[i] = buckets[i].sum();
+            total += counts[i];
+        }
+        if (total == 0) {
+            return 0;
+        }
+        long rank = (long) Math.ceil(q * total);
+        long seen = 0;
+        for (int i = 0; i < BOUNDS_MS.length; i++) {
+            seen += counts[i];
+            if (seen >= rank) {
+                return Math.min(BOUNDS_MS[i], getMaxMillis());
+            }
+        }
+        return getMaxMillis();
+    }
+
+    /**
+     * Count, mean, p50/p95/p99, max and cumulative bucket counts keyed by upper bound
+     */
+    public Map<String, Object> snapshot() {
+        Map<String, Object> snapshot = new LinkedHashMap<>();
+        snapshot.put("count", getCount());
+        snapshot.put("mean_ms", getMeanMillis());
+        snapshot.put("p50_ms", getPercentileMillis(0.5));
+        snapshot.put("p95_ms", getPercentileMillis(0.95));
+        snapshot.put("p99_ms", getPercentileMillis(0.99));
+        snapshot.put("max_ms", getMaxMillis());
+
+        Map<String, Long> cumulative = new LinkedHashMap<>();
+        long seen = 0;
+        for (int i = 0; i < buckets.length; i++) {
+            seen += buckets[i].sum();
+            cumulative.put(i < BOUNDS_MS.length ? String.valueOf(BOUNDS_MS[i]) : "+Inf", seen);
+        }
+        snapshot.put("buckets", cumulative);
+        return snapshot;
+    }
+}
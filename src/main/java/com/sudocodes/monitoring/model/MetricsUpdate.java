@@ -0,0 +1,23 @@
+package com.sudocodes.monitoring.model;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import java.util.Map;
+
+/**
+ * Values written for one resource of a server, e.g. section {@code docker},
+ * resource {@code stats:<containerId>}. History samples use resource
+ * {@code history:<seriesId>} with {@code value} and {@code timestamp} fields.
+ */
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public class MetricsUpdate {
+    private String serverId;
+    private String section;
+    private String resource;
+    private Map<String, Object> fields;
+    private long timestamp;
+}
@@ -0,0 +1,275 @@
+package com.sudocodes.monitoring.model;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Base64;
+
+/**
+ * Mergeable quantile sketch over logarithmic buckets.
+ *
+ * A positive value v is counted in bucket {@code ceil(log(v) / log(gamma))} with
+ * {@code gamma = (1 + a) / (1 - a)}, so any quantile is answered within relative error
+ * {@code a} of a value actually seen. Values of zero or below share one bucket. Two sketches
+ * with the same accuracy merge by adding bucket counts, which is what makes per-bucket
+ * sketches combinable across time and across servers. Counts live in one dense array over
+ * the range of indexes seen; past {@link #MAX_BUCKETS} the lowest buckets are folded
+ * together, trading accuracy at the bottom for bounded size.
+ */
+public class QuantileSketch {
+
+    public static final int MAX_BUCKETS = 2048;
+
+    private static final byte ENCODING_VERSION = 1;
+
+    private final double relativeAccuracy;
+    private final double gamma;
+    private final double logGamma;
+
+    private long[] counts = new long[0];
+    private int offset;
+    private long zeroCount;
+    private long count;
+    private double min = Double.POSITIVE_INFINITY;
+    private double max = Double.NEGATIVE_INFINITY;
+
+    public QuantileSketch(double relativeAccuracy) {
+        if (relativeAccuracy <= 0 || relativeAccuracy >= 1) {
+            throw new IllegalArgumentException("Relative accuracy must be between 0 and 1");
+        }
+        this.relativeAccuracy = relativeAccuracy;
+        this.gamma = (1 + relativeAccuracy) / (1 - relativeAccuracy);
+        this.logGamma = Math.log(gamma);
+    }
+
+    public double getRelativeAccuracy() {
+        return relativeAccuracy;
+    }
+
+    public long getCount() {
+        return count;
+    }
+
+    public double getMin() {
+        return count > 0 ? min : Double.NaN;
+    }
+
+    public double getMax() {
+        return count > 0 ? max : Double.NaN;
+    }
+
+    public boolean isEmpty() {
+        return count == 0;
+    }
+
+    public void add(double value) {
+        if (Double.isNaN(value)) {
+            return;
+        }
+        if (value <= 0) {
+            zeroCount++;
+        } else {
+            // Resolve the slot first, it may replace the counts array
+            int slot = slot((int) Math.ceil(Math.log(value) / logGamma));
+            counts[slot]++;
+        }
+        count++;
+        min = Math.min(min, value);
+        max = Math.max(max, value);
+    }
+
+    /**
+     * Add the counts of another sketch with the same accuracy
+     */
+    public void merge(QuantileSketch other) {
+        if (other.relativeAccuracy != relativeAccuracy) {
+            throw new IllegalArgumentException("Cannot merge sketches of different accuracy");
+        }
+        if (other.count == 0) {
+            return;
+        }
+        for (int i = 0; i < other.counts.length; i++) {
+            if (other.counts[i] > 0) {
+                int slot = slot(other.offset + i);
+                counts[slot] += other.counts[i];
+            }
+        }
+        zeroCount += other.zeroCount;
+        count += other.count;
+        min = Math.min(min, other.min);
+        max = Math.max(max, other.max);
+    }
+
+    /**
+     * Value at quantile q (0 to 1), or NaN if the sketch is empty
+     */
+    public double quantile(double q) {
+        if (count == 0) {
+            return Double.NaN;
+        }
+        if (q <= 0) {
+            return min;
+        }
+        if (q >= 1) {
+            return max;
+        }
+
+        long rank = (long) Math.floor(q * (count - 1));
+        if (rank < zeroCount) {
+            return Math.max(min, Math.min(0, max));
+        }
+        long seen = zeroCount;
+        for (int i = 0; i < counts.length; i++) {
+            seen += counts[i];
+            if (seen > rank) {
+                // Midpoint of the bucket in relative terms, clamped to what was actually seen
+                double value = 2 * Math.pow(gamma, offset + i) / (gamma + 1);
+                return Math.max(min, Math.min(max, value));
+            }
+        }
+        return max;
+    }
+
+    public void clear() {
+        Arrays.fill(counts, 0);
+        zeroCount = 0;
+        count = 0;
+        min = Double.POSITIVE_INFINITY;
+        max = Double.NEGATIVE_INFINITY;
+    }
+
+    /**
+     * Compact URL-safe Base64 form: accuracy, zero count, min, max, then the non-empty
+     * range of bucket counts as varints
+     */
+    public String encode() {
+        int first = 0;
+        int last = counts.length - 1;
+        while (first <= last && counts[first] == 0) {
+            first++;
+        }
+        while (last >= first && counts[last] == 0) {
+            last--;
+        }
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream(32 + Math.max(0, last - first + 1));
+        out.write(ENCODING_VERSION);
+        writeDouble(out, relativeAccuracy);
+        writeVarLong(out, zeroCount);
+        writeDouble(out, min);
+        writeDouble(out, max);
+        writeVarLong(out, zigZag(offset + first));
+        writeVarLong(out, Math.max(0, last - first + 1));
+        for (int i = first; i <= last; i++) {
+            writeVarLong(out, counts[i]);
+        }
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(out.toByteArray());
+    }
+
+    /**
+     * @throws IllegalArgumentException if the text is not an encoded sketch
+     */
+    public static QuantileSketch decode(String encoded) {
+        ByteBuffer in;
+        try {
+            in = ByteBuffer.wrap(Base64.getUrlDecoder().decode(encoded));
+            if (in.get() != ENCODING_VERSION) {
+                throw new IllegalArgumentException("Unknown sketch encoding");
+            }
+            QuantileSketch sketch = new QuantileSketch(in.getDouble());
+            sketch.zeroCount = readVarLong(in);
+            sketch.min = in.getDouble();
+            sketch.max = in.getDouble();
+            sketch.offset = (int) unZigZag(readVarLong(in));
+            int length = (int) readVarLong(in);
+            if (length < 0 || length > MAX_BUCKETS) {
+                throw new IllegalArgumentException("Invalid sketch bucket count");
+            }
+            sketch.counts = new long[length];
+            long total = sketch.zeroCount;
+            for (int i = 0; i < length; i++) {
+                sketch.counts[i] = readVarLong(in);
+                total += sketch.counts[i];
+            }
+            sketch.count = total;
+            return sketch;
+        } catch (RuntimeException e) {
+            if (e instanceof IllegalArgumentException) {
+                throw e;
+            }
+            throw new IllegalArgumentException("Invalid sketch encoding", e);
+        }
+    }
+
+    /**
+     * Position of a bucket index in the counts array, growing or collapsing the array as needed
+     */
+    private int slot(int index) {
+        if (counts.length == 0) {
+            counts = new long[16];
+            offset = index - 8;
+        }
+        if (index < offset || index >= offset + counts.length) {
+            int low = Math.min(index, offset);
+            int high = Math.max(index, offset + counts.length - 1);
+            if (high - low + 1 > MAX_BUCKETS) {
+                // Fold the lowest buckets into the lowest one that still fits
+                int newLow = high - MAX_BUCKETS + 1;
+                long[] resized = new long[MAX_BUCKETS];
+                for (int i = 0; i < counts.length; i++) {
+                    int target = Math.max(offset + i, newLow) - newLow;
+                    resized[target] += counts[i];
+                }
+                counts = resized;
+                offset = newLow;
+                index = Math.max(index, newLow);
+            } else {
+                // Grow with some headroom on the side being extended
+                int headroom = Math.min(MAX_BUCKETS - (high - low + 1), Math.max(8, counts.length / 2));
+                int newLow = index < offset ? low - headroom : low;
+                int newLength = high - newLow + 1 + (index < offset ? 0 : headroom);
+                newLength = Math.min(newLength, MAX_BUCKETS);
+                long[] resized = new long[newLength];
+                System.arraycopy(counts, 0, resized, offset - newLow, counts.length);
+                counts = resized;
+                offset = newLow;
+            }
+        }
+        return index - offset;
+    }
+
+    private static long zigZag(long value) {
+        return (value << 1) ^ (value >> 63);
+    }
+
+    private static long unZigZag(long value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    private static void writeVarLong(ByteArrayOutputStream out, long value) {
+        while ((value & ~0x7FL) != 0) {
+            out.write((int) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        out.write((int) value);
+    }
+
+    private static long readVarLong(ByteBuffer in) {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            byte b = in.get();
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IllegalArgumentException("Malformed varint");
+    }
+
+    private static void writeDouble(ByteArrayOutputStream out, double value) {
+        long bits = Double.doubleToLongBits(value);
+        for (int shift = 56; shift >= 0; shift -= 8) {
+            out.write((int) (bits >>> shift));
+        }
+    }
+}
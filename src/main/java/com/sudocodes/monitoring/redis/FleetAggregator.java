@@ -0,0 +1,209 @@
+package com.sudocodes.monitoring.redis;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.redis.connection.StringRedisConnection;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.ZSetOperations;
+import org.springframework.data.redis.core.script.RedisScript;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Fleet-wide statistics, maintained as server samples are written.
+ *
+ * Every batch contributes the latest value of each fleet metric of its server to a global
+ * ranking, the sorted set {@code fleet:<metric>} scored by that value, through
+ * {@code scripts/fleet_update.lua}, which also adjusts the metric's sum in {@code fleet:sums}.
+ * Averages, maxima, top-N lists and distributions are then read from the rankings in
+ * O(log N) per item instead of visiting every server.
+ */
+@Component
+public class FleetAggregator {
+
+    public static final String CPU = "cpu";
+    public static final String MEMORY = "memory";
+    public static final String DISK = "disk";
+    public static final String CONTAINERS_DOWN = "containers_down";
+    public static final String STREAMS_DOWN = "streams_down";
+    public static final String MONITOR_CPU = "monitor_cpu";
+
+    public static final List<String> METRICS =
+            Collections.unmodifiableList(Arrays.asList(CPU, MEMORY, DISK, CONTAINERS_DOWN, STREAMS_DOWN,
+                    MONITOR_CPU));
+
+    public static final String SUMS_KEY = "fleet:sums";
+
+    public static final RedisScript<Long> UPDATE_SCRIPT =
+            RedisScript.of(new ClassPathResource("scripts/fleet_update.lua"), Long.class);
+
+    /** Upper bounds of the disk usage distribution buckets, in percent */
+    private static final double[] DISK_BUCKETS = {50, 75, 90, 95};
+
+    private final StringRedisTemplate stringRedisTemplate;
+
+    @Autowired
+    public FleetAggregator(StringRedisTemplate stringRedisTemplate) {
+        this.stringRedisTemplate = stringRedisTemplate;
+    }
+
+    public static String key(String metric) {
+        return "fleet:" + metric;
+    }
+
+    /**
+     * Add the fleet metrics found in a batch: CPU and memory usage, the fullest disk, how
+     * many containers and streams are down, and the CPU used by the monitor itself, for the
+     * resource types the batch covers
+     */
+    public void contribute(MetricsBatch batch) {
+        Double cpu = null;
+        Double memory = null;
+        Double disk = null;
+        Double monitorCpu = null;
+        int containers = 0;
+        int containersDown = 0;
+        int streams = 0;
+        int streamsDown = 0;
+
+        for (MetricsBatch.Entry entry : batch.getEntries()) {
+            String keyType = entry.getKeyType();
+            if (entry.getType() == MetricsBatch.EntryType.HISTORY) {
+                if ("system".equals(keyType) && CPU.equals(entry.getResourceId())) {
+                    cpu = entry.getValue();
+                } else if ("system".equals(keyType) && MEMORY.equals(entry.getResourceId())) {
+                    memory = entry.getValue();
+                } else if ("storage".equals(keyType)) {
+                    disk = disk == null ? entry.getValue() : Math.max(disk, entry.getValue());
+                } else if ("monitor".equals(keyType) && CPU.equals(entry.getResourceId())) {
+                    monitorCpu = entry.getValue();
+                }
+            } else if (entry.getType() == MetricsBatch.EntryType.HASH && entry.getFields() != null) {
+                if ("docker".equals(keyType) && entry.getResourceId().startsWith("container:")) {
+                    containers++;
+                    if (!"running".equals(entry.getFields().get("simple_status"))) {
+                        containersDown++;
+                    }
+                } else if ("rtsp".equals(keyType) && entry.getResourceId().startsWith("stream:")) {
+                    streams++;
+                    if (!Boolean.TRUE.equals(entry.getFields().get("active"))) {
+                        streamsDown++;
+                    }
+                }
+            }
+        }
+
+        addValue(batch, CPU, cpu);
+        addValue(batch, MEMORY, memory);
+        addValue(batch, DISK, disk);
+        addValue(batch, CONTAINERS_DOWN, containers > 0 ? (double) containersDown : null);
+        addValue(batch, STREAMS_DOWN, streams > 0 ? (double) streamsDown : null);
+        addValue(batch, MONITOR_CPU, monitorCpu);
+    }
+
+    private static void addValue(MetricsBatch batch, String metric, Double value) {
+        if (value != null && !value.isNaN()) {
+            batch.addFleetValue(metric, value);
+        }
+    }
+
+    /**
+     * The servers with the highest (or lowest) latest value of a metric
+     * @return server key prefix mapped to its value, in rank order
+     */
+    public Map<String, Double> top(String metric, int count, boolean lowest) {
+        Set<ZSetOperations.TypedTuple<String>> ranked = lowest
+                ? stringRedisTemplate.opsForZSet().rangeWithScores(key(metric), 0, count - 1)
+                : stringRedisTemplate.opsForZSet().reverseRangeWithScores(key(metric), 0, count - 1);
+        Map<String, Double> result = new LinkedHashMap<>();
+        if (ranked != null) {
+            for (ZSetOperations.TypedTuple<String> server : ranked) {
+                result.put(server.getValue(), server.getScore());
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Count, average, maximum and top servers of every fleet metric, plus the disk usage
+     * distribution, read in one pipeline
+     */
+    public Map<String, Object> summary(int topCount) {
+        List<Object> replies = stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            StringRedisConnection stringConnection = (StringRedisConnection) connection;
+            stringConnection.hGetAll(SUMS_KEY);
+            for (String metric : METRICS) {
+                stringConnection.zCard(key(metric));
+                stringConnection.zRevRangeWithScores(key(metric), 0, Math.max(0, topCount - 1));
+            }
+            double lower = Double.NEGATIVE_INFINITY;
+            for (double upper : DISK_BUCKETS) {
+                stringConnection.zCount(key(DISK), lower, Math.nextDown(upper));
+                lower = upper;
+            }
+            stringConnection.zCount(key(DISK), lower, Double.POSITIVE_INFINITY);
+            return null;
+        });
+
+        @SuppressWarnings("unchecked")
+        Map<String, String> sums = (Map<String, String>) replies.get(0);
+        Map<String, Object> summary = new LinkedHashMap<>();
+        int reply = 1;
+        for (String metric : METRICS) {
+            long count = ((Number) replies.get(reply++)).longValue();
+            Set<?> ranked = (Set<?>) replies.get(reply++);
+
+            Map<String, Object> stats = new LinkedHashMap<>();
+            stats.put("servers", count);
+            String sum = sums != null ? sums.get(metric) : null;
+            double total = sum != null ? Double.parseDouble(sum) : 0;
+            if (CONTAINERS_DOWN.equals(metric) || STREAMS_DOWN.equals(metric)) {
+                stats.put("total", Math.round(total));
+            } else if (count > 0) {
+                stats.put("avg", total / count);
+            }
+
+            List<Map<String, Object>> top = new ArrayList<>();
+            for (Object item : ranked) {
+                @SuppressWarnings("unchecked")
+                ZSetOperations.TypedTuple<String> server =
+                        (ZSetOperations.TypedTuple<String>) item;
+                if (top.isEmpty()) {
+                    stats.put("max", server.getScore());
+                }
+                if (topCount > 0) {
+                    Map<String, Object> entry = new LinkedHashMap<>();
+                    entry.put("server", server.getValue());
+                    entry.put("value", server.getScore());
+                    top.add(entry);
+                }
+            }
+            if (topCount > 0) {
+                stats.put("top", top);
+            }
+            summary.put(metric, stats);
+        }
+
+        Map<String, Object> distribution = new LinkedHashMap<>();
+        String lower = "0";
+        for (double upper : DISK_BUCKETS) {
+            String label = String.valueOf((int) upper);
+            distribution.put(lower + "-" + label, replies.get(reply++));
+            lower = label;
+        }
+        distribution.put(lower + "+", replies.get(reply));
+        @SuppressWarnings("unchecked")
+        Map<String, Object> diskStats = (Map<String, Object>) summary.get(DISK);
+        diskStats.put("distribution", distribution);
+
+        return summary;
+    }
+}
@@ -0,0 +1,214 @@
+package com.sudocodes.monitoring.redis;
+
+import com.sudocodes.monitoring.model.ServerIdentity;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.RedisScript;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Picks one monitor instance to do the fleet-wide work, such as removing dead servers and
+ * central alert evaluation, so that several instances do not each do it.
+ *
+ * The leader holds the lease {@value #LEASE_KEY}, taken with SET NX PX through
+ * {@code scripts/leader_lease.lua} for {@code leader.lease} ms and renewed every
+ * {@code leader.renew-interval} ms. Each new lease gets a fencing token from {@value #TOKEN_KEY}
+ * that is higher than any before it; work that writes fleet-wide state passes its lease to the
+ * script doing the write, which does nothing once the lease has moved on. The lease is counted
+ * from before each renewal, so an instance that cannot reach Redis stops leading before the
+ * lease can expire there, and another instance takes over within a lease and a renewal.
+ * Renewals run on their own thread so a busy scheduler cannot delay them.
+ *
+ * With {@code leader.election.enabled=false} every instance considers itself the leader.
+ */
+@Component
+@Slf4j
+public class LeaderElection {
+
+    public static final String LEASE_KEY = "monitor:leader";
+    public static final String TOKEN_KEY = "monitor:leader:token";
+
+    private static final RedisScript<Long> LEASE_SCRIPT =
+            RedisScript.of(new ClassPathResource("scripts/leader_lease.lua"), Long.class);
+    private static final RedisScript<Long> RELEASE_SCRIPT =
+            RedisScript.of(new ClassPathResource("scripts/leader_release.lua"), Long.class);
+
+    private final StringRedisTemplate stringRedisTemplate;
+    private final ObjectProvider<LeadershipListener> listenerProvider;
+    private final String holderId;
+
+    @Value("${leader.election.enabled:true}")
+    private boolean enabled;
+
+    @Value("${leader.lease:5000}")
+    private long leaseMs;
+
+    @Value("${leader.renew-interval:1000}")
+    private long renewInterval;
+
+    private ScheduledExecutorService elector;
+
+    /** Lease value ({@code <token>:<holder>}) while this instance holds it */
+    private volatile String lease;
+    private volatile long token;
+    /** {@link System#nanoTime()} at which the held lease may have run out */
+    private volatile long validUntil;
+
+    private final AtomicLong acquired = new AtomicLong();
+    private final AtomicLong lost = new AtomicLong();
+
+    @Autowired
+    public LeaderElection(StringRedisTemplate stringRedisTemplate, ServerIdentity serverIdentity,
+                          ObjectProvider<LeadershipListener> listenerProvider) {
+        this.stringRedisTemplate = stringRedisTemplate;
+        this.listenerProvider = listenerProvider;
+        // Unique per process, so instances of one server still compete
+        this.holderId = serverIdentity.getMetricsKeyPrefix() + "/" + UUID.randomUUID().toString().substring(0, 8);
+    }
+
+    @PostConstruct
+    public void init() {
+        elector = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "leader-election");
+            thread.setDaemon(true);
+            return thread;
+        });
+        if (!enabled) {
+            elector.execute(() -> notifyAcquired(0));
+            return;
+        }
+        if (renewInterval >= leaseMs) {
+            log.warn("leader.renew-interval ({} ms) should be well below leader.lease ({} ms)", renewInterval, leaseMs);
+        }
+        elector.scheduleWithFixedDelay(this::renew, 0, renewInterval, TimeUnit.MILLISECONDS);
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        elector.shutdownNow();
+        try {
+            elector.awaitTermination(1, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        String held = lease;
+        if (!enabled || held == null) {
+            return;
+        }
+        lease = null;
+        notifyLost();
+        try {
+            // Let another instance take over right away instead of after the lease
+            stringRedisTemplate.execute(RELEASE_SCRIPT, Collections.singletonList(LEASE_KEY), held);
+            log.info("Released leader lease {}", held);
+        } catch (Exception e) {
+            log.debug("Could not release leader lease: {}", e.getMessage());
+        }
+    }
+
+    /**
+     * Take the lease if it is free, or extend it if it is ours
+     */
+    private void renew() {
+        long started = System.nanoTime();
+        String held = lease;
+        Long granted;
+        try {
+            granted = stringRedisTemplate.execute(LEASE_SCRIPT, Arrays.asList(LEASE_KEY, TOKEN_KEY), holderId,
+                    String.valueOf(leaseMs), held != null ? held : "");
+        } catch (Exception e) {
+            log.debug("Could not renew leader lease: {}", e.getMessage());
+            granted = null;
+        }
+
+        if (granted != null && granted > 0) {
+            validUntil = started + TimeUnit.MILLISECONDS.toNanos(leaseMs);
+            if (held == null || granted != token) {
+                token = granted;
+                lease = granted + ":" + holderId;
+                log.info("Became leader as {} with token {}", holderId, granted);
+                notifyAcquired(granted);
+            }
+        } else if (held != null && (granted != null || System.nanoTime() - validUntil >= 0)) {
+            // Taken over, or not renewed in time
+            lease = null;
+            log.warn("Lost leadership as {} (token {})", holderId, token);
+            notifyLost();
+        }
+    }
+
+    private void notifyAcquired(long newToken) {
+        acquired.incrementAndGet();
+        listenerProvider.orderedStream().forEach(listener -> {
+            try {
+                listener.leadershipAcquired(newToken);
+            } catch (Exception e) {
+                log.error("Error starting leader work in {}", listener.getClass().getSimpleName(), e);
+            }
+        });
+    }
+
+    private void notifyLost() {
+        lost.incrementAndGet();
+        listenerProvider.orderedStream().forEach(listener -> {
+            try {
+                listener.leadershipLost();
+            } catch (Exception e) {
+                log.error("Error stopping leader work in {}", listener.getClass().getSimpleName(), e);
+            }
+        });
+    }
+
+    /**
+     * The lease this instance holds, to fence writes with: {@code ""} when election is disabled,
+     * null when this instance is not the leader or its lease may have run out
+     */
+    public String getLease() {
+        if (!enabled) {
+            return "";
+        }
+        String held = lease;
+        return held != null && System.nanoTime() - validUntil < 0 ? held : null;
+    }
+
+    public boolean isLeader() {
+        return getLease() != null;
+    }
+
+    /**
+     * Election state, including the current leader as seen in Redis
+     */
+    public Map<String, Object> getStatus() {
+        Map<String, Object> status = new LinkedHashMap<>();
+        status.put("enabled", enabled);
+        status.put("holder", holderId);
+        status.put("leader", isLeader());
+        status.put("token", isLeader() ? token : null);
+        if (enabled) {
+            try {
+                status.put("current_lease", stringRedisTemplate.opsForValue().get(LEASE_KEY));
+            } catch (Exception e) {
+                status.put("current_lease", null);
+            }
+        }
+        status.put("acquired", acquired.get());
+        status.put("lost", lost.get());
+        return status;
+    }
+}
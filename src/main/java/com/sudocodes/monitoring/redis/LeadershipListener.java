@@ -0,0 +1,15 @@
+package com.sudocodes.monitoring.redis;
+
+/**
+ * Told when this instance becomes the leader and when it stops being one, see {@link LeaderElection}.
+ * Called on the election thread, so implementations must not block.
+ */
+public interface LeadershipListener {
+
+    /**
+     * @param token fencing token of the lease, higher than that of any earlier leader
+     */
+    void leadershipAcquired(long token);
+
+    void leadershipLost();
+}
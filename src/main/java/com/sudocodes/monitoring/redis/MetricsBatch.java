@@ -0,0 +1,158 @@
+package com.sudocodes.monitoring.redis;
+
+import com.fasterxml.jackson.annotation.JsonIgnore;
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The writes produced by one collection cycle for one server.
+ * A batch is written to Redis as a single pipeline, and it is also the unit
+ * that gets spooled to disk while Redis is unreachable.
+ */
+@Data
+@NoArgsConstructor
+public class MetricsBatch {
+
+    private String keyPrefix;
+    private long createdAt;
+    private List<Entry> entries = new ArrayList<>();
+
+    public MetricsBatch(String keyPrefix) {
+        this.keyPrefix = keyPrefix;
+        this.createdAt = System.currentTimeMillis();
+    }
+
+    /**
+     * Store a hash of current values under {@code prefix:keyType:resourceId}
+     */
+    public MetricsBatch putHash(String keyType, String resourceId, Map<String, ?> fields) {
+        entries.add(new Entry(EntryType.HASH, keyType, resourceId, new HashMap<>(fields), 0, 0));
+        return this;
+    }
+
+    /**
+     * Append a sample to the time series {@code prefix:keyType:history:seriesId}
+     */
+    public MetricsBatch addHistory(String keyType, String seriesId, double value, long timestamp) {
+        entries.add(new Entry(EntryType.HISTORY, keyType, seriesId, null, value, timestamp));
+        return this;
+    }
+
+    /**
+     * Store a closed rollup bucket in {@code prefix:keyType:rollup:resolution:seriesId}
+     */
+    public MetricsBatch addRollup(String keyType, MetricsRollups.Resolution resolution, String seriesId,
+                                  long bucketStart, Map<String, Object> aggregates) {
+        entries.add(new Entry(EntryType.ROLLUP, keyType, resolution.getLabel() + ":" + seriesId,
+                aggregates, 0, bucketStart));
+        return this;
+    }
+
+    /**
+     * Store the quantile sketch of a closed rollup bucket in {@code prefix:keyType:sketch:resolution:seriesId}
+     */
+    public MetricsBatch addSketch(String keyType, MetricsRollups.Resolution resolution, String seriesId,
+                                  long bucketStart, String encodedSketch) {
+        Map<String, Object> fields = new HashMap<>();
+        fields.put("sketch", encodedSketch);
+        entries.add(new Entry(EntryType.SKETCH, keyType, resolution.getLabel() + ":" + seriesId,
+                fields, 0, bucketStart));
+        return this;
+    }
+
+    /**
+     * Record this server's latest value of a fleet metric in the ranking {@code fleet:metric}
+     */
+    public MetricsBatch addFleetValue(String metric, double value) {
+        entries.add(new Entry(EntryType.FLEET, metric, keyPrefix, null, value, 0));
+        return this;
+    }
+
+    /**
+     * Record a resource in the per-server index set {@code prefix:idx:keyType}
+     */
+    public MetricsBatch addIndex(String keyType, String resourceId) {
+        entries.add(new Entry(EntryType.INDEX, keyType, resourceId, null, 0, 0));
+        return this;
+    }
+
+    @JsonIgnore
+    public boolean isEmpty() {
+        return entries.isEmpty();
+    }
+
+    /**
+     * Rough size of the batch on the wire: keys, field names and values, and scores of sorted set members
+     */
+    public long estimatedBytes() {
+        long bytes = 0;
+        for (Entry entry : entries) {
+            bytes += keyOf(entry).length();
+            if (entry.getFields() != null) {
+                for (Map.Entry<String, Object> field : entry.getFields().entrySet()) {
+                    // Values are written as JSON, strings with their quotes
+                    bytes += field.getKey().length() + String.valueOf(field.getValue()).length() + 2;
+                }
+            } else {
+                bytes += 24;
+            }
+        }
+        return bytes;
+    }
+
+    /**
+     * Format a Redis key with this batch's server prefix
+     */
+    public String formatKey(String keyType, String resourceId) {
+        return keyPrefix + ":" + keyType + ":" + resourceId;
+    }
+
+    /**
+     * Redis key an entry is written to
+     */
+    public String keyOf(Entry entry) {
+        if (entry.getType() == EntryType.HISTORY) {
+            return formatKey(entry.getKeyType(), "history:" + entry.getResourceId());
+        }
+        if (entry.getType() == EntryType.ROLLUP) {
+            return formatKey(entry.getKeyType(), "rollup:" + entry.getResourceId());
+        }
+        if (entry.getType() == EntryType.SKETCH) {
+            return formatKey(entry.getKeyType(), "sketch:" + entry.getResourceId());
+        }
+        if (entry.getType() == EntryType.FLEET) {
+            return FleetAggregator.key(entry.getKeyType());
+        }
+        if (entry.getType() == EntryType.INDEX) {
+            return ResourceIndex.indexKey(keyPrefix, entry.getKeyType());
+        }
+        return formatKey(entry.getKeyType(), entry.getResourceId());
+    }
+
+    public enum EntryType {
+        HASH,
+        HISTORY,
+        ROLLUP,
+        SKETCH,
+        FLEET,
+        INDEX
+    }
+
+    @Data
+    @NoArgsConstructor
+    @AllArgsConstructor
+    public static class Entry {
+        private EntryType type;
+        private String keyType;
+        private String resourceId;
+        private Map<String, Object> fields;
+        private double value;
+        private long timestamp;
+    }
+}
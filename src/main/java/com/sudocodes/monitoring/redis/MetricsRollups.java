@@ -0,0 +1,388 @@
+package com.sudocodes.monitoring.redis;
+
+import com.sudocodes.monitoring.model.QuantileSketch;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Pattern;
+
+/**
+ * Folds history samples into 1 minute, 5 minute and 1 hour buckets as they are written.
+ *
+ * Each series keeps one open bucket per resolution in memory (count, min, max, sum, last),
+ * so folding a sample is constant time. When a sample lands in a later bucket, the open one
+ * is closed and added to the same batch as a rollup entry, written to
+ * {@code prefix:keyType:rollup:<resolution>:seriesId} and trimmed to that resolution's
+ * retention. Buckets of series that stop reporting are closed by a periodic sweep, and all
+ * open buckets are closed on shutdown by {@link #closeAll()}. A bucket cut in two by a restart
+ * is thus written as two members with the same start, which readers merge.
+ * Rollup members are plain strings, {@code start:count:min:max:avg:last}.
+ *
+ * Latency-type series, those matching {@code metrics.sketch.series}, also keep a
+ * {@link QuantileSketch} per open bucket, written alongside as {@code start:<sketch>}
+ * to {@code prefix:keyType:sketch:<resolution>:seriesId}. Values measured outside of a
+ * batch, like Redis write latency, are folded in with {@link #observe}.
+ */
+@Component
+public class MetricsRollups {
+
+    /**
+     * Rollup resolutions, finest first
+     */
+    public enum Resolution {
+        ONE_MINUTE("1m", 60_000L),
+        FIVE_MINUTES("5m", 300_000L),
+        ONE_HOUR("1h", 3_600_000L);
+
+        private final String label;
+        private final long millis;
+
+        Resolution(String label, long millis) {
+            this.label = label;
+            this.millis = millis;
+        }
+
+        public String getLabel() {
+            return label;
+        }
+
+        public long getMillis() {
+            return millis;
+        }
+
+        public static Resolution fromLabel(String label) {
+            for (Resolution resolution : values()) {
+                if (resolution.label.equals(label)) {
+                    return resolution;
+                }
+            }
+            return null;
+        }
+    }
+
+    private static final Resolution[] RESOLUTIONS = Resolution.values();
+
+    @Value("${metrics.rollup.enabled:true}")
+    private boolean enabled;
+
+    @Value("${metrics.rollup.retention.1m:86400000}")
+    private long oneMinuteRetentionMs;
+
+    @Value("${metrics.rollup.retention.5m:604800000}")
+    private long fiveMinuteRetentionMs;
+
+    @Value("${metrics.rollup.retention.1h:7776000000}")
+    private long oneHourRetentionMs;
+
+    @Value("${metrics.rollup.sweep-interval:60000}")
+    private long sweepIntervalMs;
+
+    @Value("${metrics.sketch.series:}")
+    private List<String> sketchSeries;
+
+    @Value("${metrics.sketch.relative-accuracy:0.01}")
+    private double sketchAccuracy;
+
+    private List<Pattern> sketchPatterns = Collections.emptyList();
+
+    private final Map<String, SeriesRollup> series = new ConcurrentHashMap<>();
+    private volatile long lastSweep;
+
+    /** Buckets closed by {@link #observe}, by key prefix, waiting for the next batch of that server */
+    private final Map<String, MetricsBatch> closedOutsideBatch = new HashMap<>();
+
+    @PostConstruct
+    public void init() {
+        List<Pattern> patterns = new ArrayList<>();
+        for (String glob : sketchSeries) {
+            if (!glob.trim().isEmpty()) {
+                patterns.add(Pattern.compile(Pattern.quote(glob.trim()).replace("*", "\\E.*\\Q")));
+            }
+        }
+        sketchPatterns = patterns;
+    }
+
+    /**
+     * Key of the rollup sorted set of one series at one resolution
+     */
+    public static String key(String keyPrefix, String keyType, Resolution resolution, String seriesId) {
+        return keyPrefix + ":" + keyType + ":rollup:" + resolution.getLabel() + ":" + seriesId;
+    }
+
+    /**
+     * Key of the quantile sketch sorted set of one series at one resolution
+     */
+    public static String sketchKey(String keyPrefix, String keyType, Resolution resolution, String seriesId) {
+        return keyPrefix + ":" + keyType + ":sketch:" + resolution.getLabel() + ":" + seriesId;
+    }
+
+    public double getSketchAccuracy() {
+        return sketchAccuracy;
+    }
+
+    public long getRetention(Resolution resolution) {
+        switch (resolution) {
+            case ONE_MINUTE:
+                return oneMinuteRetentionMs;
+            case FIVE_MINUTES:
+                return fiveMinuteRetentionMs;
+            default:
+                return oneHourRetentionMs;
+        }
+    }
+
+    /**
+     * Fold the history samples of a batch into the open buckets, adding closed buckets to the batch
+     */
+    public void fold(MetricsBatch batch) {
+        if (!enabled) {
+            return;
+        }
+
+        List<MetricsBatch.Entry> entries = batch.getEntries();
+        int sampleCount = entries.size();
+        for (int i = 0; i < sampleCount; i++) {
+            MetricsBatch.Entry entry = entries.get(i);
+            if (entry.getType() != MetricsBatch.EntryType.HISTORY) {
+                continue;
+            }
+            seriesRollup(batch.getKeyPrefix(), entry.getKeyType(), entry.getResourceId())
+                    .add(entry.getValue(), entry.getTimestamp(), batch);
+        }
+
+        synchronized (closedOutsideBatch) {
+            MetricsBatch closed = closedOutsideBatch.remove(batch.getKeyPrefix());
+            if (closed != null) {
+                entries.addAll(closed.getEntries());
+            }
+        }
+
+        long now = System.currentTimeMillis();
+        if (now - lastSweep >= sweepIntervalMs) {
+            lastSweep = now;
+            sweep(batch, now);
+        }
+    }
+
+    /**
+     * Fold a value that is not written as a raw sample, e.g. a latency measured after a write.
+     * Buckets it closes are added to the next batch of the same server.
+     */
+    public void observe(String keyPrefix, String keyType, String seriesId, double value, long timestamp) {
+        if (!enabled) {
+            return;
+        }
+        synchronized (closedOutsideBatch) {
+            MetricsBatch closed = closedOutsideBatch.computeIfAbsent(keyPrefix, MetricsBatch::new);
+            seriesRollup(keyPrefix, keyType, seriesId).add(value, timestamp, closed);
+            if (closed.isEmpty()) {
+                closedOutsideBatch.remove(keyPrefix);
+            }
+        }
+    }
+
+    /**
+     * Close every open bucket, so the samples folded so far survive a shutdown
+     * @return a batch of closed buckets for each server that had any
+     */
+    public List<MetricsBatch> closeAll() {
+        Map<String, MetricsBatch> closed = new LinkedHashMap<>();
+        synchronized (closedOutsideBatch) {
+            closed.putAll(closedOutsideBatch);
+            closedOutsideBatch.clear();
+        }
+        Iterator<SeriesRollup> iterator = series.values().iterator();
+        while (iterator.hasNext()) {
+            SeriesRollup rollup = iterator.next();
+            rollup.closeAll(closed.computeIfAbsent(rollup.keyPrefix, MetricsBatch::new));
+            iterator.remove();
+        }
+        closed.values().removeIf(MetricsBatch::isEmpty);
+        return new ArrayList<>(closed.values());
+    }
+
+    private SeriesRollup seriesRollup(String keyPrefix, String keyType, String seriesId) {
+        return series.computeIfAbsent(keyPrefix + ":" + keyType + ":" + seriesId,
+                key -> new SeriesRollup(keyPrefix, keyType, seriesId, isSketched(keyType + ":" + seriesId)));
+    }
+
+    private boolean isSketched(String name) {
+        for (Pattern pattern : sketchPatterns) {
+            if (pattern.matcher(name).matches()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Close buckets that have seen no sample for a whole bucket length, and forget series idle for the longest one
+     */
+    private void sweep(MetricsBatch batch, long now) {
+        long idleLimit = 2 * RESOLUTIONS[RESOLUTIONS.length - 1].getMillis();
+        Iterator<SeriesRollup> iterator = series.values().iterator();
+        while (iterator.hasNext()) {
+            SeriesRollup rollup = iterator.next();
+            if (!rollup.keyPrefix.equals(batch.getKeyPrefix())) {
+                continue;
+            }
+            if (rollup.closeIdle(now, batch) && now - rollup.lastSample > idleLimit) {
+                iterator.remove();
+            }
+        }
+    }
+
+    /**
+     * Encode a closed bucket as a sorted set member; the start makes members of equal buckets distinct
+     */
+    static String member(MetricsBatch.Entry entry) {
+        Map<String, Object> fields = entry.getFields();
+        if (entry.getType() == MetricsBatch.EntryType.SKETCH) {
+            return entry.getTimestamp() + ":" + fields.get("sketch");
+        }
+        return entry.getTimestamp() + ":" + fields.get("count") + ":" + fields.get("min") + ":" + fields.get("max")
+                + ":" + fields.get("avg") + ":" + fields.get("last");
+    }
+
+    /**
+     * Decode a sketch member
+     * @return the sketch, or null if the member is not a sketch bucket
+     */
+    public static QuantileSketch parseSketchMember(String member) {
+        int separator = member.indexOf(':');
+        if (separator < 0) {
+            return null;
+        }
+        try {
+            return QuantileSketch.decode(member.substring(separator + 1));
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Decode a rollup member into {@code start, count, min, max, avg, last}
+     * @return the values, or null if the member is not a rollup bucket
+     */
+    public static double[] parseMember(String member) {
+        String[] parts = member.split(":");
+        if (parts.length != 6) {
+            return null;
+        }
+        double[] values = new double[6];
+        try {
+            for (int i = 0; i < parts.length; i++) {
+                values[i] = Double.parseDouble(parts[i]);
+            }
+        } catch (NumberFormatException e) {
+            return null;
+        }
+        return values;
+    }
+
+    /**
+     * The open buckets of one series, one slot per resolution
+     */
+    private class SeriesRollup {
+        private final String keyPrefix;
+        private final String keyType;
+        private final String seriesId;
+
+        private final long[] start = new long[RESOLUTIONS.length];
+        private final long[] count = new long[RESOLUTIONS.length];
+        private final double[] min = new double[RESOLUTIONS.length];
+        private final double[] max = new double[RESOLUTIONS.length];
+        private final double[] sum = new double[RESOLUTIONS.length];
+        private final double[] last = new double[RESOLUTIONS.length];
+        private final QuantileSketch[] sketches;
+        private long lastSample;
+
+        private SeriesRollup(String keyPrefix, String keyType, String seriesId, boolean sketched) {
+            this.keyPrefix = keyPrefix;
+            this.keyType = keyType;
+            this.seriesId = seriesId;
+            if (sketched) {
+                sketches = new QuantileSketch[RESOLUTIONS.length];
+                for (int i = 0; i < sketches.length; i++) {
+                    sketches[i] = new QuantileSketch(sketchAccuracy);
+                }
+            } else {
+                sketches = null;
+            }
+        }
+
+        private synchronized void add(double value, long timestamp, MetricsBatch batch) {
+            lastSample = Math.max(lastSample, timestamp);
+            for (int i = 0; i < RESOLUTIONS.length; i++) {
+                long bucket = timestamp - Math.floorMod(timestamp, RESOLUTIONS[i].getMillis());
+                if (count[i] > 0 && bucket != start[i]) {
+                    if (bucket < start[i]) {
+                        // Late sample for a bucket that is already closed
+                        continue;
+                    }
+                    close(i, batch);
+                }
+                if (count[i] == 0) {
+                    start[i] = bucket;
+                    min[i] = value;
+                    max[i] = value;
+                    sum[i] = 0;
+                }
+                count[i]++;
+                min[i] = Math.min(min[i], value);
+                max[i] = Math.max(max[i], value);
+                sum[i] += value;
+                last[i] = value;
+                if (sketches != null) {
+                    sketches[i].add(value);
+                }
+            }
+        }
+
+        /**
+         * @return true if no bucket is left open
+         */
+        private synchronized boolean closeIdle(long now, MetricsBatch batch) {
+            boolean allClosed = true;
+            for (int i = 0; i < RESOLUTIONS.length; i++) {
+                if (count[i] > 0 && now >= start[i] + 2 * RESOLUTIONS[i].getMillis()) {
+                    close(i, batch);
+                }
+                allClosed &= count[i] == 0;
+            }
+            return allClosed;
+        }
+
+        private synchronized void closeAll(MetricsBatch batch) {
+            for (int i = 0; i < RESOLUTIONS.length; i++) {
+                if (count[i] > 0) {
+                    close(i, batch);
+                }
+            }
+        }
+
+        private void close(int i, MetricsBatch batch) {
+            Map<String, Object> fields = new LinkedHashMap<>();
+            fields.put("count", count[i]);
+            fields.put("min", min[i]);
+            fields.put("max", max[i]);
+            fields.put("avg", sum[i] / count[i]);
+            fields.put("last", last[i]);
+            batch.addRollup(keyType, RESOLUTIONS[i], seriesId, start[i], fields);
+            if (sketches != null) {
+                batch.addSketch(keyType, RESOLUTIONS[i], seriesId, start[i], sketches[i].encode());
+                sketches[i].clear();
+            }
+            count[i] = 0;
+        }
+    }
+}
@@ -0,0 +1,312 @@
+package com.sudocodes.monitoring.redis;
+
+import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Append-only, memory-mapped spool for metric batches that could not be written to Redis.
+ *
+ * The spool is a single fixed-size segment file. The header holds the read and write
+ * positions so pending batches survive a restart; each record is a length-prefixed JSON
+ * encoded {@link MetricsBatch}. When the segment is full new batches are dropped rather
+ * than growing the file.
+ */
+@Component
+@Slf4j
+public class MetricsSpool {
+
+    private static final int MAGIC = 0x53484D53;
+    private static final int FORMAT_VERSION = 1;
+    private static final int READ_POS_OFFSET = 8;
+    private static final int WRITE_POS_OFFSET = 16;
+    private static final int HEADER_SIZE = 24;
+    private static final int RECORD_HEADER_SIZE = 4;
+    /** Positions are ints, so one segment must stay below 2 GB */
+    private static final int MAX_SIZE_MB = Integer.MAX_VALUE / (1024 * 1024);
+
+    private final ObjectMapper objectMapper = new ObjectMapper()
+            .configure(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES, false);
+
+    @Value("${metrics.spool.enabled:true}")
+    private boolean enabled;
+
+    @Value("${metrics.spool.path:data/metrics.spool}")
+    private String path;
+
+    @Value("${metrics.spool.max-size-mb:64}")
+    private int maxSizeMb;
+
+    private FileChannel channel;
+    private MappedByteBuffer buffer;
+    private int capacity;
+    private int readPos;
+    private int writePos;
+    private int pendingBatches;
+
+    private final AtomicLong spooledBatches = new AtomicLong();
+    private final AtomicLong droppedBatches = new AtomicLong();
+
+    @PostConstruct
+    public void open() {
+        if (!enabled) {
+            log.info("Metrics spool is disabled");
+            return;
+        }
+        if (maxSizeMb < 1 || maxSizeMb > MAX_SIZE_MB) {
+            throw new IllegalStateException("metrics.spool.max-size-mb must be between 1 and " + MAX_SIZE_MB
+                    + ", was " + maxSizeMb);
+        }
+
+        try {
+            Path file = Paths.get(path).toAbsolutePath();
+            if (file.getParent() != null) {
+                Files.createDirectories(file.getParent());
+            }
+
+            capacity = (int) ((long) maxSizeMb * 1024 * 1024);
+            channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, capacity);
+
+            if (buffer.getInt(0) == MAGIC && buffer.getInt(4) == FORMAT_VERSION && recoverPositions()) {
+                pendingBatches = countRecords();
+                if (pendingBatches > 0) {
+                    log.info("Recovered {} spooled metric batches ({} bytes) from {}",
+                            pendingBatches, writePos - readPos, file);
+                }
+            } else {
+                reset();
+                buffer.putInt(0, MAGIC);
+                buffer.putInt(4, FORMAT_VERSION);
+            }
+
+            log.info("Metrics spool opened at {} ({} MB)", file, maxSizeMb);
+        } catch (IOException e) {
+            log.error("Could not open metrics spool at {}, spooling disabled: {}", path, e.getMessage());
+            enabled = false;
+        }
+    }
+
+    @PreDestroy
+    public synchronized void close() {
+        if (buffer == null) {
+            return;
+        }
+
+        try {
+            buffer.force();
+            channel.close();
+        } catch (IOException e) {
+            log.warn("Error closing metrics spool: {}", e.getMessage());
+        }
+        buffer = null;
+    }
+
+    public boolean isEnabled() {
+        return enabled && buffer != null;
+    }
+
+    public synchronized boolean hasPending() {
+        return isEnabled() && pendingBatches > 0;
+    }
+
+    public synchronized int getPendingBatches() {
+        return pendingBatches;
+    }
+
+    public synchronized int getPendingBytes() {
+        return writePos - readPos;
+    }
+
+    public long getSpooledBatches() {
+        return spooledBatches.get();
+    }
+
+    public long getDroppedBatches() {
+        return droppedBatches.get();
+    }
+
+    /**
+     * Append a batch to the spool
+     * @return false if the spool is disabled or full and the batch was dropped
+     */
+    public synchronized boolean append(MetricsBatch batch) {
+        if (!isEnabled()) {
+            droppedBatches.incrementAndGet();
+            return false;
+        }
+
+        byte[] data;
+        try {
+            data = objectMapper.writeValueAsBytes(batch);
+        } catch (IOException e) {
+            log.error("Could not serialize metrics batch for spooling: {}", e.getMessage());
+            droppedBatches.incrementAndGet();
+            return false;
+        }
+
+        if (writePos + RECORD_HEADER_SIZE + data.length > capacity) {
+            long dropped = droppedBatches.incrementAndGet();
+            if (dropped == 1 || dropped % 100 == 0) {
+                log.warn("Metrics spool is full ({} MB), dropped {} batches so far", maxSizeMb, dropped);
+            }
+            return false;
+        }
+
+        buffer.putInt(writePos, data.length);
+        buffer.put(writePos + RECORD_HEADER_SIZE, data);
+        writePos += RECORD_HEADER_SIZE + data.length;
+        buffer.putInt(WRITE_POS_OFFSET, writePos);
+        pendingBatches++;
+        spooledBatches.incrementAndGet();
+        return true;
+    }
+
+    /**
+     * Read up to {@code max} of the oldest batches without removing them.
+     * Call {@link #commit(Chunk)} once they have been written to Redis.
+     */
+    public synchronized Chunk peek(int max) {
+        List<MetricsBatch> batches = new ArrayList<>();
+        int pos = readPos;
+
+        while (isEnabled() && pos < writePos && batches.size() < max) {
+            int length = buffer.getInt(pos);
+            if (length <= 0 || pos + RECORD_HEADER_SIZE + length > writePos) {
+                log.error("Corrupt metrics spool record at offset {}, discarding {} pending bytes", pos, writePos - pos);
+                reset();
+                return new Chunk(new ArrayList<>(), readPos, 0);
+            }
+
+            byte[] data = new byte[length];
+            buffer.get(pos + RECORD_HEADER_SIZE, data);
+            pos += RECORD_HEADER_SIZE + length;
+
+            try {
+                batches.add(objectMapper.readValue(data, MetricsBatch.class));
+            } catch (IOException e) {
+                log.warn("Skipping unreadable spooled metrics batch: {}", e.getMessage());
+            }
+        }
+
+        return new Chunk(batches, pos, countBetween(readPos, pos));
+    }
+
+    /**
+     * Remove the batches of a chunk returned by {@link #peek(int)}
+     */
+    public synchronized void commit(Chunk chunk) {
+        if (!isEnabled() || chunk.records == 0) {
+            return;
+        }
+
+        readPos = chunk.nextReadPos;
+        pendingBatches = Math.max(0, pendingBatches - chunk.records);
+
+        if (readPos >= writePos) {
+            reset();
+        } else if (readPos > capacity / 2) {
+            compact();
+        } else {
+            buffer.putInt(READ_POS_OFFSET, readPos);
+        }
+    }
+
+    /**
+     * Flush dirty pages of the mapped segment to disk
+     */
+    public synchronized void force() {
+        if (isEnabled()) {
+            buffer.force();
+        }
+    }
+
+    private boolean recoverPositions() {
+        int storedRead = buffer.getInt(READ_POS_OFFSET);
+        int storedWrite = buffer.getInt(WRITE_POS_OFFSET);
+        if (storedRead < HEADER_SIZE || storedWrite < storedRead || storedWrite > capacity) {
+            return false;
+        }
+        readPos = storedRead;
+        writePos = storedWrite;
+        return true;
+    }
+
+    private int countRecords() {
+        return countBetween(readPos, writePos);
+    }
+
+    private int countBetween(int from, int to) {
+        int count = 0;
+        int pos = from;
+        while (pos < to) {
+            int length = buffer.getInt(pos);
+            if (length <= 0) {
+                break;
+            }
+            pos += RECORD_HEADER_SIZE + length;
+            count++;
+        }
+        return count;
+    }
+
+    /**
+     * Move the unread records to the start of the segment to reclaim space
+     */
+    private void compact() {
+        int remaining = writePos - readPos;
+        byte[] data = new byte[remaining];
+        buffer.get(readPos, data);
+        buffer.put(HEADER_SIZE, data);
+        readPos = HEADER_SIZE;
+        writePos = HEADER_SIZE + remaining;
+        buffer.putInt(READ_POS_OFFSET, readPos);
+        buffer.putInt(WRITE_POS_OFFSET, writePos);
+    }
+
+    private void reset() {
+        readPos = HEADER_SIZE;
+        writePos = HEADER_SIZE;
+        pendingBatches = 0;
+        buffer.putInt(READ_POS_OFFSET, readPos);
+        buffer.putInt(WRITE_POS_OFFSET, writePos);
+    }
+
+    /**
+     * Batches read from the spool together with the position to resume from
+     */
+    public static class Chunk {
+        private final List<MetricsBatch> batches;
+        private final int nextReadPos;
+        private final int records;
+
+        private Chunk(List<MetricsBatch> batches, int nextReadPos, int records) {
+            this.batches = batches;
+            this.nextReadPos = nextReadPos;
+            this.records = records;
+        }
+
+        public List<MetricsBatch> getBatches() {
+            return batches;
+        }
+
+        public boolean isEmpty() {
+            return records == 0;
+        }
+    }
+}
@@ -0,0 +1,12 @@
+package com.sudocodes.monitoring.redis;
+
+import com.sudocodes.monitoring.model.MetricsUpdate;
+
+/**
+ * Receives the metrics of every batch handed to {@link MetricsWriter}, as they are written.
+ * Called on the collector thread, so implementations must not block.
+ */
+public interface MetricsUpdateListener {
+
+    void onUpdate(MetricsUpdate update);
+}
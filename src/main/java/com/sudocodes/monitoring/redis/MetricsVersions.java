@@ -0,0 +1,164 @@
+package com.sudocodes.monitoring.redis;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.connection.StringRedisConnection;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Per-server, per-section version numbers used for conditional and delta reads.
+ *
+ * Before a batch is written, the sections whose content actually changed since the
+ * previous batch get a new version in {@code prefix:meta:versions}, written in the same
+ * batch as the data. Versions come from a local clock, {@code max(previous + 1, now)},
+ * so stamping never reads from Redis and versions keep increasing across restarts.
+ * The version of a server is the highest version of its sections. The fingerprints used to
+ * tell whether a hash changed are dropped once the hash has not been written for
+ * {@code metrics.ttl} seconds, when its key has expired as well.
+ */
+@Component
+public class MetricsVersions {
+
+    public static final String KEY_TYPE = "meta";
+    public static final String RESOURCE_ID = "versions";
+
+    private final StringRedisTemplate stringRedisTemplate;
+
+    @Value("${metrics.ttl:1800}")
+    private long ttlSeconds;
+
+    private final AtomicLong clock = new AtomicLong();
+    private final Map<String, Fingerprint> fingerprints = new ConcurrentHashMap<>();
+
+    @Autowired
+    public MetricsVersions(StringRedisTemplate stringRedisTemplate) {
+        this.stringRedisTemplate = stringRedisTemplate;
+    }
+
+    public static String key(String keyPrefix) {
+        return keyPrefix + ":" + KEY_TYPE + ":" + RESOURCE_ID;
+    }
+
+    /**
+     * Add a version bump to the batch for every snapshot section it changes
+     */
+    public void stamp(MetricsBatch batch) {
+        List<String> changed = new ArrayList<>();
+        for (MetricsBatch.Entry entry : batch.getEntries()) {
+            String section = sectionOf(entry);
+            if (section == null || changed.contains(section)) {
+                continue;
+            }
+            // History always gains a point; hashes only count when their fields differ
+            if (entry.getType() == MetricsBatch.EntryType.HISTORY || fingerprintChanged(batch.keyOf(entry), entry)) {
+                changed.add(section);
+            }
+        }
+
+        if (changed.isEmpty()) {
+            return;
+        }
+
+        long now = System.currentTimeMillis();
+        long version = clock.updateAndGet(previous -> Math.max(previous + 1, now));
+        Map<String, Object> fields = new HashMap<>();
+        for (String section : changed) {
+            fields.put(section, version);
+        }
+        batch.putHash(KEY_TYPE, RESOURCE_ID, fields);
+    }
+
+    /**
+     * Current version of a server, or 0 if it has never been stamped
+     */
+    public long current(String serverId) {
+        return max(stringRedisTemplate.opsForHash().values(key(serverId)));
+    }
+
+    /**
+     * Current version of one section for each of the given servers, read in one pipeline
+     */
+    public List<Long> current(List<String> serverIds, String section) {
+        List<Object> replies = stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            StringRedisConnection stringConnection = (StringRedisConnection) connection;
+            for (String serverId : serverIds) {
+                stringConnection.hGet(key(serverId), section);
+            }
+            return null;
+        });
+
+        List<Long> versions = new ArrayList<>(replies.size());
+        for (Object reply : replies) {
+            versions.add(reply != null ? Long.parseLong(reply.toString()) : 0L);
+        }
+        return versions;
+    }
+
+    private static long max(List<Object> values) {
+        long max = 0;
+        for (Object value : values) {
+            max = Math.max(max, Long.parseLong(value.toString()));
+        }
+        return max;
+    }
+
+    private boolean fingerprintChanged(String key, MetricsBatch.Entry entry) {
+        int fingerprint = entry.getFields() != null ? entry.getFields().hashCode() : 0;
+        Fingerprint previous = fingerprints.put(key, new Fingerprint(fingerprint, System.currentTimeMillis()));
+        return previous == null || previous.hash != fingerprint;
+    }
+
+    /**
+     * Forget the fingerprints of hashes not written for {@code metrics.ttl} seconds
+     */
+    @Scheduled(fixedDelayString = "${metrics.versions.evict-interval:60000}")
+    public void evictExpired() {
+        if (ttlSeconds <= 0) {
+            return;
+        }
+        long cutoff = System.currentTimeMillis() - ttlSeconds * 1000;
+        fingerprints.values().removeIf(fingerprint -> fingerprint.writtenAt < cutoff);
+    }
+
+    /**
+     * Section of the per-server snapshot an entry belongs to, or null if it is not part of it
+     */
+    private static String sectionOf(MetricsBatch.Entry entry) {
+        String keyType = entry.getKeyType();
+        switch (entry.getType()) {
+            case HASH:
+                if ("server".equals(keyType)) {
+                    return "server_info";
+                }
+                if ("system".equals(keyType) || "docker".equals(keyType) || "storage".equals(keyType)
+                        || "network".equals(keyType) || "rtsp".equals(keyType)) {
+                    return keyType;
+                }
+                return null;
+            case HISTORY:
+                return "system".equals(keyType) ? "history" : null;
+            default:
+                return null;
+        }
+    }
+
+    private static class Fingerprint {
+        private final int hash;
+        private final long writtenAt;
+
+        private Fingerprint(int hash, long writtenAt) {
+            this.hash = hash;
+            this.writtenAt = writtenAt;
+        }
+    }
+}
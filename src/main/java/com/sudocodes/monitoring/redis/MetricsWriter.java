@@ -0,0 +1,483 @@
+package com.sudocodes.monitoring.redis;
+
+import com.sudocodes.monitoring.diagnostics.RedisBatchEvent;
+import com.sudocodes.monitoring.model.MetricsUpdate;
+import com.sudocodes.monitoring.model.ServerIdentity;
+import io.lettuce.core.RedisCommandTimeoutException;
+import io.lettuce.core.RedisConnectionException;
+import lombok.extern.slf4j.Slf4j;
+import org.reactivestreams.Publisher;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.dao.DataAccessResourceFailureException;
+import org.springframework.dao.QueryTimeoutException;
+import org.springframework.data.domain.Range;
+import org.springframework.data.redis.core.ReactiveRedisTemplate;
+import org.springframework.data.redis.core.ReactiveZSetOperations;
+import org.springframework.data.redis.serializer.GenericToStringSerializer;
+import org.springframework.data.redis.serializer.RedisElementReader;
+import org.springframework.data.redis.serializer.RedisElementWriter;
+import org.springframework.data.redis.serializer.RedisSerializationContext;
+import org.springframework.data.redis.serializer.RedisSerializer;
+import org.springframework.stereotype.Component;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.time.Duration;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
+
+/**
+ * Writes collector batches to Redis without blocking the caller.
+ *
+ * Batches go out over the reactive Lettuce connection, which pipelines the commands of
+ * concurrent batches on one socket. The number of commands in flight is bounded; batches
+ * beyond that wait in a bounded queue, and once the queue is full they are diverted to the
+ * local {@link MetricsSpool} instead of holding up the collector. Batches that fail because
+ * Redis is unreachable are spooled as well.
+ */
+@Component
+@Slf4j
+public class MetricsWriter {
+
+    private final ReactiveRedisTemplate<String, Object> reactiveRedisTemplate;
+    private final ServerIdentity serverIdentity;
+    private final MetricsSpool spool;
+    private final MetricsVersions metricsVersions;
+    private final MetricsRollups metricsRollups;
+    private final FleetAggregator fleetAggregator;
+    private final SelfMetrics selfMetrics;
+    private final ObjectProvider<MetricsUpdateListener> updateListenerProvider;
+    private List<MetricsUpdateListener> updateListeners;
+
+    @Value("${metrics.retention.max_records:3}")
+    private int maxRecords;
+
+    @Value("${metrics.writer.max-in-flight:512}")
+    private int maxInFlightCommands;
+
+    @Value("${metrics.writer.queue-capacity:256}")
+    private int queueCapacity;
+
+    @Value("${metrics.writer.timeout:2000}")
+    private long writeTimeoutMs;
+
+    @Value("${metrics.ttl:1800}")
+    private long ttlSeconds;
+
+    @Value("${metrics.heartbeat.ttl:60}")
+    private long heartbeatTtlSeconds;
+
+    private Semaphore inFlight;
+    private final Queue<PendingWrite> pendingWrites = new ArrayDeque<>();
+
+    private final AtomicLong writtenBatches = new AtomicLong();
+    private final AtomicLong failedBatches = new AtomicLong();
+    private final AtomicLong overflowedBatches = new AtomicLong();
+
+    @Autowired
+    public MetricsWriter(ReactiveRedisTemplate<String, Object> reactiveRedisTemplate, ServerIdentity serverIdentity,
+                         MetricsSpool spool, MetricsVersions metricsVersions, MetricsRollups metricsRollups,
+                         FleetAggregator fleetAggregator, SelfMetrics selfMetrics,
+                         ObjectProvider<MetricsUpdateListener> updateListenerProvider) {
+        this.reactiveRedisTemplate = reactiveRedisTemplate;
+        this.serverIdentity = serverIdentity;
+        this.spool = spool;
+        this.metricsVersions = metricsVersions;
+        this.metricsRollups = metricsRollups;
+        this.fleetAggregator = fleetAggregator;
+        this.selfMetrics = selfMetrics;
+        this.updateListenerProvider = updateListenerProvider;
+    }
+
+    @PostConstruct
+    public void init() {
+        inFlight = new Semaphore(maxInFlightCommands);
+        updateListeners = updateListenerProvider.orderedStream().collect(Collectors.toList());
+    }
+
+    /**
+     * Spool batches that are still waiting to be sent, and write the rollup buckets still open
+     */
+    @PreDestroy
+    public void shutdown() {
+        synchronized (pendingWrites) {
+            PendingWrite write;
+            while ((write = pendingWrites.poll()) != null) {
+                write.future.complete(spoolOrDrop(write.batch));
+            }
+        }
+
+        List<MetricsBatch> closed = metricsRollups.closeAll();
+        if (closed.isEmpty()) {
+            return;
+        }
+        int buckets = closed.stream().mapToInt(batch -> batch.getEntries().size()).sum();
+        // Behind anything already spooled, like any other batch
+        if (!spool.hasPending()) {
+            try {
+                writeBlocking(closed);
+                log.info("Wrote {} rollup buckets left open at shutdown", buckets);
+                return;
+            } catch (RuntimeException e) {
+                log.warn("Could not write {} rollup buckets left open at shutdown: {}", buckets, e.getMessage());
+            }
+        }
+        closed.forEach(this::spoolOrDrop);
+        log.info("Spooled {} rollup buckets left open at shutdown", buckets);
+    }
+
+    /**
+     * Create an empty batch for the local server
+     */
+    public MetricsBatch newBatch() {
+        return new MetricsBatch(serverIdentity.getMetricsKeyPrefix());
+    }
+
+    /**
+     * Hand a batch off for writing and return immediately.
+     * While older batches are still waiting in the spool, new batches are appended behind
+     * them so that replay never overwrites fresher values.
+     * @return completes with the outcome once the batch is written, spooled or dropped, or
+     *         exceptionally if the write failed (the batch is spooled first if Redis was unreachable)
+     */
+    public CompletableFuture<WriteOutcome> write(MetricsBatch batch) {
+        if (batch.isEmpty()) {
+            return CompletableFuture.completedFuture(WriteOutcome.WRITTEN);
+        }
+
+        // Closed rollup buckets, fleet values and version bumps travel with the data, including through the spool
+        metricsRollups.fold(batch);
+        fleetAggregator.contribute(batch);
+        metricsVersions.stamp(batch);
+        publish(batch);
+
+        if (spool.hasPending()) {
+            return CompletableFuture.completedFuture(spoolOrDrop(batch));
+        }
+
+        PendingWrite write = new PendingWrite(batch, Math.min(commandCount(batch), maxInFlightCommands));
+        synchronized (pendingWrites) {
+            if (pendingWrites.size() >= queueCapacity) {
+                long overflowed = overflowedBatches.incrementAndGet();
+                if (overflowed == 1 || overflowed % 100 == 0) {
+                    log.warn("Redis write queue is full ({} batches), {} batches diverted to the spool so far",
+                            queueCapacity, overflowed);
+                }
+                return CompletableFuture.completedFuture(spoolOrDrop(batch));
+            }
+            pendingWrites.add(write);
+        }
+
+        dispatchPending();
+        return write.future;
+    }
+
+    /**
+     * Hand the values of a batch to the update listeners
+     */
+    private void publish(MetricsBatch batch) {
+        if (updateListeners.isEmpty()) {
+            return;
+        }
+
+        for (MetricsBatch.Entry entry : batch.getEntries()) {
+            MetricsUpdate update;
+            if (entry.getType() == MetricsBatch.EntryType.HASH && !MetricsVersions.KEY_TYPE.equals(entry.getKeyType())) {
+                update = new MetricsUpdate(batch.getKeyPrefix(), entry.getKeyType(), entry.getResourceId(),
+                        entry.getFields(), batch.getCreatedAt());
+            } else if (entry.getType() == MetricsBatch.EntryType.HISTORY) {
+                Map<String, Object> sample = new HashMap<>();
+                sample.put("value", entry.getValue());
+                sample.put("timestamp", entry.getTimestamp());
+                update = new MetricsUpdate(batch.getKeyPrefix(), entry.getKeyType(), "history:" + entry.getResourceId(),
+                        sample, entry.getTimestamp());
+            } else {
+                continue;
+            }
+
+            for (MetricsUpdateListener listener : updateListeners) {
+                try {
+                    listener.onUpdate(update);
+                } catch (Exception e) {
+                    log.error("Error in metrics update listener {}", listener.getClass().getSimpleName(), e);
+                }
+            }
+        }
+    }
+
+    /**
+     * Write batches and wait until Redis has acknowledged all of them.
+     * Used for replaying the spool, which does its own rate limiting.
+     */
+    public void writeBlocking(List<MetricsBatch> batches) {
+        Flux.fromIterable(batches)
+                .flatMap(this::commands)
+                .then()
+                .block(Duration.ofMillis(writeTimeoutMs * Math.max(1, batches.size())));
+    }
+
+    /**
+     * Start queued writes while the in-flight budget allows
+     */
+    private void dispatchPending() {
+        while (true) {
+            PendingWrite next;
+            synchronized (pendingWrites) {
+                next = pendingWrites.peek();
+                if (next == null || !inFlight.tryAcquire(next.permits)) {
+                    return;
+                }
+                pendingWrites.poll();
+            }
+
+            next.startedNanos = System.nanoTime();
+            RedisBatchEvent event = new RedisBatchEvent();
+            if (event.isEnabled()) {
+                event.begin();
+                next.event = event;
+            }
+            commands(next.batch)
+                    .timeout(Duration.ofMillis(writeTimeoutMs))
+                    .subscribe(null, error -> complete(next, error), () -> complete(next, null));
+        }
+    }
+
+    private void complete(PendingWrite write, Throwable error) {
+        inFlight.release(write.permits);
+        commitEvent(write, error == null);
+
+        if (error == null) {
+            writtenBatches.incrementAndGet();
+            if (selfMetrics.isEnabled()) {
+                selfMetrics.recordBytesWritten(write.batch.estimatedBytes());
+            }
+            metricsRollups.observe(write.batch.getKeyPrefix(), "redis", "batch_latency",
+                    (System.nanoTime() - write.startedNanos) / 1_000_000.0, System.currentTimeMillis());
+            write.future.complete(WriteOutcome.WRITTEN);
+        } else {
+            failedBatches.incrementAndGet();
+            if (isRedisUnavailable(error)) {
+                spoolOrDrop(write.batch);
+            }
+            write.future.completeExceptionally(error);
+        }
+
+        dispatchPending();
+    }
+
+    private void commitEvent(PendingWrite write, boolean succeeded) {
+        RedisBatchEvent event = write.event;
+        if (event == null) {
+            return;
+        }
+        event.end();
+        if (event.shouldCommit()) {
+            event.serverId = write.batch.getKeyPrefix();
+            event.keys = write.batch.getEntries().size();
+            event.commands = write.permits;
+            event.bytes = write.batch.estimatedBytes();
+            event.succeeded = succeeded;
+            event.commit();
+        }
+    }
+
+    private WriteOutcome spoolOrDrop(MetricsBatch batch) {
+        return spool.append(batch) ? WriteOutcome.SPOOLED : WriteOutcome.DROPPED;
+    }
+
+    /**
+     * All commands of a batch, subscribed together so Lettuce pipelines them. Every key
+     * written gets its TTL in the same pipeline, so data of servers and resources that
+     * stop reporting expires on its own.
+     */
+    private Mono<Void> commands(MetricsBatch batch) {
+        // Register the server as last seen at collection time, and keep its heartbeat alive
+        Mono<Void> seen = timed("ZADD", reactiveRedisTemplate.opsForZSet(RedisSerializationContext.string())
+                .add(ResourceIndex.SERVERS_KEY, batch.getKeyPrefix(), (double) batch.getCreatedAt()));
+        Mono<Void> heartbeat = timed("SET", reactiveRedisTemplate.opsForValue(RedisSerializationContext.string())
+                .set(ResourceIndex.heartbeatKey(batch.getKeyPrefix()), String.valueOf(batch.getCreatedAt()),
+                        Duration.ofSeconds(heartbeatTtlSeconds)));
+        return Mono.when(Flux.fromIterable(batch.getEntries()).flatMap(entry -> command(batch, entry)),
+                seen, heartbeat);
+    }
+
+    private Publisher<?> command(MetricsBatch batch, MetricsBatch.Entry entry) {
+        String key = batch.keyOf(entry);
+        switch (entry.getType()) {
+            case HASH:
+                if (entry.getFields() == null || entry.getFields().isEmpty()) {
+                    return Mono.empty();
+                }
+                return Mono.when(timed("HSET", reactiveRedisTemplate.opsForHash().putAll(key, entry.getFields())),
+                        expire(key, ttlSeconds));
+            case HISTORY:
+                return Mono.when(
+                        timed("ZADD", reactiveRedisTemplate.opsForZSet().add(key, entry.getValue(),
+                                (double) entry.getTimestamp())),
+                        // Keep only the most recent maxRecords samples
+                        timed("ZREMRANGEBYRANK", reactiveRedisTemplate.opsForZSet().removeRange(key,
+                                Range.closed(0L, (long) -(maxRecords + 1)))),
+                        expire(key, ttlSeconds));
+            case ROLLUP:
+            case SKETCH:
+                return rollupCommands(key, entry);
+            case FLEET:
+                return timed("EVALSHA", reactiveRedisTemplate.execute(FleetAggregator.UPDATE_SCRIPT,
+                        Arrays.asList(key, FleetAggregator.SUMS_KEY),
+                        Arrays.asList(entry.getResourceId(), String.valueOf(entry.getValue()), entry.getKeyType()),
+                        RedisElementWriter.from(RedisSerializer.string()),
+                        RedisElementReader.from(new GenericToStringSerializer<>(Long.class))));
+            case INDEX:
+                // Index members are plain strings so they can be used to build keys directly
+                return Mono.when(timed("SADD", reactiveRedisTemplate.opsForSet(RedisSerializationContext.string())
+                        .add(key, entry.getResourceId())), expire(key, ttlSeconds));
+            default:
+                return Mono.empty();
+        }
+    }
+
+    /**
+     * Add the bucket, trim to the retention, and let the whole series expire once it is older
+     * than the retention. A replayed bucket is the same member and adds nothing; the part of a
+     * bucket written before a restart is a different one and is kept next to the rest.
+     */
+    private Publisher<?> rollupCommands(String key, MetricsBatch.Entry entry) {
+        String resolution = entry.getResourceId().substring(0, entry.getResourceId().indexOf(':'));
+        long retention = metricsRollups.getRetention(MetricsRollups.Resolution.fromLabel(resolution));
+        double start = entry.getTimestamp();
+        ReactiveZSetOperations<String, String> zSet = reactiveRedisTemplate.opsForZSet(RedisSerializationContext.string());
+        return timed("ZADD", zSet.add(key, MetricsRollups.member(entry), start))
+                .then(timed("ZREMRANGEBYSCORE",
+                        zSet.removeRangeByScore(key, Range.leftUnbounded(Range.Bound.exclusive(start - retention)))))
+                .then(expire(key, Math.max(ttlSeconds, retention / 1000)));
+    }
+
+    /**
+     * Set a key's TTL, unless TTLs are turned off with a non-positive value
+     */
+    private Mono<Void> expire(String key, long seconds) {
+        if (seconds <= 0) {
+            return Mono.empty();
+        }
+        return timed("EXPIRE", reactiveRedisTemplate.expire(key, Duration.ofSeconds(seconds)));
+    }
+
+    /**
+     * Record the latency or failure of a command in {@link SelfMetrics}, measured from subscription to reply
+     */
+    private Mono<Void> timed(String command, Publisher<?> publisher) {
+        if (!selfMetrics.isEnabled()) {
+            return Flux.from(publisher).then();
+        }
+        return Mono.defer(() -> {
+            long started = System.nanoTime();
+            return Flux.from(publisher)
+                    .doOnError(error -> selfMetrics.recordCommandError(command))
+                    .doOnComplete(() -> selfMetrics.recordCommand(command, System.nanoTime() - started))
+                    .then();
+        });
+    }
+
+
+    private int commandCount(MetricsBatch batch) {
+        // The servers index and the heartbeat, plus one to three per entry including its EXPIRE
+        int count = 2;
+        for (MetricsBatch.Entry entry : batch.getEntries()) {
+            if (entry.getType() == MetricsBatch.EntryType.HISTORY) {
+                count += 3;
+            } else if (entry.getType() == MetricsBatch.EntryType.ROLLUP
+                    || entry.getType() == MetricsBatch.EntryType.SKETCH) {
+                count += 3;
+            } else if (entry.getType() == MetricsBatch.EntryType.FLEET) {
+                count++;
+            } else {
+                count += 2;
+            }
+        }
+        return count;
+    }
+
+    public SelfMetrics getSelfMetrics() {
+        return selfMetrics;
+    }
+
+    public int getQueuedBatches() {
+        synchronized (pendingWrites) {
+            return pendingWrites.size();
+        }
+    }
+
+    public int getInFlightCommands() {
+        return maxInFlightCommands - inFlight.availablePermits();
+    }
+
+    public long getWrittenBatches() {
+        return writtenBatches.get();
+    }
+
+    public long getFailedBatches() {
+        return failedBatches.get();
+    }
+
+    public long getOverflowedBatches() {
+        return overflowedBatches.get();
+    }
+
+    /**
+     * Check whether an exception means Redis could not be reached, as opposed to a command error
+     */
+    public static boolean isRedisUnavailable(Throwable e) {
+        for (Throwable cause = e; cause != null; cause = cause.getCause()) {
+            if (cause instanceof DataAccessResourceFailureException || cause instanceof QueryTimeoutException) {
+                return true;
+            }
+            if (cause instanceof RedisConnectionException || cause instanceof RedisCommandTimeoutException
+                    || cause instanceof TimeoutException) {
+                return true;
+            }
+            String message = cause.getMessage();
+            if (message != null && message.contains("Currently not connected")) {
+                return true;
+            }
+            if (cause.getCause() == cause) {
+                break;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * What happened to a batch handed to {@link #write(MetricsBatch)}
+     */
+    public enum WriteOutcome {
+        WRITTEN,
+        SPOOLED,
+        DROPPED
+    }
+
+    private static class PendingWrite {
+        private final MetricsBatch batch;
+        private final int permits;
+        private final CompletableFuture<WriteOutcome> future = new CompletableFuture<>();
+        private long startedNanos;
+        private RedisBatchEvent event;
+
+        private PendingWrite(MetricsBatch batch, int permits) {
+            this.batch = batch;
+            this.permits = permits;
+        }
+    }
+}
@@ -0,0 +1,176 @@
+package com.sudocodes.monitoring.redis;
+
+import io.lettuce.core.ClientOptions;
+import io.lettuce.core.RedisClient;
+import io.lettuce.core.RedisURI;
+import io.lettuce.core.SocketOptions;
+import io.lettuce.core.api.StatefulRedisConnection;
+import io.lettuce.core.resource.ClientResources;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.data.redis.connection.lettuce.LettuceConnectionFactory;
+
+import java.time.Duration;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * One Redis server the application can route to, with its connection factory and
+ * the health state maintained by background probes.
+ */
+@Slf4j
+public class RedisEndpoint {
+
+    private final String name;
+    private final String host;
+    private final int port;
+    private final LettuceConnectionFactory connectionFactory;
+    private final RedisClient probeClient;
+    private final long probeTimeoutMs;
+
+    private StatefulRedisConnection<String, String> probeConnection;
+
+    private volatile boolean healthy;
+    private volatile long lastLatencyMicros = -1;
+    private volatile double averageLatencyMicros = -1;
+    private volatile long lastCheckedAt;
+    private volatile String lastError;
+    private int consecutiveFailures;
+    private int consecutiveSuccesses;
+
+    private final AtomicLong probeFailures = new AtomicLong();
+    private final AtomicLong activations = new AtomicLong();
+
+    public RedisEndpoint(String name, String host, int port, String password,
+                         LettuceConnectionFactory connectionFactory,
+                         ClientResources probeResources, long probeTimeoutMs) {
+        this.name = name;
+        this.host = host;
+        this.port = port;
+        this.connectionFactory = connectionFactory;
+        this.probeTimeoutMs = probeTimeoutMs;
+
+        RedisURI.Builder uri = RedisURI.builder()
+                .withHost(host)
+                .withPort(port)
+                .withTimeout(Duration.ofMillis(probeTimeoutMs));
+        if (password != null && !password.isEmpty()) {
+            uri.withPassword(password.toCharArray());
+        }
+
+        this.probeClient = RedisClient.create(probeResources, uri.build());
+        this.probeClient.setOptions(ClientOptions.builder()
+                .autoReconnect(false)
+                .socketOptions(SocketOptions.builder().connectTimeout(Duration.ofMillis(probeTimeoutMs)).build())
+                .disconnectedBehavior(ClientOptions.DisconnectedBehavior.REJECT_COMMANDS)
+                .build());
+    }
+
+    /**
+     * Send a PING over the dedicated probe connection
+     * @return true if Redis answered within the probe timeout
+     */
+    boolean probe() {
+        long start = System.nanoTime();
+        try {
+            if (probeConnection == null || !probeConnection.isOpen()) {
+                probeConnection = probeClient.connect();
+            }
+            probeConnection.async().ping().get(probeTimeoutMs, TimeUnit.MILLISECONDS);
+
+            long latency = (System.nanoTime() - start) / 1000;
+            lastLatencyMicros = latency;
+            averageLatencyMicros = averageLatencyMicros < 0 ? latency : averageLatencyMicros * 0.8 + latency * 0.2;
+            lastError = null;
+            return true;
+        } catch (Exception e) {
+            probeFailures.incrementAndGet();
+            lastError = e.getMessage() != null ? e.getMessage() : e.getClass().getSimpleName();
+            closeProbeConnection();
+            return false;
+        } finally {
+            lastCheckedAt = System.currentTimeMillis();
+        }
+    }
+
+    /**
+     * Record a probe result
+     * @return true if the endpoint's healthy state changed
+     */
+    boolean update(boolean success, int failureThreshold, int recoveryThreshold) {
+        if (success) {
+            consecutiveFailures = 0;
+            consecutiveSuccesses++;
+            if (!healthy && consecutiveSuccesses >= recoveryThreshold) {
+                healthy = true;
+                return true;
+            }
+        } else {
+            consecutiveSuccesses = 0;
+            consecutiveFailures++;
+            if (healthy && consecutiveFailures >= failureThreshold) {
+                healthy = false;
+                return true;
+            }
+        }
+        return false;
+    }
+
+    void markHealthy(boolean healthy) {
+        this.healthy = healthy;
+    }
+
+    void activated() {
+        activations.incrementAndGet();
+    }
+
+    void close() {
+        closeProbeConnection();
+        probeClient.shutdown();
+        connectionFactory.destroy();
+    }
+
+    private void closeProbeConnection() {
+        if (probeConnection != null) {
+            try {
+                probeConnection.close();
+            } catch (Exception e) {
+                log.debug("Error closing probe connection to {}: {}", this, e.getMessage());
+            }
+            probeConnection = null;
+        }
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public LettuceConnectionFactory getConnectionFactory() {
+        return connectionFactory;
+    }
+
+    public boolean isHealthy() {
+        return healthy;
+    }
+
+    public Map<String, Object> getStatus() {
+        Map<String, Object> status = new LinkedHashMap<>();
+        status.put("name", name);
+        status.put("host", host);
+        status.put("port", port);
+        status.put("healthy", healthy);
+        status.put("last_latency_ms", lastLatencyMicros < 0 ? null : lastLatencyMicros / 1000.0);
+        status.put("avg_latency_ms", averageLatencyMicros < 0 ? null : Math.round(averageLatencyMicros) / 1000.0);
+        status.put("probe_failures", probeFailures.get());
+        status.put("activations", activations.get());
+        status.put("last_checked", lastCheckedAt);
+        status.put("last_error", lastError);
+        return status;
+    }
+
+    @Override
+    public String toString() {
+        return host + ":" + port;
+    }
+}
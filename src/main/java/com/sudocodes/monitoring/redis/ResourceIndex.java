@@ -0,0 +1,266 @@
+package com.sudocodes.monitoring.redis;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.redis.connection.RedisConnection;
+import org.springframework.data.redis.connection.StringRedisConnection;
+import org.springframework.data.redis.core.Cursor;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.ScanOptions;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.ZSetOperations;
+import org.springframework.data.redis.core.script.RedisScript;
+import org.springframework.stereotype.Component;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Read side of the resource indexes maintained by the collectors.
+ *
+ * Every batch registers its server in the global {@code servers} sorted set, scored by
+ * the time it was collected, and adds the resources it wrote to {@code prefix:idx:keyType}
+ * sets. Readers use these sets instead of KEYS. If an index is missing, e.g. for data
+ * written before the indexes existed, it is rebuilt once with an incremental SCAN.
+ */
+@Component
+@Slf4j
+public class ResourceIndex {
+
+    public static final String SERVERS_KEY = "servers";
+
+    private static final RedisScript<Long> PRUNE_SCRIPT =
+            RedisScript.of(new ClassPathResource("scripts/index_prune.lua"), Long.class);
+
+    /** Hash key prefix of the resources listed in each index, by key type */
+    private static final Map<String, String> RESOURCE_PREFIXES = new HashMap<>();
+
+    static {
+        RESOURCE_PREFIXES.put("docker", "container:");
+        RESOURCE_PREFIXES.put("storage", "disk:");
+        RESOURCE_PREFIXES.put("network", "interface:");
+        RESOURCE_PREFIXES.put("rtsp", "stream:");
+    }
+
+    private final StringRedisTemplate stringRedisTemplate;
+
+    @Value("${metrics.index.scan-count:500}")
+    private int scanCount;
+
+    @Value("${metrics.index.rebuild-interval:60000}")
+    private long rebuildIntervalMs;
+
+    private final Map<String, Long> lastRebuild = new ConcurrentHashMap<>();
+
+    @Autowired
+    public ResourceIndex(StringRedisTemplate stringRedisTemplate) {
+        this.stringRedisTemplate = stringRedisTemplate;
+    }
+
+    /**
+     * Key that exists, with a short TTL, while a server keeps reporting
+     */
+    public static String heartbeatKey(String keyPrefix) {
+        return keyPrefix + ":heartbeat";
+    }
+
+    /**
+     * Key of the index set for one resource type of one server
+     */
+    public static String indexKey(String keyPrefix, String keyType) {
+        return keyPrefix + ":idx:" + keyType;
+    }
+
+    /**
+     * All servers that have reported metrics, most recently seen first
+     * @return server key prefix mapped to the last time it was seen (epoch ms)
+     */
+    public Map<String, Double> getServers() {
+        Set<ZSetOperations.TypedTuple<String>> servers =
+                stringRedisTemplate.opsForZSet().reverseRangeWithScores(SERVERS_KEY, 0, -1);
+
+        if ((servers == null || servers.isEmpty()) && shouldRebuild(SERVERS_KEY)) {
+            if (rebuildServers() > 0) {
+                lastRebuild.remove(SERVERS_KEY);
+            }
+            servers = stringRedisTemplate.opsForZSet().reverseRangeWithScores(SERVERS_KEY, 0, -1);
+        }
+
+        Map<String, Double> result = new LinkedHashMap<>();
+        if (servers != null) {
+            for (ZSetOperations.TypedTuple<String> server : servers) {
+                result.put(server.getValue(), server.getScore());
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Resource ids of one type for a server, e.g. the container ids under {@code serverId:docker:container:*}
+     */
+    public Set<String> getResources(String serverId, String keyType) {
+        Set<String> members = stringRedisTemplate.opsForSet().members(indexKey(serverId, keyType));
+        return members != null && !members.isEmpty() ? members : rebuildIfDue(serverId, keyType);
+    }
+
+    /**
+     * Rebuild an index that was read empty, at most once per {@code metrics.index.rebuild-interval}
+     * while it stays empty, for readers that list the indexes themselves
+     * @return the rebuilt members, empty if there are none or no rebuild was due
+     */
+    public Set<String> rebuildIfDue(String serverId, String keyType) {
+        String key = indexKey(serverId, keyType);
+        if (!shouldRebuild(key)) {
+            return Collections.emptySet();
+        }
+        Set<String> members = rebuild(serverId, keyType);
+        if (!members.isEmpty()) {
+            lastRebuild.remove(key);
+        }
+        return members;
+    }
+
+    /**
+     * Rebuild the index of one resource type from the keys actually present
+     */
+    public Set<String> rebuild(String serverId, String keyType) {
+        String resourcePrefix = RESOURCE_PREFIXES.get(keyType);
+        if (resourcePrefix == null) {
+            return Collections.emptySet();
+        }
+
+        String keyPrefix = serverId + ":" + keyType + ":" + resourcePrefix;
+        Set<String> members = new LinkedHashSet<>();
+        for (String key : scan(keyPrefix + "*")) {
+            members.add(key.substring(keyPrefix.length()));
+        }
+
+        if (!members.isEmpty()) {
+            stringRedisTemplate.opsForSet().add(indexKey(serverId, keyType), members.toArray(new String[0]));
+            log.info("Rebuilt {} index for server {} with {} entries", keyType, serverId, members.size());
+        }
+        return members;
+    }
+
+    /**
+     * Drop the entries of a server's indexes whose resource hash has expired. The indexes are
+     * listed and their hashes checked in one pipelined round trip each; only an index with
+     * missing hashes goes through the prune script, which checks them again before removing.
+     * @return the number of entries removed
+     */
+    public long pruneExpired(String serverId) {
+        List<String> keyTypes = new ArrayList<>(RESOURCE_PREFIXES.keySet());
+        List<Object> indexes = stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            StringRedisConnection stringConnection = (StringRedisConnection) connection;
+            keyTypes.forEach(keyType -> stringConnection.sMembers(indexKey(serverId, keyType)));
+            return null;
+        });
+
+        Map<String, List<String>> members = new LinkedHashMap<>();
+        List<String> hashKeys = new ArrayList<>();
+        for (int i = 0; i < keyTypes.size(); i++) {
+            String keyType = keyTypes.get(i);
+            List<String> ids = new ArrayList<>();
+            if (indexes.get(i) instanceof Set) {
+                for (Object id : (Set<?>) indexes.get(i)) {
+                    ids.add(id.toString());
+                    hashKeys.add(resourceKey(serverId, keyType, id.toString()));
+                }
+            }
+            members.put(keyType, ids);
+        }
+        if (hashKeys.isEmpty()) {
+            return 0;
+        }
+
+        List<Object> exists = stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            StringRedisConnection stringConnection = (StringRedisConnection) connection;
+            hashKeys.forEach(stringConnection::exists);
+            return null;
+        });
+
+        long removed = 0;
+        int next = 0;
+        for (Map.Entry<String, List<String>> index : members.entrySet()) {
+            List<String> keys = new ArrayList<>();
+            keys.add(indexKey(serverId, index.getKey()));
+            List<String> dead = new ArrayList<>();
+            for (String id : index.getValue()) {
+                if (!Boolean.TRUE.equals(exists.get(next++))) {
+                    keys.add(resourceKey(serverId, index.getKey(), id));
+                    dead.add(id);
+                }
+            }
+            if (!dead.isEmpty()) {
+                Long count = stringRedisTemplate.execute(PRUNE_SCRIPT, keys, dead.toArray());
+                removed += count != null ? count : 0;
+            }
+        }
+        return removed;
+    }
+
+    private static String resourceKey(String serverId, String keyType, String id) {
+        return serverId + ":" + keyType + ":" + RESOURCE_PREFIXES.get(keyType) + id;
+    }
+
+    /**
+     * Rebuild the server set from the server info hashes, scored with the time of the rebuild
+     * @return the number of servers found
+     */
+    public int rebuildServers() {
+        String suffix = ":server:info";
+        long now = System.currentTimeMillis();
+        int count = 0;
+        for (String key : scan("*" + suffix)) {
+            String serverId = key.substring(0, key.length() - suffix.length());
+            stringRedisTemplate.opsForZSet().addIfAbsent(SERVERS_KEY, serverId, now);
+            count++;
+        }
+        if (count > 0) {
+            log.info("Rebuilt server index with {} servers", count);
+        }
+        return count;
+    }
+
+    /**
+     * Find keys matching a pattern with an incremental SCAN, which does not block Redis like KEYS
+     */
+    public Set<String> scan(String pattern) {
+        Set<String> keys = stringRedisTemplate.execute((RedisCallback<Set<String>>) connection -> scan(connection, pattern));
+        return keys != null ? keys : Collections.emptySet();
+    }
+
+    private Set<String> scan(RedisConnection connection, String pattern) {
+        Set<String> keys = new LinkedHashSet<>();
+        ScanOptions options = ScanOptions.scanOptions().match(pattern).count(scanCount).build();
+        try (Cursor<byte[]> cursor = connection.scan(options)) {
+            while (cursor.hasNext()) {
+                keys.add(new String(cursor.next(), StandardCharsets.UTF_8));
+            }
+        }
+        return keys;
+    }
+
+    /**
+     * Limit SCAN rebuilds of an index that is legitimately empty; successful rebuilds clear the entry
+     */
+    private boolean shouldRebuild(String key) {
+        long now = System.currentTimeMillis();
+        Long last = lastRebuild.get(key);
+        if (last != null && now - last < rebuildIntervalMs) {
+            return false;
+        }
+        lastRebuild.put(key, now);
+        return true;
+    }
+}
@@ -0,0 +1,238 @@
+package com.sudocodes.monitoring.redis;
+
+import io.lettuce.core.resource.ClientResources;
+import io.lettuce.core.resource.DefaultClientResources;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.InitializingBean;
+import org.springframework.dao.DataAccessException;
+import org.springframework.dao.InvalidDataAccessApiUsageException;
+import org.springframework.data.redis.RedisConnectionFailureException;
+import org.springframework.data.redis.connection.ReactiveRedisClusterConnection;
+import org.springframework.data.redis.connection.ReactiveRedisConnection;
+import org.springframework.data.redis.connection.ReactiveRedisConnectionFactory;
+import org.springframework.data.redis.connection.RedisClusterConnection;
+import org.springframework.data.redis.connection.RedisConnection;
+import org.springframework.data.redis.connection.RedisConnectionFactory;
+import org.springframework.data.redis.connection.RedisSentinelConnection;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+/**
+ * Connection factory that routes every connection to the currently active Redis endpoint.
+ *
+ * A background thread pings each endpoint on a short interval over a dedicated probe
+ * connection. When the active endpoint fails enough consecutive probes the factory
+ * switches to the first healthy endpoint and drops the old shared connection so that
+ * in-flight commands fail at once instead of waiting for the command timeout. The
+ * primary endpoint is preferred again as soon as it recovers. While no endpoint is
+ * healthy, connections are refused immediately. Both the blocking and the reactive
+ * connections are routed the same way. Subscriptions stay on the connection they were made
+ * on, so their owners register with {@link #addSwitchListener(Consumer)} to subscribe again.
+ */
+@Slf4j
+public class RoutingRedisConnectionFactory implements RedisConnectionFactory, ReactiveRedisConnectionFactory,
+        InitializingBean, DisposableBean {
+
+    private final List<RedisEndpoint> endpoints;
+    private final ClientResources probeResources;
+    private final long checkIntervalMs;
+    private final int failureThreshold;
+    private final int recoveryThreshold;
+
+    private final AtomicLong failovers = new AtomicLong();
+    private final List<Consumer<RedisEndpoint>> switchListeners = new CopyOnWriteArrayList<>();
+    private ScheduledExecutorService healthChecker;
+    private volatile RedisEndpoint active;
+
+    public RoutingRedisConnectionFactory(List<RedisEndpoint> endpoints, ClientResources probeResources,
+                                         long checkIntervalMs, int failureThreshold, int recoveryThreshold) {
+        if (endpoints.isEmpty()) {
+            throw new IllegalArgumentException("At least one Redis endpoint is required");
+        }
+        this.endpoints = new ArrayList<>(endpoints);
+        this.probeResources = probeResources;
+        this.checkIntervalMs = checkIntervalMs;
+        this.failureThreshold = failureThreshold;
+        this.recoveryThreshold = recoveryThreshold;
+        this.active = this.endpoints.get(0);
+        this.active.activated();
+    }
+
+    /**
+     * Shared client resources for the probe connections of all endpoints
+     */
+    public static ClientResources createProbeResources() {
+        return DefaultClientResources.builder().ioThreadPoolSize(1).computationThreadPoolSize(1).build();
+    }
+
+    @Override
+    public void afterPropertiesSet() {
+        for (RedisEndpoint endpoint : endpoints) {
+            endpoint.getConnectionFactory().afterPropertiesSet();
+            boolean reachable = endpoint.probe();
+            endpoint.markHealthy(reachable);
+            log.info("Redis endpoint {} ({}) is {}", endpoint.getName(), endpoint, reachable ? "CONNECTED" : "UNAVAILABLE");
+        }
+        selectActive();
+
+        healthChecker = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "redis-health");
+            thread.setDaemon(true);
+            return thread;
+        });
+        healthChecker.scheduleWithFixedDelay(this::checkHealth, checkIntervalMs, checkIntervalMs, TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public void destroy() {
+        if (healthChecker != null) {
+            healthChecker.shutdownNow();
+        }
+        for (RedisEndpoint endpoint : endpoints) {
+            endpoint.close();
+        }
+        probeResources.shutdown();
+    }
+
+    private void checkHealth() {
+        try {
+            boolean changed = false;
+            for (RedisEndpoint endpoint : endpoints) {
+                if (endpoint.update(endpoint.probe(), failureThreshold, recoveryThreshold)) {
+                    changed = true;
+                    if (endpoint.isHealthy()) {
+                        log.info("Redis endpoint {} ({}) is healthy again", endpoint.getName(), endpoint);
+                    } else {
+                        log.warn("Redis endpoint {} ({}) is unhealthy", endpoint.getName(), endpoint);
+                    }
+                }
+            }
+            if (changed) {
+                selectActive();
+            }
+        } catch (Exception e) {
+            log.error("Error checking Redis endpoint health", e);
+        }
+    }
+
+    /**
+     * Route to the first healthy endpoint in priority order, so the primary wins as soon as it recovers
+     */
+    private synchronized void selectActive() {
+        RedisEndpoint target = null;
+        for (RedisEndpoint endpoint : endpoints) {
+            if (endpoint.isHealthy()) {
+                target = endpoint;
+                break;
+            }
+        }
+
+        if (target == null) {
+            log.warn("No healthy Redis endpoint, Redis operations will fail fast until one recovers");
+            return;
+        }
+
+        RedisEndpoint previous = active;
+        if (target != previous) {
+            active = target;
+            target.activated();
+            failovers.incrementAndGet();
+            log.warn("Switched Redis from {} ({}) to {} ({})", previous.getName(), previous, target.getName(), target);
+            // Abort commands still waiting on the old endpoint
+            previous.getConnectionFactory().resetConnection();
+            for (Consumer<RedisEndpoint> listener : switchListeners) {
+                try {
+                    listener.accept(target);
+                } catch (Exception e) {
+                    log.error("Error in Redis endpoint switch listener", e);
+                }
+            }
+        }
+    }
+
+    /**
+     * Be told, on the health check thread, after connections have moved to another endpoint
+     */
+    public void addSwitchListener(Consumer<RedisEndpoint> listener) {
+        switchListeners.add(listener);
+    }
+
+    private RedisEndpoint requireHealthy() {
+        RedisEndpoint endpoint = active;
+        if (!endpoint.isHealthy()) {
+            throw new RedisConnectionFailureException("No healthy Redis endpoint available (last active: " + endpoint + ")");
+        }
+        return endpoint;
+    }
+
+    public RedisEndpoint getActiveEndpoint() {
+        return active;
+    }
+
+    public long getFailoverCount() {
+        return failovers.get();
+    }
+
+    public Map<String, Object> getStatus() {
+        Map<String, Object> status = new LinkedHashMap<>();
+        status.put("active", active.getName());
+        status.put("healthy", active.isHealthy());
+        status.put("failovers", failovers.get());
+        List<Map<String, Object>> endpointStatus = new ArrayList<>();
+        for (RedisEndpoint endpoint : endpoints) {
+            endpointStatus.add(endpoint.getStatus());
+        }
+        status.put("endpoints", endpointStatus);
+        return status;
+    }
+
+    public List<RedisEndpoint> getEndpoints() {
+        return Collections.unmodifiableList(endpoints);
+    }
+
+    @Override
+    public RedisConnection getConnection() {
+        return requireHealthy().getConnectionFactory().getConnection();
+    }
+
+    @Override
+    public ReactiveRedisConnection getReactiveConnection() {
+        return requireHealthy().getConnectionFactory().getReactiveConnection();
+    }
+
+    @Override
+    public RedisClusterConnection getClusterConnection() {
+        throw new InvalidDataAccessApiUsageException("Redis Cluster is not supported by the routing connection factory");
+    }
+
+    @Override
+    public ReactiveRedisClusterConnection getReactiveClusterConnection() {
+        throw new InvalidDataAccessApiUsageException("Redis Cluster is not supported by the routing connection factory");
+    }
+
+    @Override
+    public boolean getConvertPipelineAndTxResults() {
+        return active.getConnectionFactory().getConvertPipelineAndTxResults();
+    }
+
+    @Override
+    public RedisSentinelConnection getSentinelConnection() {
+        throw new InvalidDataAccessApiUsageException("Redis Sentinel is not supported by the routing connection factory");
+    }
+
+    @Override
+    public DataAccessException translateExceptionIfPossible(RuntimeException ex) {
+        return active.getConnectionFactory().translateExceptionIfPossible(ex);
+    }
+}
@@ -0,0 +1,245 @@
+package com.sudocodes.monitoring.redis;
+
+import com.sudocodes.monitoring.model.LatencyHistogram;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryUsage;
+import java.lang.management.OperatingSystemMXBean;
+import java.lang.management.ThreadMXBean;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * What the monitor itself costs: collector cycle times and batch sizes, Redis command
+ * latencies and errors, scheduler lag, and the allocation rate, GC time and CPU use of
+ * this JVM.
+ *
+ * Recording happens on hot paths from many threads, so everything is kept in
+ * {@link LongAdder}-based counters and {@link LatencyHistogram}s rather than behind locks.
+ * JVM figures are rates between two calls of {@link #sampleJvm()}.
+ */
+@Component
+public class SelfMetrics {
+
+    @Value("${metrics.self.enabled:true}")
+    private boolean enabled;
+
+    private final Map<String, CollectorStats> collectors = new ConcurrentHashMap<>();
+    private final Map<String, CommandStats> commands = new ConcurrentHashMap<>();
+    private final LatencyHistogram schedulerLag = new LatencyHistogram();
+    private final LongAdder bytesWritten = new LongAdder();
+
+    private volatile int schedulerActive;
+    private volatile int schedulerPoolSize;
+
+    private volatile Map<String, Object> jvm = Collections.emptyMap();
+    private long lastSampleNanos;
+    private long lastAllocatedBytes = -1;
+    private long lastGcMillis;
+    private long lastCpuNanos = -1;
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * One collector cycle: its duration and the estimated size of what it wrote
+     */
+    public void recordCycle(String collector, long nanos, long bytes) {
+        if (!enabled) {
+            return;
+        }
+        CollectorStats stats = collectors.computeIfAbsent(collector, name -> new CollectorStats());
+        stats.cycle.record(nanos);
+        stats.bytes.add(bytes);
+        stats.lastBytes = bytes;
+    }
+
+    public void recordCommand(String command, long nanos) {
+        if (enabled) {
+            commands.computeIfAbsent(command, name -> new CommandStats()).latency.record(nanos);
+        }
+    }
+
+    public void recordCommandError(String command) {
+        if (enabled) {
+            commands.computeIfAbsent(command, name -> new CommandStats()).errors.increment();
+        }
+    }
+
+    public void recordBytesWritten(long bytes) {
+        if (enabled) {
+            bytesWritten.add(bytes);
+        }
+    }
+
+    /**
+     * Time a task waited between being submitted to the scheduler and starting, plus the pool's state
+     */
+    public void recordSchedulerLag(long nanos, int active, int poolSize) {
+        if (enabled) {
+            schedulerLag.record(nanos);
+            schedulerActive = active;
+            schedulerPoolSize = poolSize;
+        }
+    }
+
+    /**
+     * Measure JVM allocation, GC time and process CPU since the previous call
+     * @return the figures, also kept for {@link #snapshot()}
+     */
+    public synchronized Map<String, Object> sampleJvm() {
+        long now = System.nanoTime();
+        double elapsedSeconds = lastSampleNanos > 0 ? (now - lastSampleNanos) / 1e9 : 0;
+        lastSampleNanos = now;
+
+        Map<String, Object> sample = new LinkedHashMap<>();
+
+        long allocated = allocatedBytes();
+        if (allocated >= 0 && lastAllocatedBytes >= 0 && elapsedSeconds > 0) {
+            // Threads that ended since the last sample take their counts with them
+            sample.put("alloc_rate_mb_s", Math.max(0, allocated - lastAllocatedBytes) / elapsedSeconds / (1024 * 1024));
+        }
+        lastAllocatedBytes = allocated;
+
+        long gcMillis = 0;
+        long gcCount = 0;
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            gcMillis += Math.max(0, gc.getCollectionTime());
+            gcCount += Math.max(0, gc.getCollectionCount());
+        }
+        if (elapsedSeconds > 0) {
+            sample.put("gc_time_percent", (gcMillis - lastGcMillis) / 10.0 / elapsedSeconds);
+        }
+        sample.put("gc_count", gcCount);
+        sample.put("gc_time_ms", gcMillis);
+        lastGcMillis = gcMillis;
+
+        OperatingSystemMXBean os = ManagementFactory.getOperatingSystemMXBean();
+        if (os instanceof com.sun.management.OperatingSystemMXBean) {
+            long cpuNanos = ((com.sun.management.OperatingSystemMXBean) os).getProcessCpuTime();
+            if (cpuNanos >= 0 && lastCpuNanos >= 0 && elapsedSeconds > 0) {
+                sample.put("process_cpu_percent",
+                        (cpuNanos - lastCpuNanos) / 1e7 / elapsedSeconds / os.getAvailableProcessors());
+            }
+            lastCpuNanos = cpuNanos;
+        }
+
+        MemoryUsage heap = ManagementFactory.getMemoryMXBean().getHeapMemoryUsage();
+        sample.put("heap_used_mb", heap.getUsed() / (1024.0 * 1024));
+        sample.put("heap_committed_mb", heap.getCommitted() / (1024.0 * 1024));
+        sample.put("threads", ManagementFactory.getThreadMXBean().getThreadCount());
+        sample.put("uptime_s", ManagementFactory.getRuntimeMXBean().getUptime() / 1000);
+
+        jvm = Collections.unmodifiableMap(sample);
+        return jvm;
+    }
+
+    /**
+     * Bytes allocated so far by the live threads, or -1 if the JVM cannot tell
+     */
+    private static long allocatedBytes() {
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        if (!(threads instanceof com.sun.management.ThreadMXBean)) {
+            return -1;
+        }
+        com.sun.management.ThreadMXBean sunThreads = (com.sun.management.ThreadMXBean) threads;
+        if (!sunThreads.isThreadAllocatedMemorySupported() || !sunThreads.isThreadAllocatedMemoryEnabled()) {
+            return -1;
+        }
+        long total = 0;
+        for (long bytes : sunThreads.getThreadAllocatedBytes(sunThreads.getAllThreadIds())) {
+            if (bytes > 0) {
+                total += bytes;
+            }
+        }
+        return total;
+    }
+
+    public Map<String, LatencyHistogram> getCycleTimes() {
+        Map<String, LatencyHistogram> cycles = new TreeMap<>();
+        collectors.forEach((name, stats) -> cycles.put(name, stats.cycle));
+        return cycles;
+    }
+
+    public long getLastCycleBytes(String collector) {
+        CollectorStats stats = collectors.get(collector);
+        return stats != null ? stats.lastBytes : 0;
+    }
+
+    public Map<String, LatencyHistogram> getCommandLatencies() {
+        Map<String, LatencyHistogram> latencies = new TreeMap<>();
+        commands.forEach((name, stats) -> latencies.put(name, stats.latency));
+        return latencies;
+    }
+
+    public long getCommandErrors(String command) {
+        CommandStats stats = commands.get(command);
+        return stats != null ? stats.errors.sum() : 0;
+    }
+
+    public LatencyHistogram getSchedulerLag() {
+        return schedulerLag;
+    }
+
+    public Map<String, Object> getJvm() {
+        return jvm;
+    }
+
+    /**
+     * Everything recorded so far, in the shape returned by {@code /api/metrics/self}
+     */
+    public Map<String, Object> snapshot() {
+        Map<String, Object> snapshot = new LinkedHashMap<>();
+        snapshot.put("enabled", enabled);
+
+        Map<String, Object> collectorStats = new TreeMap<>();
+        collectors.forEach((name, stats) -> {
+            Map<String, Object> entry = new LinkedHashMap<>();
+            entry.put("cycle", stats.cycle.snapshot());
+            entry.put("bytes_total", stats.bytes.sum());
+            entry.put("bytes_last_cycle", stats.lastBytes);
+            collectorStats.put(name, entry);
+        });
+        snapshot.put("collectors", collectorStats);
+
+        Map<String, Object> redis = new LinkedHashMap<>();
+        redis.put("bytes_written", bytesWritten.sum());
+        Map<String, Object> commandStats = new TreeMap<>();
+        commands.forEach((name, stats) -> {
+            Map<String, Object> entry = new LinkedHashMap<>();
+            entry.put("errors", stats.errors.sum());
+            entry.put("latency", stats.latency.snapshot());
+            commandStats.put(name, entry);
+        });
+        redis.put("commands", commandStats);
+        snapshot.put("redis", redis);
+
+        Map<String, Object> scheduler = new LinkedHashMap<>();
+        scheduler.put("active_threads", schedulerActive);
+        scheduler.put("pool_size", schedulerPoolSize);
+        scheduler.put("lag", schedulerLag.snapshot());
+        snapshot.put("scheduler", scheduler);
+
+        snapshot.put("jvm", jvm);
+        return snapshot;
+    }
+
+    private static class CollectorStats {
+        private final LatencyHistogram cycle = new LatencyHistogram();
+        private final LongAdder bytes = new LongAdder();
+        private volatile long lastBytes;
+    }
+
+    private static class CommandStats {
+        private final LatencyHistogram latency = new LatencyHistogram();
+        private final LongAdder errors = new LongAdder();
+    }
+}
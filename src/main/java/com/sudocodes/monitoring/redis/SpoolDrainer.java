@@ -0,0 +1,89 @@
+package com.sudocodes.monitoring.redis;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+/**
+ * Replays spooled metric batches into Redis once it is reachable again.
+ * Batches are replayed oldest first in pipelines, with a pause between pipelines so a
+ * large backlog does not saturate Redis right after it comes back.
+ */
+@Component
+@Slf4j
+public class SpoolDrainer {
+
+    private final MetricsSpool spool;
+    private final MetricsWriter metricsWriter;
+
+    @Value("${metrics.spool.drain.pipeline-size:100}")
+    private int pipelineSize;
+
+    @Value("${metrics.spool.drain.max-batches-per-second:500}")
+    private int maxBatchesPerSecond;
+
+    @Value("${metrics.spool.drain.max-batches-per-run:5000}")
+    private int maxBatchesPerRun;
+
+    @Autowired
+    public SpoolDrainer(MetricsSpool spool, MetricsWriter metricsWriter) {
+        this.spool = spool;
+        this.metricsWriter = metricsWriter;
+    }
+
+    @Scheduled(fixedDelayString = "${metrics.spool.drain.interval:5000}")
+    public void drain() {
+        if (!spool.hasPending()) {
+            spool.force();
+            return;
+        }
+
+        int replayed = 0;
+        long started = System.currentTimeMillis();
+
+        try {
+            while (replayed < maxBatchesPerRun && spool.hasPending()) {
+                MetricsSpool.Chunk chunk = spool.peek(pipelineSize);
+                if (chunk.isEmpty()) {
+                    break;
+                }
+
+                long pipelineStart = System.currentTimeMillis();
+                try {
+                    metricsWriter.writeBlocking(chunk.getBatches());
+                } catch (RuntimeException e) {
+                    if (MetricsWriter.isRedisUnavailable(e)) {
+                        throw e;
+                    }
+                    // A command error would fail on every retry, so drop the chunk instead of blocking the spool
+                    log.error("Discarding {} spooled batches that failed to replay: {}",
+                            chunk.getBatches().size(), e.getMessage());
+                }
+                spool.commit(chunk);
+                replayed += chunk.getBatches().size();
+
+                // Rate limit: each pipeline is allowed pipelineSize / maxBatchesPerSecond seconds
+                long minDurationMs = chunk.getBatches().size() * 1000L / Math.max(1, maxBatchesPerSecond);
+                long sleepMs = minDurationMs - (System.currentTimeMillis() - pipelineStart);
+                if (sleepMs > 0) {
+                    Thread.sleep(sleepMs);
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (Exception e) {
+            if (MetricsWriter.isRedisUnavailable(e)) {
+                log.debug("Redis still unavailable, {} spooled batches pending", spool.getPendingBatches());
+            } else {
+                log.error("Error replaying spooled metrics", e);
+            }
+        }
+
+        if (replayed > 0) {
+            log.info("Replayed {} spooled metric batches in {} ms, {} still pending",
+                    replayed, System.currentTimeMillis() - started, spool.getPendingBatches());
+        }
+    }
+}
@@ -0,0 +1,131 @@
+package com.sudocodes.monitoring.redis;
+
+import com.sudocodes.monitoring.model.ServerIdentity;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.RedisScript;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Cleans up the index structures that TTLs cannot: the global {@code servers} set, the fleet
+ * rankings and sums, and index sets that are kept alive by their server but list resources
+ * whose hashes have expired.
+ *
+ * A server whose heartbeat key has expired and that was not seen for a heartbeat TTL is
+ * removed through {@code scripts/server_remove.lua}, which rechecks both conditions inside
+ * Redis. Only the {@link LeaderElection leader} does this for the whole fleet, and the script
+ * also checks that its lease is still current; each instance prunes only its own server's indexes.
+ */
+@Component
+@Slf4j
+public class StaleDataSweeper {
+
+    private static final RedisScript<Long> REMOVE_SCRIPT =
+            RedisScript.of(new ClassPathResource("scripts/server_remove.lua"), Long.class);
+
+    private final StringRedisTemplate stringRedisTemplate;
+    private final ResourceIndex resourceIndex;
+    private final ServerIdentity serverIdentity;
+    private final LeaderElection leaderElection;
+
+    @Value("${metrics.sweep.enabled:true}")
+    private boolean enabled;
+
+    @Value("${metrics.heartbeat.ttl:60}")
+    private long heartbeatTtlSeconds;
+
+    private final AtomicLong removedServers = new AtomicLong();
+    private final AtomicLong prunedResources = new AtomicLong();
+
+    @Autowired
+    public StaleDataSweeper(StringRedisTemplate stringRedisTemplate, ResourceIndex resourceIndex,
+                            ServerIdentity serverIdentity, LeaderElection leaderElection) {
+        this.stringRedisTemplate = stringRedisTemplate;
+        this.resourceIndex = resourceIndex;
+        this.serverIdentity = serverIdentity;
+        this.leaderElection = leaderElection;
+    }
+
+    @Scheduled(fixedDelayString = "${metrics.sweep.interval:60000}")
+    public void sweep() {
+        if (!enabled) {
+            return;
+        }
+        try {
+            int removed = removeDeadServers();
+            long pruned = resourceIndex.pruneExpired(serverIdentity.getMetricsKeyPrefix());
+            prunedResources.addAndGet(pruned);
+            if (removed > 0 || pruned > 0) {
+                log.info("Removed {} servers without heartbeat and {} expired index entries", removed, pruned);
+            }
+        } catch (Exception e) {
+            if (MetricsWriter.isRedisUnavailable(e)) {
+                log.debug("Skipping stale data sweep, Redis is unavailable: {}", e.getMessage());
+            } else {
+                log.error("Error sweeping stale data", e);
+            }
+        }
+    }
+
+    /**
+     * Remove servers last seen before the heartbeat TTL whose heartbeat has expired, if this
+     * instance is the leader
+     * @return the number of servers removed
+     */
+    public int removeDeadServers() {
+        String lease = leaderElection.getLease();
+        if (lease == null) {
+            return 0;
+        }
+        long cutoff = System.currentTimeMillis() - heartbeatTtlSeconds * 1000;
+        Set<String> candidates = stringRedisTemplate.opsForZSet()
+                .rangeByScore(ResourceIndex.SERVERS_KEY, Double.NEGATIVE_INFINITY, Math.nextDown((double) cutoff));
+        if (candidates == null || candidates.isEmpty()) {
+            return 0;
+        }
+
+        List<String> keys = new ArrayList<>();
+        keys.add(ResourceIndex.SERVERS_KEY);
+        keys.add(FleetAggregator.SUMS_KEY);
+        keys.add(null);
+        keys.add(LeaderElection.LEASE_KEY);
+        for (String metric : FleetAggregator.METRICS) {
+            keys.add(FleetAggregator.key(metric));
+        }
+        List<String> args = new ArrayList<>();
+        args.add(null);
+        args.add(String.valueOf(cutoff));
+        args.add(lease);
+        args.addAll(FleetAggregator.METRICS);
+
+        int removed = 0;
+        for (String serverId : candidates) {
+            keys.set(2, ResourceIndex.heartbeatKey(serverId));
+            args.set(0, serverId);
+            Long result = stringRedisTemplate.execute(REMOVE_SCRIPT, keys, args.toArray());
+            if (result != null && result == 1) {
+                removed++;
+                log.debug("Removed server {}, no heartbeat since {}", serverId, cutoff);
+            }
+        }
+        removedServers.addAndGet(removed);
+        return removed;
+    }
+
+    public long getRemovedServers() {
+        return removedServers.get();
+    }
+
+    public long getPrunedResources() {
+        return prunedResources.get();
+    }
+}
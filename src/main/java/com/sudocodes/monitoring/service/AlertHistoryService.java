@@ -0,0 +1,254 @@
+package com.sudocodes.monitoring.service;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.sudocodes.monitoring.model.Alert;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.redis.connection.DefaultStringRedisConnection;
+import org.springframework.data.redis.connection.RedisConnection;
+import org.springframework.data.redis.connection.StringRedisConnection;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.RedisScript;
+import org.springframework.stereotype.Service;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Time-indexed history of fired alerts.
+ *
+ * Each alert is kept as one compact JSON record under {@value #RECORD_PREFIX}{@code <alert id>},
+ * rewritten when it resolves, and indexed by fire time in the sorted set {@value #HISTORY_KEY}
+ * and in one sorted set per server, level and type ({@code alerts:history:server:<id>},
+ * {@code alerts:history:level:<LEVEL>}, {@code alerts:history:type:<TYPE>}). Records and index
+ * entries are dropped after {@code alerts.history.retention} ms. Writes go into the pipeline
+ * of the alert writer. A page of a query is found by {@code scripts/alert_history.lua}, which
+ * intersects the indexes inside Redis and looks at no more than {@code alerts.history.max-scan}
+ * index entries per page, and its records are then read with one MGET. Pages are continued with a
+ * cursor holding the window end and where the walk stopped, so no page starts over from the top.
+ */
+@Service
+@Slf4j
+public class AlertHistoryService {
+
+    public static final String HISTORY_KEY = "alerts:history";
+    public static final String RECORD_PREFIX = "alerts:event:";
+
+    public static final int DEFAULT_LIMIT = 50;
+    private static final int MAX_LIMIT = 500;
+
+    @SuppressWarnings("rawtypes")
+    private static final RedisScript<List> HISTORY_SCRIPT =
+            RedisScript.of(new ClassPathResource("scripts/alert_history.lua"), List.class);
+
+    private final StringRedisTemplate stringRedisTemplate;
+    private final ObjectMapper objectMapper;
+
+    @Value("${alerts.history.retention:604800000}")
+    private long retentionMs;
+
+    @Value("${alerts.history.max-scan:10000}")
+    private int maxScan;
+
+    @Autowired
+    public AlertHistoryService(StringRedisTemplate stringRedisTemplate, ObjectMapper objectMapper) {
+        this.stringRedisTemplate = stringRedisTemplate;
+        this.objectMapper = objectMapper;
+    }
+
+    /**
+     * Record fired and resolved alerts on a connection of the alert writer's pipeline.
+     * Alerts are indexed by the time they fired, so a resolution only replaces the record.
+     */
+    public void write(RedisConnection connection, List<Alert> batch) {
+        StringRedisConnection redis = new DefaultStringRedisConnection(connection);
+        long retentionSeconds = Math.max(1, retentionMs / 1000);
+        Set<String> indexes = new LinkedHashSet<>();
+        for (Alert alert : batch) {
+            if (alert.getId() == null || alert.getTimestamp() == null) {
+                continue;
+            }
+            String record;
+            try {
+                record = objectMapper.writeValueAsString(record(alert));
+            } catch (JsonProcessingException e) {
+                log.warn("Could not record alert {} in the history: {}", alert.getKey(), e.getMessage());
+                continue;
+            }
+            redis.setEx(RECORD_PREFIX + alert.getId(), retentionSeconds, record);
+
+            // Adding again on resolution is a no-op, unless the fired transition was dropped
+            double firedAt = alert.getTimestamp().toEpochMilli();
+            for (String index : indexesOf(alert)) {
+                redis.zAdd(index, firedAt, alert.getId());
+                indexes.add(index);
+            }
+        }
+
+        double cutoff = System.currentTimeMillis() - retentionMs;
+        for (String index : indexes) {
+            redis.zRemRangeByScore(index, Double.NEGATIVE_INFINITY, cutoff);
+            redis.expire(index, retentionSeconds);
+        }
+    }
+
+    private static List<String> indexesOf(Alert alert) {
+        List<String> indexes = new ArrayList<>(4);
+        indexes.add(HISTORY_KEY);
+        if (alert.getServerId() != null) {
+            indexes.add(serverIndex(alert.getServerId()));
+        }
+        indexes.add(levelIndex(alert.getLevel()));
+        indexes.add(typeIndex(alert.getType()));
+        return indexes;
+    }
+
+    private static String serverIndex(String serverId) {
+        return HISTORY_KEY + ":server:" + serverId;
+    }
+
+    private static String levelIndex(Alert.AlertLevel level) {
+        return HISTORY_KEY + ":level:" + level.name();
+    }
+
+    private static String typeIndex(Alert.AlertType type) {
+        return HISTORY_KEY + ":type:" + type.name();
+    }
+
+    private static Map<String, Object> record(Alert alert) {
+        Map<String, Object> record = new LinkedHashMap<>();
+        record.put("id", alert.getId());
+        record.put("key", alert.getKey());
+        record.put("serverId", alert.getServerId());
+        if (alert.getRule() != null) {
+            record.put("rule", alert.getRule());
+        }
+        record.put("resource", alert.getResource());
+        record.put("message", alert.getMessage());
+        record.put("level", alert.getLevel().name());
+        record.put("type", alert.getType().name());
+        record.put("source", alert.getSource());
+        record.put("state", alert.getState().name());
+        record.put("timestamp", alert.getTimestamp().toEpochMilli());
+        if (alert.getResolvedAt() != null) {
+            record.put("resolvedAt", alert.getResolvedAt().toEpochMilli());
+        }
+        return record;
+    }
+
+    /**
+     * One page of the alerts that fired in a time window, newest first.
+     * A page can hold fewer than {@code limit} alerts, or none, when a filtered query had to look
+     * at many non-matching entries; {@code next_cursor} is null only once the window is exhausted.
+     * @param serverId only alerts of this server, if not null
+     * @param level only alerts of this level, if not null
+     * @param type only alerts of this type, if not null
+     * @param from window start (epoch ms), defaults to the start of the retention
+     * @param to window end (epoch ms), defaults to now; taken from the cursor when continuing
+     * @param cursor {@code next_cursor} of the previous page of the same query, or null for the first page
+     * @param offset matching alerts to skip, on the first page
+     * @param limit alerts per page, at most {@value #MAX_LIMIT}
+     * @throws IllegalArgumentException if a level, type, window, cursor or page is invalid
+     */
+    @SuppressWarnings("unchecked")
+    public Map<String, Object> query(String serverId, String level, String type, Long from, Long to,
+                                     String cursor, int offset, int limit) {
+        if (offset < 0 || limit < 1 || limit > MAX_LIMIT) {
+            throw new IllegalArgumentException("offset must not be negative and limit must be between 1 and "
+                    + MAX_LIMIT);
+        }
+        long position = 0;
+        long skip = offset;
+        if (cursor != null && !cursor.isEmpty()) {
+            String[] parts = cursor.split(":");
+            try {
+                if (parts.length != 3) {
+                    throw new NumberFormatException();
+                }
+                to = Long.parseLong(parts[0]);
+                position = Long.parseLong(parts[1]);
+                skip = Long.parseLong(parts[2]);
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("Invalid cursor '" + cursor + "'");
+            }
+            if (position < 0 || skip < 0) {
+                throw new IllegalArgumentException("Invalid cursor '" + cursor + "'");
+            }
+        }
+        long end = to != null ? to : System.currentTimeMillis();
+        long start = from != null ? from : end - retentionMs;
+        if (start > end) {
+            throw new IllegalArgumentException("from must not be after to");
+        }
+
+        List<String> keys = new ArrayList<>(3);
+        if (serverId != null && !serverId.isEmpty()) {
+            keys.add(serverIndex(serverId));
+        }
+        if (level != null && !level.isEmpty()) {
+            keys.add(levelIndex(parse(Alert.AlertLevel.class, level, "level")));
+        }
+        if (type != null && !type.isEmpty()) {
+            keys.add(typeIndex(parse(Alert.AlertType.class, type, "type")));
+        }
+        if (keys.isEmpty()) {
+            keys.add(HISTORY_KEY);
+        }
+
+        // Done flag, where to continue from, then the ids
+        List<Object> reply = stringRedisTemplate.execute(HISTORY_SCRIPT, keys, Long.toString(start),
+                Long.toString(end), Long.toString(position), Long.toString(skip), Integer.toString(limit),
+                Integer.toString(Math.max(1, maxScan)));
+
+        List<Map<String, Object>> alerts = new ArrayList<>(limit);
+        String nextCursor = null;
+        if (reply != null && reply.size() >= 3) {
+            List<String> recordKeys = new ArrayList<>(reply.size() - 3);
+            for (Object id : reply.subList(3, reply.size())) {
+                recordKeys.add(RECORD_PREFIX + id);
+            }
+            List<String> records = recordKeys.isEmpty() ? null : stringRedisTemplate.opsForValue().multiGet(recordKeys);
+            if (records != null) {
+                for (String record : records) {
+                    // Left out if the record expired before its index entries were trimmed
+                    if (record == null) {
+                        continue;
+                    }
+                    try {
+                        alerts.add(objectMapper.readValue(record, new TypeReference<Map<String, Object>>() {}));
+                    } catch (JsonProcessingException e) {
+                        log.debug("Skipping malformed alert history record: {}", e.getMessage());
+                    }
+                }
+            }
+            if (!"1".equals(reply.get(0).toString())) {
+                nextCursor = end + ":" + reply.get(1) + ":" + reply.get(2);
+            }
+        }
+
+        Map<String, Object> page = new LinkedHashMap<>();
+        page.put("from", start);
+        page.put("to", end);
+        page.put("limit", limit);
+        page.put("alerts", alerts);
+        page.put("next_cursor", nextCursor);
+        return page;
+    }
+
+    private static <E extends Enum<E>> E parse(Class<E> type, String value, String name) {
+        try {
+            return Enum.valueOf(type, value.toUpperCase(Locale.ROOT));
+        } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException("Unknown alert " + name + " '" + value + "'");
+        }
+    }
+}
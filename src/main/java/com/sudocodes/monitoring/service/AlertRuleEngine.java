@@ -0,0 +1,311 @@
+package com.sudocodes.monitoring.service;
+
+import com.sudocodes.monitoring.model.AlertRule;
+import com.sudocodes.monitoring.model.MetricsUpdate;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Evaluates the alert rules against metric updates.
+ *
+ * Rules come from {@code alerts.rules} ({@code <ID> = <definition>; ...}, see {@link AlertRule})
+ * and from the Redis hash {@value #RULES_KEY} (field = ID, value = definition), which is re-read
+ * every {@code alerts.rules.reload-interval} ms and replaces configured rules of the same ID.
+ *
+ * Compiled rules are indexed by section and resource kind, so an update only reaches the rules
+ * that can match it. Each rule keeps state only for the series (server and resource) that are
+ * pending or firing: healthy series cost a map lookup and no memory. Transitions are decided
+ * under the series' map entry, so concurrent updates of one series fire or resolve it once.
+ */
+@Component
+@Slf4j
+public class AlertRuleEngine {
+
+    public static final String RULES_KEY = "alerts:rules";
+
+    private static final String HISTORY_PREFIX = "history:";
+
+    /**
+     * Receives the transitions of series: healthy → pending → firing → healthy, or from pending
+     * back to healthy when the condition stops holding before the rule's duration
+     */
+    public interface TransitionHandler {
+
+        void pending(AlertRule rule, String serverId, String resource, Object value, Map<String, Object> fields);
+
+        void cancelled(AlertRule rule, String serverId, String resource);
+
+        void fired(AlertRule rule, String serverId, String resource, Object value, Map<String, Object> fields);
+
+        void resolved(AlertRule rule, String serverId, String resource);
+    }
+
+    private final StringRedisTemplate stringRedisTemplate;
+
+    @Value("${alerts.rules:}")
+    private String configuredRules;
+
+    /** Rules by section, then by resource kind */
+    private volatile Map<String, Map<String, List<CompiledRule>>> index = Collections.emptyMap();
+    private volatile List<CompiledRule> rules = Collections.emptyList();
+
+    private Map<Object, Object> redisRules = Collections.emptyMap();
+    private boolean loaded;
+    private volatile TransitionHandler handler;
+
+    @Autowired
+    public AlertRuleEngine(StringRedisTemplate stringRedisTemplate) {
+        this.stringRedisTemplate = stringRedisTemplate;
+    }
+
+    @PostConstruct
+    public void init() {
+        compile();
+    }
+
+    public void setTransitionHandler(TransitionHandler handler) {
+        this.handler = handler;
+    }
+
+    /**
+     * Pick up rule changes in Redis
+     */
+    @Scheduled(fixedDelayString = "${alerts.rules.reload-interval:60000}", initialDelayString = "${alerts.rules.reload-interval:60000}")
+    public void reload() {
+        compile();
+    }
+
+    private synchronized void compile() {
+        Map<Object, Object> stored;
+        try {
+            stored = stringRedisTemplate.opsForHash().entries(RULES_KEY);
+        } catch (Exception e) {
+            log.debug("Could not read alert rules from Redis: {}", e.getMessage());
+            stored = redisRules;
+        }
+        if (loaded && stored.equals(redisRules)) {
+            return;
+        }
+        redisRules = stored;
+        loaded = true;
+
+        Map<String, String> definitions = new LinkedHashMap<>();
+        for (String entry : configuredRules.split(";")) {
+            int separator = entry.indexOf('=');
+            if (separator > 0) {
+                definitions.put(entry.substring(0, separator).trim(), entry.substring(separator + 1).trim());
+            } else if (!entry.isBlank()) {
+                log.error("Ignoring alert rule without an ID: {}", entry.trim());
+            }
+        }
+        stored.forEach((id, definition) -> definitions.put(id.toString(), definition.toString()));
+
+        Map<String, CompiledRule> previous = new HashMap<>();
+        for (CompiledRule rule : rules) {
+            previous.put(rule.rule.getId(), rule);
+        }
+
+        List<CompiledRule> compiled = new ArrayList<>();
+        Map<String, Map<String, List<CompiledRule>>> newIndex = new HashMap<>();
+        for (Map.Entry<String, String> definition : definitions.entrySet()) {
+            AlertRule rule;
+            try {
+                rule = AlertRule.parse(definition.getKey(), definition.getValue());
+            } catch (Exception e) {
+                log.error("Ignoring alert rule {}: {}", definition.getKey(), e.getMessage());
+                continue;
+            }
+            CompiledRule old = previous.remove(rule.getId());
+            CompiledRule current;
+            if (old != null && old.rule.getDefinition().equals(rule.getDefinition())) {
+                current = old;
+            } else {
+                current = new CompiledRule(rule);
+                if (old != null) {
+                    // Alerts of a changed rule stay firing until the new rule clears them
+                    old.series.forEach((key, state) -> {
+                        if (state.firing) {
+                            current.series.put(key, state);
+                        }
+                    });
+                }
+            }
+            compiled.add(current);
+            newIndex.computeIfAbsent(rule.getSection(), section -> new HashMap<>())
+                    .computeIfAbsent(rule.getKind(), kind -> new ArrayList<>())
+                    .add(current);
+        }
+
+        index = newIndex;
+        rules = compiled;
+        log.info("Loaded {} alert rules ({} from {})", compiled.size(), stored.size(), RULES_KEY);
+
+        // Removed rules resolve whatever they had raised
+        for (CompiledRule removed : previous.values()) {
+            removed.series.values().forEach(state -> {
+                if (state.firing && handler != null) {
+                    handler.resolved(removed.rule, state.serverId, state.resource);
+                }
+            });
+        }
+    }
+
+    /**
+     * Whether any rule watches the resource of this update
+     */
+    public boolean matches(MetricsUpdate update) {
+        return !rulesFor(update).isEmpty();
+    }
+
+    private List<CompiledRule> rulesFor(MetricsUpdate update) {
+        String resource = update.getResource();
+        if (resource.startsWith(HISTORY_PREFIX)) {
+            return Collections.emptyList();
+        }
+        Map<String, List<CompiledRule>> kinds = index.get(update.getSection());
+        if (kinds == null) {
+            return Collections.emptyList();
+        }
+        int separator = resource.indexOf(':');
+        List<CompiledRule> candidates = kinds.get(separator > 0 ? resource.substring(0, separator) : resource);
+        return candidates != null ? candidates : Collections.emptyList();
+    }
+
+    /**
+     * Run the rules watching this update's resource and report the transitions they make
+     * to the transition handler
+     */
+    public void evaluate(MetricsUpdate update) {
+        List<CompiledRule> candidates = rulesFor(update);
+        if (candidates.isEmpty() || handler == null) {
+            return;
+        }
+        String serverId = update.getServerId();
+        String resource = update.getResource();
+        Map<String, Object> fields = update.getFields();
+        String seriesKey = null;
+
+        for (CompiledRule compiled : candidates) {
+            AlertRule rule = compiled.rule;
+            Object value = fields.get(rule.getField());
+            if (value == null || !rule.appliesTo(resource)) {
+                continue;
+            }
+            if (seriesKey == null) {
+                seriesKey = serverId + '\u0000' + resource;
+            }
+            boolean breached = rule.isBreached(value);
+            if (!breached && !compiled.series.containsKey(seriesKey)) {
+                continue;
+            }
+
+            int transition = compiled.advance(seriesKey, serverId, resource, value, breached, update.getTimestamp());
+            switch (transition) {
+                case CompiledRule.PENDING:
+                    handler.pending(rule, serverId, resource, value, fields);
+                    break;
+                case CompiledRule.CANCELLED:
+                    handler.cancelled(rule, serverId, resource);
+                    break;
+                case CompiledRule.FIRED:
+                    handler.fired(rule, serverId, resource, value, fields);
+                    break;
+                case CompiledRule.RESOLVED:
+                    handler.resolved(rule, serverId, resource);
+                    break;
+                default:
+                    break;
+            }
+        }
+    }
+
+    /**
+     * Mark a series as firing without evaluating it, for alerts that were active before a restart
+     * @return false if there is no rule with this ID any more
+     */
+    public boolean restoreFiring(String ruleId, String serverId, String resource) {
+        for (CompiledRule compiled : rules) {
+            if (compiled.rule.getId().equals(ruleId)) {
+                SeriesState state = new SeriesState(serverId, resource, 0);
+                state.firing = true;
+                compiled.series.putIfAbsent(serverId + '\u0000' + resource, state);
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static class CompiledRule {
+        static final int NONE = 0;
+        static final int PENDING = 1;
+        static final int CANCELLED = 2;
+        static final int FIRED = 3;
+        static final int RESOLVED = 4;
+
+        private final AlertRule rule;
+        private final Map<String, SeriesState> series = new ConcurrentHashMap<>();
+
+        private CompiledRule(AlertRule rule) {
+            this.rule = rule;
+        }
+
+        /**
+         * Move a series along healthy → pending → firing → healthy
+         */
+        int advance(String seriesKey, String serverId, String resource, Object value, boolean breached, long timestamp) {
+            int[] transition = {NONE};
+            series.compute(seriesKey, (key, state) -> {
+                if (state == null) {
+                    if (!breached) {
+                        return null;
+                    }
+                    state = new SeriesState(serverId, resource, timestamp);
+                    transition[0] = PENDING;
+                }
+                if (state.firing) {
+                    if (rule.isCleared(value)) {
+                        transition[0] = RESOLVED;
+                        return null;
+                    }
+                    return state;
+                }
+                if (!breached) {
+                    transition[0] = CANCELLED;
+                    return null;
+                }
+                if (timestamp - state.pendingSince >= rule.getForMillis()) {
+                    state.firing = true;
+                    transition[0] = FIRED;
+                }
+                return state;
+            });
+            return transition[0];
+        }
+    }
+
+    private static class SeriesState {
+        private final String serverId;
+        private final String resource;
+        private final long pendingSince;
+        private volatile boolean firing;
+
+        private SeriesState(String serverId, String resource, long pendingSince) {
+            this.serverId = serverId;
+            this.resource = resource;
+            this.pendingSince = pendingSince;
+        }
+    }
+}
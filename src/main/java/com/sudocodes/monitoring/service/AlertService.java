@@ -1,247 +1,581 @@
 package com.sudocodes.monitoring.service;
 
 import com.sudocodes.monitoring.model.Alert;
+import com.sudocodes.monitoring.model.AlertRule;
+import com.sudocodes.monitoring.model.MetricsUpdate;
+import com.sudocodes.monitoring.redis.MetricsUpdateListener;
+import com.sudocodes.monitoring.redis.MetricsWriter;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.RedisOperations;
 import org.springframework.data.redis.core.RedisTemplate;
+import org.springframework.data.redis.core.SessionCallback;
 import org.springframework.messaging.simp.SimpMessagingTemplate;
-import org.springframework.scheduling.annotation.Scheduled;
 import org.springframework.stereotype.Service;
 
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.time.Duration;
 import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
 import java.util.Map;
 import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
 
+/**
+ * Raises and resolves alerts from metric samples as the collectors produce them.
+ *
+ * Every update handed to the metrics writer is run through the {@link AlertRuleEngine} in
+ * memory on the collector thread; nothing is read back from Redis. Each alert key moves through
+ * pending → firing → resolved in memory, which is what dedupes repeated breaches. Only the
+ * firing and resolved transitions are persisted: they go on a bounded queue and are written every
+ * {@code alerts.flush-interval} ms in one pipeline on the alert-writer thread, followed by their
+ * {@code /topic/alerts} notifications, grouped per server and source when an alert storm hits
+ * many resources at once. The same pipeline records them in the {@link AlertHistoryService}.
+ * Evaluation never waits for Redis or WebSocket clients. On startup the firing alerts are rebuilt from
+ * {@code active_alerts}, so alerts raised before a restart still resolve when their condition clears.
+ * Updates of other servers arrive through {@link AlertUpdateRelay} when this instance evaluates centrally.
+ * Alert keys are scoped by server, e.g. {@code web-1:HIGH_CPU_USAGE}.
+ */
 @Service
 @Slf4j
-public class AlertService {
-
+public class AlertService implements MetricsUpdateListener {
+    
+    private static final String ACTIVE_ALERTS_KEY = "active_alerts";
+    
     private final RedisTemplate<String, Object> redisTemplate;
     private final SimpMessagingTemplate messagingTemplate;
+    private final AlertRuleEngine ruleEngine;
+    private final AlertHistoryService alertHistory;
+    
+    @Value("${alerts.ttl:86400}")
+    private long alertTtlSeconds;
+    
+    @Value("${alerts.flush-interval:1000}")
+    private long flushInterval;
+    
+    @Value("${alerts.queue-capacity:10000}")
+    private int queueCapacity;
+    
+    @Value("${alerts.notify.group-threshold:3}")
+    private int groupThreshold;
     
-    // Thresholds
-    private static final double CPU_USAGE_THRESHOLD = 80.0;
-    private static final double MEMORY_USAGE_THRESHOLD = 85.0;
-    private static final double DISK_USAGE_THRESHOLD = 90.0;
+    /** Pending and firing alerts by key */
+    private final Map<String, Alert> alerts = new ConcurrentHashMap<>();
+    
+    /** Firing and resolved alerts not written yet, in the order they happened */
+    private BlockingQueue<Alert> transitions;
+    
+    /** Transitions of a flush that failed, written ahead of the queue by the next one */
+    private final List<Alert> unwritten = new ArrayList<>();
+    
+    private ScheduledExecutorService writer;
+    private final AtomicBoolean flushRequested = new AtomicBoolean();
+    private volatile boolean resyncNeeded;
+    private volatile long lastFlushMillis;
+    
+    private final LongAdder queuedTransitions = new LongAdder();
+    private final LongAdder writtenTransitions = new LongAdder();
+    private final LongAdder droppedTransitions = new LongAdder();
+    private final LongAdder coalescedTransitions = new LongAdder();
+    private final LongAdder sentNotifications = new LongAdder();
+    private final LongAdder resyncs = new LongAdder();
     
     @Autowired
-    public AlertService(RedisTemplate<String, Object> redisTemplate, SimpMessagingTemplate messagingTemplate) {
+    public AlertService(RedisTemplate<String, Object> redisTemplate, SimpMessagingTemplate messagingTemplate,
+                        AlertRuleEngine ruleEngine, AlertHistoryService alertHistory) {
         this.redisTemplate = redisTemplate;
         this.messagingTemplate = messagingTemplate;
+        this.ruleEngine = ruleEngine;
+        this.alertHistory = alertHistory;
+        ruleEngine.setTransitionHandler(new AlertRuleEngine.TransitionHandler() {
+            @Override
+            public void pending(AlertRule rule, String serverId, String resource, Object value, Map<String, Object> fields) {
+                alerts.putIfAbsent(rule.alertKey(serverId, resource),
+                        newAlert(rule, serverId, resource, value, fields, Alert.AlertState.PENDING));
+            }
+            
+            @Override
+            public void cancelled(AlertRule rule, String serverId, String resource) {
+                alerts.computeIfPresent(rule.alertKey(serverId, resource),
+                        (alertKey, alert) -> alert.getState() == Alert.AlertState.PENDING ? null : alert);
+            }
+            
+            @Override
+            public void fired(AlertRule rule, String serverId, String resource, Object value, Map<String, Object> fields) {
+                fire(rule, serverId, resource, value, fields);
+            }
+            
+            @Override
+            public void resolved(AlertRule rule, String serverId, String resource) {
+                resolveAlert(rule.alertKey(serverId, resource));
+            }
+        });
     }
     
-    @Scheduled(fixedRate = 15000)
-    public void checkSystemAlerts() {
+    @PostConstruct
+    public void init() {
+        transitions = new ArrayBlockingQueue<>(queueCapacity);
+        writer = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "alert-writer");
+            thread.setDaemon(true);
+            return thread;
+        });
+        rebuild();
+        writer.scheduleWithFixedDelay(this::flush, flushInterval, flushInterval, TimeUnit.MILLISECONDS);
+    }
+    
+    @PreDestroy
+    public void shutdown() {
+        writer.shutdown();
         try {
-            // Check CPU usage
-            Object cpuUsage = redisTemplate.opsForHash().get("system:cpu", "usage_percent");
-            if (cpuUsage != null && Double.parseDouble(cpuUsage.toString()) > CPU_USAGE_THRESHOLD) {
-                createAlert(
-                    "HIGH_CPU_USAGE",
-                    "System CPU usage is high: " + cpuUsage + "%",
-                    Alert.AlertLevel.WARNING,
-                    Alert.AlertType.HIGH_CPU_USAGE,
-                    "SYSTEM"
-                );
-            }
-            
-            // Check Memory usage
-            Object memoryUsage = redisTemplate.opsForHash().get("system:memory", "usage_percent");
-            if (memoryUsage != null && Double.parseDouble(memoryUsage.toString()) > MEMORY_USAGE_THRESHOLD) {
-                createAlert(
-                    "HIGH_MEMORY_USAGE",
-                    "System memory usage is high: " + memoryUsage + "%",
-                    Alert.AlertLevel.WARNING,
-                    Alert.AlertType.HIGH_MEMORY_USAGE,
-                    "SYSTEM"
-                );
+            // Write what is still queued
+            if (writer.awaitTermination(5, TimeUnit.SECONDS)) {
+                flush();
             }
-        } catch (Exception e) {
-            log.error("Error checking system alerts", e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
         }
     }
     
-    @Scheduled(fixedRate = 30000)
-    public void checkStorageAlerts() {
+    @Override
+    public void onUpdate(MetricsUpdate update) {
+        evaluate(update);
+    }
+    
+    /**
+     * Whether any alert rule depends on this update; others need not be evaluated or relayed
+     */
+    public boolean isEvaluated(MetricsUpdate update) {
+        return ruleEngine.matches(update);
+    }
+    
+    /**
+     * Check one update of any server against the alert rules
+     */
+    public void evaluate(MetricsUpdate update) {
         try {
-            // Check disk usage
-            Set<String> diskKeys = redisTemplate.keys("storage:disk:*");
-            
-            for (String key : diskKeys) {
-                String diskId = key.substring("storage:disk:".length());
-                Object usagePercent = redisTemplate.opsForHash().get(key, "usage_percent");
-                
-                if (usagePercent != null && Double.parseDouble(usagePercent.toString()) > DISK_USAGE_THRESHOLD) {
-                    createAlert(
-                        "DISK_SPACE_LOW_" + diskId,
-                        "Disk " + diskId + " usage is high: " + usagePercent + "%",
-                        Alert.AlertLevel.WARNING,
-                        Alert.AlertType.DISK_SPACE_LOW,
-                        "STORAGE"
-                    );
-                }
-            }
+            ruleEngine.evaluate(update);
         } catch (Exception e) {
-            log.error("Error checking storage alerts", e);
+            log.error("Error evaluating alerts for {}:{}:{}", update.getServerId(), update.getSection(),
+                    update.getResource(), e);
         }
     }
     
-    @Scheduled(fixedRate = 10000)
-    public void checkCameraAlerts() {
+    /**
+     * Restore the alerts that were firing before a restart, in memory and in the rule engine.
+     * Alerts whose rule no longer exists, and alerts not raised by a rule, whose detectors
+     * start over after a restart, are resolved.
+     */
+    private void rebuild() {
         try {
-            Set<String> cameraKeys = redisTemplate.keys("camera:*:connection");
+            Set<Object> keys = redisTemplate.opsForSet().members(ACTIVE_ALERTS_KEY);
+            if (keys == null || keys.isEmpty()) {
+                return;
+            }
+            List<String> alertKeys = new ArrayList<>();
+            keys.forEach(key -> alertKeys.add(key.toString()));
+            List<Object> hashes = redisTemplate.executePipelined(new SessionCallback<Object>() {
+                @Override
+                @SuppressWarnings("unchecked")
+                public <K, V> Object execute(RedisOperations<K, V> operations) {
+                    RedisOperations<String, Object> ops = (RedisOperations<String, Object>) operations;
+                    alertKeys.forEach(alertKey -> ops.opsForHash().entries("alert:" + alertKey));
+                    return null;
+                }
+            });
             
-            for (String key : cameraKeys) {
-                String cameraId = key.split(":")[1];
-                Object status = redisTemplate.opsForHash().get(key, "status");
-                
-                if (status != null && "disconnected".equals(status.toString())) {
-                    createAlert(
-                        "CAMERA_DISCONNECTED_" + cameraId,
-                        "Camera " + cameraId + " is disconnected",
-                        Alert.AlertLevel.ERROR,
-                        Alert.AlertType.CAMERA_DISCONNECTED,
-                        "CAMERA"
-                    );
+            int restored = 0;
+            for (int i = 0; i < alertKeys.size(); i++) {
+                String alertKey = alertKeys.get(i);
+                Map<?, ?> data = i < hashes.size() && hashes.get(i) instanceof Map ? (Map<?, ?>) hashes.get(i) : Collections.emptyMap();
+                if (data.isEmpty()) {
+                    // Expired long ago
+                    redisTemplate.opsForSet().remove(ACTIVE_ALERTS_KEY, alertKey);
+                    continue;
+                }
+                Alert alert = fromHash(alertKey, data);
+                alerts.put(alertKey, alert);
+                if (alert.getRule() != null && ruleEngine.restoreFiring(alert.getRule(), alert.getServerId(), alert.getResource())) {
+                    restored++;
+                } else {
+                    resolveAlert(alertKey);
                 }
             }
+            log.info("Restored {} firing alerts", restored);
         } catch (Exception e) {
-            log.error("Error checking camera alerts", e);
+            log.warn("Could not restore active alerts: {}", e.getMessage());
         }
     }
     
-    @Scheduled(fixedRate = 10000)
-    public void checkRtspAlerts() {
+    private static Alert newAlert(AlertRule rule, String serverId, String resource, Object value,
+                                  Map<String, Object> fields, Alert.AlertState state) {
+        Alert alert = new Alert();
+        alert.setKey(rule.alertKey(serverId, resource));
+        alert.setServerId(serverId);
+        alert.setRule(rule.getId());
+        alert.setResource(resource);
+        alert.setMessage(rule.formatMessage(serverId, resource, value, fields));
+        alert.setLevel(rule.getLevel());
+        alert.setType(rule.getType());
+        alert.setSource(rule.getSection().toUpperCase(Locale.ROOT));
+        alert.setTimestamp(Instant.now());
+        alert.setState(state);
+        return alert;
+    }
+    
+    private static Alert copy(Alert source) {
+        Alert alert = new Alert();
+        alert.setId(source.getId());
+        alert.setKey(source.getKey());
+        alert.setServerId(source.getServerId());
+        alert.setRule(source.getRule());
+        alert.setResource(source.getResource());
+        alert.setMessage(source.getMessage());
+        alert.setLevel(source.getLevel());
+        alert.setType(source.getType());
+        alert.setSource(source.getSource());
+        alert.setTimestamp(source.getTimestamp());
+        return alert;
+    }
+    
+    private static Alert fromHash(String alertKey, Map<?, ?> data) {
+        Alert alert = new Alert();
+        alert.setKey(alertKey);
+        alert.setId(text(data.get("id")));
+        alert.setServerId(text(data.get("serverId")));
+        alert.setRule(text(data.get("rule")));
+        alert.setResource(text(data.get("resource")));
+        alert.setMessage(text(data.get("message")));
+        alert.setSource(text(data.get("source")));
         try {
-            Set<String> streamKeys = redisTemplate.keys("rtsp:stream:*");
-            
-            for (String key : streamKeys) {
-                String streamId = key.substring("rtsp:stream:".length());
-                Object status = redisTemplate.opsForHash().get(key, "status");
-                
-                if (status != null && "disconnected".equals(status.toString())) {
-                    createAlert(
-                        "RTSP_STREAM_DOWN_" + streamId,
-                        "RTSP stream " + streamId + " is down",
-                        Alert.AlertLevel.ERROR,
-                        Alert.AlertType.RTSP_STREAM_DOWN,
-                        "RTSP"
-                    );
-                }
-            }
+            alert.setLevel(Alert.AlertLevel.valueOf(text(data.get("level"))));
+            alert.setType(Alert.AlertType.valueOf(text(data.get("type"))));
+            alert.setTimestamp(Instant.parse(text(data.get("timestamp"))));
         } catch (Exception e) {
-            log.error("Error checking RTSP alerts", e);
+            log.debug("Incomplete alert record: {}", e.getMessage());
+        }
+        alert.setActive(true);
+        alert.setState(Alert.AlertState.FIRING);
+        return alert;
+    }
+    
+    private static String text(Object value) {
+        return value != null ? value.toString() : null;
+    }
+    
+    /**
+     * Raise the alert of a rule that started firing
+     */
+    private void fire(AlertRule rule, String serverId, String resource, Object value, Map<String, Object> fields) {
+        raiseAlert(newAlert(rule, serverId, resource, value, fields, Alert.AlertState.FIRING));
+    }
+    
+    /**
+     * Raise an alert identified by its key, which must be scoped by server. An alert already
+     * firing under the key is left alone; the change is written with the next flush.
+     */
+    public void raiseAlert(Alert alert) {
+        alerts.compute(alert.getKey(), (key, current) -> {
+            if (current != null && current.getState() == Alert.AlertState.FIRING) {
+                return current;
+            }
+            alert.setId(UUID.randomUUID().toString());
+            alert.setTimestamp(Instant.now());
+            alert.setActive(true);
+            alert.setState(Alert.AlertState.FIRING);
+            enqueue(alert);
+            return alert;
+        });
+    }
+    
+    /**
+     * Resolve a firing alert; the change is written with the next flush
+     */
+    public void resolveAlert(String alertKey) {
+        alerts.computeIfPresent(alertKey, (key, current) -> {
+            if (current.getState() != Alert.AlertState.FIRING) {
+                return current;
+            }
+            // Queued alerts are read by the writer, so resolve a copy
+            Alert resolved = copy(current);
+            resolved.setActive(false);
+            resolved.setState(Alert.AlertState.RESOLVED);
+            resolved.setResolvedAt(Instant.now());
+            enqueue(resolved);
+            return null;
+        });
+    }
+    
+    /**
+     * Queue a transition without ever blocking the evaluating thread. A queue past half full
+     * is flushed right away rather than at the next interval; a full one drops the transition
+     * and has the next flush rewrite the active set from memory instead.
+     */
+    private void enqueue(Alert alert) {
+        if (!transitions.offer(alert)) {
+            droppedTransitions.increment();
+            resyncNeeded = true;
+            return;
+        }
+        queuedTransitions.increment();
+        if (transitions.size() >= queueCapacity / 2 && flushRequested.compareAndSet(false, true)) {
+            try {
+                writer.execute(this::flush);
+            } catch (Exception e) {
+                flushRequested.set(false);
+            }
         }
     }
     
-    @Scheduled(fixedRate = 15000)
-    public void checkDockerAlerts() {
+    /**
+     * Write the queued transitions in one pipeline, then notify subscribers. If the write fails
+     * the transitions are kept for the next flush and nobody is notified yet.
+     */
+    private synchronized void flush() {
+        flushRequested.set(false);
+        if (transitions.isEmpty() && unwritten.isEmpty() && !resyncNeeded) {
+            return;
+        }
+        List<Alert> batch = new ArrayList<>(unwritten.size() + transitions.size());
+        batch.addAll(unwritten);
+        unwritten.clear();
+        transitions.drainTo(batch);
+        
+        long started = System.nanoTime();
+        boolean resync = resyncNeeded;
+        resyncNeeded = false;
+        boolean written = false;
         try {
-            Set<String> containerKeys = redisTemplate.keys("docker:container:*");
-            
-            for (String key : containerKeys) {
-                String containerId = key.substring("docker:container:".length());
-                Object status = redisTemplate.opsForHash().get(key, "status");
-                Object name = redisTemplate.opsForHash().get(key, "name");
-                
-                if (status != null && !"running".equalsIgnoreCase(status.toString())) {
-                    String containerName = name != null ? name.toString() : containerId;
-                    createAlert(
-                        "DOCKER_CONTAINER_DOWN_" + containerId,
-                        "Docker container " + containerName + " is not running (status: " + status + ")",
-                        Alert.AlertLevel.ERROR,
-                        Alert.AlertType.DOCKER_CONTAINER_DOWN,
-                        "DOCKER"
-                    );
+            Duration ttl = Duration.ofSeconds(alertTtlSeconds);
+            redisTemplate.executePipelined(new SessionCallback<Object>() {
+                @Override
+                @SuppressWarnings("unchecked")
+                public <K, V> Object execute(RedisOperations<K, V> operations) {
+                    RedisOperations<String, Object> ops = (RedisOperations<String, Object>) operations;
+                    for (Alert alert : batch) {
+                        String alertKey = alert.getKey();
+                        String alertId = "alert:" + alertKey;
+                        if (alert.getState() == Alert.AlertState.FIRING) {
+                            ops.delete(alertId);
+                            ops.opsForHash().putAll(alertId, toHash(alert));
+                            ops.expire(alertId, ttl);
+                            ops.opsForSet().add(ACTIVE_ALERTS_KEY, alertKey);
+                        } else {
+                            Map<String, String> update = new HashMap<>();
+                            update.put("active", "false");
+                            update.put("state", Alert.AlertState.RESOLVED.name());
+                            update.put("resolvedAt", alert.getResolvedAt().toString());
+                            ops.opsForHash().putAll(alertId, update);
+                            ops.expire(alertId, ttl);
+                            ops.opsForSet().remove(ACTIVE_ALERTS_KEY, alertKey);
+                        }
+                    }
+                    ops.execute((RedisCallback<Object>) connection -> {
+                        alertHistory.write(connection, batch);
+                        return null;
+                    });
+                    if (resync) {
+                        resync(ops, ttl);
+                    }
+                    return null;
                 }
-            }
+            });
+            writtenTransitions.add(batch.size());
+            written = true;
         } catch (Exception e) {
-            log.error("Error checking Docker alerts", e);
+            // Retry up to a queue's worth of the newest transitions; the resync restores the rest
+            int excess = batch.size() - queueCapacity;
+            if (excess > 0) {
+                droppedTransitions.add(excess);
+            }
+            unwritten.addAll(batch.subList(Math.max(0, excess), batch.size()));
+            if (resync || excess > 0) {
+                resyncNeeded = true;
+            }
+            if (MetricsWriter.isRedisUnavailable(e)) {
+                log.warn("Redis unavailable, keeping {} alert transitions for the next flush", unwritten.size());
+            } else {
+                log.error("Error writing {} alert transitions, retrying with the next flush", batch.size(), e);
+            }
+        }
+        lastFlushMillis = (System.nanoTime() - started) / 1_000_000;
+        
+        if (written) {
+            notify(batch);
         }
     }
     
-    private void createAlert(String alertKey, String message, Alert.AlertLevel level, Alert.AlertType type, String source) {
-        try {
-            // Check if this alert already exists and is active
-            String alertId = "alert:" + alertKey;
-            Boolean exists = redisTemplate.hasKey(alertId);
-            
-            if (Boolean.TRUE.equals(exists)) {
-                Object activeStatus = redisTemplate.opsForHash().get(alertId, "active");
-                if (activeStatus != null && Boolean.parseBoolean(activeStatus.toString())) {
-                    // Alert already exists and is active, don't create a duplicate
-                    return;
+    /**
+     * Rewrite the firing alerts and the active set from memory, after transitions were dropped
+     */
+    private void resync(RedisOperations<String, Object> ops, Duration ttl) {
+        List<Alert> firing = new ArrayList<>();
+        alerts.values().forEach(alert -> {
+            if (alert.getState() == Alert.AlertState.FIRING) {
+                firing.add(alert);
+            }
+        });
+        ops.delete(ACTIVE_ALERTS_KEY);
+        for (Alert alert : firing) {
+            String alertId = "alert:" + alert.getKey();
+            ops.opsForHash().putAll(alertId, toHash(alert));
+            ops.expire(alertId, ttl);
+            ops.opsForSet().add(ACTIVE_ALERTS_KEY, alert.getKey());
+        }
+        resyncs.increment();
+        log.warn("Alert queue overflowed, rewrote {} firing alerts", firing.size());
+    }
+    
+    /**
+     * Send the transitions of one flush to {@code /topic/alerts}. Only the last transition of each
+     * alert is sent, and when a server and source have at least {@code alerts.notify.group-threshold}
+     * of them, they go out as one grouped notification instead of one per alert.
+     */
+    private void notify(List<Alert> batch) {
+        Map<String, Alert> latest = new LinkedHashMap<>();
+        for (Alert alert : batch) {
+            latest.remove(alert.getKey());
+            latest.put(alert.getKey(), alert);
+        }
+        coalescedTransitions.add(batch.size() - latest.size());
+        
+        Map<String, List<Alert>> groups = new LinkedHashMap<>();
+        for (Alert alert : latest.values()) {
+            groups.computeIfAbsent(alert.getServerId() + ":" + alert.getSource(), group -> new ArrayList<>()).add(alert);
+        }
+        
+        for (List<Alert> group : groups.values()) {
+            try {
+                if (group.size() < groupThreshold) {
+                    for (Alert alert : group) {
+                        // Send via WebSocket for real-time notification
+                        messagingTemplate.convertAndSend("/topic/alerts", alert);
+                        if (alert.getState() == Alert.AlertState.FIRING) {
+                            log.info("Created alert {}: {}", alert.getKey(), alert.getMessage());
+                        } else {
+                            log.info("Resolved alert: {}", alert.getKey());
+                        }
+                    }
+                    sentNotifications.add(group.size());
+                } else {
+                    Map<String, Object> notification = groupNotification(group);
+                    messagingTemplate.convertAndSend("/topic/alerts", notification);
+                    coalescedTransitions.add(group.size() - 1);
+                    sentNotifications.increment();
+                    log.info("{}", notification.get("message"));
                 }
+            } catch (Exception e) {
+                log.error("Error sending alert notification", e);
             }
-            
-            // Create new alert
-            String uuid = UUID.randomUUID().toString();
-            Instant now = Instant.now();
-            
-            Alert alert = new Alert();
-            alert.setId(uuid);
-            alert.setMessage(message);
-            alert.setLevel(level);
-            alert.setType(type);
-            alert.setSource(source);
-            alert.setTimestamp(now);
-            alert.setActive(true);
-            
-            // Store in Redis
-            Map<String, String> alertData = new HashMap<>();
-            alertData.put("id", uuid);
-            alertData.put("message", message);
-            alertData.put("level", level.name());
-            alertData.put("type", type.name());
-            alertData.put("source", source);
-            alertData.put("timestamp", now.toString());
-            alertData.put("active", "true");
-            
-            redisTemplate.opsForHash().putAll(alertId, alertData);
-            
-            // Add to active alerts set
-            redisTemplate.opsForSet().add("active_alerts", alertKey);
-            
-            // Add to alert history list for this source
-            String historyKey = "alert_history:" + source;
-            redisTemplate.opsForList().leftPush(historyKey, uuid);
-            redisTemplate.opsForList().trim(historyKey, 0, 99); // Keep last 100 alerts
-            
-            // Send via WebSocket for real-time notification
-            messagingTemplate.convertAndSend("/topic/alerts", alert);
-            
-            log.info("Created alert: {}", message);
-        } catch (Exception e) {
-            log.error("Error creating alert", e);
         }
     }
     
-    public void resolveAlert(String alertKey) {
-        try {
-            String alertId = "alert:" + alertKey;
-            
-            if (Boolean.TRUE.equals(redisTemplate.hasKey(alertId))) {
-                // Update alert status
-                redisTemplate.opsForHash().put(alertId, "active", "false");
-                redisTemplate.opsForHash().put(alertId, "resolvedAt", Instant.now().toString());
-                
-                // Remove from active alerts
-                redisTemplate.opsForSet().remove("active_alerts", alertKey);
-                
-                log.info("Resolved alert: {}", alertKey);
-                
-                // Get the alert data to send a resolved notification
-                Map<Object, Object> alertData = redisTemplate.opsForHash().entries(alertId);
-                alertData.put("active", false);
-                alertData.put("resolvedAt", Instant.now().toString());
-                
-                // Send via WebSocket
-                messagingTemplate.convertAndSend("/topic/alerts", alertData);
+    private static Map<String, Object> groupNotification(List<Alert> group) {
+        Alert first = group.get(0);
+        int fired = 0;
+        Alert.AlertLevel level = first.getLevel();
+        for (Alert alert : group) {
+            if (alert.getState() == Alert.AlertState.FIRING) {
+                fired++;
             }
-        } catch (Exception e) {
-            log.error("Error resolving alert: {}", alertKey, e);
+            if (alert.getLevel().compareTo(level) > 0) {
+                level = alert.getLevel();
+            }
+        }
+        int resolved = group.size() - fired;
+        
+        Map<String, Object> notification = new LinkedHashMap<>();
+        notification.put("group", true);
+        notification.put("serverId", first.getServerId());
+        notification.put("source", first.getSource());
+        notification.put("level", level);
+        notification.put("fired", fired);
+        notification.put("resolved", resolved);
+        notification.put("message", group.size() + " " + first.getSource() + " alerts on " + first.getServerId()
+                + ": " + fired + " fired, " + resolved + " resolved");
+        notification.put("timestamp", Instant.now());
+        notification.put("alerts", group);
+        return notification;
+    }
+    
+    public int getQueuedAlerts() {
+        return transitions.size();
+    }
+    
+    public int getQueueCapacity() {
+        return queueCapacity;
+    }
+    
+    public long getQueuedTransitions() {
+        return queuedTransitions.sum();
+    }
+    
+    public long getWrittenTransitions() {
+        return writtenTransitions.sum();
+    }
+    
+    public long getDroppedTransitions() {
+        return droppedTransitions.sum();
+    }
+    
+    public long getCoalescedTransitions() {
+        return coalescedTransitions.sum();
+    }
+    
+    public long getSentNotifications() {
+        return sentNotifications.sum();
+    }
+    
+    public long getResyncs() {
+        return resyncs.sum();
+    }
+    
+    public long getLastFlushMillis() {
+        return lastFlushMillis;
+    }
+    
+    /**
+     * Alerts currently pending or firing, by state
+     */
+    public Map<Alert.AlertState, Integer> getAlertCounts() {
+        Map<Alert.AlertState, Integer> counts = new LinkedHashMap<>();
+        counts.put(Alert.AlertState.PENDING, 0);
+        counts.put(Alert.AlertState.FIRING, 0);
+        alerts.values().forEach(alert -> counts.merge(alert.getState(), 1, Integer::sum));
+        return counts;
+    }
+    
+    private static Map<String, String> toHash(Alert alert) {
+        Map<String, String> data = new HashMap<>();
+        data.put("id", alert.getId());
+        data.put("serverId", alert.getServerId());
+        if (alert.getRule() != null) {
+            data.put("rule", alert.getRule());
         }
+        data.put("resource", alert.getResource());
+        data.put("message", alert.getMessage());
+        data.put("level", alert.getLevel().name());
+        data.put("type", alert.getType().name());
+        data.put("source", alert.getSource());
+        data.put("timestamp", alert.getTimestamp().toString());
+        data.put("active", "true");
+        data.put("state", Alert.AlertState.FIRING.name());
+        return data;
     }
-} 
\ No newline at end of file
+}
@@ -0,0 +1,127 @@
+package com.sudocodes.monitoring.service;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.sudocodes.monitoring.model.MetricsUpdate;
+import com.sudocodes.monitoring.model.ServerIdentity;
+import com.sudocodes.monitoring.redis.LeaderElection;
+import com.sudocodes.monitoring.redis.LeadershipListener;
+import com.sudocodes.monitoring.redis.MetricsUpdateListener;
+import com.sudocodes.monitoring.redis.RedisEndpoint;
+import com.sudocodes.monitoring.redis.RoutingRedisConnectionFactory;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.core.ReactiveRedisTemplate;
+import org.springframework.stereotype.Service;
+import reactor.core.Disposable;
+import reactor.util.retry.Retry;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.time.Duration;
+
+/**
+ * Carries the updates alerts depend on between servers for central alert evaluation.
+ *
+ * With {@code alerts.evaluation.publish} a server publishes those updates of its own on the
+ * {@value #CHANNEL} channel as it writes them, without waiting for Redis. With
+ * {@code alerts.evaluation.central} an instance subscribes to the channel while it is the
+ * {@link LeaderElection leader}, and evaluates the updates of every other server as if they had
+ * been collected locally, so several central instances do not raise the same alerts. The
+ * subscription resubscribes after errors, and is moved to the new endpoint whenever the
+ * {@link RoutingRedisConnectionFactory} switches, as publishers then publish there.
+ */
+@Service
+@Slf4j
+public class AlertUpdateRelay implements MetricsUpdateListener, LeadershipListener {
+
+    public static final String CHANNEL = "alerts:updates";
+
+    private final AlertService alertService;
+    private final ReactiveRedisTemplate<String, Object> reactiveRedisTemplate;
+    private final ServerIdentity serverIdentity;
+    private final ObjectMapper objectMapper;
+    private final RoutingRedisConnectionFactory connectionFactory;
+
+    @Value("${alerts.evaluation.publish:false}")
+    private boolean publish;
+
+    @Value("${alerts.evaluation.central:false}")
+    private boolean central;
+
+    private volatile Disposable subscription;
+
+    @Autowired
+    public AlertUpdateRelay(AlertService alertService, ReactiveRedisTemplate<String, Object> reactiveRedisTemplate,
+                            ServerIdentity serverIdentity, ObjectMapper objectMapper,
+                            RoutingRedisConnectionFactory connectionFactory) {
+        this.alertService = alertService;
+        this.reactiveRedisTemplate = reactiveRedisTemplate;
+        this.serverIdentity = serverIdentity;
+        this.objectMapper = objectMapper;
+        this.connectionFactory = connectionFactory;
+    }
+
+    @PostConstruct
+    public void init() {
+        connectionFactory.addSwitchListener(this::endpointSwitched);
+    }
+
+    @Override
+    public synchronized void leadershipAcquired(long token) {
+        if (!central || subscription != null) {
+            return;
+        }
+        subscribe();
+        log.info("Evaluating alerts for updates published on {}", CHANNEL);
+    }
+
+    private synchronized void endpointSwitched(RedisEndpoint endpoint) {
+        if (subscription != null) {
+            subscription.dispose();
+            subscribe();
+            log.info("Moved the {} subscription to {} ({})", CHANNEL, endpoint.getName(), endpoint);
+        }
+    }
+
+    private void subscribe() {
+        String localServer = serverIdentity.getMetricsKeyPrefix();
+        subscription = reactiveRedisTemplate.listenToChannel(CHANNEL)
+                .doOnError(e -> log.warn("Alert update subscription lost, resubscribing: {}", e.getMessage()))
+                .retryWhen(Retry.backoff(Long.MAX_VALUE, Duration.ofSeconds(1)).maxBackoff(Duration.ofSeconds(30)))
+                .repeatWhen(completed -> completed.delayElements(Duration.ofSeconds(1)))
+                .subscribe(message -> {
+                    try {
+                        MetricsUpdate update = objectMapper.convertValue(message.getMessage(), MetricsUpdate.class);
+                        if (!localServer.equals(update.getServerId())) {
+                            alertService.evaluate(update);
+                        }
+                    } catch (Exception e) {
+                        log.warn("Ignoring malformed alert update: {}", e.getMessage());
+                    }
+                });
+    }
+
+    @Override
+    public synchronized void leadershipLost() {
+        if (subscription != null) {
+            subscription.dispose();
+            subscription = null;
+            log.info("Stopped evaluating alerts for updates published on {}", CHANNEL);
+        }
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        leadershipLost();
+    }
+
+    @Override
+    public void onUpdate(MetricsUpdate update) {
+        if (!publish || !alertService.isEvaluated(update)) {
+            return;
+        }
+        reactiveRedisTemplate.convertAndSend(CHANNEL, update)
+                .subscribe(null, e -> log.debug("Could not publish alert update: {}", e.getMessage()));
+    }
+}
@@ -0,0 +1,357 @@
+package com.sudocodes.monitoring.service;
+
+import com.sudocodes.monitoring.model.Alert;
+import com.sudocodes.monitoring.model.MetricsUpdate;
+import com.sudocodes.monitoring.redis.MetricsUpdateListener;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.PostConstruct;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.LongSupplier;
+import java.util.regex.Pattern;
+
+/**
+ * Flags history series whose values stray from their own recent behaviour, such as a
+ * container's memory creeping up or a recording server's network traffic dropping to zero.
+ *
+ * Each series matching {@code anomaly.series} keeps an exponentially weighted mean and variance,
+ * and each sample is scored by its z-score against them. With {@code anomaly.seasonal.buckets}
+ * set, the series also keeps a baseline per time-of-period bucket (e.g. hour of the day), which
+ * is used instead once it has seen enough samples, so daily patterns are not mistaken for anomalies.
+ * An {@link Alert.AlertType#ANOMALY} alert is raised after {@code anomaly.persistence}
+ * consecutive samples beyond {@code anomaly.z-threshold}, and resolved after as many back within
+ * {@code anomaly.z-clear}. Outliers do not update the baseline until they raise an alert, so a
+ * lasting change is flagged first and only then becomes the new normal.
+ *
+ * State lives in primitive arrays indexed by a slot per series, a few dozen bytes per series
+ * plus the seasonal buckets, and each sample costs a map lookup and constant arithmetic.
+ * Slots of series without a sample for {@code anomaly.idle-timeout} ms are reclaimed and reused,
+ * so removed containers and interfaces do not hold on to them.
+ */
+@Service
+@Slf4j
+public class AnomalyDetector implements MetricsUpdateListener {
+
+    private static final String HISTORY_PREFIX = "history:";
+
+    private final AlertService alertService;
+
+    @Value("${anomaly.enabled:true}")
+    private boolean enabled;
+
+    @Value("${anomaly.series:}")
+    private String[] seriesPatterns;
+
+    @Value("${anomaly.alpha:0.02}")
+    private double alpha;
+
+    @Value("${anomaly.warmup:30}")
+    private int warmup;
+
+    @Value("${anomaly.z-threshold:4}")
+    private double zThreshold;
+
+    @Value("${anomaly.z-clear:2}")
+    private double zClear;
+
+    @Value("${anomaly.persistence:5}")
+    private int persistence;
+
+    /** Smallest standard deviation assumed, relative to the mean, so near-constant series need a real change */
+    @Value("${anomaly.min-deviation:0.05}")
+    private double minDeviation;
+
+    @Value("${anomaly.seasonal.period:86400000}")
+    private long seasonalPeriod;
+
+    @Value("${anomaly.seasonal.buckets:0}")
+    private int seasonalBuckets;
+
+    @Value("${anomaly.seasonal.alpha:0.1}")
+    private double seasonalAlpha;
+
+    @Value("${anomaly.seasonal.warmup:5}")
+    private int seasonalWarmup;
+
+    @Value("${anomaly.max-series:100000}")
+    private int maxSeries;
+
+    @Value("${anomaly.idle-timeout:3600000}")
+    private long idleTimeout;
+
+    private List<Pattern> patterns = new ArrayList<>();
+
+    /** Source of {@link System#currentTimeMillis()}, replaced by tests */
+    private LongSupplier clock = System::currentTimeMillis;
+
+    /** Slot of each series watched, keyed {@code serverId:section:seriesId} */
+    private final Map<String, Integer> slots = new HashMap<>();
+    /** Series no pattern matches, or seen while full; cleared when it reaches {@code anomaly.max-series} */
+    private final Set<String> ignored = new HashSet<>();
+    /** Slots handed out so far; reclaimed ones are reused from {@link #free} first */
+    private int used;
+    private int[] free = new int[0];
+    private int freeCount;
+
+    /** Epoch ms of the last sample */
+    private long[] lastSeen = new long[0];
+    private double[] mean = new double[0];
+    private double[] variance = new double[0];
+    private long[] samples = new long[0];
+    /** Consecutive samples beyond the threshold while healthy, or back within the clear level while firing */
+    private int[] streak = new int[0];
+    /** Key of the alert raised for the series while it fires, null otherwise */
+    private String[] firing = new String[0];
+
+    /** Seasonal mean, variance and sample count, {@code seasonalBuckets} entries per slot */
+    private double[] seasonalMean = new double[0];
+    private double[] seasonalVariance = new double[0];
+    private int[] seasonalSamples = new int[0];
+
+    private long anomalies;
+
+    @Autowired
+    public AnomalyDetector(AlertService alertService) {
+        this.alertService = alertService;
+    }
+
+    @PostConstruct
+    public void init() {
+        for (String glob : seriesPatterns) {
+            if (!glob.trim().isEmpty()) {
+                patterns.add(Pattern.compile(Pattern.quote(glob.trim()).replace("*", "\\E.*\\Q")));
+            }
+        }
+        if (seasonalBuckets < 0 || seasonalPeriod <= 0) {
+            seasonalBuckets = 0;
+        }
+    }
+
+    @Override
+    public void onUpdate(MetricsUpdate update) {
+        if (!enabled || patterns.isEmpty() || !update.getResource().startsWith(HISTORY_PREFIX)) {
+            return;
+        }
+        Object value = update.getFields().get("value");
+        if (!(value instanceof Number)) {
+            return;
+        }
+        double x = ((Number) value).doubleValue();
+        if (Double.isNaN(x) || Double.isInfinite(x)) {
+            return;
+        }
+        Object timestamp = update.getFields().get("timestamp");
+        long time = timestamp instanceof Number ? ((Number) timestamp).longValue() : update.getTimestamp();
+
+        String seriesId = update.getResource().substring(HISTORY_PREFIX.length());
+        observe(update.getServerId(), update.getSection(), seriesId, x, time);
+    }
+
+    private synchronized void observe(String serverId, String section, String seriesId, double x, long time) {
+        String key = serverId + ":" + section + ":" + seriesId;
+        Integer known = slots.get(key);
+        if (known == null && ignored.contains(key)) {
+            return;
+        }
+        int slot = known != null ? known : assign(key, section + ":" + seriesId);
+        if (slot < 0) {
+            return;
+        }
+        lastSeen[slot] = clock.getAsLong();
+
+        // Score against the seasonal baseline once it has enough samples, the overall one otherwise
+        double expected = mean[slot];
+        double spread = variance[slot];
+        boolean scored = samples[slot] >= warmup;
+        int bucket = -1;
+        if (seasonalBuckets > 0) {
+            bucket = slot * seasonalBuckets + (int) (Math.floorMod(time, seasonalPeriod) * seasonalBuckets / seasonalPeriod);
+            if (seasonalSamples[bucket] >= seasonalWarmup) {
+                expected = seasonalMean[bucket];
+                spread = seasonalVariance[bucket];
+                scored = true;
+            }
+        }
+        double deviation = Math.max(Math.sqrt(spread), Math.max(minDeviation * Math.abs(expected), 1e-9));
+        double z = (x - expected) / deviation;
+
+        if (scored) {
+            if (firing[slot] == null) {
+                boolean outlier = Math.abs(z) >= zThreshold;
+                streak[slot] = outlier ? streak[slot] + 1 : 0;
+                if (streak[slot] >= persistence) {
+                    firing[slot] = alertKey(serverId, section, seriesId);
+                    streak[slot] = 0;
+                    anomalies++;
+                    raise(serverId, section, seriesId, x, expected, deviation, z);
+                } else if (outlier) {
+                    // Kept out of the baseline: each outlier folded in widens the variance by about
+                    // alpha * diff^2, enough to pull a step change back under the threshold before
+                    // it has persisted
+                    return;
+                }
+            } else {
+                streak[slot] = Math.abs(z) < zClear ? streak[slot] + 1 : 0;
+                if (streak[slot] >= persistence) {
+                    alertService.resolveAlert(firing[slot]);
+                    firing[slot] = null;
+                    streak[slot] = 0;
+                }
+            }
+        }
+
+        samples[slot]++;
+        if (samples[slot] == 1) {
+            mean[slot] = x;
+        } else {
+            // Plain running mean and variance while warming up, then exponential weights
+            double weight = samples[slot] < warmup ? 1.0 / samples[slot] : alpha;
+            double diff = x - mean[slot];
+            mean[slot] += weight * diff;
+            variance[slot] = (1 - weight) * (variance[slot] + weight * diff * diff);
+        }
+        if (bucket >= 0) {
+            seasonalSamples[bucket]++;
+            if (seasonalSamples[bucket] == 1) {
+                seasonalMean[bucket] = x;
+            } else {
+                double weight = Math.max(seasonalAlpha, 1.0 / seasonalSamples[bucket]);
+                double diff = x - seasonalMean[bucket];
+                seasonalMean[bucket] += weight * diff;
+                seasonalVariance[bucket] = (1 - weight) * (seasonalVariance[bucket] + weight * diff * diff);
+            }
+        }
+    }
+
+    /**
+     * Give a newly seen series a slot if it matches a pattern and there is room,
+     * reusing a reclaimed slot first
+     * @return the slot, or -1 if the series is not watched
+     */
+    private int assign(String key, String name) {
+        if (slots.size() >= maxSeries || !matches(name)) {
+            if (slots.size() >= maxSeries) {
+                log.debug("Not watching {} for anomalies, {} series already", key, maxSeries);
+            }
+            if (ignored.size() >= maxSeries) {
+                ignored.clear();
+            }
+            ignored.add(key);
+            return -1;
+        }
+
+        int slot;
+        if (freeCount > 0) {
+            slot = free[--freeCount];
+            reset(slot);
+        } else {
+            slot = used++;
+            if (slot == mean.length) {
+                int capacity = Math.max(64, mean.length * 2);
+                lastSeen = Arrays.copyOf(lastSeen, capacity);
+                mean = Arrays.copyOf(mean, capacity);
+                variance = Arrays.copyOf(variance, capacity);
+                samples = Arrays.copyOf(samples, capacity);
+                streak = Arrays.copyOf(streak, capacity);
+                firing = Arrays.copyOf(firing, capacity);
+                seasonalMean = Arrays.copyOf(seasonalMean, capacity * seasonalBuckets);
+                seasonalVariance = Arrays.copyOf(seasonalVariance, capacity * seasonalBuckets);
+                seasonalSamples = Arrays.copyOf(seasonalSamples, capacity * seasonalBuckets);
+            }
+        }
+        slots.put(key, slot);
+        return slot;
+    }
+
+    private void reset(int slot) {
+        mean[slot] = 0;
+        variance[slot] = 0;
+        samples[slot] = 0;
+        streak[slot] = 0;
+        firing[slot] = null;
+        int from = slot * seasonalBuckets;
+        Arrays.fill(seasonalMean, from, from + seasonalBuckets, 0);
+        Arrays.fill(seasonalVariance, from, from + seasonalBuckets, 0);
+        Arrays.fill(seasonalSamples, from, from + seasonalBuckets, 0);
+    }
+
+    /**
+     * Free the slots of series without a sample for {@code anomaly.idle-timeout} ms,
+     * resolving their alerts, and forget the ignored series so new patterns or room apply to them
+     */
+    @Scheduled(fixedDelayString = "${anomaly.reclaim-interval:60000}")
+    public synchronized void reclaimIdle() {
+        ignored.clear();
+        if (idleTimeout <= 0) {
+            return;
+        }
+        long cutoff = clock.getAsLong() - idleTimeout;
+        int reclaimed = 0;
+        for (Iterator<Integer> it = slots.values().iterator(); it.hasNext(); ) {
+            int slot = it.next();
+            if (lastSeen[slot] >= cutoff) {
+                continue;
+            }
+            it.remove();
+            if (firing[slot] != null) {
+                alertService.resolveAlert(firing[slot]);
+                firing[slot] = null;
+            }
+            if (freeCount == free.length) {
+                free = Arrays.copyOf(free, Math.max(64, free.length * 2));
+            }
+            free[freeCount++] = slot;
+            reclaimed++;
+        }
+        if (reclaimed > 0) {
+            log.debug("Reclaimed {} anomaly slots idle for {} ms", reclaimed, idleTimeout);
+        }
+    }
+
+    private boolean matches(String name) {
+        for (Pattern pattern : patterns) {
+            if (pattern.matcher(name).matches()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void raise(String serverId, String section, String seriesId, double x, double expected,
+                       double deviation, double z) {
+        Alert alert = new Alert();
+        alert.setKey(alertKey(serverId, section, seriesId));
+        alert.setServerId(serverId);
+        alert.setResource(HISTORY_PREFIX + seriesId);
+        alert.setMessage(String.format("%s %s is unusual: %.2f, expected %.2f +/- %.2f (z = %.1f)",
+                section, seriesId, x, expected, deviation, z));
+        alert.setLevel(Alert.AlertLevel.WARNING);
+        alert.setType(Alert.AlertType.ANOMALY);
+        alert.setSource(section.toUpperCase(Locale.ROOT));
+        alertService.raiseAlert(alert);
+    }
+
+    private static String alertKey(String serverId, String section, String seriesId) {
+        return serverId + ":ANOMALY_" + section + "_" + seriesId;
+    }
+
+    public synchronized int getSeriesCount() {
+        return slots.size();
+    }
+
+    public synchronized long getAnomalies() {
+        return anomalies;
+    }
+}
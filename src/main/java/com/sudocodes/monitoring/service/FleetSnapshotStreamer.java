@@ -0,0 +1,268 @@
+package com.sudocodes.monitoring.service;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.sudocodes.monitoring.redis.ResourceIndex;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Streams the metrics of many servers as one JSON document.
+ *
+ * Server snapshots are read and serialized on a small worker pool, at most
+ * {@code parallelism} at a time per request, and written to the response as each one
+ * completes, so neither the whole fleet nor the whole document is held in memory.
+ * Output stops at a byte limit, in which case the document ends with {@code "truncated": true}.
+ * Binary formats cannot splice pre-serialized values, so there the workers only read and the
+ * snapshots are encoded on the response thread, and the limit is checked after each server.
+ */
+@Service
+@Slf4j
+public class FleetSnapshotStreamer {
+
+    private final ServerSnapshotReader serverSnapshotReader;
+    private final ResourceIndex resourceIndex;
+    private final ObjectMapper objectMapper;
+
+    @Value("${metrics.all.threads:8}")
+    private int threads;
+
+    @Value("${metrics.all.parallelism:8}")
+    private int parallelism;
+
+    @Value("${metrics.all.max-bytes:16777216}")
+    private long defaultMaxBytes;
+
+    private ExecutorService executor;
+
+    @Autowired
+    public FleetSnapshotStreamer(ServerSnapshotReader serverSnapshotReader, ResourceIndex resourceIndex,
+                                 ObjectMapper objectMapper) {
+        this.serverSnapshotReader = serverSnapshotReader;
+        this.resourceIndex = resourceIndex;
+        this.objectMapper = objectMapper;
+    }
+
+    @PostConstruct
+    public void init() {
+        AtomicInteger count = new AtomicInteger();
+        executor = Executors.newFixedThreadPool(threads, runnable -> {
+            Thread thread = new Thread(runnable, "fleet-read-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+
+    public long getDefaultMaxBytes() {
+        return defaultMaxBytes;
+    }
+
+    /**
+     * Write {@code {"<serverId>": {...}, ..., "servers": [...]}} for the given servers
+     * @param serverFilter server ids to include, or null/empty for all servers
+     * @param maxBytes stop adding servers once the serialized snapshots reach this size
+     */
+    public void stream(Collection<String> serverFilter, long maxBytes, ResponseFormat format, OutputStream out)
+            throws IOException {
+        Map<String, Double> servers = resourceIndex.getServers();
+        if (serverFilter != null && !serverFilter.isEmpty()) {
+            servers.keySet().retainAll(serverFilter);
+        }
+
+        List<String> serverIds = new ArrayList<>(servers.keySet());
+        CompletionService<ServerJson> completion = new ExecutorCompletionService<>(executor);
+        List<Future<ServerJson>> futures = new ArrayList<>();
+        Map<String, Map<String, Object>> serverInfo = new HashMap<>();
+
+        int submitted = 0;
+        int completed = 0;
+        long written = 0;
+        boolean truncated = false;
+
+        CountingOutputStream counted = new CountingOutputStream(out);
+        try (JsonGenerator generator = format.mapper(objectMapper).getFactory().createGenerator(counted)) {
+            generator.disable(JsonGenerator.Feature.AUTO_CLOSE_TARGET);
+            generator.writeStartObject();
+
+            // Keep at most `parallelism` reads running for this request
+            while (submitted < serverIds.size() && submitted < parallelism) {
+                futures.add(completion.submit(readTask(serverIds.get(submitted++), format)));
+            }
+
+            while (completed < submitted) {
+                ServerJson server = take(completion);
+                completed++;
+
+                if (server.json != null) {
+                    if (written + server.json.length > maxBytes) {
+                        truncated = true;
+                        break;
+                    }
+                    // An empty raw value writes the separator and marks the field as written; the
+                    // serialized bytes then go straight to the response without being decoded
+                    generator.writeFieldName(server.serverId);
+                    generator.writeRawValue("");
+                    generator.flush();
+                    counted.write(server.json);
+                    written += server.json.length;
+                    serverInfo.put(server.serverId, server.info);
+                } else if (server.snapshot != null) {
+                    if (written >= maxBytes) {
+                        truncated = true;
+                        break;
+                    }
+                    long before = counted.count;
+                    generator.writeFieldName(server.serverId);
+                    generator.writeObject(server.snapshot);
+                    generator.flush();
+                    written += counted.count - before;
+                    if (server.info != null) {
+                        serverInfo.put(server.serverId, server.info);
+                    }
+                }
+
+                if (submitted < serverIds.size()) {
+                    futures.add(completion.submit(readTask(serverIds.get(submitted++), format)));
+                }
+            }
+
+            // Server list for reference, in last-seen order
+            generator.writeArrayFieldStart("servers");
+            for (Map.Entry<String, Double> server : servers.entrySet()) {
+                Map<String, Object> info = serverInfo.get(server.getKey());
+                if (info == null) {
+                    continue;
+                }
+                Map<String, Object> serverData = new LinkedHashMap<>();
+                serverData.put("id", server.getKey());
+                serverData.putAll(info);
+                serverData.put("last_seen", server.getValue().longValue());
+                generator.writeObject(serverData);
+            }
+            generator.writeEndArray();
+
+            if (truncated) {
+                generator.writeBooleanField("truncated", true);
+            }
+            generator.writeEndObject();
+        } finally {
+            // Skip reads not yet started if the output was truncated or the client went away
+            for (Future<ServerJson> future : futures) {
+                future.cancel(false);
+            }
+        }
+
+        if (truncated) {
+            log.debug("Truncated fleet metrics response at {} bytes after {} of {} servers",
+                    written, serverInfo.size(), serverIds.size());
+        }
+    }
+
+    private Callable<ServerJson> readTask(String serverId, ResponseFormat format) {
+        return () -> {
+            Map<String, Object> snapshot;
+            try {
+                snapshot = serverSnapshotReader.read(serverId);
+            } catch (Exception e) {
+                log.error("Error retrieving metrics for server {}", serverId, e);
+                snapshot = new HashMap<>();
+                snapshot.put("error", "Error retrieving metrics: " + e.getMessage());
+                return serverJson(serverId, snapshot, null, format);
+            }
+
+            @SuppressWarnings("unchecked")
+            Map<String, Object> info = (Map<String, Object>) snapshot.get("server_info");
+            if (info == null || info.isEmpty()) {
+                // Listed in the index but no longer reporting
+                return new ServerJson(serverId, null, null, null);
+            }
+            return serverJson(serverId, snapshot, info, format);
+        };
+    }
+
+    private ServerJson serverJson(String serverId, Map<String, Object> snapshot, Map<String, Object> info,
+                                  ResponseFormat format) throws IOException {
+        if (format.isBinary()) {
+            return new ServerJson(serverId, null, snapshot, info);
+        }
+        return new ServerJson(serverId, objectMapper.writeValueAsBytes(snapshot), null, info);
+    }
+
+    private ServerJson take(CompletionService<ServerJson> completion) throws IOException {
+        try {
+            return completion.take().get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while reading server metrics", e);
+        } catch (ExecutionException e) {
+            throw new IOException("Error serializing server metrics", e.getCause());
+        }
+    }
+
+    /**
+     * One server's snapshot, already serialized to JSON by the worker that read it, or as read for binary formats
+     */
+    private static class ServerJson {
+        private final String serverId;
+        private final byte[] json;
+        private final Map<String, Object> snapshot;
+        private final Map<String, Object> info;
+
+        private ServerJson(String serverId, byte[] json, Map<String, Object> snapshot, Map<String, Object> info) {
+            this.serverId = serverId;
+            this.json = json;
+            this.snapshot = snapshot;
+            this.info = info;
+        }
+    }
+
+    /**
+     * Counts the bytes written to the response
+     */
+    private static class CountingOutputStream extends FilterOutputStream {
+        private long count;
+
+        private CountingOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            count++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            count += len;
+        }
+    }
+}
@@ -0,0 +1,312 @@
+package com.sudocodes.monitoring.service;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.sudocodes.monitoring.redis.MetricsRollups;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.connection.RedisZSetCommands;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.ZSetOperations;
+import org.springframework.stereotype.Service;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Time-range queries over any history series, downsampled on the server.
+ *
+ * A series is named {@code section:rest}, e.g. {@code system:cpu}, {@code docker:<id>:memory}
+ * or {@code network:eth0:received}, and maps to the sorted set {@code serverId:section:history:rest},
+ * or to one of its rollups, see {@link MetricsRollups}. Unless a resolution is requested, the
+ * coarsest tier that still has {@code maxPoints} buckets in the window and retains its start is used.
+ * The window is read with ZRANGEBYSCORE into primitive arrays, reduced to at most
+ * {@code maxPoints} with {@link Lttb}, and written straight to the response, either as one
+ * object per point or as parallel arrays, in any {@link ResponseFormat}.
+ */
+@Service
+@Slf4j
+public class HistoryQueryService {
+
+    static final Set<String> SECTIONS =
+            Collections.unmodifiableSet(new HashSet<>(Arrays.asList("system", "docker", "storage", "network", "rtsp",
+                    "collector", "redis", "monitor")));
+
+    private static final String RAW = "raw";
+
+    private final StringRedisTemplate stringRedisTemplate;
+    private final ObjectMapper objectMapper;
+    private final MetricsRollups metricsRollups;
+
+    @Value("${metrics.history.default-window:3600000}")
+    private long defaultWindowMs;
+
+    @Value("${metrics.history.default-points:500}")
+    private int defaultPoints;
+
+    @Value("${metrics.history.max-points:5000}")
+    private int maxPointsLimit;
+
+    @Autowired
+    public HistoryQueryService(StringRedisTemplate stringRedisTemplate, ObjectMapper objectMapper,
+                               MetricsRollups metricsRollups) {
+        this.stringRedisTemplate = stringRedisTemplate;
+        this.objectMapper = objectMapper;
+        this.metricsRollups = metricsRollups;
+    }
+
+    /**
+     * Resolve and validate a query
+     * @param resolution {@code raw}, {@code 1m}, {@code 5m}, {@code 1h}, or null to pick one
+     * @param columnar write parallel arrays instead of one object per point
+     * @throws IllegalArgumentException if the series name, window or resolution is invalid
+     */
+    public Query query(String serverId, String series, Long from, Long to, Integer maxPoints, String resolution,
+                       boolean columnar) {
+        int separator = series.indexOf(':');
+        String section = separator > 0 ? series.substring(0, separator) : null;
+        if (section == null || separator == series.length() - 1 || !SECTIONS.contains(section)) {
+            throw new IllegalArgumentException("Series must be <section>:<name> with section one of " + SECTIONS);
+        }
+
+        long end = to != null ? to : System.currentTimeMillis();
+        long start = from != null ? from : end - defaultWindowMs;
+        if (start > end) {
+            throw new IllegalArgumentException("from must not be after to");
+        }
+        int points = maxPoints != null ? maxPoints : defaultPoints;
+        points = Math.max(3, Math.min(points, maxPointsLimit));
+
+        String seriesId = series.substring(separator + 1);
+        String rawKey = serverId + ":" + section + ":history:" + seriesId;
+
+        MetricsRollups.Resolution tier;
+        if (resolution == null || resolution.isEmpty()) {
+            tier = pickTier(rawKey, start, end, points);
+        } else if (RAW.equals(resolution)) {
+            tier = null;
+        } else {
+            tier = MetricsRollups.Resolution.fromLabel(resolution);
+            if (tier == null) {
+                throw new IllegalArgumentException("resolution must be one of raw, 1m, 5m, 1h");
+            }
+        }
+
+        String key = tier != null ? MetricsRollups.key(serverId, section, tier, seriesId) : rawKey;
+        return new Query(serverId, series, key, tier, start, end, points, columnar);
+    }
+
+    /**
+     * Coarsest rollup that has at least {@code points} buckets in the window and still retains its start.
+     * Failing that, raw samples if they reach back to the start, else the finest rollup that does.
+     * @return the rollup resolution, or null for raw samples
+     */
+    private MetricsRollups.Resolution pickTier(String rawKey, long from, long to, int points) {
+        MetricsRollups.Resolution[] tiers = MetricsRollups.Resolution.values();
+        long age = System.currentTimeMillis() - from;
+
+        for (int i = tiers.length - 1; i >= 0; i--) {
+            if ((to - from) / tiers[i].getMillis() >= points && metricsRollups.getRetention(tiers[i]) >= age) {
+                return tiers[i];
+            }
+        }
+
+        Set<ZSetOperations.TypedTuple<String>> oldest = stringRedisTemplate.opsForZSet().rangeWithScores(rawKey, 0, 0);
+        if (oldest != null && !oldest.isEmpty()) {
+            Double score = oldest.iterator().next().getScore();
+            if (score != null && score <= from) {
+                return null;
+            }
+        }
+
+        for (MetricsRollups.Resolution tier : tiers) {
+            if (metricsRollups.getRetention(tier) >= age) {
+                return tier;
+            }
+        }
+        return tiers[tiers.length - 1];
+    }
+
+    /**
+     * Write {@code {"serverId", "series", "resolution", "from", "to", "count", "points": [...]}}, points in
+     * ascending time order. Raw points are {@code {"timestamp", "value"}}; rollup points add
+     * {@code min}, {@code max} and {@code count}, with the bucket average as value.
+     * Columnar queries replace {@code points} with {@code timestamps}, {@code values} and, for
+     * rollups, {@code mins}, {@code maxes} and {@code counts} arrays.
+     */
+    public void stream(Query query, ResponseFormat format, OutputStream out) throws IOException {
+        Samples samples = read(query.key, query.from, query.to, query.resolution != null);
+        int[] selected = Lttb.select(samples.timestamps, samples.values, samples.count, query.maxPoints);
+
+        try (JsonGenerator generator = format.mapper(objectMapper).getFactory().createGenerator(out)) {
+            generator.disable(JsonGenerator.Feature.AUTO_CLOSE_TARGET);
+            generator.writeStartObject();
+            generator.writeStringField("serverId", query.serverId);
+            generator.writeStringField("series", query.series);
+            generator.writeStringField("resolution", query.resolution != null ? query.resolution.getLabel() : RAW);
+            generator.writeNumberField("from", query.from);
+            generator.writeNumberField("to", query.to);
+            generator.writeNumberField("count", samples.count);
+            if (query.columnar) {
+                writeColumns(generator, samples, selected);
+            } else {
+                writePoints(generator, samples, selected);
+            }
+            generator.writeEndObject();
+        }
+    }
+
+    private static void writePoints(JsonGenerator generator, Samples samples, int[] selected) throws IOException {
+        generator.writeArrayFieldStart("points");
+        for (int index : selected) {
+            generator.writeStartObject();
+            generator.writeNumberField("timestamp", (long) samples.timestamps[index]);
+            generator.writeNumberField("value", samples.values[index]);
+            if (samples.counts != null) {
+                generator.writeNumberField("min", samples.mins[index]);
+                generator.writeNumberField("max", samples.maxes[index]);
+                generator.writeNumberField("count", samples.counts[index]);
+            }
+            generator.writeEndObject();
+        }
+        generator.writeEndArray();
+    }
+
+    private static void writeColumns(JsonGenerator generator, Samples samples, int[] selected) throws IOException {
+        generator.writeArrayFieldStart("timestamps");
+        for (int index : selected) {
+            generator.writeNumber((long) samples.timestamps[index]);
+        }
+        generator.writeEndArray();
+        writeColumn(generator, "values", samples.values, selected);
+        if (samples.counts != null) {
+            writeColumn(generator, "mins", samples.mins, selected);
+            writeColumn(generator, "maxes", samples.maxes, selected);
+            generator.writeArrayFieldStart("counts");
+            for (int index : selected) {
+                generator.writeNumber(samples.counts[index]);
+            }
+            generator.writeEndArray();
+        }
+    }
+
+    private static void writeColumn(JsonGenerator generator, String name, double[] column, int[] selected)
+            throws IOException {
+        generator.writeArrayFieldStart(name);
+        for (int index : selected) {
+            generator.writeNumber(column[index]);
+        }
+        generator.writeEndArray();
+    }
+
+    /**
+     * Write {@code {"error": message}} for a rejected query
+     */
+    public void writeError(String message, ResponseFormat format, OutputStream out) throws IOException {
+        format.mapper(objectMapper).writeValue(out, Collections.singletonMap("error", message));
+    }
+
+    /**
+     * Read a window of a history or rollup sorted set. Scores are the sample or bucket timestamps,
+     * members the JSON-encoded sample values or encoded rollup buckets.
+     */
+    private Samples read(String key, long from, long to, boolean rollup) {
+        byte[] rawKey = key.getBytes(StandardCharsets.UTF_8);
+        Samples samples = stringRedisTemplate.execute((RedisCallback<Samples>) connection -> {
+            Set<RedisZSetCommands.Tuple> tuples = connection.zRangeByScoreWithScores(rawKey, from, to);
+            Samples result = new Samples(tuples != null ? tuples.size() : 0, rollup);
+            if (tuples != null) {
+                for (RedisZSetCommands.Tuple tuple : tuples) {
+                    result.add(tuple.getScore(), tuple.getValue());
+                }
+            }
+            return result;
+        });
+        return samples != null ? samples : new Samples(0, rollup);
+    }
+
+    /**
+     * A validated history query
+     */
+    public static class Query {
+        private final String serverId;
+        private final String series;
+        private final String key;
+        private final MetricsRollups.Resolution resolution;
+        private final long from;
+        private final long to;
+        private final int maxPoints;
+        private final boolean columnar;
+
+        private Query(String serverId, String series, String key, MetricsRollups.Resolution resolution,
+                      long from, long to, int maxPoints, boolean columnar) {
+            this.serverId = serverId;
+            this.series = series;
+            this.key = key;
+            this.resolution = resolution;
+            this.from = from;
+            this.to = to;
+            this.maxPoints = maxPoints;
+            this.columnar = columnar;
+        }
+    }
+
+    /**
+     * Samples of one window as parallel primitive arrays; rollups also keep min, max and count
+     */
+    private static class Samples {
+        private final double[] timestamps;
+        private final double[] values;
+        private final double[] mins;
+        private final double[] maxes;
+        private final long[] counts;
+        private int count;
+
+        private Samples(int capacity, boolean rollup) {
+            this.timestamps = new double[capacity];
+            this.values = new double[capacity];
+            this.mins = rollup ? new double[capacity] : null;
+            this.maxes = rollup ? new double[capacity] : null;
+            this.counts = rollup ? new long[capacity] : null;
+        }
+
+        private void add(double timestamp, byte[] member) {
+            String text = new String(member, StandardCharsets.UTF_8);
+            if (counts != null) {
+                double[] bucket = MetricsRollups.parseMember(text);
+                if (bucket == null) {
+                    return;
+                }
+                if (count > 0 && timestamps[count - 1] == timestamp) {
+                    // The same bucket written in two parts around a restart
+                    int i = count - 1;
+                    long merged = counts[i] + (long) bucket[1];
+                    values[i] = (values[i] * counts[i] + bucket[4] * bucket[1]) / merged;
+                    mins[i] = Math.min(mins[i], bucket[2]);
+                    maxes[i] = Math.max(maxes[i], bucket[3]);
+                    counts[i] = merged;
+                    return;
+                }
+                counts[count] = (long) bucket[1];
+                mins[count] = bucket[2];
+                maxes[count] = bucket[3];
+                values[count] = bucket[4];
+            } else {
+                try {
+                    values[count] = Double.parseDouble(text);
+                } catch (NumberFormatException e) {
+                    // Not a numeric sample, leave it out
+                    return;
+                }
+            }
+            timestamps[count++] = timestamp;
+        }
+    }
+}
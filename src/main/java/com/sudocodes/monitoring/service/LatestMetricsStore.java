@@ -0,0 +1,153 @@
+package com.sudocodes.monitoring.service;
+
+import com.sudocodes.monitoring.model.MetricsUpdate;
+import com.sudocodes.monitoring.redis.MetricsUpdateListener;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Latest known values of every resource this server collects, kept in memory as the
+ * {@link com.sudocodes.monitoring.redis.MetricsWriter} hands them to its listeners.
+ * Resources not updated for {@code metrics.ttl} seconds are dropped, as their keys have expired
+ * in Redis by then, so removed containers, streams and servers do not linger.
+ */
+@Component
+@Slf4j
+public class LatestMetricsStore implements MetricsUpdateListener {
+
+    private final Map<String, MetricsUpdate> latest = new ConcurrentHashMap<>();
+
+    @Value("${metrics.ttl:1800}")
+    private long ttlSeconds;
+
+    /** Bumped on every update */
+    private final AtomicLong version = new AtomicLong();
+
+    /** Bumped when a resource or a field is seen for the first time, or a resource is dropped */
+    private final AtomicLong shapeVersion = new AtomicLong();
+
+    /**
+     * Merge an update into the store
+     */
+    @Override
+    public void onUpdate(MetricsUpdate update) {
+        boolean[] reshaped = new boolean[1];
+        latest.compute(key(update), (key, previous) -> {
+            Map<String, Object> fields = previous != null ? new HashMap<>(previous.getFields()) : new HashMap<>();
+            for (Map.Entry<String, Object> field : update.getFields().entrySet()) {
+                if (!fields.containsKey(field.getKey())) {
+                    reshaped[0] = true;
+                }
+                fields.put(field.getKey(), field.getValue());
+            }
+            return new MetricsUpdate(update.getServerId(), update.getSection(), update.getResource(),
+                    Collections.unmodifiableMap(fields), update.getTimestamp());
+        });
+        if (reshaped[0]) {
+            shapeVersion.incrementAndGet();
+        }
+        version.incrementAndGet();
+    }
+
+    /**
+     * Fields of an update whose values differ from what is stored, for listeners running before this one
+     */
+    public Map<String, Object> changes(MetricsUpdate update) {
+        MetricsUpdate previous = latest.get(key(update));
+        if (previous == null) {
+            return new HashMap<>(update.getFields());
+        }
+        Map<String, Object> changed = new HashMap<>();
+        for (Map.Entry<String, Object> field : update.getFields().entrySet()) {
+            Object old = previous.getFields().get(field.getKey());
+            if (old == null || !old.equals(field.getValue())) {
+                changed.put(field.getKey(), field.getValue());
+            }
+        }
+        return changed;
+    }
+
+    /**
+     * Drop resources whose last update is older than the metrics TTL
+     */
+    @Scheduled(fixedDelayString = "${metrics.latest.evict-interval:60000}")
+    public void evictExpired() {
+        if (ttlSeconds <= 0) {
+            return;
+        }
+        long cutoff = System.currentTimeMillis() - ttlSeconds * 1000;
+        int evicted = 0;
+        for (String key : latest.keySet()) {
+            boolean[] expired = new boolean[1];
+            // Decided under the entry, so an update arriving meanwhile keeps it
+            latest.computeIfPresent(key, (k, update) -> {
+                expired[0] = update.getTimestamp() < cutoff;
+                return expired[0] ? null : update;
+            });
+            if (expired[0]) {
+                evicted++;
+            }
+        }
+        if (evicted > 0) {
+            shapeVersion.incrementAndGet();
+            version.incrementAndGet();
+            log.debug("Dropped {} resources not updated for {} s", evicted, ttlSeconds);
+        }
+    }
+
+    /**
+     * Latest values of all resources
+     */
+    public Collection<MetricsUpdate> getAll() {
+        return Collections.unmodifiableCollection(latest.values());
+    }
+
+    /**
+     * Latest values of all resources of one server
+     */
+    public List<MetricsUpdate> getServer(String serverId) {
+        List<MetricsUpdate> updates = new ArrayList<>();
+        for (MetricsUpdate update : latest.values()) {
+            if (update.getServerId().equals(serverId)) {
+                updates.add(update);
+            }
+        }
+        return updates;
+    }
+
+    /**
+     * Latest values stored under a key of the form {@code serverId:section:resource}, or null
+     */
+    public MetricsUpdate get(String key) {
+        return latest.get(key);
+    }
+
+    /**
+     * Changes whenever any value is updated
+     */
+    public long getVersion() {
+        return version.get();
+    }
+
+    /**
+     * Changes only when a resource or field appears or a resource is dropped, i.e. when the set of series changes
+     */
+    public long getShapeVersion() {
+        return shapeVersion.get();
+    }
+
+    public static String key(MetricsUpdate update) {
+        return update.getServerId() + ":" + update.getSection() + ":" + update.getResource();
+    }
+}
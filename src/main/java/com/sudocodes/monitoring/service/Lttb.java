@@ -0,0 +1,77 @@
+package com.sudocodes.monitoring.service;
+
+/**
+ * Largest-Triangle-Three-Buckets downsampling of a time series.
+ *
+ * Keeps the first and last points and, from each of {@code threshold - 2} equal buckets
+ * in between, the point forming the largest triangle with the point kept from the
+ * previous bucket and the average of the next bucket. Peaks and dips survive, unlike
+ * with plain averaging, so a downsampled chart keeps the shape of the raw one.
+ */
+final class Lttb {
+
+    private Lttb() {
+    }
+
+    /**
+     * Indexes of the points to keep, in ascending order
+     * @param x timestamps, ascending
+     * @param y values
+     * @param count number of points in {@code x} and {@code y}
+     * @param threshold maximum number of points to keep, at least 3
+     */
+    static int[] select(double[] x, double[] y, int count, int threshold) {
+        if (threshold >= count || threshold < 3) {
+            // Nothing to drop, or too few points to form buckets
+            int[] all = new int[count];
+            for (int i = 0; i < count; i++) {
+                all[i] = i;
+            }
+            return all;
+        }
+
+        int[] selected = new int[threshold];
+        double bucketSize = (double) (count - 2) / (threshold - 2);
+        int previous = 0;
+        selected[0] = 0;
+
+        for (int bucket = 0; bucket < threshold - 2; bucket++) {
+            // Average of the next bucket, or the last point for the final bucket
+            int nextStart = (int) Math.floor((bucket + 1) * bucketSize) + 1;
+            int nextEnd = Math.min((int) Math.floor((bucket + 2) * bucketSize) + 1, count);
+            double avgX = 0;
+            double avgY = 0;
+            for (int i = nextStart; i < nextEnd; i++) {
+                avgX += x[i];
+                avgY += y[i];
+            }
+            int nextCount = nextEnd - nextStart;
+            if (nextCount > 0) {
+                avgX /= nextCount;
+                avgY /= nextCount;
+            } else {
+                avgX = x[count - 1];
+                avgY = y[count - 1];
+            }
+
+            int start = (int) Math.floor(bucket * bucketSize) + 1;
+            int end = (int) Math.floor((bucket + 1) * bucketSize) + 1;
+            double maxArea = -1;
+            int chosen = start;
+            for (int i = start; i < end; i++) {
+                double area = Math.abs((x[previous] - avgX) * (y[i] - y[previous])
+                        - (x[previous] - x[i]) * (avgY - y[previous]));
+                if (area > maxArea) {
+                    maxArea = area;
+                    chosen = i;
+                }
+            }
+
+            selected[bucket + 1] = chosen;
+            previous = chosen;
+        }
+
+        selected[threshold - 1] = count - 1;
+        return selected;
+    }
+}
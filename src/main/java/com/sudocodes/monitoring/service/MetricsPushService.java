@@ -0,0 +1,105 @@
+package com.sudocodes.monitoring.service;
+
+import com.sudocodes.monitoring.model.MetricsUpdate;
+import com.sudocodes.monitoring.redis.MetricsUpdateListener;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.Ordered;
+import org.springframework.core.annotation.Order;
+import org.springframework.messaging.simp.SimpMessagingTemplate;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Pushes metric changes to WebSocket subscribers of {@code /topic/metrics/{serverId}}.
+ *
+ * Updates are diffed against the latest known values so only changed fields are sent,
+ * and collected per server until the next flush, so a burst of writes within one
+ * window becomes a single frame per server. Runs before the other update listeners,
+ * so the store still holds the previous values when an update is diffed.
+ */
+@Service
+@Order(Ordered.HIGHEST_PRECEDENCE)
+@Slf4j
+public class MetricsPushService implements MetricsUpdateListener {
+
+    private static final String HISTORY_PREFIX = "history:";
+
+    private final SimpMessagingTemplate messagingTemplate;
+    private final LatestMetricsStore latestMetricsStore;
+
+    @Value("${metrics.push.enabled:true}")
+    private boolean enabled;
+
+    /** Pending changes by server, then by section and resource */
+    private Map<String, Map<String, MetricsUpdate>> pending = new HashMap<>();
+
+    @Autowired
+    public MetricsPushService(SimpMessagingTemplate messagingTemplate, LatestMetricsStore latestMetricsStore) {
+        this.messagingTemplate = messagingTemplate;
+        this.latestMetricsStore = latestMetricsStore;
+    }
+
+    @Override
+    public void onUpdate(MetricsUpdate update) {
+        Map<String, Object> changed = latestMetricsStore.changes(update);
+        if (update.getResource().startsWith(HISTORY_PREFIX) && !changed.isEmpty()) {
+            // A history point is only meaningful as a whole, even if its value repeats
+            changed = new HashMap<>(update.getFields());
+        }
+        if (!enabled || changed.isEmpty()) {
+            return;
+        }
+
+        String resourceKey = update.getSection() + ":" + update.getResource();
+        synchronized (this) {
+            Map<String, MetricsUpdate> serverUpdates = pending.computeIfAbsent(update.getServerId(), id -> new LinkedHashMap<>());
+            MetricsUpdate coalesced = serverUpdates.get(resourceKey);
+            if (coalesced == null) {
+                serverUpdates.put(resourceKey, new MetricsUpdate(update.getServerId(), update.getSection(),
+                        update.getResource(), changed, update.getTimestamp()));
+            } else {
+                coalesced.getFields().putAll(changed);
+                coalesced.setTimestamp(update.getTimestamp());
+            }
+        }
+    }
+
+    /**
+     * Send the changes collected during the last window, one frame per server
+     */
+    @Scheduled(fixedDelayString = "${metrics.push.window:1000}")
+    public void flush() {
+        Map<String, Map<String, MetricsUpdate>> updates;
+        synchronized (this) {
+            if (pending.isEmpty()) {
+                return;
+            }
+            updates = pending;
+            pending = new HashMap<>();
+        }
+
+        long now = System.currentTimeMillis();
+        for (Map.Entry<String, Map<String, MetricsUpdate>> server : updates.entrySet()) {
+            List<MetricsUpdate> serverUpdates = new ArrayList<>(server.getValue().values());
+
+            Map<String, Object> frame = new LinkedHashMap<>();
+            frame.put("serverId", server.getKey());
+            frame.put("timestamp", now);
+            frame.put("updates", serverUpdates);
+
+            try {
+                messagingTemplate.convertAndSend("/topic/metrics/" + server.getKey(), frame);
+            } catch (Exception e) {
+                log.error("Error pushing metrics for server {}", server.getKey(), e);
+            }
+        }
+    }
+}
@@ -0,0 +1,327 @@
+package com.sudocodes.monitoring.service;
+
+import com.sudocodes.monitoring.model.MetricsUpdate;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Service;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Renders the latest values of {@link LatestMetricsStore} in the OpenMetrics text format.
+ *
+ * Every numeric field of a resource, including numbers the collectors store as text, becomes
+ * a gauge named {@code monitor_<section>_<resource kind>_<field>} with {@code server} and,
+ * for resources like {@code disk:<id>}, {@code id} labels. History samples are left out,
+ * they repeat current values. The list of series with their names and labels already encoded is built
+ * only when the store sees a new resource or field; a scrape walks that list, looks up each
+ * value and appends digits into a reused buffer. The rendered text is kept until the store
+ * changes, so concurrent scrapers between two collection cycles share one rendering.
+ */
+@Service
+public class OpenMetricsWriter {
+
+    private static final String PREFIX = "monitor_";
+    private static final byte[] GAUGE_SUFFIX = " gauge\n".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] EOF = "# EOF\n".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] NAN = "NaN".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] POSITIVE_INFINITY = "+Inf".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] NEGATIVE_INFINITY = "-Inf".getBytes(StandardCharsets.US_ASCII);
+
+    private final LatestMetricsStore latestMetricsStore;
+
+    private List<Family> layout = new ArrayList<>();
+    private long layoutShapeVersion = -1;
+
+    private byte[] rendered;
+    private long renderedVersion = -1;
+
+    private byte[] buffer = new byte[64 * 1024];
+    private int length;
+
+    @Autowired
+    public OpenMetricsWriter(LatestMetricsStore latestMetricsStore) {
+        this.latestMetricsStore = latestMetricsStore;
+    }
+
+    /**
+     * Current exposition text as UTF-8. The returned array is shared and must not be modified.
+     */
+    public synchronized byte[] render() {
+        long version = latestMetricsStore.getVersion();
+        if (rendered != null && renderedVersion == version) {
+            return rendered;
+        }
+
+        long shapeVersion = latestMetricsStore.getShapeVersion();
+        if (shapeVersion != layoutShapeVersion) {
+            layout = buildLayout();
+            layoutShapeVersion = shapeVersion;
+        }
+
+        length = 0;
+        for (Family family : layout) {
+            append(family.typeLine);
+            for (Series series : family.series) {
+                MetricsUpdate update = latestMetricsStore.get(series.storeKey);
+                Object value = update != null ? update.getFields().get(series.field) : null;
+                if (value instanceof Number) {
+                    appendSample(family.name, series.labels, ((Number) value).doubleValue());
+                } else if (value instanceof Boolean) {
+                    appendSample(family.name, series.labels, (Boolean) value ? 1 : 0);
+                } else if (value instanceof String && isNumeric((String) value)) {
+                    // Most collectors store formatted numbers, those are already valid sample values
+                    append(family.name);
+                    append(series.labels);
+                    appendByte((byte) ' ');
+                    appendAscii((String) value);
+                    appendByte((byte) '\n');
+                }
+            }
+        }
+        append(EOF);
+
+        rendered = Arrays.copyOf(buffer, length);
+        renderedVersion = version;
+        return rendered;
+    }
+
+    /**
+     * Group the numeric fields of all stored resources into families sorted by name.
+     * Fields holding numbers formatted as text count as numeric.
+     */
+    private List<Family> buildLayout() {
+        Map<String, Family> families = new TreeMap<>();
+        for (MetricsUpdate update : latestMetricsStore.getAll()) {
+            if (update.getResource().startsWith("history:")) {
+                continue;
+            }
+            String resource = update.getResource();
+            int separator = resource.indexOf(':');
+            String kind = separator > 0 ? resource.substring(0, separator) : resource;
+            String id = separator > 0 ? resource.substring(separator + 1) : null;
+
+            for (Map.Entry<String, Object> field : update.getFields().entrySet()) {
+                if (!isSampleValue(field.getValue())) {
+                    continue;
+                }
+                String name = metricName(update.getSection(), kind, field.getKey());
+                Family family = families.computeIfAbsent(name, Family::new);
+                family.series.add(new Series(LatestMetricsStore.key(update), field.getKey(),
+                        labels(update.getServerId(), id)));
+            }
+        }
+
+        List<Family> sorted = new ArrayList<>(families.values());
+        for (Family family : sorted) {
+            family.series.sort((a, b) -> Arrays.compare(a.labels, b.labels));
+        }
+        return sorted;
+    }
+
+    private static boolean isSampleValue(Object value) {
+        return value instanceof Number || value instanceof Boolean
+                || (value instanceof String && isNumeric((String) value));
+    }
+
+    /**
+     * Whether the text is a plain decimal number, optionally signed and with an exponent
+     */
+    private static boolean isNumeric(String text) {
+        int i = 0;
+        int n = text.length();
+        if (i < n && text.charAt(i) == '-') {
+            i++;
+        }
+        int digits = 0;
+        while (i < n && text.charAt(i) >= '0' && text.charAt(i) <= '9') {
+            i++;
+            digits++;
+        }
+        if (i < n && text.charAt(i) == '.') {
+            i++;
+            while (i < n && text.charAt(i) >= '0' && text.charAt(i) <= '9') {
+                i++;
+                digits++;
+            }
+        }
+        if (digits == 0) {
+            return false;
+        }
+        if (i < n && (text.charAt(i) == 'e' || text.charAt(i) == 'E')) {
+            i++;
+            if (i < n && (text.charAt(i) == '-' || text.charAt(i) == '+')) {
+                i++;
+            }
+            int exponentDigits = 0;
+            while (i < n && text.charAt(i) >= '0' && text.charAt(i) <= '9') {
+                i++;
+                exponentDigits++;
+            }
+            if (exponentDigits == 0) {
+                return false;
+            }
+        }
+        return i == n;
+    }
+
+    private static String metricName(String section, String kind, String field) {
+        String raw = PREFIX + section + "_" + kind + "_" + field;
+        StringBuilder name = new StringBuilder(raw.length());
+        for (int i = 0; i < raw.length(); i++) {
+            char c = raw.charAt(i);
+            boolean valid = (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9') || c == '_';
+            name.append(valid ? c : '_');
+        }
+        return name.toString();
+    }
+
+    private static byte[] labels(String server, String id) {
+        StringBuilder labels = new StringBuilder("{server=\"");
+        escape(labels, server);
+        if (id != null) {
+            labels.append("\",id=\"");
+            escape(labels, id);
+        }
+        return labels.append("\"}").toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static void escape(StringBuilder out, String value) {
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '\\' || c == '"') {
+                out.append('\\').append(c);
+            } else if (c == '\n') {
+                out.append("\\n");
+            } else {
+                out.append(c);
+            }
+        }
+    }
+
+    private void appendSample(byte[] name, byte[] labels, double value) {
+        append(name);
+        append(labels);
+        appendByte((byte) ' ');
+        appendValue(value);
+        appendByte((byte) '\n');
+    }
+
+    /**
+     * Append a value without going through a String for the common cases:
+     * integers and values with up to six decimals
+     */
+    private void appendValue(double value) {
+        if (Double.isNaN(value)) {
+            append(NAN);
+            return;
+        }
+        if (Double.isInfinite(value)) {
+            append(value > 0 ? POSITIVE_INFINITY : NEGATIVE_INFINITY);
+            return;
+        }
+        double magnitude = Math.abs(value);
+        if (value == Math.rint(value) && magnitude < 1e15) {
+            appendLong((long) value);
+            return;
+        }
+        if (magnitude < 1e-3 || magnitude >= 1e9) {
+            append(Double.toString(value).getBytes(StandardCharsets.US_ASCII));
+            return;
+        }
+
+        long scaled = Math.round(magnitude * 1_000_000);
+        if (value < 0) {
+            appendByte((byte) '-');
+        }
+        appendLong(scaled / 1_000_000);
+        long fraction = scaled % 1_000_000;
+        if (fraction == 0) {
+            return;
+        }
+        appendByte((byte) '.');
+        int digits = 6;
+        while (fraction % 10 == 0) {
+            fraction /= 10;
+            digits--;
+        }
+        for (long divisor = pow10(digits - 1); divisor > 0; divisor /= 10) {
+            appendByte((byte) ('0' + (fraction / divisor) % 10));
+        }
+    }
+
+    private void appendLong(long value) {
+        if (value < 0) {
+            appendByte((byte) '-');
+            value = -value;
+        }
+        long divisor = 1;
+        while (divisor <= value / 10) {
+            divisor *= 10;
+        }
+        for (; divisor > 0; divisor /= 10) {
+            appendByte((byte) ('0' + (value / divisor) % 10));
+        }
+    }
+
+    private static long pow10(int exponent) {
+        long result = 1;
+        for (int i = 0; i < exponent; i++) {
+            result *= 10;
+        }
+        return result;
+    }
+
+    private void append(byte[] bytes) {
+        ensureCapacity(bytes.length);
+        System.arraycopy(bytes, 0, buffer, length, bytes.length);
+        length += bytes.length;
+    }
+
+    private void appendAscii(String text) {
+        ensureCapacity(text.length());
+        for (int i = 0; i < text.length(); i++) {
+            buffer[length++] = (byte) text.charAt(i);
+        }
+    }
+
+    private void appendByte(byte b) {
+        ensureCapacity(1);
+        buffer[length++] = b;
+    }
+
+    private void ensureCapacity(int extra) {
+        if (length + extra > buffer.length) {
+            buffer = Arrays.copyOf(buffer, Math.max(buffer.length * 2, length + extra));
+        }
+    }
+
+    private static class Family {
+        private final byte[] name;
+        private final byte[] typeLine;
+        private final List<Series> series = new ArrayList<>();
+
+        private Family(String name) {
+            this.name = name.getBytes(StandardCharsets.US_ASCII);
+            byte[] prefix = ("# TYPE " + name).getBytes(StandardCharsets.US_ASCII);
+            this.typeLine = Arrays.copyOf(prefix, prefix.length + GAUGE_SUFFIX.length);
+            System.arraycopy(GAUGE_SUFFIX, 0, typeLine, prefix.length, GAUGE_SUFFIX.length);
+        }
+    }
+
+    private static class Series {
+        private final String storeKey;
+        private final String field;
+        private final byte[] labels;
+
+        private Series(String storeKey, String field, byte[] labels) {
+            this.storeKey = storeKey;
+            this.field = field;
+            this.labels = labels;
+        }
+    }
+}
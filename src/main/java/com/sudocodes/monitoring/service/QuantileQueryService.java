@@ -0,0 +1,200 @@
+package com.sudocodes.monitoring.service;
+
+import com.sudocodes.monitoring.model.QuantileSketch;
+import com.sudocodes.monitoring.redis.MetricsRollups;
+import com.sudocodes.monitoring.redis.ResourceIndex;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.connection.StringRedisConnection;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.stereotype.Service;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Percentiles of sketched series over a time window, per server or merged across servers.
+ *
+ * Reads the quantile sketches stored with the rollups (see {@link MetricsRollups}) whose
+ * bucket starts fall in the window, and merges them. Fleet queries read the same key of
+ * every server in one pipeline. No raw samples are involved, so the cost depends on the
+ * number of buckets, not on how many values were observed.
+ */
+@Service
+public class QuantileQueryService {
+
+    private static final double[] DEFAULT_QUANTILES = {0.5, 0.95, 0.99};
+
+    /** Use a tier only if the window spans at least this many of its buckets */
+    private static final int MIN_BUCKETS = 10;
+
+    private final StringRedisTemplate stringRedisTemplate;
+    private final MetricsRollups metricsRollups;
+    private final ResourceIndex resourceIndex;
+
+    @Value("${metrics.history.default-window:3600000}")
+    private long defaultWindowMs;
+
+    @Autowired
+    public QuantileQueryService(StringRedisTemplate stringRedisTemplate, MetricsRollups metricsRollups,
+                                ResourceIndex resourceIndex) {
+        this.stringRedisTemplate = stringRedisTemplate;
+        this.metricsRollups = metricsRollups;
+        this.resourceIndex = resourceIndex;
+    }
+
+    /**
+     * Quantiles of one series of one server
+     * @throws IllegalArgumentException if the series, window, quantiles or resolution are invalid
+     */
+    public Map<String, Object> quantiles(String serverId, String series, Long from, Long to,
+                                         List<Double> quantiles, String resolution) {
+        return query(Collections.singletonList(serverId), series, from, to, quantiles, resolution, serverId);
+    }
+
+    /**
+     * Quantiles of one series merged across servers
+     * @param servers server ids to include, or null/empty for all servers
+     */
+    public Map<String, Object> fleetQuantiles(Collection<String> servers, String series, Long from, Long to,
+                                              List<Double> quantiles, String resolution) {
+        List<String> serverIds = new ArrayList<>(resourceIndex.getServers().keySet());
+        if (servers != null && !servers.isEmpty()) {
+            serverIds.retainAll(servers);
+        }
+        return query(serverIds, series, from, to, quantiles, resolution, null);
+    }
+
+    private Map<String, Object> query(List<String> serverIds, String series, Long from, Long to,
+                                      List<Double> quantiles, String resolution, String serverId) {
+        int separator = series.indexOf(':');
+        String section = separator > 0 ? series.substring(0, separator) : null;
+        if (section == null || separator == series.length() - 1 || !HistoryQueryService.SECTIONS.contains(section)) {
+            throw new IllegalArgumentException("Series must be <section>:<name> with section one of "
+                    + HistoryQueryService.SECTIONS);
+        }
+        String seriesId = series.substring(separator + 1);
+
+        long end = to != null ? to : System.currentTimeMillis();
+        long start = from != null ? from : end - defaultWindowMs;
+        if (start > end) {
+            throw new IllegalArgumentException("from must not be after to");
+        }
+
+        double[] qs = DEFAULT_QUANTILES;
+        if (quantiles != null && !quantiles.isEmpty()) {
+            qs = new double[quantiles.size()];
+            for (int i = 0; i < qs.length; i++) {
+                qs[i] = quantiles.get(i);
+                if (!(qs[i] >= 0 && qs[i] <= 1)) {
+                    throw new IllegalArgumentException("Quantiles must be between 0 and 1");
+                }
+            }
+        }
+
+        MetricsRollups.Resolution tier;
+        if (resolution == null || resolution.isEmpty()) {
+            tier = pickTier(start, end);
+        } else {
+            tier = MetricsRollups.Resolution.fromLabel(resolution);
+            if (tier == null) {
+                throw new IllegalArgumentException("resolution must be one of 1m, 5m, 1h");
+            }
+        }
+
+        QuantileSketch merged = new QuantileSketch(metricsRollups.getSketchAccuracy());
+        int contributing = read(serverIds, section, tier, seriesId, start, end, merged);
+
+        Map<String, Object> result = new LinkedHashMap<>();
+        if (serverId != null) {
+            result.put("serverId", serverId);
+        } else {
+            result.put("servers", contributing);
+        }
+        result.put("series", series);
+        result.put("resolution", tier.getLabel());
+        result.put("from", start);
+        result.put("to", end);
+        result.put("count", merged.getCount());
+        if (!merged.isEmpty()) {
+            result.put("min", merged.getMin());
+            result.put("max", merged.getMax());
+            Map<String, Object> values = new LinkedHashMap<>();
+            for (double q : qs) {
+                values.put(label(q), merged.quantile(q));
+            }
+            result.put("quantiles", values);
+        }
+        result.put("relative_accuracy", merged.getRelativeAccuracy());
+        return result;
+    }
+
+    /**
+     * Coarsest tier with enough buckets in the window that still retains its start, else the finest that does
+     */
+    private MetricsRollups.Resolution pickTier(long from, long to) {
+        MetricsRollups.Resolution[] tiers = MetricsRollups.Resolution.values();
+        long age = System.currentTimeMillis() - from;
+        for (int i = tiers.length - 1; i >= 0; i--) {
+            if ((to - from) / tiers[i].getMillis() >= MIN_BUCKETS && metricsRollups.getRetention(tiers[i]) >= age) {
+                return tiers[i];
+            }
+        }
+        for (MetricsRollups.Resolution tier : tiers) {
+            if (metricsRollups.getRetention(tier) >= age) {
+                return tier;
+            }
+        }
+        return tiers[tiers.length - 1];
+    }
+
+    /**
+     * Merge the sketches of all servers in the window into {@code merged}
+     * @return the number of servers that had at least one sketch
+     */
+    private int read(List<String> serverIds, String section, MetricsRollups.Resolution tier, String seriesId,
+                     long from, long to, QuantileSketch merged) {
+        if (serverIds.isEmpty()) {
+            return 0;
+        }
+        List<Object> replies = stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            StringRedisConnection stringConnection = (StringRedisConnection) connection;
+            for (String serverId : serverIds) {
+                stringConnection.zRangeByScore(MetricsRollups.sketchKey(serverId, section, tier, seriesId), from, to);
+            }
+            return null;
+        });
+
+        int contributing = 0;
+        for (Object reply : replies) {
+            boolean found = false;
+            if (reply instanceof Set) {
+                for (Object member : (Set<?>) reply) {
+                    QuantileSketch sketch = MetricsRollups.parseSketchMember(member.toString());
+                    if (sketch != null && sketch.getRelativeAccuracy() == merged.getRelativeAccuracy()) {
+                        merged.merge(sketch);
+                        found = true;
+                    }
+                }
+            }
+            if (found) {
+                contributing++;
+            }
+        }
+        return contributing;
+    }
+
+    private static String label(double q) {
+        String digits = String.valueOf(q * 100);
+        if (digits.endsWith(".0")) {
+            digits = digits.substring(0, digits.length() - 2);
+        }
+        return "p" + digits;
+    }
+}
@@ -0,0 +1,71 @@
+package com.sudocodes.monitoring.service;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.dataformat.cbor.CBORFactory;
+import com.fasterxml.jackson.dataformat.smile.SmileFactory;
+import org.springframework.http.InvalidMediaTypeException;
+import org.springframework.http.MediaType;
+
+import java.util.List;
+
+/**
+ * Encodings the streaming metrics endpoints can answer in, picked from the Accept header.
+ *
+ * Endpoints returning plain objects get CBOR and Smile through Spring's message converters;
+ * endpoints that write their response with a generator use this to pick the matching factory.
+ */
+public enum ResponseFormat {
+    JSON(MediaType.APPLICATION_JSON, null),
+    CBOR(MediaType.APPLICATION_CBOR, new ObjectMapper(new CBORFactory())),
+    SMILE(new MediaType("application", "x-jackson-smile"), new ObjectMapper(new SmileFactory()));
+
+    private final MediaType mediaType;
+    private final ObjectMapper binaryMapper;
+
+    ResponseFormat(MediaType mediaType, ObjectMapper binaryMapper) {
+        this.mediaType = mediaType;
+        this.binaryMapper = binaryMapper;
+    }
+
+    public MediaType getMediaType() {
+        return mediaType;
+    }
+
+    public boolean isBinary() {
+        return binaryMapper != null;
+    }
+
+    /**
+     * Mapper writing this format; JSON uses the application's configured mapper
+     */
+    public ObjectMapper mapper(ObjectMapper jsonMapper) {
+        return binaryMapper != null ? binaryMapper : jsonMapper;
+    }
+
+    /**
+     * Most preferred supported format in an Accept header, JSON if there is none
+     */
+    public static ResponseFormat fromAccept(String accept) {
+        if (accept == null || accept.isEmpty()) {
+            return JSON;
+        }
+
+        List<MediaType> accepted;
+        try {
+            accepted = MediaType.parseMediaTypes(accept);
+        } catch (InvalidMediaTypeException e) {
+            return JSON;
+        }
+        MediaType.sortBySpecificityAndQuality(accepted);
+
+        for (MediaType mediaType : accepted) {
+            for (ResponseFormat format : values()) {
+                if (mediaType.getQualityValue() > 0 && !mediaType.isWildcardType()
+                        && mediaType.includes(format.mediaType)) {
+                    return format;
+                }
+            }
+        }
+        return JSON;
+    }
+}
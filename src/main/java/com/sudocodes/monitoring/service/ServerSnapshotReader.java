@@ -0,0 +1,319 @@
+package com.sudocodes.monitoring.service;
+
+import com.sudocodes.monitoring.redis.MetricsVersions;
+import com.sudocodes.monitoring.redis.ResourceIndex;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.redis.core.RedisTemplate;
+import org.springframework.data.redis.core.script.RedisScript;
+import org.springframework.data.redis.serializer.Jackson2JsonRedisSerializer;
+import org.springframework.data.redis.serializer.RedisSerializer;
+import org.springframework.data.redis.serializer.SerializationException;
+import org.springframework.stereotype.Service;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Reads all current metrics of one server, usually in a single Redis round trip.
+ *
+ * {@code scripts/server_snapshot.lua} reads the section versions, the server's resource
+ * indexes and the hashes of the resources the indexes listed on the previous read, all
+ * declared in KEYS, in one atomic call. When the returned indexes list other resources, e.g.
+ * after a container started, the script runs once more with the new listing, so only the
+ * first read of a server and reads right after its resources changed take two round trips.
+ * The reply is decoded straight into the response maps: field names as UTF-8, values with
+ * the same JSON serializer the collectors write with. Given a version, sections that have
+ * not changed since are not read, see {@link MetricsVersions}.
+ */
+@Service
+@Slf4j
+public class ServerSnapshotReader {
+
+    private static final RedisScript<List> SNAPSHOT_SCRIPT =
+            RedisScript.of(new ClassPathResource("scripts/server_snapshot.lua"), List.class);
+
+    /** Indexed resource types, with the hash key prefixes read for each resource */
+    private static final Map<String, List<String>> RESOURCE_HASHES = new LinkedHashMap<>();
+
+    static {
+        RESOURCE_HASHES.put("docker", List.of("container:", "stats:"));
+        RESOURCE_HASHES.put("storage", List.of("disk:"));
+        RESOURCE_HASHES.put("rtsp", List.of("stream:"));
+        RESOURCE_HASHES.put("network", List.of("interface:"));
+    }
+
+    private static final String[] SECTIONS = {"server_info", "system", "docker", "storage", "rtsp", "network"};
+
+    private final RedisTemplate<String, Object> redisTemplate;
+    private final ResourceIndex resourceIndex;
+    private final RedisSerializer<Object> valueSerializer = new Jackson2JsonRedisSerializer<>(Object.class);
+
+    /** Resource ids per indexed type found by the last read of each server with any resources */
+    private final Map<String, Map<String, Set<String>>> listings = new ConcurrentHashMap<>();
+
+    @Autowired
+    public ServerSnapshotReader(RedisTemplate<String, Object> redisTemplate, ResourceIndex resourceIndex) {
+        this.redisTemplate = redisTemplate;
+        this.resourceIndex = resourceIndex;
+    }
+
+    /**
+     * Current metrics of a server, in the shape returned by {@code /api/metrics/server/{serverId}}
+     */
+    public Map<String, Object> read(String serverId) {
+        return read(serverId, null);
+    }
+
+    /**
+     * Current metrics of a server, plus its {@code version}
+     * @param changedAfter if not null, only include sections with a version newer than this
+     */
+    public Map<String, Object> read(String serverId, Long changedAfter) {
+        Map<String, Set<String>> listed = listings.getOrDefault(serverId, emptyListing());
+        List<Object> reply = execute(serverId, changedAfter, listed);
+
+        // Resources added or removed since the last read: read again with the current listing
+        Map<String, Set<String>> current = listing(serverId, reply);
+        if (!current.equals(listed)) {
+            reply = execute(serverId, changedAfter, current);
+            listed = current;
+        }
+        if (listed.values().stream().anyMatch(ids -> !ids.isEmpty())) {
+            listings.put(serverId, listed);
+        } else {
+            listings.remove(serverId);
+        }
+        return decode(reply, listed, changedAfter);
+    }
+
+    /**
+     * Run the snapshot script over the versions, the indexes and every key of the listed resources
+     */
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private List<Object> execute(String serverId, Long changedAfter, Map<String, Set<String>> resources) {
+        List<String> keys = new ArrayList<>();
+        keys.add(MetricsVersions.key(serverId));
+        for (String keyType : RESOURCE_HASHES.keySet()) {
+            keys.add(ResourceIndex.indexKey(serverId, keyType));
+        }
+
+        // Hashes first, then the two history series, each with the section it belongs to
+        List<String> args = new ArrayList<>();
+        args.add(changedAfter != null ? changedAfter.toString() : "");
+        args.add(Integer.toString(RESOURCE_HASHES.size()));
+        args.add("");
+        List<String> sectionOfKey = new ArrayList<>();
+        for (String section : SECTIONS) {
+            for (String key : sectionKeys(serverId, section, resources)) {
+                keys.add(key);
+                sectionOfKey.add(section);
+            }
+        }
+        args.set(2, Integer.toString(sectionOfKey.size()));
+        keys.add(serverId + ":system:history:cpu");
+        keys.add(serverId + ":system:history:memory");
+        sectionOfKey.add("history");
+        sectionOfKey.add("history");
+        args.addAll(sectionOfKey);
+
+        // Keep the reply as raw bytes so keys and values can be decoded differently
+        List<Object> reply = redisTemplate.execute(SNAPSHOT_SCRIPT, RedisSerializer.string(),
+                (RedisSerializer) RedisSerializer.byteArray(), keys, args.toArray());
+        if (reply == null || reply.size() != keys.size()) {
+            throw new IllegalStateException("Unexpected reply from server snapshot script");
+        }
+        return reply;
+    }
+
+    private static List<String> sectionKeys(String serverId, String section, Map<String, Set<String>> resources) {
+        switch (section) {
+            case "server_info":
+                return List.of(serverId + ":server:info");
+            case "system":
+                return List.of(serverId + ":system:cpu", serverId + ":system:memory", serverId + ":system:processes");
+            default:
+                List<String> keys = new ArrayList<>();
+                for (String id : resources.get(section)) {
+                    for (String hashPrefix : RESOURCE_HASHES.get(section)) {
+                        keys.add(serverId + ":" + section + ":" + hashPrefix + id);
+                    }
+                }
+                if ("network".equals(section)) {
+                    keys.add(serverId + ":network:overall");
+                }
+                return keys;
+        }
+    }
+
+    /**
+     * The resource ids in the indexes returned by the script. An empty index is rebuilt with
+     * {@link ResourceIndex}'s SCAN fallback, so servers that wrote data before the indexes existed still show it.
+     */
+    private Map<String, Set<String>> listing(String serverId, List<Object> reply) {
+        Map<String, Set<String>> listing = new LinkedHashMap<>();
+        int index = 1;
+        for (String keyType : RESOURCE_HASHES.keySet()) {
+            Set<String> ids = new LinkedHashSet<>();
+            for (Object id : (List<?>) reply.get(index++)) {
+                ids.add(string(id));
+            }
+            listing.put(keyType, ids.isEmpty() ? resourceIndex.rebuildIfDue(serverId, keyType) : ids);
+        }
+        return listing;
+    }
+
+    private static Map<String, Set<String>> emptyListing() {
+        Map<String, Set<String>> listing = new LinkedHashMap<>();
+        for (String keyType : RESOURCE_HASHES.keySet()) {
+            listing.put(keyType, Collections.emptySet());
+        }
+        return listing;
+    }
+
+    private Map<String, Object> decode(List<Object> reply, Map<String, Set<String>> resources, Long changedAfter) {
+        List<?> stamps = (List<?>) reply.get(0);
+        Map<String, String> versions = new HashMap<>();
+        for (int i = 0; i + 1 < stamps.size(); i += 2) {
+            versions.put(string(stamps.get(i)), string(stamps.get(i + 1)));
+        }
+        long version = 0;
+        for (String sectionVersion : versions.values()) {
+            version = Math.max(version, Long.parseLong(sectionVersion.trim()));
+        }
+
+        Map<String, Object> snapshot = new HashMap<>();
+        snapshot.put("version", version);
+        // Unchanged sections came back empty, they are decoded only to step over their entries
+        Iterator<Object> results = reply.listIterator(1 + RESOURCE_HASHES.size());
+        for (String section : SECTIONS) {
+            Object data;
+            switch (section) {
+                case "server_info":
+                    data = hash(results.next());
+                    break;
+                case "system":
+                    Map<String, Object> systemMetrics = new HashMap<>();
+                    systemMetrics.put("cpu", hash(results.next()));
+                    systemMetrics.put("memory", hash(results.next()));
+                    systemMetrics.put("processes", hash(results.next()));
+                    data = systemMetrics;
+                    break;
+                case "docker":
+                    Map<String, Object> containers = new HashMap<>();
+                    for (String id : resources.get("docker")) {
+                        Map<String, Object> info = hash(results.next());
+                        Map<String, Object> stats = hash(results.next());
+                        if (info.isEmpty()) {
+                            continue;
+                        }
+                        Map<String, Object> containerData = new HashMap<>();
+                        containerData.put("info", info);
+                        containerData.put("stats", stats);
+                        containers.put(id, containerData);
+                    }
+                    data = Collections.singletonMap("containers", containers);
+                    break;
+                case "storage":
+                    data = Collections.singletonMap("disks", resources(resources.get("storage"), results));
+                    break;
+                case "rtsp":
+                    data = Collections.singletonMap("streams", resources(resources.get("rtsp"), results));
+                    break;
+                default:
+                    Map<String, Object> network = new HashMap<>();
+                    network.put("interfaces", resources(resources.get("network"), results));
+                    network.put("overall", hash(results.next()));
+                    data = network;
+            }
+            if (changed(versions, section, changedAfter)) {
+                snapshot.put(section, data);
+            }
+        }
+
+        Map<String, Object> historyData = new HashMap<>();
+        historyData.put("cpu", timeSeries(results.next()));
+        historyData.put("memory", timeSeries(results.next()));
+        if (changed(versions, "history", changedAfter)) {
+            snapshot.put("history", historyData);
+        }
+        return snapshot;
+    }
+
+    /**
+     * Whether a section has to be read: always without a version to compare with or on a server
+     * never stamped, and otherwise only if it was stamped after that version. Sections never
+     * stamped on a stamped server have never been written.
+     */
+    private static boolean changed(Map<String, String> versions, String section, Long changedAfter) {
+        if (changedAfter == null || versions.isEmpty()) {
+            return true;
+        }
+        String version = versions.get(section);
+        return version != null && Long.parseLong(version.trim()) > changedAfter;
+    }
+
+    /**
+     * Decode the hashes of resources, one per id, skipping resources whose hash no longer exists
+     */
+    private Map<String, Object> resources(Set<String> ids, Iterator<Object> results) {
+        Map<String, Object> resources = new HashMap<>();
+        for (String id : ids) {
+            Map<String, Object> fields = hash(results.next());
+            if (!fields.isEmpty()) {
+                resources.put(id, fields);
+            }
+        }
+        return resources;
+    }
+
+    /**
+     * Decode an HGETALL reply of alternating field names and values
+     */
+    private Map<String, Object> hash(Object reply) {
+        List<?> items = (List<?>) reply;
+        Map<String, Object> fields = new HashMap<>(items.size());
+        for (int i = 0; i + 1 < items.size(); i += 2) {
+            fields.put(string(items.get(i)), value(items.get(i + 1)));
+        }
+        return fields;
+    }
+
+    /**
+     * Decode a ZREVRANGE ... WITHSCORES reply into timestamp/value points
+     */
+    private List<Map<String, Object>> timeSeries(Object reply) {
+        List<?> items = (List<?>) reply;
+        List<Map<String, Object>> points = new ArrayList<>(items.size() / 2);
+        for (int i = 0; i + 1 < items.size(); i += 2) {
+            Map<String, Object> point = new HashMap<>();
+            point.put("timestamp", Double.parseDouble(string(items.get(i + 1))));
+            point.put("value", value(items.get(i)));
+            points.add(point);
+        }
+        return points;
+    }
+
+    private Object value(Object raw) {
+        try {
+            return valueSerializer.deserialize((byte[]) raw);
+        } catch (SerializationException e) {
+            // Written by something other than the collectors, return it as it is
+            return string(raw);
+        }
+    }
+
+    private static String string(Object raw) {
+        return raw instanceof byte[] ? new String((byte[]) raw, StandardCharsets.UTF_8) : String.valueOf(raw);
+    }
+}
@@ -0,0 +1,88 @@
+-- Find one page of the alert history, newest first. Only the indexes are read here; the
+-- caller fetches the records of the returned ids, so every key touched is declared.
+-- KEYS: history indexes an alert has to be in, e.g. alerts:history, or the server, level
+--       and type indexes of a filtered query
+-- ARGV[1]: oldest fire time (epoch ms)
+-- ARGV[2]: newest fire time (epoch ms)
+-- ARGV[3]: entries of the walked index in the window already looked at, from a cursor
+-- ARGV[4]: matching alerts to skip
+-- ARGV[5]: matching alerts to return
+-- ARGV[6]: most index entries to look at in this call
+--
+-- Reply: 1 if the walked index has no more entries in the window, else 0, then the position
+-- and the matching alerts still to skip to continue from, then the matching alert ids, newest first.
+--
+-- The smallest index is walked in chunks and the others are checked with ZSCORE,
+-- so a filtered query only touches as many entries as its rarest filter has. At most
+-- ARGV[6] entries are looked at, so a page can end early with fewer alerts than asked for.
+
+local min = ARGV[1]
+local max = ARGV[2]
+local position = tonumber(ARGV[3])
+local skip = tonumber(ARGV[4])
+local limit = tonumber(ARGV[5])
+local budget = tonumber(ARGV[6])
+
+local driver = 1
+local smallest = redis.call('ZCARD', KEYS[1])
+for i = 2, #KEYS do
+    local size = redis.call('ZCARD', KEYS[i])
+    if size < smallest then
+        driver = i
+        smallest = size
+    end
+end
+
+local reply = {1, position, 0}
+if limit <= 0 or smallest == 0 then
+    return reply
+end
+
+-- Without other filters the skipped entries need not be looked at
+if #KEYS == 1 then
+    position = position + skip
+    skip = 0
+end
+local chunk = math.max(limit, 100)
+
+local done = 0
+local found = 0
+while found < limit and budget > 0 do
+    local count = math.min(chunk, budget)
+    local ids = redis.call('ZREVRANGEBYSCORE', KEYS[driver], max, min, 'LIMIT', position, count)
+    local last = position + #ids
+    for _, id in ipairs(ids) do
+        position = position + 1
+        budget = budget - 1
+        local matches = true
+        for i = 1, #KEYS do
+            if i ~= driver and not redis.call('ZSCORE', KEYS[i], id) then
+                matches = false
+                break
+            end
+        end
+        if matches then
+            if skip > 0 then
+                skip = skip - 1
+            else
+                reply[#reply + 1] = id
+                found = found + 1
+                if found >= limit then
+                    break
+                end
+            end
+        end
+    end
+    if #ids < count then
+        -- The end of the window; done unless the page filled before its last entry
+        if position == last then
+            done = 1
+        end
+        break
+    end
+end
+
+reply[1] = done
+reply[2] = position
+reply[3] = skip
+return reply
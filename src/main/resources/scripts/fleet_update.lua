@@ -0,0 +1,25 @@
+-- Record the latest value of one server in a fleet ranking and keep the fleet sum in step.
+-- KEYS[1]: ranking sorted set, e.g. fleet:cpu
+-- KEYS[2]: hash of per-metric sums
+-- ARGV[1]: server key prefix
+-- ARGV[2]: latest value
+-- ARGV[3]: metric name, the field in the sums hash
+--
+-- Reply: 1 if the server was new to the ranking, else 0
+
+local previous = redis.call('ZSCORE', KEYS[1], ARGV[1])
+local value = tonumber(ARGV[2])
+redis.call('ZADD', KEYS[1], value, ARGV[1])
+
+local delta = value
+if previous then
+    delta = value - tonumber(previous)
+end
+if delta ~= 0 then
+    redis.call('HINCRBYFLOAT', KEYS[2], ARGV[3], delta)
+end
+
+if previous then
+    return 0
+end
+return 1
@@ -0,0 +1,16 @@
+-- Remove index entries whose resource hash no longer exists, e.g. because its TTL ran out.
+-- The caller finds the candidates; each hash is checked again here, so a resource written
+-- again in the meantime stays listed.
+-- KEYS[1]: index set, e.g. prefix:idx:docker
+-- KEYS[2..]: resource hash of each candidate, e.g. prefix:docker:container:<id>
+-- ARGV: candidate ids, in the order of their hashes
+--
+-- Reply: number of entries removed
+
+local removed = 0
+for i, id in ipairs(ARGV) do
+    if redis.call('EXISTS', KEYS[i + 1]) == 0 then
+        removed = removed + redis.call('SREM', KEYS[1], id)
+    end
+end
+return removed
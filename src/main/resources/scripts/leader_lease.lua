@@ -0,0 +1,26 @@
+-- Take or renew the leader lease.
+-- KEYS[1]: lease key, holding "<token>:<holder>" while someone leads
+-- KEYS[2]: fencing token counter
+-- ARGV[1]: holder id of the caller
+-- ARGV[2]: lease duration, ms
+-- ARGV[3]: lease the caller holds, or "" if none
+--
+-- Reply: the caller's fencing token if it holds the lease now, else 0
+--
+-- A lease that is still the caller's is extended. A free lease is taken with SET NX PX under
+-- a new token, so a leader whose lease ran out can never act under its old token again.
+
+local current = redis.call('GET', KEYS[1])
+if current then
+    if ARGV[3] ~= '' and current == ARGV[3] then
+        redis.call('PEXPIRE', KEYS[1], ARGV[2])
+        return tonumber(string.match(current, '^(%d+):'))
+    end
+    return 0
+end
+
+local token = redis.call('INCR', KEYS[2])
+if redis.call('SET', KEYS[1], token .. ':' .. ARGV[1], 'NX', 'PX', ARGV[2]) then
+    return token
+end
+return 0
@@ -0,0 +1,10 @@
+-- Give up the leader lease, if the caller still holds it.
+-- KEYS[1]: lease key
+-- ARGV[1]: lease the caller holds
+--
+-- Reply: 1 if the lease was released, else 0
+
+if redis.call('GET', KEYS[1]) == ARGV[1] then
+    return redis.call('DEL', KEYS[1])
+end
+return 0
@@ -0,0 +1,36 @@
+-- Forget a server that stopped reporting: drop it from the servers index and from every
+-- fleet ranking, taking its values back out of the fleet sums. Does nothing if the server
+-- has a heartbeat again or was seen after the cutoff, so it is safe against a server
+-- coming back while the sweep runs, and if the caller's leader lease has moved on.
+-- KEYS[1]: servers sorted set
+-- KEYS[2]: hash of per-metric fleet sums
+-- KEYS[3]: heartbeat key of the server
+-- KEYS[4]: leader lease key
+-- KEYS[5..]: fleet rankings, e.g. fleet:cpu
+-- ARGV[1]: server key prefix
+-- ARGV[2]: cutoff, epoch ms
+-- ARGV[3]: leader lease of the caller, or "" without leader election
+-- ARGV[4..]: metric names matching KEYS[5..], the fields in the sums hash
+--
+-- Reply: 1 if the server was removed, else 0
+
+if ARGV[3] ~= '' and redis.call('GET', KEYS[4]) ~= ARGV[3] then
+    return 0
+end
+if redis.call('EXISTS', KEYS[3]) == 1 then
+    return 0
+end
+local seen = redis.call('ZSCORE', KEYS[1], ARGV[1])
+if seen and tonumber(seen) >= tonumber(ARGV[2]) then
+    return 0
+end
+
+redis.call('ZREM', KEYS[1], ARGV[1])
+for i = 5, #KEYS do
+    local value = redis.call('ZSCORE', KEYS[i], ARGV[1])
+    if value then
+        redis.call('ZREM', KEYS[i], ARGV[1])
+        redis.call('HINCRBYFLOAT', KEYS[2], ARGV[i - 1], -tonumber(value))
+    end
+end
+return 1
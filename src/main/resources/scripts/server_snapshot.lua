@@ -0,0 +1,45 @@
+-- Read everything the per-server metrics endpoint needs in one atomic call, so the
+-- sections come from one consistent view of the server.
+-- KEYS[1]: section versions hash
+-- KEYS[2..ARGV[2]+1]: resource index sets
+-- following KEYS: hashes, read with HGETALL, then history sorted sets, read newest first with their scores
+-- ARGV[1]: only read sections stamped after this version; empty to read every section
+-- ARGV[2]: number of index sets
+-- ARGV[3]: number of hashes
+-- ARGV[4..]: section of each hash and history key, in KEYS order
+--
+-- Reply: the versions as field/value pairs, the members of each index, then one entry per
+-- hash or history key: field/value or member/score pairs. Missing keys and keys of sections
+-- not changed since ARGV[1] come back empty.
+--
+-- The resource hashes to read come from the caller's previous listing of the indexes. The
+-- indexes are returned so the caller can tell whether that listing still holds and read
+-- again if not; every key the script touches is declared.
+
+local versions = redis.call('HGETALL', KEYS[1])
+local changedAfter = tonumber(ARGV[1])
+local filter = changedAfter ~= nil and #versions > 0
+local stamped = {}
+for i = 1, #versions, 2 do
+    stamped[versions[i]] = tonumber(versions[i + 1])
+end
+
+local indexes = tonumber(ARGV[2])
+local hashes = tonumber(ARGV[3])
+local reply = {versions}
+for i = 2, indexes + 1 do
+    reply[i] = redis.call('SMEMBERS', KEYS[i])
+end
+
+local first = indexes + 2
+for i = first, #KEYS do
+    local version = stamped[ARGV[4 + i - first]]
+    if filter and (version == nil or version <= changedAfter) then
+        reply[i] = {}
+    elseif i - first < hashes then
+        reply[i] = redis.call('HGETALL', KEYS[i])
+    else
+        reply[i] = redis.call('ZREVRANGE', KEYS[i], 0, -1, 'WITHSCORES')
+    end
+end
+return reply
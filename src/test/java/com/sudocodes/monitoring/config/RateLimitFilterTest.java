@@ -0,0 +1,127 @@
+package com.sudocodes.monitoring.config;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.mock.web.MockFilterChain;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongSupplier;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+/**
+ * Token bucket behaviour of the API rate limit, on a clock the test moves by hand.
+ */
+class RateLimitFilterTest {
+
+    private final AtomicLong now = new AtomicLong(TimeUnit.HOURS.toNanos(5));
+    private RateLimitFilter filter;
+
+    @BeforeEach
+    void setUp() {
+        filter = new RateLimitFilter();
+        ReflectionTestUtils.setField(filter, "enabled", true);
+        // One request every 6 s, with bursts of up to 10
+        ReflectionTestUtils.setField(filter, "limit", 10L);
+        ReflectionTestUtils.setField(filter, "durationSeconds", 60L);
+        ReflectionTestUtils.setField(filter, "limitedPaths", List.of("/api/**"));
+        ReflectionTestUtils.setField(filter, "costSpecs", List.of("/api/metrics/all=5", "/api/broken=x"));
+        ReflectionTestUtils.setField(filter, "trustForwardedFor", false);
+        ReflectionTestUtils.setField(filter, "nanoClock", (LongSupplier) now::get);
+        filter.init();
+    }
+
+    @Test
+    void allowsABurstThenRefillsOneRequestPerInterval() throws Exception {
+        for (int i = 0; i < 10; i++) {
+            MockHttpServletResponse response = request("10.0.0.1", "/api/servers");
+            assertEquals(200, response.getStatus(), "request " + i);
+            assertEquals(String.valueOf(9 - i), response.getHeader("X-RateLimit-Remaining"));
+        }
+
+        MockHttpServletResponse rejected = request("10.0.0.1", "/api/servers");
+        assertEquals(429, rejected.getStatus());
+        assertEquals("6", rejected.getHeader("Retry-After"));
+        assertEquals("0", rejected.getHeader("X-RateLimit-Remaining"));
+
+        // Another client has its own bucket
+        assertEquals(200, request("10.0.0.2", "/api/servers").getStatus());
+
+        advance(2);
+        assertEquals("4", request("10.0.0.1", "/api/servers").getHeader("Retry-After"));
+        advance(4);
+        assertEquals(200, request("10.0.0.1", "/api/servers").getStatus());
+        assertEquals(429, request("10.0.0.1", "/api/servers").getStatus());
+    }
+
+    @Test
+    void chargesTheCostOfTheMatchingPath() throws Exception {
+        assertEquals(200, request("10.0.0.1", "/api/metrics/all").getStatus());
+        assertEquals(200, request("10.0.0.1", "/api/metrics/all").getStatus());
+        MockHttpServletResponse rejected = request("10.0.0.1", "/api/metrics/all");
+        assertEquals(429, rejected.getStatus());
+        assertEquals("30", rejected.getHeader("Retry-After"));
+        assertEquals(429, request("10.0.0.1", "/api/servers").getStatus());
+
+        // A cheap request fits again long before an expensive one does
+        advance(6);
+        assertEquals(429, request("10.0.0.1", "/api/metrics/all").getStatus());
+        assertEquals(200, request("10.0.0.1", "/api/servers").getStatus());
+
+        Map<String, Object> stats = filter.getStats();
+        assertEquals(3L, stats.get("allowed_requests"));
+        assertEquals(3L, stats.get("rejected_requests"));
+        assertEquals(Map.of("/api/metrics/all", 2L, "/api/**", 1L), stats.get("rejected_by_path"));
+    }
+
+    @Test
+    void leavesOtherPathsAlone() throws Exception {
+        for (int i = 0; i < 20; i++) {
+            MockHttpServletResponse response = request("10.0.0.1", "/metrics");
+            assertEquals(200, response.getStatus());
+            assertNull(response.getHeader("X-RateLimit-Limit"));
+        }
+        assertEquals(0, filter.getStats().get("tracked_clients"));
+    }
+
+    @Test
+    void evictsBucketsOnceTheyHaveRefilled() throws Exception {
+        for (int i = 0; i < 10; i++) {
+            request("10.0.0.1", "/api/servers");
+        }
+        request("10.0.0.2", "/api/servers");
+        assertEquals(2, filter.getStats().get("tracked_clients"));
+
+        advance(6);
+        filter.evictIdle();
+        assertEquals(1, filter.getStats().get("tracked_clients"));
+
+        advance(54);
+        filter.evictIdle();
+        assertEquals(0, filter.getStats().get("tracked_clients"));
+        // An evicted client starts over with a full burst
+        MockHttpServletResponse response = request("10.0.0.1", "/api/servers");
+        assertNotNull(response.getHeader("X-RateLimit-Limit"));
+        assertEquals("9", response.getHeader("X-RateLimit-Remaining"));
+    }
+
+    private MockHttpServletResponse request(String client, String path) throws Exception {
+        MockHttpServletRequest request = new MockHttpServletRequest("GET", path);
+        request.setRemoteAddr(client);
+        MockHttpServletResponse response = new MockHttpServletResponse();
+        filter.doFilter(request, response, new MockFilterChain());
+        return response;
+    }
+
+    private void advance(long seconds) {
+        now.addAndGet(TimeUnit.SECONDS.toNanos(seconds));
+    }
+}
@@ -0,0 +1,125 @@
+package com.sudocodes.monitoring.model;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Parsing and evaluation of the alert rule definitions.
+ */
+class AlertRuleTest {
+
+    @Test
+    void parsesEveryOption() {
+        AlertRule rule = AlertRule.parse("DISK_SPACE_LOW",
+                "storage  disk:*\tusage_percent >= 90 for 2m clear 85 level error message \"Disk {id} on {server} at {value}%\"");
+
+        assertEquals("storage", rule.getSection());
+        assertEquals("disk:*", rule.getResource());
+        assertEquals("disk", rule.getKind());
+        assertTrue(rule.isWildcard());
+        assertEquals("usage_percent", rule.getField());
+        assertEquals(AlertRule.Operator.GE, rule.getOperator());
+        assertEquals("90", rule.getThreshold());
+        assertEquals("85", rule.getClearThreshold());
+        assertEquals(120_000, rule.getForMillis());
+        assertEquals(Alert.AlertLevel.ERROR, rule.getLevel());
+        // The type defaults to the rule ID when it names one
+        assertEquals(Alert.AlertType.DISK_SPACE_LOW, rule.getType());
+        assertEquals("Disk {id} on {server} at {value}%", rule.getMessage());
+    }
+
+    @Test
+    void appliesDefaults() {
+        AlertRule rule = AlertRule.parse("custom", "system cpu usage_percent > 80");
+
+        assertEquals("80", rule.getClearThreshold());
+        assertEquals(0, rule.getForMillis());
+        assertEquals(Alert.AlertLevel.WARNING, rule.getLevel());
+        assertEquals(Alert.AlertType.SYSTEM_ERROR, rule.getType());
+        assertEquals("system cpu usage_percent is 93.5 (> 80)",
+                rule.formatMessage("s1", "cpu", 93.5, Map.of()));
+    }
+
+    @Test
+    void rejectsMalformedDefinitions() {
+        assertThrows(IllegalArgumentException.class, () -> AlertRule.parse("r", "system cpu usage_percent >"));
+        assertThrows(IllegalArgumentException.class, () -> AlertRule.parse("r", "system cpu usage_percent => 80"));
+        assertThrows(IllegalArgumentException.class, () -> AlertRule.parse("r", "system cpu usage_percent > high"));
+        assertThrows(IllegalArgumentException.class, () -> AlertRule.parse("r", "system cpu usage_percent > 80 for"));
+        assertThrows(IllegalArgumentException.class, () -> AlertRule.parse("r", "system cpu usage_percent > 80 every 1m"));
+        assertThrows(IllegalArgumentException.class, () -> AlertRule.parse("r", "system cpu usage_percent > 80 message \"open"));
+        assertThrows(IllegalArgumentException.class, () -> AlertRule.parse("r", "storage disk:sd* usage_percent > 80"));
+        assertThrows(IllegalArgumentException.class, () -> AlertRule.parse("r", "storage *:sda usage_percent > 80"));
+    }
+
+    @Test
+    void keepsQuotedTextTogether() {
+        AlertRule rule = AlertRule.parse("r", "rtsp stream:* status == \"not connected\" message \"  spaced  out \"");
+
+        assertEquals("not connected", rule.getThreshold());
+        assertEquals("  spaced  out ", rule.getMessage());
+        assertTrue(rule.isBreached("Not Connected"));
+        assertFalse(rule.isBreached("connected"));
+    }
+
+    @Test
+    void matchesWildcardResourcesOfTheirKindOnly() {
+        AlertRule wildcard = AlertRule.parse("r", "storage disk:* usage_percent > 90");
+        assertTrue(wildcard.appliesTo("disk:sda1"));
+        assertFalse(wildcard.appliesTo("disk:"));
+        assertFalse(wildcard.appliesTo("disk"));
+        assertFalse(wildcard.appliesTo("diskette:sda1"));
+        assertEquals("sda1", wildcard.resourceId("disk:sda1"));
+        assertEquals("s1:r_sda1", wildcard.alertKey("s1", "disk:sda1"));
+
+        AlertRule exact = AlertRule.parse("r", "system cpu usage_percent > 90");
+        assertTrue(exact.appliesTo("cpu"));
+        assertFalse(exact.appliesTo("cpu:0"));
+        assertEquals("s1:r", exact.alertKey("s1", "cpu"));
+    }
+
+    @Test
+    void comparesNumbersAndNumericText() {
+        AlertRule rule = AlertRule.parse("r", "system cpu usage_percent > 80");
+        assertTrue(rule.isBreached(80.5));
+        assertTrue(rule.isBreached("81"));
+        assertFalse(rule.isBreached(80));
+        assertFalse(rule.isBreached("n/a"));
+    }
+
+    @Test
+    void clearsOnlyPastTheClearThreshold() {
+        AlertRule above = AlertRule.parse("r", "system cpu usage_percent > 90 clear 80");
+        assertTrue(above.isBreached(95));
+        assertFalse(above.isCleared(85));
+        assertTrue(above.isCleared(80));
+
+        AlertRule below = AlertRule.parse("r", "network interface:* rx_rate < 10 clear 20");
+        assertTrue(below.isBreached(5));
+        assertFalse(below.isCleared(15));
+        assertTrue(below.isCleared(25));
+    }
+
+    @Test
+    void rejectsClearThresholdsThatWouldNeverResolve() {
+        assertThrows(IllegalArgumentException.class, () -> AlertRule.parse("r", "system cpu usage_percent > 90 clear 95"));
+        assertThrows(IllegalArgumentException.class, () -> AlertRule.parse("r", "system cpu usage_percent <= 10 clear 5"));
+        assertThrows(IllegalArgumentException.class, () -> AlertRule.parse("r", "system cpu usage_percent == 1 clear 2"));
+        assertThrows(IllegalArgumentException.class, () -> AlertRule.parse("r", "rtsp stream:* status == down clear up"));
+    }
+
+    @Test
+    void formatsMessagePlaceholders() {
+        AlertRule rule = AlertRule.parse("r",
+                "docker container:* status != running message \"{name} ({id}) on {server} is {value}, not {threshold}; {unknown} {\"");
+
+        assertEquals("web (abc) on s1 is exited, not running; {unknown} {",
+                rule.formatMessage("s1", "container:abc", "exited", Map.of("name", "web")));
+    }
+}
@@ -0,0 +1,160 @@
+package com.sudocodes.monitoring.model;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.function.DoubleSupplier;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Quantiles stay within the relative accuracy of the exact ones, also after merging,
+ * encoding and folding the lowest buckets.
+ */
+class QuantileSketchTest {
+
+    private static final double ACCURACY = 0.01;
+    private static final double[] QUANTILES = {0.01, 0.1, 0.25, 0.5, 0.75, 0.9, 0.95, 0.99, 0.999};
+
+    @Test
+    void staysWithinTheRelativeAccuracy() {
+        Random random = new Random(42);
+        assertAccurate(sample(100_000, () -> 1 + random.nextDouble() * 99));
+        assertAccurate(sample(100_000, () -> Math.exp(random.nextGaussian() * 2)));
+        assertAccurate(sample(100_000, () -> -Math.log(1 - random.nextDouble()) * 250));
+    }
+
+    @Test
+    void answersTheEdgesExactly() {
+        QuantileSketch sketch = new QuantileSketch(ACCURACY);
+        assertTrue(Double.isNaN(sketch.quantile(0.5)));
+
+        for (double value : new double[]{-5, 0, 0, 3.7, 12.25, 800}) {
+            sketch.add(value);
+        }
+        sketch.add(Double.NaN);
+        assertEquals(6, sketch.getCount());
+        assertEquals(-5, sketch.quantile(0));
+        assertEquals(800, sketch.quantile(1));
+        // Zero and below share one bucket, answered as zero within the range seen
+        assertEquals(0, sketch.quantile(0.3));
+        assertEquals(-5, sketch.getMin());
+        assertEquals(800, sketch.getMax());
+
+        sketch.clear();
+        assertTrue(sketch.isEmpty());
+        assertTrue(Double.isNaN(sketch.quantile(0.5)));
+    }
+
+    @Test
+    void mergesLikeOneSketchOverAllValues() {
+        Random random = new Random(7);
+        double[] low = sample(20_000, () -> random.nextDouble() * 10);
+        double[] high = sample(30_000, () -> 1000 + random.nextDouble() * 1000);
+
+        QuantileSketch merged = sketch(low);
+        merged.merge(sketch(high));
+        QuantileSketch whole = sketch(concat(low, high));
+
+        assertEquals(whole.getCount(), merged.getCount());
+        assertEquals(whole.getMin(), merged.getMin());
+        assertEquals(whole.getMax(), merged.getMax());
+        for (double q : QUANTILES) {
+            assertEquals(whole.quantile(q), merged.quantile(q), 0, "q" + q);
+        }
+        assertAccurate(concat(low, high), merged);
+
+        assertThrows(IllegalArgumentException.class, () -> merged.merge(new QuantileSketch(0.02)));
+    }
+
+    @Test
+    void decodesToTheSameQuantiles() {
+        Random random = new Random(3);
+        double[] first = sample(10_000, () -> Math.exp(random.nextGaussian()));
+        double[] second = sample(10_000, () -> random.nextDouble() < 0.1 ? 0 : random.nextDouble() * 50);
+
+        QuantileSketch original = sketch(first);
+        QuantileSketch decoded = QuantileSketch.decode(original.encode());
+        assertEquals(original.getCount(), decoded.getCount());
+        assertEquals(original.getRelativeAccuracy(), decoded.getRelativeAccuracy());
+        for (double q : QUANTILES) {
+            assertEquals(original.quantile(q), decoded.quantile(q), 0, "q" + q);
+        }
+
+        // A decoded sketch merges like the one it was encoded from
+        QuantileSketch merged = QuantileSketch.decode(sketch(second).encode());
+        merged.merge(decoded);
+        QuantileSketch expected = sketch(second);
+        expected.merge(original);
+        for (double q : QUANTILES) {
+            assertEquals(expected.quantile(q), merged.quantile(q), 0, "q" + q);
+        }
+        assertEquals(expected.getCount(), merged.getCount());
+
+        assertEquals(0, QuantileSketch.decode(new QuantileSketch(ACCURACY).encode()).getCount());
+        assertThrows(IllegalArgumentException.class, () -> QuantileSketch.decode("not a sketch"));
+        assertThrows(IllegalArgumentException.class, () -> QuantileSketch.decode(original.encode().substring(0, 20)));
+    }
+
+    @Test
+    void foldsTheLowestBucketsPastTheLimit() {
+        // 1e-30 to 1e30 spans far more than MAX_BUCKETS buckets at 1% accuracy
+        double[] values = new double[6001];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = Math.pow(10, -30 + i / 100.0);
+        }
+        QuantileSketch sketch = sketch(values);
+
+        assertEquals(values.length, sketch.getCount());
+        assertEquals(1e-30, sketch.getMin());
+        assertEquals(values[values.length - 1], sketch.getMax());
+        // The buckets cover about 18 decades; the top keeps its accuracy, the folded bottom answers too high
+        for (double q : new double[]{0.75, 0.9, 0.99}) {
+            double exact = values[(int) Math.floor(q * (values.length - 1))];
+            assertEquals(exact, sketch.quantile(q), exact * ACCURACY, "q" + q);
+        }
+        assertTrue(sketch.quantile(0.5) > 1e11, "median " + sketch.quantile(0.5));
+
+        QuantileSketch decoded = QuantileSketch.decode(sketch.encode());
+        assertEquals(sketch.quantile(0.5), decoded.quantile(0.5), 0);
+        assertEquals(sketch.getCount(), decoded.getCount());
+    }
+
+    private static void assertAccurate(double[] values) {
+        assertAccurate(values, sketch(values));
+    }
+
+    private static void assertAccurate(double[] values, QuantileSketch sketch) {
+        double[] sorted = values.clone();
+        Arrays.sort(sorted);
+        for (double q : QUANTILES) {
+            double exact = sorted[(int) Math.floor(q * (sorted.length - 1))];
+            assertEquals(exact, sketch.quantile(q), Math.abs(exact) * ACCURACY + 1e-12, "q" + q);
+        }
+    }
+
+    private static QuantileSketch sketch(double[] values) {
+        QuantileSketch sketch = new QuantileSketch(ACCURACY);
+        for (double value : values) {
+            sketch.add(value);
+        }
+        return sketch;
+    }
+
+    private static double[] sample(int n, DoubleSupplier source) {
+        double[] values = new double[n];
+        for (int i = 0; i < n; i++) {
+            values[i] = source.getAsDouble();
+        }
+        return values;
+    }
+
+    private static double[] concat(double[] a, double[] b) {
+        double[] values = Arrays.copyOf(a, a.length + b.length);
+        System.arraycopy(b, 0, values, a.length, b.length);
+        return values;
+    }
+}
@@ -0,0 +1,150 @@
+package com.sudocodes.monitoring.redis;
+
+import com.sudocodes.monitoring.model.ServerIdentity;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.support.StaticListableBeanFactory;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.redis.connection.RedisStandaloneConfiguration;
+import org.springframework.data.redis.connection.lettuce.LettuceConnectionFactory;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.RedisScript;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BooleanSupplier;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Leadership moves to another instance when the lease expires or is released, with a higher
+ * fencing token, and a deposed leader can no longer remove servers.
+ */
+class LeaderElectionTest {
+
+    private static final long LEASE_MS = 1000;
+    private static final long RENEW_INTERVAL_MS = 200;
+
+    private static final RedisScript<Long> REMOVE_SCRIPT =
+            RedisScript.of(new ClassPathResource("scripts/server_remove.lua"), Long.class);
+
+    private LocalRedis redis;
+    private LettuceConnectionFactory connectionFactory;
+    private StringRedisTemplate stringRedisTemplate;
+    private final List<LeaderElection> elections = new ArrayList<>();
+
+    @BeforeEach
+    void setUp() throws Exception {
+        redis = LocalRedis.startOrSkip();
+        connectionFactory = new LettuceConnectionFactory(new RedisStandaloneConfiguration("127.0.0.1", redis.getPort()));
+        connectionFactory.afterPropertiesSet();
+        stringRedisTemplate = new StringRedisTemplate(connectionFactory);
+    }
+
+    @AfterEach
+    void tearDown() throws Exception {
+        elections.forEach(LeaderElection::shutdown);
+        if (connectionFactory != null) {
+            connectionFactory.destroy();
+        }
+        if (redis != null) {
+            redis.stop();
+        }
+    }
+
+    @Test
+    void takesOverWithAHigherTokenAndFencesOutTheDeposedLeader() throws Exception {
+        AtomicLong tokenA = new AtomicLong();
+        LeaderElection a = election("a", tokenA);
+        await(a::isLeader, LEASE_MS);
+        String staleLease = a.getLease();
+        assertNotNull(staleLease);
+
+        AtomicLong tokenB = new AtomicLong();
+        LeaderElection b = election("b", tokenB);
+        Thread.sleep(3 * RENEW_INTERVAL_MS);
+        assertFalse(b.isLeader(), "b took the lease while a was renewing it");
+
+        // a stops renewing, as if it hung or lost its connection; b takes over once the lease expires
+        ((ScheduledExecutorService) ReflectionTestUtils.getField(a, "elector")).shutdownNow();
+        // Listeners hear of the new lease just after it is taken, so wait for the token too
+        await(() -> b.isLeader() && tokenB.get() > 0, LEASE_MS + 3 * RENEW_INTERVAL_MS);
+        assertTrue(tokenB.get() > tokenA.get(), "token " + tokenB.get() + " not above " + tokenA.get());
+        assertNull(a.getLease(), "a still considers itself the leader");
+
+        // A server gone quiet long ago; the deposed leader's stale lease cannot remove it, the new leader can
+        String ghost = "ghost";
+        stringRedisTemplate.opsForZSet().add(ResourceIndex.SERVERS_KEY, ghost, System.currentTimeMillis() - 3_600_000);
+        assertEquals(0L, removeServer(ghost, staleLease));
+        assertNotNull(stringRedisTemplate.opsForZSet().score(ResourceIndex.SERVERS_KEY, ghost));
+
+        StaleDataSweeper sweeper = new StaleDataSweeper(stringRedisTemplate, new ResourceIndex(stringRedisTemplate),
+                identity("b"), b);
+        ReflectionTestUtils.setField(sweeper, "heartbeatTtlSeconds", 60L);
+        assertEquals(1, sweeper.removeDeadServers());
+        assertNull(stringRedisTemplate.opsForZSet().score(ResourceIndex.SERVERS_KEY, ghost));
+
+        // Releasing the lease on shutdown hands it over without waiting for it to expire
+        AtomicLong tokenC = new AtomicLong();
+        LeaderElection c = election("c", tokenC);
+        b.shutdown();
+        await(() -> c.isLeader() && tokenC.get() > 0, LEASE_MS / 2);
+        assertTrue(tokenC.get() > tokenB.get(), "token " + tokenC.get() + " not above " + tokenB.get());
+    }
+
+    private LeaderElection election(String name, AtomicLong token) {
+        StaticListableBeanFactory listeners = new StaticListableBeanFactory();
+        listeners.addBean("listener", new LeadershipListener() {
+            @Override
+            public void leadershipAcquired(long acquired) {
+                token.set(acquired);
+            }
+
+            @Override
+            public void leadershipLost() {
+            }
+        });
+        LeaderElection election = new LeaderElection(stringRedisTemplate, identity(name),
+                listeners.getBeanProvider(LeadershipListener.class));
+        ReflectionTestUtils.setField(election, "enabled", true);
+        ReflectionTestUtils.setField(election, "leaseMs", LEASE_MS);
+        ReflectionTestUtils.setField(election, "renewInterval", RENEW_INTERVAL_MS);
+        election.init();
+        elections.add(election);
+        return election;
+    }
+
+    private static ServerIdentity identity(String name) {
+        ServerIdentity identity = new ServerIdentity();
+        identity.setServerId(name);
+        identity.setMetricsKeyPrefix(name);
+        return identity;
+    }
+
+    private Long removeServer(String serverId, String lease) {
+        List<String> keys = new ArrayList<>(List.of(ResourceIndex.SERVERS_KEY, FleetAggregator.SUMS_KEY,
+                ResourceIndex.heartbeatKey(serverId), LeaderElection.LEASE_KEY));
+        List<String> args = new ArrayList<>(List.of(serverId, String.valueOf(System.currentTimeMillis()), lease));
+        for (String metric : FleetAggregator.METRICS) {
+            keys.add(FleetAggregator.key(metric));
+            args.add(metric);
+        }
+        return stringRedisTemplate.execute(REMOVE_SCRIPT, keys, args.toArray());
+    }
+
+    private static void await(BooleanSupplier condition, long timeoutMs) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeoutMs;
+        while (!condition.getAsBoolean()) {
+            assertTrue(System.currentTimeMillis() < deadline, "condition not met within " + timeoutMs + " ms");
+            Thread.sleep(20);
+        }
+    }
+}
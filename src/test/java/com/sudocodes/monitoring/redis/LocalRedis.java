@@ -0,0 +1,117 @@
+package com.sudocodes.monitoring.redis;
+
+import org.junit.jupiter.api.Assumptions;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A throwaway redis-server process for tests, on a free port and without persistence.
+ * The binary is taken from the {@code redis.server} system property, the {@code REDIS_SERVER}
+ * environment variable or the PATH; tests using it are skipped when there is none.
+ * It can be stopped and started again on the same port to simulate an outage.
+ */
+public class LocalRedis {
+
+    private final String binary;
+    private final int port;
+    private Process process;
+
+    private LocalRedis(String binary, int port) {
+        this.binary = binary;
+        this.port = port;
+    }
+
+    /**
+     * Start a server, skipping the calling test if no redis-server binary is available
+     */
+    public static LocalRedis startOrSkip() throws IOException, InterruptedException {
+        String binary = findBinary();
+        Assumptions.assumeTrue(binary != null, "redis-server not found, set REDIS_SERVER to run this test");
+        LocalRedis redis = new LocalRedis(binary, freePort());
+        redis.start();
+        return redis;
+    }
+
+    private static String findBinary() {
+        String configured = System.getProperty("redis.server", System.getenv("REDIS_SERVER"));
+        if (configured != null && !configured.isEmpty()) {
+            return new File(configured).canExecute() ? configured : null;
+        }
+        String path = System.getenv("PATH");
+        if (path == null) {
+            return null;
+        }
+        for (String dir : path.split(File.pathSeparator)) {
+            File candidate = new File(dir, "redis-server");
+            if (candidate.canExecute()) {
+                return candidate.getPath();
+            }
+        }
+        return null;
+    }
+
+    private static int freePort() throws IOException {
+        try (ServerSocket socket = new ServerSocket(0)) {
+            return socket.getLocalPort();
+        }
+    }
+
+    public int getPort() {
+        return port;
+    }
+
+    public void start() throws IOException, InterruptedException {
+        process = new ProcessBuilder(binary, "--port", String.valueOf(port), "--bind", "127.0.0.1",
+                "--save", "", "--appendonly", "no")
+                .redirectErrorStream(true)
+                .redirectOutput(ProcessBuilder.Redirect.DISCARD)
+                .start();
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (!ping()) {
+            if (!process.isAlive() || System.nanoTime() > deadline) {
+                stop();
+                throw new IOException("redis-server did not start on port " + port);
+            }
+            Thread.sleep(20);
+        }
+    }
+
+    public void stop() throws InterruptedException {
+        if (process != null) {
+            process.destroy();
+            if (!process.waitFor(10, TimeUnit.SECONDS)) {
+                process.destroyForcibly().waitFor();
+            }
+            process = null;
+        }
+    }
+
+    private boolean ping() {
+        try (Socket socket = new Socket("127.0.0.1", port)) {
+            socket.setSoTimeout(1000);
+            OutputStream out = socket.getOutputStream();
+            out.write("PING\r\n".getBytes(StandardCharsets.US_ASCII));
+            out.flush();
+            byte[] reply = new byte[7];
+            InputStream in = socket.getInputStream();
+            int read = 0;
+            while (read < reply.length) {
+                int n = in.read(reply, read, reply.length - read);
+                if (n < 0) {
+                    return false;
+                }
+                read += n;
+            }
+            return "+PONG\r\n".equals(new String(reply, StandardCharsets.US_ASCII));
+        } catch (IOException e) {
+            return false;
+        }
+    }
+}
@@ -0,0 +1,221 @@
+package com.sudocodes.monitoring.redis;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * The spool file on its own, without Redis: batches come back in order, survive a reopen,
+ * and a full or damaged spool loses batches instead of failing.
+ */
+class MetricsSpoolTest {
+
+    /** Offset of the first record, after the spool header */
+    private static final int FIRST_RECORD = 24;
+    /** Payload of a batch of about 100 KB, so ten fill the 1 MB spool */
+    private static final String BULK = "x".repeat(100_000);
+
+    @TempDir
+    Path dir;
+
+    private final List<MetricsSpool> opened = new ArrayList<>();
+
+    @AfterEach
+    void tearDown() {
+        opened.forEach(MetricsSpool::close);
+    }
+
+    @Test
+    void returnsBatchesInOrderUntilCommitted() {
+        MetricsSpool spool = open();
+        assertFalse(spool.hasPending());
+        for (int i = 0; i < 5; i++) {
+            assertTrue(spool.append(batch(i, "")));
+        }
+        assertEquals(5, spool.getPendingBatches());
+
+        MetricsSpool.Chunk chunk = spool.peek(3);
+        assertEquals(List.of(0L, 1L, 2L), createdAt(chunk));
+        // Peeking again without a commit returns the same batches
+        assertEquals(List.of(0L, 1L, 2L), createdAt(spool.peek(3)));
+        spool.commit(chunk);
+        assertEquals(2, spool.getPendingBatches());
+
+        MetricsSpool.Chunk rest = spool.peek(10);
+        assertEquals(List.of(3L, 4L), createdAt(rest));
+        MetricsBatch first = rest.getBatches().get(0);
+        assertEquals("spool-test", first.getKeyPrefix());
+        assertEquals("3", first.getEntries().get(0).getFields().get("value").toString());
+
+        spool.commit(rest);
+        assertFalse(spool.hasPending());
+        assertEquals(0, spool.getPendingBytes());
+        assertTrue(spool.peek(10).isEmpty());
+        assertEquals(5, spool.getSpooledBatches());
+    }
+
+    @Test
+    void dropsBatchesOnceFull() {
+        MetricsSpool spool = open();
+        int appended = 0;
+        while (spool.append(batch(appended, BULK))) {
+            appended++;
+        }
+        assertEquals(10, appended);
+        assertEquals(1, spool.getDroppedBatches());
+        assertFalse(spool.append(batch(99, BULK)));
+        assertEquals(2, spool.getDroppedBatches());
+        assertEquals(10, spool.getPendingBatches());
+
+        // Draining makes room again
+        spool.commit(spool.peek(100));
+        assertTrue(spool.append(batch(100, BULK)));
+        assertEquals(List.of(100L), createdAt(spool.peek(10)));
+    }
+
+    @Test
+    void compactsOnceHalfTheSegmentIsRead() {
+        MetricsSpool spool = open();
+        for (int i = 0; i < 10; i++) {
+            assertTrue(spool.append(batch(i, BULK)));
+        }
+
+        // Committing past the middle moves the unread records to the front
+        spool.commit(spool.peek(6));
+        int pendingBytes = spool.getPendingBytes();
+        assertEquals(FIRST_RECORD, (int) ReflectionTestUtils.getField(spool, "readPos"));
+        assertEquals(FIRST_RECORD + pendingBytes, (int) ReflectionTestUtils.getField(spool, "writePos"));
+
+        for (int i = 20; i < 25; i++) {
+            assertTrue(spool.append(batch(i, BULK)), "no room for batch " + i + " after compacting");
+        }
+        List<Long> remaining = createdAt(spool.peek(100));
+        assertEquals(List.of(6L, 7L, 8L, 9L, 20L, 21L, 22L, 23L, 24L), remaining);
+    }
+
+    @Test
+    void recoversPendingBatchesOnReopen() {
+        MetricsSpool spool = open();
+        for (int i = 0; i < 4; i++) {
+            spool.append(batch(i, ""));
+        }
+        spool.commit(spool.peek(1));
+        // Peeked but not committed, e.g. Redis went away again during the replay
+        spool.peek(2);
+        spool.force();
+        spool.close();
+
+        MetricsSpool reopened = open();
+        assertEquals(3, reopened.getPendingBatches());
+        assertEquals(List.of(1L, 2L, 3L), createdAt(reopened.peek(10)));
+        assertTrue(reopened.append(batch(4, "")));
+        assertEquals(List.of(1L, 2L, 3L, 4L), createdAt(reopened.peek(10)));
+    }
+
+    @Test
+    void startsEmptyOverAFileThatIsNotASpool() throws IOException {
+        try (FileChannel file = FileChannel.open(spoolFile(), StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+            file.write(ByteBuffer.wrap("not a spool".getBytes(StandardCharsets.US_ASCII)));
+        }
+        MetricsSpool spool = open();
+        assertTrue(spool.isEnabled());
+        assertFalse(spool.hasPending());
+        assertTrue(spool.append(batch(1, "")));
+        assertEquals(List.of(1L), createdAt(spool.peek(10)));
+    }
+
+    @Test
+    void skipsUnreadableBatchesAndDiscardsABrokenRecordChain() throws IOException {
+        MetricsSpool spool = open();
+        for (int i = 0; i < 3; i++) {
+            spool.append(batch(i, ""));
+        }
+        spool.close();
+
+        // Damage the JSON of the first record: that batch is skipped, the others still read
+        overwrite(FIRST_RECORD + 4, new byte[]{'#'});
+        spool = open();
+        MetricsSpool.Chunk chunk = spool.peek(10);
+        assertEquals(List.of(1L, 2L), createdAt(chunk));
+        spool.commit(chunk);
+        assertFalse(spool.hasPending());
+
+        for (int i = 10; i < 13; i++) {
+            spool.append(batch(i, ""));
+        }
+        spool.close();
+
+        // A record length running past the written data breaks the chain, so the rest is discarded
+        overwrite(FIRST_RECORD, ByteBuffer.allocate(4).putInt(1 << 20).array());
+        spool = open();
+        assertTrue(spool.peek(10).isEmpty());
+        assertFalse(spool.hasPending());
+        assertEquals(0, spool.getPendingBytes());
+        assertTrue(spool.append(batch(20, "")));
+        assertEquals(List.of(20L), createdAt(spool.peek(10)));
+    }
+
+    @Test
+    void refusesSizesItCannotAddress() {
+        MetricsSpool spool = spool(0);
+        assertThrows(IllegalStateException.class, spool::open);
+        MetricsSpool huge = spool(4096);
+        assertThrows(IllegalStateException.class, huge::open);
+    }
+
+    private MetricsSpool open() {
+        MetricsSpool spool = spool(1);
+        spool.open();
+        opened.add(spool);
+        return spool;
+    }
+
+    private MetricsSpool spool(int maxSizeMb) {
+        MetricsSpool spool = new MetricsSpool();
+        ReflectionTestUtils.setField(spool, "enabled", true);
+        ReflectionTestUtils.setField(spool, "path", spoolFile().toString());
+        ReflectionTestUtils.setField(spool, "maxSizeMb", maxSizeMb);
+        return spool;
+    }
+
+    private Path spoolFile() {
+        return dir.resolve("metrics.spool");
+    }
+
+    private void overwrite(long position, byte[] bytes) throws IOException {
+        try (FileChannel file = FileChannel.open(spoolFile(), StandardOpenOption.WRITE)) {
+            file.write(ByteBuffer.wrap(bytes), position);
+        }
+    }
+
+    private static MetricsBatch batch(long createdAt, String payload) {
+        MetricsBatch batch = new MetricsBatch("spool-test");
+        batch.setCreatedAt(createdAt);
+        batch.putHash("system", "cpu", Map.of("value", createdAt, "payload", payload));
+        return batch;
+    }
+
+    private static List<Long> createdAt(MetricsSpool.Chunk chunk) {
+        List<Long> times = new ArrayList<>();
+        for (MetricsBatch batch : chunk.getBatches()) {
+            times.add(batch.getCreatedAt());
+        }
+        return times;
+    }
+}
@@ -0,0 +1,166 @@
+package com.sudocodes.monitoring.redis;
+
+import com.sudocodes.monitoring.model.ServerIdentity;
+import io.lettuce.core.ClientOptions;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.data.redis.connection.RedisStandaloneConfiguration;
+import org.springframework.data.redis.connection.lettuce.LettuceClientConfiguration;
+import org.springframework.data.redis.connection.lettuce.LettuceConnectionFactory;
+import org.springframework.data.redis.core.ReactiveRedisTemplate;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.ZSetOperations;
+import org.springframework.data.redis.serializer.Jackson2JsonRedisSerializer;
+import org.springframework.data.redis.serializer.RedisSerializationContext;
+import org.springframework.data.redis.serializer.StringRedisSerializer;
+import org.springframework.test.context.DynamicPropertyRegistry;
+import org.springframework.test.context.DynamicPropertySource;
+import org.springframework.test.context.junit.jupiter.SpringJUnitConfig;
+
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Batches written while Redis is down are spooled, and replayed with their original
+ * timestamps once it is back.
+ */
+@SpringJUnitConfig({SpoolReplayTest.RedisTestConfig.class, ServerIdentity.class, MetricsSpool.class,
+        MetricsWriter.class, SpoolDrainer.class, MetricsVersions.class, MetricsRollups.class,
+        FleetAggregator.class, SelfMetrics.class})
+class SpoolReplayTest {
+
+    private static final String PREFIX = "spool-test";
+
+    @TempDir
+    static Path spoolDir;
+
+    private static LocalRedis redis;
+
+    @Autowired
+    private MetricsWriter writer;
+
+    @Autowired
+    private MetricsSpool spool;
+
+    @Autowired
+    private SpoolDrainer drainer;
+
+    @Autowired
+    private StringRedisTemplate stringRedisTemplate;
+
+    @BeforeAll
+    static void startRedis() throws Exception {
+        redis = LocalRedis.startOrSkip();
+    }
+
+    @AfterAll
+    static void stopRedis() throws Exception {
+        if (redis != null) {
+            redis.stop();
+        }
+    }
+
+    @DynamicPropertySource
+    static void properties(DynamicPropertyRegistry registry) {
+        registry.add("test.redis.port", () -> redis.getPort());
+        registry.add("server.identity", () -> PREFIX);
+        registry.add("server.display-name", () -> "Spool test");
+        registry.add("server.location", () -> "test");
+        registry.add("metrics.key.prefix", () -> PREFIX);
+        registry.add("metrics.spool.path", () -> spoolDir.resolve("metrics.spool").toString());
+        registry.add("metrics.spool.max-size-mb", () -> 1);
+        registry.add("metrics.writer.timeout", () -> 1000);
+    }
+
+    @Test
+    void replaysSpooledBatchesWithTheirOriginalTimestamps() throws Exception {
+        long first = System.currentTimeMillis() - 60_000;
+        long second = first + 30_000;
+
+        redis.stop();
+        // The first batch fails and is spooled; the next goes straight behind it
+        ExecutionException failure = assertThrows(ExecutionException.class,
+                () -> writer.write(batch(first, 41.5)).get(10, TimeUnit.SECONDS));
+        assertTrue(MetricsWriter.isRedisUnavailable(failure.getCause()), failure.getCause().toString());
+        assertEquals(MetricsWriter.WriteOutcome.SPOOLED, writer.write(batch(second, 42.5)).get(10, TimeUnit.SECONDS));
+        assertEquals(2, spool.getPendingBatches());
+
+        redis.start();
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(30);
+        while (spool.hasPending() && System.nanoTime() < deadline) {
+            drainer.drain();
+            Thread.sleep(100);
+        }
+        assertFalse(spool.hasPending(), "spooled batches were not replayed");
+
+        Set<ZSetOperations.TypedTuple<String>> history = stringRedisTemplate.opsForZSet()
+                .rangeWithScores(PREFIX + ":system:history:cpu", 0, -1);
+        Map<String, Long> scores = new HashMap<>();
+        for (ZSetOperations.TypedTuple<String> sample : history) {
+            scores.put(sample.getValue(), sample.getScore().longValue());
+        }
+        assertEquals(Map.of("41.5", first, "42.5", second), scores);
+
+        // The servers index keeps the collection time of the newest batch, not the replay time
+        assertEquals(second, stringRedisTemplate.opsForZSet().score(ResourceIndex.SERVERS_KEY, PREFIX).longValue());
+        assertEquals("42.5", stringRedisTemplate.<String, String>opsForHash()
+                .get(PREFIX + ":system:cpu", "usage_percent"));
+    }
+
+    private MetricsBatch batch(long createdAt, double cpu) {
+        MetricsBatch batch = writer.newBatch();
+        batch.setCreatedAt(createdAt);
+        batch.putHash("system", "cpu", Map.of("usage_percent", cpu));
+        batch.addHistory("system", "cpu", cpu, createdAt);
+        return batch;
+    }
+
+    @Configuration
+    static class RedisTestConfig {
+
+        @Bean
+        LettuceConnectionFactory redisConnectionFactory(@Value("${test.redis.port}") int port) {
+            LettuceClientConfiguration clientConfig = LettuceClientConfiguration.builder()
+                    .commandTimeout(Duration.ofSeconds(1))
+                    .clientOptions(ClientOptions.builder()
+                            .disconnectedBehavior(ClientOptions.DisconnectedBehavior.REJECT_COMMANDS)
+                            .autoReconnect(true)
+                            .build())
+                    .build();
+            return new LettuceConnectionFactory(new RedisStandaloneConfiguration("127.0.0.1", port), clientConfig);
+        }
+
+        @Bean
+        StringRedisTemplate stringRedisTemplate(LettuceConnectionFactory connectionFactory) {
+            return new StringRedisTemplate(connectionFactory);
+        }
+
+        @Bean
+        ReactiveRedisTemplate<String, Object> reactiveRedisTemplate(LettuceConnectionFactory connectionFactory) {
+            Jackson2JsonRedisSerializer<Object> valueSerializer = new Jackson2JsonRedisSerializer<>(Object.class);
+            RedisSerializationContext<String, Object> context = RedisSerializationContext
+                    .<String, Object>newSerializationContext(new StringRedisSerializer())
+                    .value(valueSerializer)
+                    .hashKey(new StringRedisSerializer())
+                    .hashValue(valueSerializer)
+                    .build();
+            return new ReactiveRedisTemplate<>(connectionFactory, context);
+        }
+    }
+}
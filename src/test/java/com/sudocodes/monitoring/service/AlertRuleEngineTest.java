@@ -0,0 +1,140 @@
+package com.sudocodes.monitoring.service;
+
+import com.sudocodes.monitoring.model.AlertRule;
+import com.sudocodes.monitoring.model.MetricsUpdate;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.data.redis.core.HashOperations;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * Series move through pending, firing and resolved as the rules dictate, and firing alerts
+ * survive a rule being reloaded.
+ */
+class AlertRuleEngineTest {
+
+    private Map<Object, Object> storedRules = Collections.emptyMap();
+    private final List<String> transitions = new ArrayList<>();
+    private AlertRuleEngine engine;
+
+    @BeforeEach
+    @SuppressWarnings("unchecked")
+    void setUp() {
+        StringRedisTemplate stringRedisTemplate = mock(StringRedisTemplate.class);
+        HashOperations<String, Object, Object> hashOperations = mock(HashOperations.class);
+        doReturn(hashOperations).when(stringRedisTemplate).opsForHash();
+        when(hashOperations.entries(AlertRuleEngine.RULES_KEY)).thenAnswer(invocation -> storedRules);
+
+        engine = new AlertRuleEngine(stringRedisTemplate);
+        ReflectionTestUtils.setField(engine, "configuredRules", "");
+        engine.setTransitionHandler(new AlertRuleEngine.TransitionHandler() {
+            @Override
+            public void pending(AlertRule rule, String serverId, String resource, Object value, Map<String, Object> fields) {
+                transitions.add("pending " + rule.getId() + " " + resource + " " + value);
+            }
+
+            @Override
+            public void cancelled(AlertRule rule, String serverId, String resource) {
+                transitions.add("cancelled " + rule.getId() + " " + resource);
+            }
+
+            @Override
+            public void fired(AlertRule rule, String serverId, String resource, Object value, Map<String, Object> fields) {
+                transitions.add("fired " + rule.getId() + " " + resource + " " + value);
+            }
+
+            @Override
+            public void resolved(AlertRule rule, String serverId, String resource) {
+                transitions.add("resolved " + rule.getId() + " " + resource);
+            }
+        });
+    }
+
+    @Test
+    void firesAfterTheDurationAndResolvesPastTheClearThreshold() {
+        configure("CPU = system cpu usage_percent > 90 for 1m clear 80");
+
+        cpu(95, 0);
+        cpu(96, 30_000);
+        assertEquals(List.of("pending CPU cpu 95"), transitions);
+
+        cpu(97, 60_000);
+        cpu(85, 70_000);
+        assertEquals(List.of("pending CPU cpu 95", "fired CPU cpu 97"), transitions);
+
+        cpu(75, 80_000);
+        cpu(75, 90_000);
+        assertEquals(List.of("pending CPU cpu 95", "fired CPU cpu 97", "resolved CPU cpu"), transitions);
+    }
+
+    @Test
+    void cancelsWhenTheConditionStopsBeforeTheDuration() {
+        configure("CPU = system cpu usage_percent > 90 for 1m");
+
+        cpu(95, 0);
+        cpu(50, 30_000);
+        cpu(95, 40_000);
+        // Pending again from the new breach, so a minute later than the first one
+        cpu(95, 60_000);
+        assertEquals(List.of("pending CPU cpu 95", "cancelled CPU cpu", "pending CPU cpu 95"), transitions);
+
+        cpu(95, 100_000);
+        assertEquals("fired CPU cpu 95", transitions.get(3));
+    }
+
+    @Test
+    void keepsSeriesOfEachResourceApart() {
+        configure("DISK = storage disk:* usage_percent > 90");
+
+        engine.evaluate(new MetricsUpdate("s1", "storage", "disk:sda", Map.of("usage_percent", 95), 0));
+        engine.evaluate(new MetricsUpdate("s1", "storage", "disk:sdb", Map.of("usage_percent", 50), 0));
+        engine.evaluate(new MetricsUpdate("s2", "storage", "disk:sda", Map.of("usage_percent", 95), 0));
+        engine.evaluate(new MetricsUpdate("s1", "storage", "history:disk:sda", Map.of("usage_percent", 95), 0));
+
+        assertEquals(List.of("fired DISK disk:sda 95", "fired DISK disk:sda 95"), transitions);
+    }
+
+    @Test
+    void carriesFiringAlertsOverARuleChange() {
+        storedRules = Map.of("CPU", "system cpu usage_percent > 90");
+        engine.init();
+        cpu(95, 0);
+        assertEquals(List.of("fired CPU cpu 95"), transitions);
+
+        // The changed rule takes over the firing series and clears it by its own threshold
+        storedRules = Map.of("CPU", "system cpu usage_percent > 90 clear 70");
+        engine.reload();
+        cpu(85, 10_000);
+        assertEquals(1, transitions.size());
+        cpu(65, 20_000);
+        assertEquals("resolved CPU cpu", transitions.get(1));
+
+        // A removed rule resolves what it had raised
+        cpu(95, 30_000);
+        storedRules = Collections.emptyMap();
+        engine.reload();
+        assertEquals(List.of("fired CPU cpu 95", "resolved CPU cpu", "fired CPU cpu 95", "resolved CPU cpu"), transitions);
+        assertFalse(engine.matches(new MetricsUpdate("s1", "system", "cpu", Map.of("usage_percent", 95), 0)));
+    }
+
+    private void configure(String rules) {
+        ReflectionTestUtils.setField(engine, "configuredRules", rules);
+        engine.init();
+    }
+
+    private void cpu(int usage, long timestamp) {
+        engine.evaluate(new MetricsUpdate("s1", "system", "cpu", Map.of("usage_percent", usage), timestamp));
+    }
+}
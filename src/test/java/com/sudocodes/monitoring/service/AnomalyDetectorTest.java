@@ -0,0 +1,172 @@
+package com.sudocodes.monitoring.service;
+
+import com.sudocodes.monitoring.model.Alert;
+import com.sudocodes.monitoring.model.MetricsUpdate;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongSupplier;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+
+/**
+ * Anomalies are raised once a series stays far from its baseline and resolved once it is back,
+ * against the seasonal baseline when there is one, and idle series give up their slots.
+ */
+class AnomalyDetectorTest {
+
+    private static final long HOUR = TimeUnit.HOURS.toMillis(1);
+    private static final String KEY = "s1:ANOMALY_system_cpu";
+
+    private final AtomicLong now = new AtomicLong(1_700_000_000_000L);
+    private AlertService alertService;
+    private AnomalyDetector detector;
+
+    @BeforeEach
+    void setUp() {
+        alertService = mock(AlertService.class);
+        detector = detector(0);
+    }
+
+    private AnomalyDetector detector(int seasonalBuckets) {
+        AnomalyDetector detector = new AnomalyDetector(alertService);
+        ReflectionTestUtils.setField(detector, "enabled", true);
+        ReflectionTestUtils.setField(detector, "seriesPatterns", new String[]{"system:cpu", "docker:*:memory"});
+        ReflectionTestUtils.setField(detector, "alpha", 0.02);
+        ReflectionTestUtils.setField(detector, "warmup", 30);
+        ReflectionTestUtils.setField(detector, "zThreshold", 4.0);
+        ReflectionTestUtils.setField(detector, "zClear", 2.0);
+        ReflectionTestUtils.setField(detector, "persistence", 5);
+        ReflectionTestUtils.setField(detector, "minDeviation", 0.05);
+        ReflectionTestUtils.setField(detector, "seasonalPeriod", TimeUnit.DAYS.toMillis(1));
+        ReflectionTestUtils.setField(detector, "seasonalBuckets", seasonalBuckets);
+        ReflectionTestUtils.setField(detector, "seasonalAlpha", 0.1);
+        ReflectionTestUtils.setField(detector, "seasonalWarmup", 5);
+        ReflectionTestUtils.setField(detector, "maxSeries", 100);
+        ReflectionTestUtils.setField(detector, "idleTimeout", HOUR);
+        ReflectionTestUtils.setField(detector, "clock", (LongSupplier) now::get);
+        detector.init();
+        return detector;
+    }
+
+    @Test
+    void raisesOnceOnAStepChangeAndResolvesOnceWhenItIsOver() {
+        long time = 0;
+        for (int i = 0; i < 100; i++) {
+            cpu(20 + Math.sin(i) * 0.5, time += 60_000);
+        }
+        // Fewer consecutive outliers than anomaly.persistence are not an anomaly
+        for (int i = 0; i < 4; i++) {
+            cpu(30, time += 60_000);
+        }
+        for (int i = 0; i < 20; i++) {
+            cpu(20 + Math.sin(i) * 0.5, time += 60_000);
+        }
+        verify(alertService, never()).raiseAlert(any());
+
+        for (int i = 0; i < 10; i++) {
+            cpu(30, time += 60_000);
+        }
+        ArgumentCaptor<Alert> raised = ArgumentCaptor.forClass(Alert.class);
+        verify(alertService, times(1)).raiseAlert(raised.capture());
+        assertEquals(KEY, raised.getValue().getKey());
+        assertEquals(Alert.AlertType.ANOMALY, raised.getValue().getType());
+        assertEquals("history:cpu", raised.getValue().getResource());
+        // The sample that completed the streak is about ten floor deviations (5% of the mean) above it
+        String message = raised.getValue().getMessage();
+        double z = Double.parseDouble(message.substring(message.indexOf("z = ") + 4, message.length() - 1));
+        assertEquals(10, z, 0.5, message);
+        verify(alertService, never()).resolveAlert(anyString());
+
+        for (int i = 0; i < 20; i++) {
+            cpu(20 + Math.sin(i) * 0.5, time += 60_000);
+        }
+        verify(alertService, times(1)).raiseAlert(any());
+        verify(alertService, times(1)).resolveAlert(KEY);
+        assertEquals(1, detector.getAnomalies());
+    }
+
+    @Test
+    void scoresAgainstTheBucketOfTheTimeOfDay() {
+        // Busy afternoons are normal with a daily baseline, so a quiet one stands out
+        assertEquals(0, quietAfternoon(0));
+        assertEquals(1, quietAfternoon(24));
+    }
+
+    private long quietAfternoon(int buckets) {
+        AnomalyDetector detector = detector(buckets);
+        long time = 0;
+        for (int day = 0; day < 10; day++) {
+            for (int hour = 0; hour < 24; hour++) {
+                cpu(detector, hour < 12 ? 20 : 80, time + hour * HOUR);
+            }
+            time += 24 * HOUR;
+        }
+        for (int hour = 0; hour < 24; hour++) {
+            cpu(detector, 20, time + hour * HOUR);
+        }
+        return detector.getAnomalies();
+    }
+
+    @Test
+    void reclaimsIdleSeriesAndReusesTheirSlots() {
+        long time = 0;
+        for (int i = 0; i < 50; i++) {
+            cpu(20, time += 60_000);
+        }
+        for (int i = 0; i < 5; i++) {
+            cpu(50, time += 60_000);
+        }
+        verify(alertService, times(1)).raiseAlert(any());
+        // Unwatched series take no slot
+        detector.onUpdate(new MetricsUpdate("s1", "system", "history:load", Map.of("value", 1.0), time));
+        detector.onUpdate(new MetricsUpdate("s1", "system", "cpu", Map.of("value", 1.0), time));
+        assertEquals(1, detector.getSeriesCount());
+
+        now.addAndGet(HOUR / 2);
+        memory("c1", 100, time);
+        now.addAndGet(HOUR / 2 + 1);
+        detector.reclaimIdle();
+        assertEquals(1, detector.getSeriesCount());
+        // The firing series is resolved when its slot goes
+        verify(alertService, times(1)).resolveAlert(KEY);
+
+        // A new series gets the freed slot and none of its state
+        for (int i = 0; i < 50; i++) {
+            memory("c2", 500, time += 60_000);
+        }
+        assertEquals(2, detector.getSeriesCount());
+        assertEquals(2, ReflectionTestUtils.getField(detector, "used"));
+        verify(alertService, times(1)).raiseAlert(any());
+
+        now.addAndGet(2 * HOUR);
+        detector.reclaimIdle();
+        assertEquals(0, detector.getSeriesCount());
+        verify(alertService, times(1)).resolveAlert(anyString());
+    }
+
+    private void cpu(double value, long time) {
+        cpu(detector, value, time);
+    }
+
+    private static void cpu(AnomalyDetector detector, double value, long time) {
+        detector.onUpdate(new MetricsUpdate("s1", "system", "history:cpu", Map.of("value", value, "timestamp", time), time));
+    }
+
+    private void memory(String container, double value, long time) {
+        detector.onUpdate(new MetricsUpdate("s1", "docker", "history:" + container + ":memory",
+                Map.of("value", value, "timestamp", time), time));
+    }
+}
@@ -0,0 +1,65 @@
+package com.sudocodes.monitoring.service;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Downsampling keeps the ends and the requested number of points, and passes short series through.
+ */
+class LttbTest {
+
+    @Test
+    void keepsTheEndsAndThresholdPoints() {
+        Random random = new Random(1);
+        double[] x = new double[1000];
+        double[] y = new double[1000];
+        for (int i = 0; i < x.length; i++) {
+            x[i] = 1_700_000_000_000.0 + i * 10_000;
+            y[i] = 50 + random.nextGaussian() * 5;
+        }
+
+        for (int threshold : new int[]{3, 10, 99, 500, 999}) {
+            int[] selected = Lttb.select(x, y, x.length, threshold);
+            assertEquals(threshold, selected.length);
+            assertEquals(0, selected[0]);
+            assertEquals(x.length - 1, selected[threshold - 1]);
+            for (int i = 1; i < selected.length; i++) {
+                assertTrue(selected[i] > selected[i - 1], "indexes not ascending at " + i);
+            }
+        }
+    }
+
+    @Test
+    void keepsPeaksAndDips() {
+        double[] x = new double[300];
+        double[] y = new double[300];
+        for (int i = 0; i < x.length; i++) {
+            x[i] = i;
+            y[i] = 10;
+        }
+        y[123] = 95;
+        y[211] = -40;
+
+        int[] selected = Lttb.select(x, y, x.length, 20);
+        assertTrue(Arrays.stream(selected).anyMatch(i -> i == 123), "peak dropped");
+        assertTrue(Arrays.stream(selected).anyMatch(i -> i == 211), "dip dropped");
+    }
+
+    @Test
+    void passesShortSeriesThrough() {
+        double[] x = {1, 2, 3, 4, 5, 0, 0};
+        double[] y = {5, 3, 8, 1, 4, 0, 0};
+
+        // Only the first count entries of the arrays are points
+        assertArrayEquals(new int[]{0, 1, 2, 3, 4}, Lttb.select(x, y, 5, 5));
+        assertArrayEquals(new int[]{0, 1, 2, 3, 4}, Lttb.select(x, y, 5, 50));
+        assertArrayEquals(new int[]{0, 1, 2, 3, 4}, Lttb.select(x, y, 5, 2));
+        assertArrayEquals(new int[0], Lttb.select(x, y, 0, 10));
+    }
+}